@@ -0,0 +1,105 @@
+package com.handshape.classifier.service;
+
+import com.github.cliftonlabs.json_simple.JsonArray;
+import com.github.cliftonlabs.json_simple.JsonException;
+import com.github.cliftonlabs.json_simple.JsonObject;
+import com.github.cliftonlabs.json_simple.Jsoner;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * Compares two sets of JMH results written with {@code -rf json}, typically a
+ * saved baseline and a later run, and reports the change in each benchmark's
+ * score. Exits with a non-zero status if any benchmark got worse by more than
+ * the threshold (and by more than the combined error of the two scores).
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.handshape.classifier.service.BenchmarkComparison baseline.json current.json [THRESHOLD_PERCENT]
+ * </pre>
+ *
+ * @author jturner
+ */
+public class BenchmarkComparison {
+
+    /**
+     * Entry point.
+     *
+     * @param args the baseline results file, the current results file, and
+     * optionally the regression threshold as a percentage (default 5)
+     * @throws Exception if either file can't be read
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: BenchmarkComparison BASELINE.json CURRENT.json [THRESHOLD_PERCENT]");
+            System.exit(2);
+        }
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 5.0;
+        Map<String, JsonObject> baseline = load(args[0]);
+        Map<String, JsonObject> current = load(args[1]);
+        int regressions = 0;
+        System.out.println(String.format("%-90s %14s %14s %9s", "Benchmark", "Baseline", "Current", "Change"));
+        for (Entry<String, JsonObject> entry : current.entrySet()) {
+            JsonObject now = entry.getValue();
+            JsonObject then = baseline.get(entry.getKey());
+            JsonObject nowMetric = (JsonObject) now.get("primaryMetric");
+            double nowScore = number(nowMetric.get("score"));
+            String unit = String.valueOf(nowMetric.get("scoreUnit"));
+            if (then == null) {
+                System.out.println(String.format("%-90s %14s %14.3f %9s  %s", entry.getKey(), "-", nowScore, "new", unit));
+                continue;
+            }
+            JsonObject thenMetric = (JsonObject) then.get("primaryMetric");
+            double thenScore = number(thenMetric.get("score"));
+            double change = thenScore == 0.0 ? 0.0 : (nowScore - thenScore) / thenScore * 100.0;
+            // Throughput is better when higher; every other mode measures time.
+            boolean higherIsBetter = "thrpt".equals(now.get("mode"));
+            double worsening = higherIsBetter ? -change : change;
+            double error = number(nowMetric.get("scoreError")) + number(thenMetric.get("scoreError"));
+            boolean regression = worsening > threshold && Math.abs(nowScore - thenScore) > error;
+            if (regression) {
+                regressions++;
+            }
+            System.out.println(String.format("%-90s %14.3f %14.3f %+8.1f%%  %s%s", entry.getKey(), thenScore, nowScore, change, unit,
+                    regression ? "  REGRESSION" : ""));
+        }
+        System.out.println(regressions + " regression(s) beyond " + threshold + "%");
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+    private static Map<String, JsonObject> load(String file) throws IOException, JsonException {
+        Map<String, JsonObject> results = new TreeMap<>();
+        try ( Reader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            for (Object o : (JsonArray) Jsoner.deserialize(reader)) {
+                JsonObject result = (JsonObject) o;
+                StringBuilder key = new StringBuilder();
+                key.append(result.get("benchmark")).append(' ').append(result.get("mode"));
+                Object params = result.get("params");
+                if (params instanceof JsonObject) {
+                    for (Entry<String, Object> param : new TreeMap<>((JsonObject) params).entrySet()) {
+                        key.append(' ').append(param.getKey()).append('=').append(param.getValue());
+                    }
+                }
+                results.put(key.toString(), result);
+            }
+        }
+        return results;
+    }
+
+    private static double number(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        try {
+            return Double.parseDouble(String.valueOf(value));
+        } catch (NumberFormatException ex) {
+            // JMH writes "NaN" for errors it couldn't compute.
+            return 0.0;
+        }
+    }
+}
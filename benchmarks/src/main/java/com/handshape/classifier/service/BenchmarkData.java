@@ -0,0 +1,154 @@
+package com.handshape.classifier.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Deterministic generator of category files and documents for the benchmarks.
+ * Document words are drawn from a synthetic vocabulary with a skewed
+ * distribution, and query terms uniformly from the same vocabulary, so that
+ * only a fraction of the queries find candidate terms in a given document.
+ *
+ * @author jturner
+ */
+final class BenchmarkData {
+
+    private static final String[] SYLLABLES = new String[]{
+        "ka", "lo", "mi", "ne", "ru", "sa", "te", "vo", "zi", "qua", "bre", "dor", "fen", "gil", "har", "jun"
+    };
+    private static final String[] VOCABULARY = buildVocabulary(20000);
+
+    private BenchmarkData() {
+    }
+
+    private static String[] buildVocabulary(int size) {
+        Random random = new Random(1L);
+        String[] words = new String[size];
+        for (int i = 0; i < size; i++) {
+            StringBuilder word = new StringBuilder();
+            int syllables = 2 + random.nextInt(3);
+            for (int j = 0; j < syllables; j++) {
+                word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+            }
+            words[i] = word.toString();
+        }
+        return words;
+    }
+
+    /**
+     * Picks a word for a document, favouring the start of the vocabulary.
+     */
+    static String word(Random random) {
+        double skewed = Math.pow(random.nextDouble(), 3);
+        return VOCABULARY[(int) (skewed * VOCABULARY.length)];
+    }
+
+    /**
+     * Picks a word for a query uniformly from the vocabulary; category queries
+     * tend to use specific terms rather than the most common ones.
+     */
+    static String term(Random random) {
+        return VOCABULARY[random.nextInt(VOCABULARY.length)];
+    }
+
+    /**
+     * Writes a category file with the given number of queries, in a mix of
+     * the shapes seen in real category files.
+     *
+     * @param count the number of categories
+     * @return the (temporary) file, deleted on exit
+     * @throws IOException if the file can't be written
+     */
+    static File writeCategories(int count) throws IOException {
+        File file = File.createTempFile("benchmark-categories", ".properties");
+        file.deleteOnExit();
+        Random random = new Random(count);
+        try ( Writer out = new OutputStreamWriter(Files.newOutputStream(file.toPath()), StandardCharsets.UTF_8)) {
+            for (int i = 0; i < count; i++) {
+                out.write("category" + i + "=" + query(random, i) + "\n");
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Writes a category file of leading-wildcard queries, each matching
+     * words that end in the last few letters of a vocabulary word, like
+     * those written to catch families of medical or financial terms.
+     *
+     * @param count the number of categories
+     * @return the (temporary) file, deleted on exit
+     * @throws IOException if the file can't be written
+     */
+    static File writeSuffixCategories(int count) throws IOException {
+        File file = File.createTempFile("benchmark-suffixes", ".properties");
+        file.deleteOnExit();
+        Random random = new Random(count);
+        try ( Writer out = new OutputStreamWriter(Files.newOutputStream(file.toPath()), StandardCharsets.UTF_8)) {
+            for (int i = 0; i < count; i++) {
+                String word = term(random);
+                String suffix = word.substring(Math.max(0, word.length() - 4));
+                out.write("suffix" + i + "=" + (i % 2 == 0 ? "*" + suffix : "title:*" + suffix + " OR *" + suffix) + "\n");
+            }
+        }
+        return file;
+    }
+
+    private static String query(Random random, int i) {
+        if (i % 100 == 99) {
+            // Fuzzy queries can't be pre-filtered and are costly; keep them rare.
+            return term(random) + "~1";
+        }
+        switch (i % 8) {
+            case 0:
+                return term(random) + " " + term(random) + " " + term(random);
+            case 1:
+                return term(random) + " AND " + term(random);
+            case 2:
+                return "\"" + term(random) + " " + term(random) + "\"";
+            case 3:
+                return "title:" + term(random);
+            case 4:
+                String stem = term(random);
+                return stem.substring(0, stem.length() - 2) + "*";
+            case 5:
+                return "+" + term(random) + " -" + term(random);
+            case 6:
+                return "title:\"" + term(random) + " " + term(random) + "\" OR " + term(random);
+            default:
+                return "title:" + term(random) + " AND " + term(random);
+        }
+    }
+
+    /**
+     * Builds a document of (roughly) the given size in characters, as a short
+     * title and a body.
+     *
+     * @param size the approximate total size of the field values
+     * @param seed the random seed
+     * @return the document
+     */
+    static Map<String, String> document(int size, long seed) {
+        Random random = new Random(seed);
+        Map<String, String> document = new TreeMap<>();
+        int titleSize = Math.min(80, size / 10);
+        document.put("title", text(random, titleSize));
+        document.put(LuceneEvaluator.DEFAULT_FIELD_NAME, text(random, size - titleSize));
+        return document;
+    }
+
+    private static String text(Random random, int size) {
+        StringBuilder text = new StringBuilder(size + 16);
+        while (text.length() < size) {
+            text.append(word(random)).append(' ');
+        }
+        return text.toString();
+    }
+}
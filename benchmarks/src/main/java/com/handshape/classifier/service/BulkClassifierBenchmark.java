@@ -0,0 +1,86 @@
+package com.handshape.classifier.service;
+
+import com.github.cliftonlabs.json_simple.JsonObject;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Records per second through {@link BulkClassifier} on an in-memory NDJSON
+ * corpus, by number of worker threads. On an otherwise idle machine the rate
+ * should grow close to linearly with threads up to the number of cores.
+ *
+ * @author jturner
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class BulkClassifierBenchmark {
+
+    private static final int RECORDS = 10000;
+
+    @Param({"1000"})
+    public int queryCount;
+
+    @Param({"1000"})
+    public int documentSize;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    @Param({"true", "false"})
+    public boolean ordered;
+
+    private LuceneEvaluator evaluator;
+    private BulkClassifier classifier;
+    private byte[] corpus;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        File categories = BenchmarkData.writeCategories(queryCount);
+        evaluator = new LuceneEvaluator(categories);
+        evaluator.stop();
+        classifier = new BulkClassifier(evaluator);
+        classifier.setThreads(threads);
+        classifier.setOrdered(ordered);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < RECORDS; i++) {
+            out.write(new JsonObject(BenchmarkData.document(documentSize, i)).toJson().getBytes(StandardCharsets.UTF_8));
+            out.write('\n');
+        }
+        corpus = out.toByteArray();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        evaluator.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public BulkClassifier.Summary classify() throws IOException, InterruptedException {
+        return classifier.classify(Channels.newChannel(new ByteArrayInputStream(corpus)), NullOutputStream.NULL_OUTPUT_STREAM);
+    }
+}
@@ -0,0 +1,91 @@
+package com.handshape.classifier.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of compiling a category file from scratch and incrementally, of
+ * reloading an unchanged file, and of listing the fields it references.
+ *
+ * @author jturner
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CategoriesBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int queryCount;
+
+    private LuceneEvaluator evaluator;
+    private final Analyzer analyzer = new StandardAnalyzer();
+    private Properties properties;
+    private Properties edited;
+    private CategorySet compiled;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        File categories = BenchmarkData.writeCategories(queryCount);
+        evaluator = new LuceneEvaluator(categories);
+        properties = new Properties();
+        try ( InputStream in = Files.newInputStream(categories.toPath())) {
+            properties.load(in);
+        }
+        edited = new Properties();
+        edited.putAll(properties);
+        edited.setProperty("category0", "edited");
+        compiled = CategorySet.compile(properties, "original", 0L, CategorySet.EMPTY, null, analyzer, true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        evaluator.close();
+    }
+
+    /**
+     * A reload of a file that was touched but not changed.
+     */
+    @Benchmark
+    public long loadCategories() throws IOException {
+        evaluator.loadCategories();
+        return evaluator.getLastLoadTime();
+    }
+
+    @Benchmark
+    public CategorySet compileAll() {
+        return CategorySet.compile(properties, "original", 0L, CategorySet.EMPTY, null, analyzer, true);
+    }
+
+    @Benchmark
+    public CategorySet compileOneChanged() {
+        return CategorySet.compile(edited, "edited", 0L, compiled, null, analyzer, true);
+    }
+
+    @Benchmark
+    public Set<String> getFieldList() {
+        return evaluator.getFieldList();
+    }
+}
@@ -0,0 +1,61 @@
+package com.handshape.classifier.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput and latency distribution of {@link LuceneEvaluator#evaluate(Map)}
+ * across category-set and document sizes.
+ *
+ * @author jturner
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EvaluateBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int queryCount;
+
+    @Param({"100", "10000", "1000000"})
+    public int documentSize;
+
+    private LuceneEvaluator evaluator;
+    private Map<String, String> document;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        File categories = BenchmarkData.writeCategories(queryCount);
+        evaluator = new LuceneEvaluator(categories);
+        document = BenchmarkData.document(documentSize, 42L);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        evaluator.close();
+    }
+
+    @Benchmark
+    public Set<String> evaluate() {
+        return evaluator.evaluate(document);
+    }
+}
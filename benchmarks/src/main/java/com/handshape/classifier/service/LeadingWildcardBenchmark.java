@@ -0,0 +1,76 @@
+package com.handshape.classifier.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Evaluation latency of leading-wildcard categories, with their fields
+ * searched as they are and with reversed copies of them. Without reversal,
+ * each query tests every distinct term of the document; with it, each seeks
+ * to its suffix, at the cost of indexing the reversed terms.
+ *
+ * @author jturner
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LeadingWildcardBenchmark {
+
+    private static final int DOCUMENTS = 16;
+
+    @Param({"100"})
+    public int queryCount;
+
+    @Param({"1000", "100000", "1000000"})
+    public int documentSize;
+
+    @Param({"false", "true"})
+    public boolean reverseWildcards;
+
+    private LuceneEvaluator evaluator;
+    private final List<Map<String, String>> documents = new ArrayList<>(DOCUMENTS);
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        File categories = BenchmarkData.writeSuffixCategories(queryCount);
+        evaluator = new LuceneEvaluator(categories);
+        evaluator.stop();
+        evaluator.setReverseWildcards(reverseWildcards);
+        documents.clear();
+        for (int i = 0; i < DOCUMENTS; i++) {
+            documents.add(BenchmarkData.document(documentSize, i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        evaluator.close();
+    }
+
+    @Benchmark
+    public CategoryMatches evaluate() {
+        next = (next + 1) % DOCUMENTS;
+        return evaluator.evaluateMatches(documents.get(next), false, CategorySelection.ALL);
+    }
+}
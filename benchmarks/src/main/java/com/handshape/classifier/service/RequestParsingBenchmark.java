@@ -0,0 +1,77 @@
+package com.handshape.classifier.service;
+
+import com.github.cliftonlabs.json_simple.JsonException;
+import com.github.cliftonlabs.json_simple.JsonObject;
+import com.github.cliftonlabs.json_simple.Jsoner;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of turning request bodies into evaluation maps.
+ *
+ * @author jturner
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestParsingBenchmark {
+
+    @Param({"100", "10000", "1000000"})
+    public int documentSize;
+
+    private String formBody;
+    private String jsonBody;
+    private JsonObject jsonObject;
+
+    @Setup(Level.Trial)
+    public void setUp() throws UnsupportedEncodingException {
+        Map<String, String> document = BenchmarkData.document(documentSize, 42L);
+        StringBuilder form = new StringBuilder();
+        jsonObject = new JsonObject();
+        for (Entry<String, String> entry : document.entrySet()) {
+            if (form.length() > 0) {
+                form.append('&');
+            }
+            form.append(URLEncoder.encode(entry.getKey(), StandardCharsets.UTF_8.name()))
+                    .append('=')
+                    .append(URLEncoder.encode(entry.getValue(), StandardCharsets.UTF_8.name()));
+            jsonObject.put(entry.getKey(), entry.getValue());
+        }
+        formBody = form.toString();
+        jsonBody = jsonObject.toJson();
+    }
+
+    @Benchmark
+    public Map<String, String> parseUrlFormEncoded() throws UnsupportedEncodingException {
+        return SimpleClassifierService.parseUrlFormEncoded(formBody);
+    }
+
+    @Benchmark
+    public Map<String, String> jsonToMap() {
+        return SimpleClassifierService.jsonToMap(jsonObject);
+    }
+
+    @Benchmark
+    public Map<String, String> deserializeJsonBody() throws JsonException {
+        return SimpleClassifierService.jsonToMap((JsonObject) Jsoner.deserialize(jsonBody));
+    }
+}
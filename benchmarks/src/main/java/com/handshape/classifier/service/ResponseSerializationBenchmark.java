@@ -0,0 +1,63 @@
+package com.handshape.classifier.service;
+
+import java.util.BitSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of serializing the response for a set of matching categories: as a
+ * JSON object graph, and from the pre-encoded category names.
+ *
+ * @author jturner
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseSerializationBenchmark {
+
+    @Param({"0", "1", "10", "1000"})
+    public int categoryCount;
+
+    private Set<String> categories;
+    private CategoryMatches matches;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        categories = new TreeSet<>();
+        for (int i = 0; i < categoryCount; i++) {
+            categories.add("category" + i);
+        }
+        BitSet matched = new BitSet();
+        matched.set(0, categoryCount);
+        matches = new CategoryMatches(new CategoryIds(categories), matched);
+    }
+
+    @Benchmark
+    public String serializeResponse() {
+        return SimpleClassifierService.toJsonResponse(categories);
+    }
+
+    /**
+     * The response as the service writes it, from names encoded at load time.
+     */
+    @Benchmark
+    public byte[] writeMatches() {
+        return matches.toJson();
+    }
+}
@@ -0,0 +1,64 @@
+package com.handshape.classifier.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time from creating an evaluator to answering its first document, with and
+ * without a precompiled category snapshot. Each measurement is a single cold
+ * start, so the snapshot's effect isn't hidden by a warmed-up JIT.
+ *
+ * @author jturner
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(5)
+public class StartupBenchmark {
+
+    @Param({"1000", "100000"})
+    public int queryCount;
+
+    @Param({"false", "true"})
+    public boolean snapshot;
+
+    private File categories;
+    private File snapshotFile;
+    private Map<String, String> document;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        categories = BenchmarkData.writeCategories(queryCount);
+        document = BenchmarkData.document(1000, 42);
+        if (snapshot) {
+            snapshotFile = new File(categories.getPath() + ".snapshot");
+            snapshotFile.deleteOnExit();
+            // Write the snapshot ahead of the measured start, as a previous run or another replica would.
+            new LuceneEvaluator(categories, snapshotFile).close();
+        }
+    }
+
+    @Benchmark
+    public Set<String> startToFirstResult() throws IOException {
+        try ( LuceneEvaluator evaluator = new LuceneEvaluator(categories, snapshotFile)) {
+            return evaluator.evaluate(document);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.handshape.classifier.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Evaluation throughput for documents whose short fields (title, source,
+ * country) repeat from document to document, with and without the token
+ * cache. The body is unique to each document and always analyzed.
+ *
+ * @author jturner
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenCacheBenchmark {
+
+    private static final int DOCUMENTS = 1024;
+
+    @Param({"1000"})
+    public int queryCount;
+
+    @Param({"0", "100"})
+    public int documentSize;
+
+    @Param({"0", "16777216"})
+    public long tokenCacheSize;
+
+    private LuceneEvaluator evaluator;
+    private final List<Map<String, String>> documents = new ArrayList<>(DOCUMENTS);
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        File categories = BenchmarkData.writeCategories(queryCount);
+        evaluator = new LuceneEvaluator(categories);
+        evaluator.stop();
+        evaluator.setTokenCacheSize(tokenCacheSize);
+        Random random = new Random(42L);
+        String[] titles = new String[50];
+        for (int i = 0; i < titles.length; i++) {
+            titles[i] = BenchmarkData.word(random) + " " + BenchmarkData.term(random) + " " + BenchmarkData.word(random);
+        }
+        documents.clear();
+        for (int i = 0; i < DOCUMENTS; i++) {
+            Map<String, String> document = new TreeMap<>();
+            document.put("title", titles[random.nextInt(titles.length)]);
+            document.put("source", "wire-" + random.nextInt(10));
+            document.put("country", "C" + random.nextInt(20));
+            if (documentSize > 0) {
+                document.putAll(BenchmarkData.document(documentSize, i));
+                document.put("title", titles[random.nextInt(titles.length)]);
+            }
+            documents.add(document);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        evaluator.close();
+    }
+
+    @Benchmark
+    public CategoryMatches evaluate() {
+        next = (next + 1) % DOCUMENTS;
+        return evaluator.evaluateMatches(documents.get(next), false, CategorySelection.ALL);
+    }
+}
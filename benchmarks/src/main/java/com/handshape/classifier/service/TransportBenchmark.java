@@ -0,0 +1,97 @@
+package com.handshape.classifier.service;
+
+import com.github.cliftonlabs.json_simple.JsonObject;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Round-trip latency of one evaluation on localhost, over HTTP with a JSON
+ * body (on a kept-alive connection) versus over the binary protocol, against
+ * the same evaluator. The difference is the cost of the transport.
+ *
+ * @author jturner
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransportBenchmark {
+
+    private static final int HTTP_PORT = 18080;
+    private static final int BINARY_PORT = 18081;
+
+    @Param({"10", "1000"})
+    public int queryCount;
+
+    @Param({"100", "10000"})
+    public int documentSize;
+
+    private SimpleClassifierService service;
+    private ClassifierClient client;
+    private Map<String, String> document;
+    private byte[] jsonBody;
+    private URL url;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        File categories = BenchmarkData.writeCategories(queryCount);
+        service = new SimpleClassifierService();
+        service.setCategoriesFile(categories);
+        service.setBinaryPort(BINARY_PORT);
+        service.start(HTTP_PORT);
+        client = new ClassifierClient("localhost", BINARY_PORT);
+        document = BenchmarkData.document(documentSize, 42L);
+        jsonBody = new JsonObject(document).toJson().getBytes(StandardCharsets.UTF_8);
+        url = new URL("http://localhost:" + HTTP_PORT + "/");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        client.close();
+        service.stop();
+    }
+
+    @Benchmark
+    public String http() throws IOException {
+        HttpURLConnection con = (HttpURLConnection) url.openConnection();
+        con.setRequestMethod("POST");
+        con.setRequestProperty("Content-Type", "application/json");
+        con.setDoOutput(true);
+        try ( OutputStream os = con.getOutputStream()) {
+            os.write(jsonBody);
+        }
+        // Reading the whole response lets the connection be reused.
+        try ( InputStream in = con.getInputStream()) {
+            return IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+    }
+
+    @Benchmark
+    public Set<String> binary() throws IOException {
+        return client.evaluate(document);
+    }
+}
@@ -0,0 +1,98 @@
+package com.handshape.classifier.service;
+
+import com.github.cliftonlabs.json_simple.JsonObject;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Request latency over HTTP during the first minute after a service becomes
+ * ready, with and without a warm-up phase. There's no JMH warm-up: each fork
+ * is a fresh JVM, and the whole minute is measured, so the percentiles show
+ * what the first clients of a newly deployed instance see.
+ *
+ * @author jturner
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1, time = 60)
+@Fork(3)
+public class WarmUpBenchmark {
+
+    private static final int HTTP_PORT = 18082;
+    private static final int DOCUMENTS = 1024;
+
+    @Param({"1000"})
+    public int queryCount;
+
+    @Param({"1000"})
+    public int documentSize;
+
+    @Param({"0", "10000"})
+    public long warmUpMillis;
+
+    private SimpleClassifierService service;
+    private byte[][] bodies;
+    private URL url;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        File categories = BenchmarkData.writeCategories(queryCount);
+        bodies = new byte[DOCUMENTS][];
+        for (int i = 0; i < DOCUMENTS; i++) {
+            bodies[i] = new JsonObject(BenchmarkData.document(documentSize, i)).toJson().getBytes(StandardCharsets.UTF_8);
+        }
+        service = new SimpleClassifierService();
+        service.setCategoriesFile(categories);
+        service.setWarmUpMillis(warmUpMillis);
+        service.start(HTTP_PORT);
+        // A load balancer would hold traffic back until the instance reports ready.
+        while (!service.isReady()) {
+            Thread.sleep(10);
+        }
+        url = new URL("http://localhost:" + HTTP_PORT + "/");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        service.stop();
+    }
+
+    @Benchmark
+    public String http() throws IOException {
+        next = (next + 1) % DOCUMENTS;
+        HttpURLConnection con = (HttpURLConnection) url.openConnection();
+        con.setRequestMethod("POST");
+        con.setRequestProperty("Content-Type", "application/json");
+        con.setDoOutput(true);
+        try ( OutputStream os = con.getOutputStream()) {
+            os.write(bodies[next]);
+        }
+        // Reading the whole response lets the connection be reused.
+        try ( InputStream in = con.getInputStream()) {
+            return IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+    }
+}
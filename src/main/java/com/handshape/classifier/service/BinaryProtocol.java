@@ -0,0 +1,331 @@
+package com.handshape.classifier.service;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The frames of the binary protocol. Every frame is a big-endian 32-bit length
+ * of the rest of the frame, followed by a 32-bit request id chosen by the
+ * client. Strings are UTF-8, prefixed with an unsigned 16-bit byte length,
+ * except for field values, which are prefixed with a 32-bit byte length.
+ *
+ * <p>
+ * An evaluation request continues with the opcode {@link #EVALUATE}, a flags
+ * byte ({@link #FLAG_NO_CACHE}), the 32-bit match limit (zero for none), a
+ * 16-bit count of category names followed by the names, a 16-bit count of
+ * category name prefixes followed by the prefixes, and a 16-bit count of
+ * fields followed by each field's name and value.
+ *
+ * <p>
+ * A response continues with a status byte. With {@link #STATUS_OK}, it
+ * continues with a 16-bit count of matching category names followed by the
+ * names; otherwise, with an error message.
+ *
+ * @author jturner
+ */
+final class BinaryProtocol {
+
+    /**
+     * The opcode of an evaluation request.
+     */
+    static final byte EVALUATE = 1;
+    /**
+     * The request flag asking for the document to be evaluated afresh, rather
+     * than answered from the result cache.
+     */
+    static final byte FLAG_NO_CACHE = 1;
+
+    static final byte STATUS_OK = 0;
+    /**
+     * The request was malformed, or asked for something unknown.
+     */
+    static final byte STATUS_BAD_REQUEST = 1;
+    /**
+     * The request was too large.
+     */
+    static final byte STATUS_TOO_LARGE = 2;
+    /**
+     * The service was too busy to take the request; it may be retried.
+     */
+    static final byte STATUS_OVERLOADED = 3;
+    /**
+     * The evaluation failed.
+     */
+    static final byte STATUS_ERROR = 4;
+
+    private static final int MAX_SHORT = 0xffff;
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * A decoded evaluation request.
+     */
+    static final class Request {
+
+        final int id;
+        final boolean useCache;
+        final CategorySelection selection;
+        final Map<String, String> document;
+
+        Request(int id, boolean useCache, CategorySelection selection, Map<String, String> document) {
+            this.id = id;
+            this.useCache = useCache;
+            this.selection = selection;
+            this.document = document;
+        }
+    }
+
+    /**
+     * Writes an evaluation request frame.
+     *
+     * @param out the destination
+     * @param id the request id
+     * @param document the fields of the document to evaluate
+     * @param selection the categories to evaluate
+     * @param useCache false to bypass the result cache
+     * @throws IOException if the frame can't be written, or a string is too
+     * long to be encoded
+     */
+    static void writeRequest(DataOutput out, int id, Map<String, String> document, CategorySelection selection, boolean useCache) throws IOException {
+        List<byte[]> names = encodeAll(selection.getNames());
+        List<byte[]> prefixes = encodeAll(selection.getPrefixes());
+        List<byte[]> fields = new ArrayList<>(document.size() * 2);
+        for (Entry<String, String> field : document.entrySet()) {
+            fields.add(encodeShort(field.getKey()));
+            fields.add(String.valueOf(field.getValue()).getBytes(StandardCharsets.UTF_8));
+        }
+        checkCount(document.size());
+        long length = 4 + 1 + 1 + 4 + 2 + 2 + 2;
+        for (byte[] name : names) {
+            length += 2 + name.length;
+        }
+        for (byte[] prefix : prefixes) {
+            length += 2 + prefix.length;
+        }
+        for (int i = 0; i < fields.size(); i += 2) {
+            length += 2 + fields.get(i).length + 4 + fields.get(i + 1).length;
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Request too large to encode: " + length + " bytes.");
+        }
+        out.writeInt((int) length);
+        out.writeInt(id);
+        out.writeByte(EVALUATE);
+        out.writeByte(useCache ? 0 : FLAG_NO_CACHE);
+        out.writeInt(selection.getLimit());
+        writeShortStrings(out, names);
+        writeShortStrings(out, prefixes);
+        out.writeShort(document.size());
+        for (int i = 0; i < fields.size(); i += 2) {
+            out.writeShort(fields.get(i).length);
+            out.write(fields.get(i));
+            out.writeInt(fields.get(i + 1).length);
+            out.write(fields.get(i + 1));
+        }
+    }
+
+    /**
+     * Decodes the body of a request frame: everything after the length.
+     *
+     * @param frame the frame body
+     * @return the request
+     * @throws IllegalArgumentException if the frame isn't a well-formed
+     * evaluation request; the message says why
+     */
+    static Request readRequest(ByteBuffer frame) {
+        try {
+            int id = frame.getInt();
+            byte opcode = frame.get();
+            if (opcode != EVALUATE) {
+                throw new IllegalArgumentException("Unknown opcode " + opcode + ".");
+            }
+            boolean useCache = (frame.get() & FLAG_NO_CACHE) == 0;
+            int limit = frame.getInt();
+            List<String> names = readShortStrings(frame);
+            List<String> prefixes = readShortStrings(frame);
+            CategorySelection selection = names.isEmpty() && prefixes.isEmpty() && limit == 0
+                    ? CategorySelection.ALL
+                    : new CategorySelection(names, prefixes, limit);
+            int count = Short.toUnsignedInt(frame.getShort());
+            // Every value of a repeated name is indexed, as for the other request bodies.
+            Map<String, String> document = new TreeMap<>();
+            for (int i = 0; i < count; i++) {
+                String name = readString(frame, Short.toUnsignedInt(frame.getShort()));
+                int valueLength = frame.getInt();
+                if (valueLength < 0) {
+                    throw new IllegalArgumentException("Negative value length.");
+                }
+                DocumentSource.put(document, name, readString(frame, valueLength));
+            }
+            if (frame.hasRemaining()) {
+                throw new IllegalArgumentException("Unexpected bytes after the request.");
+            }
+            return new Request(id, useCache, selection, document);
+        } catch (BufferUnderflowException ex) {
+            throw new IllegalArgumentException("Truncated request.");
+        }
+    }
+
+    /**
+     * Peeks at a frame's request id, for reporting a malformed request.
+     *
+     * @param frame the frame body
+     * @return its id, or zero if it's too short to have one
+     */
+    static int peekId(ByteBuffer frame) {
+        return frame.remaining() >= 4 ? frame.getInt(frame.position()) : 0;
+    }
+
+    /**
+     * @param id the request id
+     * @param matches the matching categories
+     * @return a complete response frame, ready to write
+     */
+    static ByteBuffer encodeResult(int id, CategoryMatches matches) {
+        int length = 4 + 1 + 2;
+        for (int match = matches.nextMatch(0); match >= 0; match = matches.nextMatch(match + 1)) {
+            length += 2 + Math.min(MAX_SHORT, matches.getUtf8(match).length);
+        }
+        ByteBuffer frame = ByteBuffer.allocate(4 + length);
+        frame.putInt(length).putInt(id).put(STATUS_OK).putShort((short) matches.size());
+        for (int match = matches.nextMatch(0); match >= 0; match = matches.nextMatch(match + 1)) {
+            byte[] name = matches.getUtf8(match);
+            int nameLength = Math.min(MAX_SHORT, name.length);
+            frame.putShort((short) nameLength).put(name, 0, nameLength);
+        }
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * @param id the request id
+     * @param status the failure status
+     * @param message a description of the failure
+     * @return a complete response frame, ready to write
+     */
+    static ByteBuffer encodeError(int id, byte status, String message) {
+        byte[] bytes = truncate(String.valueOf(message).getBytes(StandardCharsets.UTF_8));
+        int length = 4 + 1 + 2 + bytes.length;
+        ByteBuffer frame = ByteBuffer.allocate(4 + length);
+        frame.putInt(length).putInt(id).put(status).putShort((short) bytes.length).put(bytes);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * A decoded response.
+     */
+    static final class Response {
+
+        final int id;
+        final byte status;
+        final Set<String> categories;
+        final String message;
+
+        Response(int id, byte status, Set<String> categories, String message) {
+            this.id = id;
+            this.status = status;
+            this.categories = categories;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Reads a whole response frame.
+     *
+     * @param in the source
+     * @return the response
+     * @throws IOException if the frame can't be read
+     */
+    static Response readResponse(DataInput in) throws IOException {
+        in.readInt();
+        int id = in.readInt();
+        byte status = in.readByte();
+        if (status == STATUS_OK) {
+            int count = in.readUnsignedShort();
+            Set<String> categories = new TreeSet<>();
+            for (int i = 0; i < count; i++) {
+                categories.add(readString(in));
+            }
+            return new Response(id, status, categories, null);
+        }
+        return new Response(id, status, null, readString(in));
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String readString(ByteBuffer frame, int length) {
+        if (length > frame.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String value = new String(frame.array(), frame.arrayOffset() + frame.position(), length, StandardCharsets.UTF_8);
+        frame.position(frame.position() + length);
+        return value;
+    }
+
+    private static List<String> readShortStrings(ByteBuffer frame) {
+        int count = Short.toUnsignedInt(frame.getShort());
+        List<String> values = new ArrayList<>(Math.min(count, 64));
+        for (int i = 0; i < count; i++) {
+            values.add(readString(frame, Short.toUnsignedInt(frame.getShort())));
+        }
+        return values;
+    }
+
+    private static void writeShortStrings(DataOutput out, List<byte[]> values) throws IOException {
+        out.writeShort(values.size());
+        for (byte[] value : values) {
+            out.writeShort(value.length);
+            out.write(value);
+        }
+    }
+
+    private static List<byte[]> encodeAll(Collection<String> values) throws IOException {
+        checkCount(values.size());
+        List<byte[]> encoded = new ArrayList<>(values.size());
+        for (String value : values) {
+            encoded.add(encodeShort(value));
+        }
+        return encoded;
+    }
+
+    private static byte[] encodeShort(String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_SHORT) {
+            throw new IOException("String too long to encode: " + bytes.length + " bytes.");
+        }
+        return bytes;
+    }
+
+    private static void checkCount(int count) throws IOException {
+        if (count > MAX_SHORT) {
+            throw new IOException("Too many items to encode: " + count + ".");
+        }
+    }
+
+    private static byte[] truncate(byte[] bytes) {
+        if (bytes.length <= MAX_SHORT) {
+            return bytes;
+        }
+        byte[] truncated = new byte[MAX_SHORT];
+        System.arraycopy(bytes, 0, truncated, 0, MAX_SHORT);
+        return truncated;
+    }
+}
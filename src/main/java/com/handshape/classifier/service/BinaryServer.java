@@ -0,0 +1,344 @@
+package com.handshape.classifier.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves evaluations over persistent TCP connections in the
+ * {@link BinaryProtocol}. A single selector thread accepts connections, reads
+ * frames and writes responses; each request is evaluated on the request
+ * executor, so a connection may have many requests in flight at once, and
+ * their responses are written in the order they complete, tagged with their
+ * request ids. A connection that stops reading its responses stops having its
+ * requests read once it has too many in flight.
+ *
+ * @author jturner
+ */
+final class BinaryServer extends Thread implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Selector selector;
+    private final ServerSocketChannel listener;
+    private final LuceneEvaluator evaluator;
+    private final RequestExecutor executor;
+    private final int maxFrameSize;
+    private final int maxInFlight;
+    private final Queue<Connection> ready = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+    private volatile boolean stopped;
+
+    /**
+     * Binds the listener; call {@link #start()} to begin serving.
+     *
+     * @param port the port on which to listen; zero for any free port
+     * @param evaluator evaluates the requests
+     * @param executor runs the evaluations, and sheds them when it's full
+     * @param maxFrameSize the largest request accepted, in bytes; a
+     * connection that sends a larger one is closed
+     * @param maxInFlight the number of requests a connection may have in
+     * flight before reading from it is paused
+     * @throws IOException if the port can't be bound
+     */
+    BinaryServer(int port, LuceneEvaluator evaluator, RequestExecutor executor, int maxFrameSize, int maxInFlight) throws IOException {
+        super("binary listener");
+        setDaemon(true);
+        this.evaluator = evaluator;
+        this.executor = executor;
+        this.maxFrameSize = maxFrameSize;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        selector = Selector.open();
+        listener = ServerSocketChannel.open();
+        try {
+            listener.bind(new InetSocketAddress(port));
+            listener.configureBlocking(false);
+            listener.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException ex) {
+            listener.close();
+            selector.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * @return the port on which the server is listening
+     */
+    int getPort() {
+        return listener.socket().getLocalPort();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!stopped) {
+                selector.select();
+                Connection connection;
+                while ((connection = ready.poll()) != null) {
+                    connection.flush();
+                }
+                Set<SelectionKey> selected = selector.selectedKeys();
+                for (Iterator<SelectionKey> it = selected.iterator(); it.hasNext();) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        Connection c = (Connection) key.attachment();
+                        if (key.isWritable()) {
+                            c.flush();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            c.read();
+                        }
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException ex) {
+            if (!stopped) {
+                Logger.getLogger(BinaryServer.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = listener.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connections.incrementAndGet();
+        }
+    }
+
+    /**
+     * Evaluates one request frame on the request executor.
+     */
+    private void dispatch(Connection connection, ByteBuffer frame) {
+        requests.increment();
+        connection.inFlight.incrementAndGet();
+        executor.execute(() -> {
+            ByteBuffer response;
+            if (executor.isShedding()) {
+                shed.increment();
+                response = BinaryProtocol.encodeError(BinaryProtocol.peekId(frame), BinaryProtocol.STATUS_OVERLOADED, "The service is too busy; retry later.");
+            } else {
+                response = evaluate(frame);
+            }
+            connection.send(response);
+        });
+    }
+
+    private ByteBuffer evaluate(ByteBuffer frame) {
+        int id = BinaryProtocol.peekId(frame);
+        BinaryProtocol.Request request;
+        try {
+            request = BinaryProtocol.readRequest(frame);
+        } catch (IllegalArgumentException ex) {
+            return BinaryProtocol.encodeError(id, BinaryProtocol.STATUS_BAD_REQUEST, ex.getMessage());
+        }
+        try {
+            return BinaryProtocol.encodeResult(id, evaluator.evaluateMatches(request.document, request.useCache, request.selection));
+        } catch (RuntimeException ex) {
+            Logger.getLogger(BinaryServer.class.getName()).log(Level.SEVERE, null, ex);
+            return BinaryProtocol.encodeError(id, BinaryProtocol.STATUS_ERROR, ex.getMessage());
+        }
+    }
+
+    /**
+     * Writes the server's metrics in the Prometheus text format.
+     *
+     * @param out the destination
+     */
+    void write(StringBuilder out) {
+        PrometheusText.single(out, "classifier_binary_connections", "gauge",
+                "Open binary protocol connections.", connections.get());
+        PrometheusText.single(out, "classifier_binary_requests_total", "counter",
+                "Binary protocol requests received.", requests.sum());
+        PrometheusText.single(out, "classifier_binary_requests_shed_total", "counter",
+                "Binary protocol requests refused because the request queue was full.", shed.sum());
+    }
+
+    /**
+     * Stops listening, and closes every connection.
+     */
+    @Override
+    public void close() {
+        stopped = true;
+        selector.wakeup();
+        try {
+            join(5000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        closeAll();
+    }
+
+    private void closeAll() {
+        try {
+            if (selector.isOpen()) {
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+            }
+            listener.close();
+        } catch (IOException | ClosedSelectorException ex) {
+            Logger.getLogger(BinaryServer.class.getName()).log(Level.FINE, null, ex);
+        }
+    }
+
+    private final class Connection {
+
+        private final SocketChannel channel;
+        private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+        private SelectionKey key;
+        /**
+         * Set once the client has broken the protocol; the connection is
+         * closed as soon as the error response is written.
+         */
+        private boolean closing;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Reads what's available, and dispatches every complete frame.
+         */
+        void read() {
+            try {
+                int n = channel.read(in);
+                if (n < 0) {
+                    close();
+                    return;
+                }
+                in.flip();
+                while (in.remaining() >= 4 && inFlight.get() < maxInFlight) {
+                    int length = in.getInt(in.position());
+                    if (length < 4 || length > maxFrameSize) {
+                        Logger.getLogger(BinaryServer.class.getName()).log(Level.FINE,
+                                "Closing a binary connection that sent a frame of {0} bytes.", length);
+                        closing = true;
+                        queue(BinaryProtocol.encodeError(0, BinaryProtocol.STATUS_TOO_LARGE,
+                                "Frames must be between 4 and " + maxFrameSize + " bytes; closing the connection."));
+                        return;
+                    }
+                    if (in.remaining() < 4 + length) {
+                        if (in.capacity() < 4 + length) {
+                            ByteBuffer larger = ByteBuffer.allocate(4 + length);
+                            larger.put(in);
+                            in = larger;
+                            in.flip();
+                        }
+                        break;
+                    }
+                    in.position(in.position() + 4);
+                    byte[] frame = new byte[length];
+                    in.get(frame);
+                    dispatch(this, ByteBuffer.wrap(frame));
+                }
+                in.compact();
+                updateInterest();
+            } catch (IOException ex) {
+                close();
+            }
+        }
+
+        /**
+         * Queues a response; safe to call from any thread.
+         */
+        void send(ByteBuffer response) {
+            inFlight.decrementAndGet();
+            queue(response);
+        }
+
+        private void queue(ByteBuffer response) {
+            outbound.add(response);
+            ready.add(this);
+            selector.wakeup();
+        }
+
+        /**
+         * Writes as many queued responses as the socket will take. Runs on
+         * the selector thread.
+         */
+        void flush() {
+            if (!key.isValid()) {
+                return;
+            }
+            try {
+                ByteBuffer head;
+                while ((head = outbound.peek()) != null) {
+                    channel.write(head);
+                    if (head.hasRemaining()) {
+                        break;
+                    }
+                    outbound.poll();
+                }
+                if (closing && outbound.isEmpty()) {
+                    close();
+                    return;
+                }
+                updateInterest();
+                if (!closing && in.position() >= 4 && inFlight.get() < maxInFlight) {
+                    // Frames left unread while the connection had too many in flight.
+                    read();
+                }
+            } catch (IOException ex) {
+                close();
+            }
+        }
+
+        private void updateInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+            int ops = 0;
+            if (!closing && inFlight.get() < maxInFlight) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (!outbound.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        private void close() {
+            if (key.isValid()) {
+                connections.decrementAndGet();
+            }
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                Logger.getLogger(BinaryServer.class.getName()).log(Level.FINE, null, ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,628 @@
+package com.handshape.classifier.service;
+
+import com.github.cliftonlabs.json_simple.JsonObject;
+import com.github.cliftonlabs.json_simple.Jsoner;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Classifies a file of documents offline, without going through the service.
+ * The input is split into records by a reader stage, which reads it through a
+ * large buffer and does no more than find the record boundaries; the records
+ * are parsed and evaluated in chunks by worker threads sharing one
+ * {@link LuceneEvaluator}; and a writer stage writes the results, either in
+ * input order or as they're ready. The stages are connected by bounded queues,
+ * so memory use doesn't depend on the size of the input.
+ *
+ * <p>
+ * The input is newline-delimited JSON objects, or CSV with a header row naming
+ * the fields (quoted values may span lines). The output has one line of JSON
+ * per record, as from the service's <code>/batch</code> endpoint:
+ * <code>{"id":...,"categories":[...]}</code>, or <code>{"id":...,"error":...}</code>
+ * for a record that couldn't be evaluated.
+ *
+ * @author jturner
+ */
+public final class BulkClassifier {
+
+    /**
+     * The input formats.
+     */
+    public enum Format {
+        NDJSON, CSV
+    }
+
+    private static final int MAX_CHUNK_RECORDS = 512;
+    private static final int MAX_CHUNK_BYTES = 256 * 1024;
+    private static final byte[] ID = "{\"id\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CATEGORIES = ",\"categories\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ERROR = ",\"error\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] END = "}\n".getBytes(StandardCharsets.UTF_8);
+
+    private final LuceneEvaluator evaluator;
+    private Format format = Format.NDJSON;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean ordered = true;
+    private String idField = "id";
+    private int bufferSize = 4 * 1024 * 1024;
+    private boolean useCache = false;
+
+    /**
+     * @param evaluator the evaluator shared by the workers
+     */
+    public BulkClassifier(LuceneEvaluator evaluator) {
+        this.evaluator = evaluator;
+    }
+
+    /**
+     * Runs the classifier from the command line:
+     * <code>classify CATEGORIES INPUT [OUTPUT] [OPTIONS]</code>, where INPUT
+     * or OUTPUT may be "-" for the standard streams. Reports the record rate
+     * on the standard error stream.
+     *
+     * @param args the arguments
+     * @throws Exception if the classification fails
+     */
+    public static void main(String[] args) throws Exception {
+        List<String> positional = new ArrayList<>();
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                int idx = arg.indexOf('=');
+                if (idx > 0) {
+                    options.put(arg.substring(2, idx), arg.substring(idx + 1));
+                } else {
+                    options.put(arg.substring(2), "true");
+                }
+            } else {
+                positional.add(arg);
+            }
+        }
+        if (positional.size() < 2 || positional.size() > 3) {
+            System.err.println("Usage: classify CATEGORIES INPUT [OUTPUT]");
+            System.err.println("Options: --format=ndjson|csv --threads=N --unordered --id-field=NAME --buffer-size=BYTES --cache --token-cache-size=BYTES");
+            System.exit(-1);
+        }
+        String input = positional.get(1);
+        String output = positional.size() > 2 ? positional.get(2) : "-";
+        try ( LuceneEvaluator evaluator = new LuceneEvaluator(new File(positional.get(0)))) {
+            evaluator.stop();
+            BulkClassifier classifier = new BulkClassifier(evaluator);
+            if (input.toLowerCase().endsWith(".csv")) {
+                classifier.setFormat(Format.CSV);
+            }
+            for (Entry<String, String> option : options.entrySet()) {
+                switch (option.getKey()) {
+                    case "format":
+                        classifier.setFormat(Format.valueOf(option.getValue().toUpperCase()));
+                        break;
+                    case "threads":
+                        classifier.setThreads(Integer.parseInt(option.getValue()));
+                        break;
+                    case "unordered":
+                        classifier.setOrdered(!Boolean.parseBoolean(option.getValue()));
+                        break;
+                    case "id-field":
+                        classifier.setIdField(option.getValue());
+                        break;
+                    case "buffer-size":
+                        classifier.setBufferSize(Integer.parseInt(option.getValue()));
+                        break;
+                    case "token-cache-size":
+                        evaluator.setTokenCacheSize(Long.parseLong(option.getValue()));
+                        break;
+                    case "cache":
+                        classifier.setUseCache(Boolean.parseBoolean(option.getValue()));
+                        if (classifier.isUseCache()) {
+                            evaluator.setResultCacheSize(64L * 1024 * 1024);
+                        }
+                        break;
+                    default:
+                        System.err.println("Ignoring unknown option --" + option.getKey());
+                        break;
+                }
+            }
+            Summary summary;
+            try ( ReadableByteChannel in = "-".equals(input)
+                    ? Channels.newChannel(System.in)
+                    : FileChannel.open(new File(input).toPath(), StandardOpenOption.READ);
+                     OutputStream out = "-".equals(output)
+                    ? System.out
+                    : new FileOutputStream(output)) {
+                summary = classifier.classify(in, out);
+            }
+            System.err.println(summary);
+        }
+    }
+
+    /**
+     * Classifies every record of the input.
+     *
+     * @param in the input; read to its end, but not closed
+     * @param out the destination of the results; flushed, but not closed
+     * @return the number of records and how long they took
+     * @throws IOException if the input can't be read or the output written,
+     * or the input is malformed beyond a single record
+     * @throws InterruptedException if interrupted while waiting for the
+     * pipeline
+     */
+    public Summary classify(ReadableByteChannel in, OutputStream out) throws IOException, InterruptedException {
+        long started = System.nanoTime();
+        int chunksInFlight = threads * 4;
+        Semaphore permits = new Semaphore(chunksInFlight);
+        BlockingQueue<Chunk> work = new ArrayBlockingQueue<>(chunksInFlight + threads);
+        BlockingQueue<Chunk> done = new ArrayBlockingQueue<>(chunksInFlight + threads);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicLong errors = new AtomicLong();
+        Thread reader = Thread.currentThread();
+        List<Thread> workers = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(() -> work(work, done, errors), "bulk evaluator " + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+        }
+        OutputStream buffered = new BufferedOutputStream(out, 64 * 1024);
+        Thread writer = new Thread(() -> {
+            try {
+                write(done, buffered, permits);
+            } catch (IOException | RuntimeException ex) {
+                failure.compareAndSet(null, ex);
+                reader.interrupt();
+            } catch (InterruptedException ex) {
+                // Stopped after a failure elsewhere.
+            }
+        }, "bulk writer");
+        writer.setDaemon(true);
+        workers.forEach(Thread::start);
+        writer.start();
+        long records;
+        try {
+            records = read(in, work, permits);
+            for (int i = 0; i < threads; i++) {
+                work.put(Chunk.END);
+            }
+            writer.join();
+        } catch (IOException | InterruptedException | RuntimeException ex) {
+            workers.forEach(Thread::interrupt);
+            writer.interrupt();
+            Throwable cause = failure.get();
+            if (cause instanceof IOException) {
+                Thread.interrupted();
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                Thread.interrupted();
+                throw (RuntimeException) cause;
+            }
+            throw ex;
+        }
+        Throwable cause = failure.get();
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        return new Summary(records, errors.get(), System.nanoTime() - started);
+    }
+
+    /**
+     * The reader stage: splits the input into chunks of whole records.
+     */
+    private long read(ReadableByteChannel in, BlockingQueue<Chunk> work, Semaphore permits) throws IOException, InterruptedException {
+        byte[] buffer = new byte[bufferSize];
+        int filled = 0;
+        boolean eof = false;
+        long sequence = 0;
+        long records = 0;
+        String[] header = null;
+        int[] bounds = new int[2 * MAX_CHUNK_RECORDS];
+        while (!eof) {
+            if (filled == buffer.length) {
+                // A record longer than the buffer.
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            ByteBuffer target = ByteBuffer.wrap(buffer, filled, buffer.length - filled);
+            while (target.hasRemaining()) {
+                if (in.read(target) < 0) {
+                    eof = true;
+                    break;
+                }
+            }
+            filled = target.position();
+            int consumed = 0;
+            int chunkStart = 0;
+            int count = 0;
+            boolean quoted = false;
+            boolean blank = true;
+            for (int i = 0; i <= filled; i++) {
+                boolean atEnd = i == filled;
+                if (atEnd && !eof) {
+                    break;
+                }
+                byte b = atEnd ? (byte) '\n' : buffer[i];
+                if (b == '"' && format == Format.CSV) {
+                    quoted = !quoted;
+                } else if (b == '\n' && (!quoted || atEnd)) {
+                    int end = i > consumed && buffer[i - 1] == '\r' ? i - 1 : i;
+                    if (!blank) {
+                        if (format == Format.CSV && header == null) {
+                            header = Csv.parse(new String(buffer, consumed, end - consumed, StandardCharsets.UTF_8)).toArray(new String[0]);
+                        } else {
+                            bounds[2 * count] = consumed - chunkStart;
+                            bounds[2 * count + 1] = end - chunkStart;
+                            count++;
+                        }
+                    }
+                    consumed = i + 1;
+                    blank = true;
+                    if (count == MAX_CHUNK_RECORDS || consumed - chunkStart >= MAX_CHUNK_BYTES) {
+                        permits.acquire();
+                        work.put(new Chunk(sequence++, records, header, Arrays.copyOfRange(buffer, chunkStart, consumed), Arrays.copyOf(bounds, 2 * count)));
+                        records += count;
+                        count = 0;
+                        chunkStart = consumed;
+                    } else if (count == 0) {
+                        chunkStart = consumed;
+                    }
+                    continue;
+                } else if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                    blank = false;
+                }
+            }
+            if (count > 0) {
+                permits.acquire();
+                work.put(new Chunk(sequence++, records, header, Arrays.copyOfRange(buffer, chunkStart, consumed), Arrays.copyOf(bounds, 2 * count)));
+                records += count;
+            }
+            consumed = Math.min(consumed, filled);
+            System.arraycopy(buffer, consumed, buffer, 0, filled - consumed);
+            filled -= consumed;
+        }
+        return records;
+    }
+
+    /**
+     * A worker: evaluates chunks until the end marker.
+     */
+    private void work(BlockingQueue<Chunk> work, BlockingQueue<Chunk> done, AtomicLong errors) {
+        try {
+            Chunk chunk;
+            while ((chunk = work.take()) != Chunk.END) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(chunk.size() * 64);
+                for (int i = 0; i < chunk.size(); i++) {
+                    if (!evaluate(chunk, i, out)) {
+                        errors.incrementAndGet();
+                    }
+                }
+                chunk.output = out.toByteArray();
+                done.put(chunk);
+            }
+            done.put(Chunk.END);
+        } catch (InterruptedException ex) {
+            // Stopped after a failure elsewhere.
+        }
+    }
+
+    private boolean evaluate(Chunk chunk, int i, ByteArrayOutputStream out) {
+        Object id = chunk.firstRecord + i;
+        try {
+            String record = new String(chunk.data, chunk.bounds[2 * i], chunk.bounds[2 * i + 1] - chunk.bounds[2 * i], StandardCharsets.UTF_8);
+            Map<String, String> document;
+            if (format == Format.CSV) {
+                List<String> values = Csv.parse(record);
+                if (values.size() != chunk.header.length) {
+                    throw new IllegalArgumentException("Expected " + chunk.header.length + " values but found " + values.size() + ".");
+                }
+                document = new TreeMap<>();
+                for (int v = 0; v < values.size(); v++) {
+                    document.put(chunk.header[v], values.get(v));
+                }
+                if (document.containsKey(idField)) {
+                    id = document.remove(idField);
+                }
+            } else {
+                Object parsed = Jsoner.deserialize(record);
+                if (!(parsed instanceof JsonObject)) {
+                    throw new IllegalArgumentException("Records must be JSON objects.");
+                }
+                JsonObject json = (JsonObject) parsed;
+                if (json.containsKey(idField)) {
+                    id = json.remove(idField);
+                }
+                document = SimpleClassifierService.jsonToMap(json);
+            }
+            CategoryMatches matches = evaluator.evaluateMatches(document, useCache, CategorySelection.ALL);
+            writeBytes(out, ID);
+            writeBytes(out, Jsoner.serialize(id).getBytes(StandardCharsets.UTF_8));
+            writeBytes(out, CATEGORIES);
+            matches.writeJsonArray(out);
+            writeBytes(out, END);
+            return true;
+        } catch (Exception ex) {
+            writeBytes(out, ID);
+            writeBytes(out, Jsoner.serialize(id).getBytes(StandardCharsets.UTF_8));
+            writeBytes(out, ERROR);
+            writeBytes(out, Jsoner.serialize(String.valueOf(ex.getMessage())).getBytes(StandardCharsets.UTF_8));
+            writeBytes(out, END);
+            return false;
+        }
+    }
+
+    /**
+     * The writer stage: writes each chunk's results, in order if asked to,
+     * until every worker has finished.
+     */
+    private void write(BlockingQueue<Chunk> done, OutputStream out, Semaphore permits) throws IOException, InterruptedException {
+        Map<Long, Chunk> early = new HashMap<>();
+        long next = 0;
+        int finished = 0;
+        while (finished < threads) {
+            Chunk chunk = done.take();
+            if (chunk == Chunk.END) {
+                finished++;
+            } else if (!ordered) {
+                out.write(chunk.output);
+                permits.release();
+            } else {
+                early.put(chunk.sequence, chunk);
+                while ((chunk = early.remove(next)) != null) {
+                    out.write(chunk.output);
+                    permits.release();
+                    next++;
+                }
+            }
+            if (done.isEmpty()) {
+                out.flush();
+            }
+        }
+        out.flush();
+    }
+
+    private static void writeBytes(ByteArrayOutputStream out, byte[] bytes) {
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * A run of whole records, and their results once evaluated.
+     */
+    private static final class Chunk {
+
+        static final Chunk END = new Chunk(-1, 0, null, new byte[0], new int[0]);
+
+        final long sequence;
+        final long firstRecord;
+        final String[] header;
+        final byte[] data;
+        /**
+         * The start and end offsets of each record in the data.
+         */
+        final int[] bounds;
+        byte[] output;
+
+        Chunk(long sequence, long firstRecord, String[] header, byte[] data, int[] bounds) {
+            this.sequence = sequence;
+            this.firstRecord = firstRecord;
+            this.header = header;
+            this.data = data;
+            this.bounds = bounds;
+        }
+
+        int size() {
+            return bounds.length / 2;
+        }
+    }
+
+    /**
+     * Parses CSV records: comma-separated values, optionally quoted, with
+     * quotes doubled within quoted values.
+     */
+    static final class Csv {
+
+        private Csv() {
+        }
+
+        /**
+         * @param record one whole record, without its line terminator
+         * @return its values
+         * @throws IllegalArgumentException if a quoted value isn't closed
+         */
+        static List<String> parse(String record) {
+            List<String> values = new ArrayList<>();
+            StringBuilder value = new StringBuilder();
+            boolean quoted = false;
+            for (int i = 0; i < record.length(); i++) {
+                char c = record.charAt(i);
+                if (quoted) {
+                    if (c != '"') {
+                        value.append(c);
+                    } else if (i + 1 < record.length() && record.charAt(i + 1) == '"') {
+                        value.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    values.add(value.toString());
+                    value.setLength(0);
+                } else {
+                    value.append(c);
+                }
+            }
+            if (quoted) {
+                throw new IllegalArgumentException("Unterminated quoted value.");
+            }
+            values.add(value.toString());
+            return values;
+        }
+    }
+
+    /**
+     * The outcome of a classification run.
+     */
+    public static final class Summary {
+
+        private final long records;
+        private final long errors;
+        private final long elapsedNanos;
+
+        Summary(long records, long errors, long elapsedNanos) {
+            this.records = records;
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * @return the number of records read
+         */
+        public long getRecords() {
+            return records;
+        }
+
+        /**
+         * @return the number of records that couldn't be evaluated
+         */
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return how long the run took, in nanoseconds
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * @return the records classified per second
+         */
+        public double getRecordsPerSecond() {
+            return elapsedNanos == 0 ? 0 : records * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Classified %d records (%d errors) in %.3f s: %.0f records/sec",
+                    records, errors, elapsedNanos / 1e9, getRecordsPerSecond());
+        }
+    }
+
+    /**
+     * @return the input format
+     */
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * @param format the input format (default: NDJSON)
+     */
+    public void setFormat(Format format) {
+        this.format = format;
+    }
+
+    /**
+     * @return the number of worker threads
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @param threads the number of worker threads (default: one per core)
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is required.");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * @return true if results are written in input order
+     */
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    /**
+     * @param ordered true to write results in input order (the default);
+     * false to write them as soon as they're ready
+     */
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    /**
+     * @return the name of the field that identifies a record
+     */
+    public String getIdField() {
+        return idField;
+    }
+
+    /**
+     * @param idField the name of the field that identifies a record, which
+     * isn't evaluated (default: "id"); records without one are identified by
+     * their zero-based position
+     */
+    public void setIdField(String idField) {
+        this.idField = idField;
+    }
+
+    /**
+     * @return the size of the read buffer, in bytes
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @param bufferSize the size of the read buffer, in bytes (default: 4MB);
+     * it grows to fit a longer record
+     */
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("The buffer size must be positive.");
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @return true if the evaluator's result cache is consulted
+     */
+    public boolean isUseCache() {
+        return useCache;
+    }
+
+    /**
+     * @param useCache true to consult the evaluator's result cache, which
+     * pays off for inputs with many duplicate records (default: false)
+     */
+    public void setUseCache(boolean useCache) {
+        this.useCache = useCache;
+    }
+}
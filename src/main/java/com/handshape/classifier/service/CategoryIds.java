@@ -0,0 +1,93 @@
+package com.handshape.classifier.service;
+
+import com.github.cliftonlabs.json_simple.Jsoner;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * The dense integer ids of one load's categories, which are their positions
+ * in name order, along with each name encoded once for the responses: as
+ * UTF-8, and as a UTF-8 JSON string literal.
+ *
+ * @author jturner
+ */
+final class CategoryIds {
+
+    /**
+     * No categories.
+     */
+    static final CategoryIds EMPTY = new CategoryIds(Arrays.asList());
+
+    private final String[] names;
+    private final byte[][] utf8;
+    private final byte[][] json;
+
+    /**
+     * @param names the category names, in ascending order
+     */
+    CategoryIds(Collection<String> names) {
+        this.names = names.toArray(new String[0]);
+        utf8 = new byte[this.names.length][];
+        json = new byte[this.names.length][];
+        for (int i = 0; i < this.names.length; i++) {
+            if (i > 0 && this.names[i - 1].compareTo(this.names[i]) >= 0) {
+                throw new IllegalArgumentException("Category names must be distinct and sorted: " + this.names[i]);
+            }
+            utf8[i] = this.names[i].getBytes(StandardCharsets.UTF_8);
+            json[i] = Jsoner.serialize(this.names[i]).getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * @return the number of categories
+     */
+    int size() {
+        return names.length;
+    }
+
+    /**
+     * @param id a category id
+     * @return the category's name
+     */
+    String getName(int id) {
+        return names[id];
+    }
+
+    /**
+     * @param name a category name
+     * @return the category's id, or -1 if there's no such category
+     */
+    int getId(String name) {
+        int id = Arrays.binarySearch(names, name);
+        return id < 0 ? -1 : id;
+    }
+
+    /**
+     * @param id a category id
+     * @return the category's name, encoded as UTF-8; not to be modified
+     */
+    byte[] getUtf8(int id) {
+        return utf8[id];
+    }
+
+    /**
+     * @param id a category id
+     * @return the category's name as a JSON string, encoded as UTF-8; not to
+     * be modified
+     */
+    byte[] getJson(int id) {
+        return json[id];
+    }
+
+    /**
+     * @return the approximate heap used by the encoded names, in bytes
+     */
+    long estimateBytes() {
+        long bytes = 0;
+        for (int i = 0; i < names.length; i++) {
+            bytes += 2 * 16 + utf8[i].length + json[i].length;
+        }
+        return bytes;
+    }
+}
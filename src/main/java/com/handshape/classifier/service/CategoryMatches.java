@@ -0,0 +1,209 @@
+package com.handshape.classifier.service;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractSet;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The categories a document matched, as a set of category ids. Ids are dense,
+ * assigned in category name order each time the categories are loaded, and
+ * only meaningful alongside the matches they came from: resolve them with
+ * {@link #getName(int)} and {@link #getId(String)} rather than holding on to
+ * them across reloads. Immutable.
+ *
+ * @author jturner
+ */
+public final class CategoryMatches {
+
+    private static final byte[] JSON_START = "{\"categories\":[".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] JSON_END = "]}".getBytes(StandardCharsets.UTF_8);
+
+    private final CategoryIds ids;
+    private final BitSet matched;
+    private final int size;
+
+    /**
+     * @param ids the ids of the categories evaluated
+     * @param matched the ids of those matched; not to be modified afterwards
+     */
+    CategoryMatches(CategoryIds ids, BitSet matched) {
+        this.ids = ids;
+        this.matched = matched;
+        this.size = matched.cardinality();
+    }
+
+    /**
+     * @return the number of categories matched
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if no category matched
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @param id a category id
+     * @return true if the category matched
+     */
+    public boolean contains(int id) {
+        return id >= 0 && matched.get(id);
+    }
+
+    /**
+     * Iterates over the matches in name order:
+     * {@code for (int id = m.nextMatch(0); id >= 0; id = m.nextMatch(id + 1))}.
+     *
+     * @param fromId the id from which to search, inclusive
+     * @return the id of the next matched category, or -1 if there's none
+     */
+    public int nextMatch(int fromId) {
+        return matched.nextSetBit(fromId);
+    }
+
+    /**
+     * @return the number of categories in the load these ids come from; every
+     * id is less than this
+     */
+    public int getCategoryCount() {
+        return ids.size();
+    }
+
+    /**
+     * @param id a category id
+     * @return the category's name
+     * @throws IndexOutOfBoundsException if there's no such id
+     */
+    public String getName(int id) {
+        return ids.getName(id);
+    }
+
+    /**
+     * @param name a category name
+     * @return the category's id, or -1 if there was no such category
+     */
+    public int getId(String name) {
+        return ids.getId(name);
+    }
+
+    /**
+     * @return the ids of the matched categories, as a copy
+     */
+    public BitSet toBitSet() {
+        return (BitSet) matched.clone();
+    }
+
+    /**
+     * @return the names of the matched categories in name order, as an
+     * unmodifiable view
+     */
+    public Set<String> toSet() {
+        return new NameSet();
+    }
+
+    /**
+     * @return the service's response for these matches,
+     * <code>{"categories":[...]}</code>, encoded as UTF-8
+     */
+    public byte[] toJson() {
+        int length = JSON_START.length + JSON_END.length + Math.max(0, size - 1);
+        for (int id = matched.nextSetBit(0); id >= 0; id = matched.nextSetBit(id + 1)) {
+            length += ids.getJson(id).length;
+        }
+        byte[] json = new byte[length];
+        System.arraycopy(JSON_START, 0, json, 0, JSON_START.length);
+        int position = JSON_START.length;
+        for (int id = matched.nextSetBit(0); id >= 0; id = matched.nextSetBit(id + 1)) {
+            if (position > JSON_START.length) {
+                json[position++] = ',';
+            }
+            byte[] name = ids.getJson(id);
+            System.arraycopy(name, 0, json, position, name.length);
+            position += name.length;
+        }
+        System.arraycopy(JSON_END, 0, json, position, JSON_END.length);
+        return json;
+    }
+
+    /**
+     * Writes the names of the matched categories as a JSON array, encoded as
+     * UTF-8.
+     *
+     * @param out the destination
+     */
+    void writeJsonArray(ByteArrayOutputStream out) {
+        out.write('[');
+        for (int id = matched.nextSetBit(0); id >= 0; id = matched.nextSetBit(id + 1)) {
+            if (id > matched.nextSetBit(0)) {
+                out.write(',');
+            }
+            byte[] name = ids.getJson(id);
+            out.write(name, 0, name.length);
+        }
+        out.write(']');
+    }
+
+    /**
+     * @param id a category id
+     * @return the category's name, encoded as UTF-8; not to be modified
+     */
+    byte[] getUtf8(int id) {
+        return ids.getUtf8(id);
+    }
+
+    /**
+     * @return the approximate heap used by these matches, in bytes, not
+     * counting the shared ids
+     */
+    long estimateBytes() {
+        return 48L + matched.size() / 8;
+    }
+
+    @Override
+    public String toString() {
+        return toSet().toString();
+    }
+
+    private final class NameSet extends AbstractSet<String> {
+
+        @Override
+        public Iterator<String> iterator() {
+            return new Iterator<String>() {
+                private int next = matched.nextSetBit(0);
+
+                @Override
+                public boolean hasNext() {
+                    return next >= 0;
+                }
+
+                @Override
+                public String next() {
+                    if (next < 0) {
+                        throw new NoSuchElementException();
+                    }
+                    String name = ids.getName(next);
+                    next = matched.nextSetBit(next + 1);
+                    return name;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof String && CategoryMatches.this.contains(ids.getId((String) o));
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package com.handshape.classifier.service;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Hosts any number of named category sets, one per properties file in a
+ * directory. A set is loaded the first time it's asked for, reloaded when its
+ * file changes, and unloaded once it has gone unused for the idle timeout, or
+ * when the estimated memory held by all loaded sets exceeds the budget (least
+ * recently used first). All the sets share one file watcher thread and one
+ * set of per-thread evaluation state.
+ *
+ * @author jturner
+ */
+final class CategoryRegistry implements Closeable {
+
+    /**
+     * The file name suffix of a category set's properties file.
+     */
+    static final String SUFFIX = ".properties";
+
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_][A-Za-z0-9_.-]*");
+
+    private final File directory;
+    private final long idleMillis;
+    private final long memoryBudget;
+    private final Consumer<LuceneEvaluator> configurer;
+    private final FileWatcher watcher = new FileWatcher("category set watcher");
+    private final EvaluationContexts contexts = new EvaluationContexts();
+    private final Map<String, Slot> slots = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor;
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong idleEvictions = new AtomicLong();
+    private final AtomicLong memoryEvictions = new AtomicLong();
+
+    /**
+     * @param directory the directory holding the category sets' properties
+     * files
+     * @param idleMillis how long a set may go unused before it's unloaded;
+     * zero to keep sets loaded
+     * @param memoryBudget the estimated bytes that loaded sets may hold
+     * before the least recently used are unloaded; zero for no limit
+     * @param configurer applies the service's settings to each newly-loaded
+     * evaluator
+     */
+    CategoryRegistry(File directory, long idleMillis, long memoryBudget, Consumer<LuceneEvaluator> configurer) {
+        this.directory = directory;
+        this.idleMillis = idleMillis;
+        this.memoryBudget = memoryBudget;
+        this.configurer = configurer;
+        watcher.start();
+        if (idleMillis > 0) {
+            evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "category set evictor");
+                t.setDaemon(true);
+                return t;
+            });
+            long period = Math.max(1L, Math.min(idleMillis / 2, TimeUnit.MINUTES.toMillis(1)));
+            evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            evictor = null;
+        }
+    }
+
+    /**
+     * Fetches a category set, loading it if it isn't loaded.
+     *
+     * @param name the name of the set, which is its file name without the
+     * suffix
+     * @return the set's evaluator, or null if there's no such set
+     * @throws IOException if the set's file can't be read
+     */
+    LuceneEvaluator get(String name) throws IOException {
+        if (name == null || !NAME.matcher(name).matches()) {
+            return null;
+        }
+        File file = new File(directory, name + SUFFIX);
+        if (!file.isFile()) {
+            Slot gone = slots.remove(name);
+            if (gone != null) {
+                gone.unload();
+            }
+            return null;
+        }
+        Slot slot = slots.computeIfAbsent(name, Slot::new);
+        slot.lastUsed = System.currentTimeMillis();
+        LuceneEvaluator evaluator = slot.evaluator;
+        if (evaluator == null) {
+            evaluator = slot.load(file);
+            enforceBudget(slot);
+        }
+        return evaluator;
+    }
+
+    /**
+     * Unloads the sets that have gone unused for the idle timeout.
+     */
+    void evictIdle() {
+        long cutoff = System.currentTimeMillis() - idleMillis;
+        for (Slot slot : slots.values()) {
+            if (slot.lastUsed < cutoff && slot.unload()) {
+                idleEvictions.incrementAndGet();
+            }
+        }
+    }
+
+    private void enforceBudget(Slot keep) {
+        if (memoryBudget <= 0) {
+            return;
+        }
+        List<Slot> loaded = new ArrayList<>(slots.values());
+        loaded.sort(Comparator.comparingLong(slot -> slot.lastUsed));
+        long total = 0;
+        for (Slot slot : loaded) {
+            total += slot.estimatedBytes();
+        }
+        for (Slot slot : loaded) {
+            if (total <= memoryBudget) {
+                break;
+            }
+            if (slot != keep) {
+                long bytes = slot.estimatedBytes();
+                if (slot.unload()) {
+                    memoryEvictions.incrementAndGet();
+                    total -= bytes;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of sets currently loaded
+     */
+    int getLoadedCount() {
+        int count = 0;
+        for (Slot slot : slots.values()) {
+            if (slot.evaluator != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the estimated bytes held by the loaded sets
+     */
+    long getEstimatedBytes() {
+        long bytes = 0;
+        for (Slot slot : slots.values()) {
+            bytes += slot.estimatedBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the number of times a set has been loaded
+     */
+    long getLoads() {
+        return loads.get();
+    }
+
+    /**
+     * @return the number of sets unloaded for being idle
+     */
+    long getIdleEvictions() {
+        return idleEvictions.get();
+    }
+
+    /**
+     * @return the number of sets unloaded to keep within the memory budget
+     */
+    long getMemoryEvictions() {
+        return memoryEvictions.get();
+    }
+
+    /**
+     * @param reloadDebounceMillis the quiet period after a change to a set's
+     * file before it's reloaded
+     */
+    void setReloadDebounceMillis(long reloadDebounceMillis) {
+        watcher.setDebounceMillis(reloadDebounceMillis);
+    }
+
+    /**
+     * Applies a change of settings to every loaded set.
+     *
+     * @param change the change
+     */
+    void forEachLoaded(Consumer<LuceneEvaluator> change) {
+        for (Slot slot : slots.values()) {
+            LuceneEvaluator evaluator = slot.evaluator;
+            if (evaluator != null) {
+                change.accept(evaluator);
+            }
+        }
+    }
+
+    /**
+     * Writes the registry's metrics in the Prometheus text format.
+     *
+     * @param out the destination
+     */
+    void write(StringBuilder out) {
+        PrometheusText.single(out, "classifier_category_sets_loaded", "gauge",
+                "Named category sets currently loaded.", getLoadedCount());
+        PrometheusText.single(out, "classifier_category_sets_bytes", "gauge",
+                "Estimated heap held by the loaded named category sets.", getEstimatedBytes());
+        PrometheusText.single(out, "classifier_category_set_loads_total", "counter",
+                "Named category sets loaded on first use.", loads.get());
+        PrometheusText.header(out, "classifier_category_set_evictions_total", "counter",
+                "Named category sets unloaded, by reason.");
+        PrometheusText.sample(out, "classifier_category_set_evictions_total", PrometheusText.label("reason", "idle"), idleEvictions.get());
+        PrometheusText.sample(out, "classifier_category_set_evictions_total", PrometheusText.label("reason", "memory"), memoryEvictions.get());
+    }
+
+    @Override
+    public void close() {
+        if (evictor != null) {
+            evictor.shutdownNow();
+        }
+        for (Slot slot : slots.values()) {
+            slot.unload();
+        }
+        slots.clear();
+        watcher.stopThread();
+        contexts.close();
+    }
+
+    /**
+     * The state of one named set. The evaluator is loaded under the slot's
+     * lock, so that a set is only loaded once however many requests arrive
+     * for it, without holding up requests for other sets.
+     */
+    private final class Slot {
+
+        private final String name;
+        private volatile LuceneEvaluator evaluator;
+        private volatile long lastUsed;
+
+        Slot(String name) {
+            this.name = name;
+        }
+
+        synchronized LuceneEvaluator load(File file) throws IOException {
+            if (evaluator == null) {
+                LuceneEvaluator loaded = new LuceneEvaluator(file, null, watcher, contexts);
+                configurer.accept(loaded);
+                evaluator = loaded;
+                loads.incrementAndGet();
+                Logger.getLogger(CategoryRegistry.class.getName()).log(Level.INFO, "Loaded category set {0}.", name);
+            }
+            return evaluator;
+        }
+
+        /**
+         * @return true if the set was loaded
+         */
+        synchronized boolean unload() {
+            LuceneEvaluator loaded = evaluator;
+            if (loaded == null) {
+                return false;
+            }
+            evaluator = null;
+            // Requests already holding the evaluator can finish with it; it just stops reloading.
+            try {
+                loaded.close();
+            } catch (IOException ex) {
+                Logger.getLogger(CategoryRegistry.class.getName()).log(Level.FINE, null, ex);
+            }
+            Logger.getLogger(CategoryRegistry.class.getName()).log(Level.INFO, "Unloaded category set {0}.", name);
+            return true;
+        }
+
+        long estimatedBytes() {
+            LuceneEvaluator loaded = evaluator;
+            return loaded == null ? 0L : loaded.getEstimatedBytes();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.handshape.classifier.service;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Restricts an evaluation to some of the categories, and optionally stops it
+ * after a number of matches. Categories are selected by exact name or by name
+ * prefix; with neither, every category is selected. Matches are found in
+ * category name order, so a limited evaluation returns the first matching
+ * names in that order.
+ *
+ * @author jturner
+ */
+public final class CategorySelection {
+
+    /**
+     * Every category, with no limit.
+     */
+    public static final CategorySelection ALL = new CategorySelection(Collections.emptySet(), Collections.emptySet(), 0);
+
+    /**
+     * The request parameter holding a comma-separated list of category names.
+     */
+    static final String CATEGORIES_PARAMETER = "_categories";
+    /**
+     * The request parameter holding a comma-separated list of category name
+     * prefixes.
+     */
+    static final String PREFIXES_PARAMETER = "_prefixes";
+    /**
+     * The request parameter holding the maximum number of matches to return.
+     */
+    static final String LIMIT_PARAMETER = "_limit";
+
+    private final Set<String> names;
+    private final Set<String> prefixes;
+    private final int limit;
+
+    /**
+     * @param names the names of the categories to evaluate
+     * @param prefixes the prefixes of the names of further categories to
+     * evaluate
+     * @param limit the number of matches after which to stop; zero for no
+     * limit
+     */
+    public CategorySelection(Collection<String> names, Collection<String> prefixes, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("The limit must not be negative: " + limit);
+        }
+        this.names = Collections.unmodifiableSet(new TreeSet<>(names));
+        this.prefixes = Collections.unmodifiableSet(new TreeSet<>(prefixes));
+        this.limit = limit;
+    }
+
+    /**
+     * Removes the selection parameters from a set of request parameters.
+     *
+     * @param parameters the request parameters; the selection parameters are
+     * removed from it
+     * @return the selection they describe
+     * @throws IllegalArgumentException if the limit isn't a non-negative
+     * number
+     */
+    static CategorySelection extract(Map<String, String> parameters) {
+        String names = parameters.remove(CATEGORIES_PARAMETER);
+        String prefixes = parameters.remove(PREFIXES_PARAMETER);
+        String limit = parameters.remove(LIMIT_PARAMETER);
+        if (names == null && prefixes == null && limit == null) {
+            return ALL;
+        }
+        int max;
+        try {
+            max = limit == null || limit.isEmpty() ? 0 : Integer.parseInt(limit.trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid " + LIMIT_PARAMETER + ": " + limit);
+        }
+        return new CategorySelection(split(names), split(prefixes), max);
+    }
+
+    private static Collection<String> split(String list) {
+        Set<String> values = new TreeSet<>();
+        if (list != null) {
+            for (String value : list.split(",")) {
+                if (!value.trim().isEmpty()) {
+                    values.add(value.trim());
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Convenience factory for a selection by name.
+     *
+     * @param names the names of the categories to evaluate
+     * @return the selection
+     */
+    public static CategorySelection of(String... names) {
+        return new CategorySelection(Arrays.asList(names), Collections.emptySet(), 0);
+    }
+
+    /**
+     * @return the names of the selected categories
+     */
+    public Set<String> getNames() {
+        return names;
+    }
+
+    /**
+     * @return the prefixes of the names of the selected categories
+     */
+    public Set<String> getPrefixes() {
+        return prefixes;
+    }
+
+    /**
+     * @return the number of matches after which evaluation stops; zero for no
+     * limit
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @param limit the number of matches after which to stop; zero for no
+     * limit
+     * @return this selection, with the given limit
+     */
+    public CategorySelection withLimit(int limit) {
+        return new CategorySelection(names, prefixes, limit);
+    }
+
+    /**
+     * @return true if only some of the categories are selected
+     */
+    public boolean isRestricted() {
+        return !names.isEmpty() || !prefixes.isEmpty();
+    }
+
+    /**
+     * @return true if every category is selected, with no limit
+     */
+    public boolean isAll() {
+        return !isRestricted() && limit == 0;
+    }
+
+    @Override
+    public String toString() {
+        return "CategorySelection{names=" + names + ", prefixes=" + prefixes + ", limit=" + limit + '}';
+    }
+}
@@ -0,0 +1,432 @@
+package com.handshape.classifier.service;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * An immutable, fully-compiled set of categories: each category's query
+ * source and parsed query, the metadata derived from the queries, and the
+ * index used to pre-filter them. A reload builds a new set, reusing the
+ * compiled form of every category whose query is unchanged, and publishes it
+ * in one step, so an evaluation always sees one consistent set.
+ *
+ * @author jturner
+ */
+final class CategorySet {
+
+    /**
+     * Approximate heap cost of an anchor, excluding its bytes.
+     */
+    private static final long ANCHOR_OVERHEAD = 96;
+
+    /**
+     * The set in place before the first load.
+     */
+    static final CategorySet EMPTY = new CategorySet(0L, 0L, "", new TreeMap<>(), Collections.emptyMap());
+
+    private final long generation;
+    private final long loadTime;
+    private final String checksum;
+    private final Map<String, Category> categories;
+    private final Map<String, String> failures;
+    private final Map<String, Query> queries;
+    private final QueryIndex index;
+    private final CategoryIds ids;
+    private final Set<String> fieldList;
+    private final Set<String> referencedFields;
+    private final Set<String> reversedFields;
+    private final long estimatedBytes;
+    private final List<QueryCost> costs;
+    private final BitSet quarantined;
+    private final BitSet excluded;
+
+    private CategorySet(long generation, long loadTime, String checksum, TreeMap<String, Category> categories, Map<String, String> failures) {
+        this.generation = generation;
+        this.loadTime = loadTime;
+        this.checksum = checksum;
+        this.categories = Collections.unmodifiableMap(categories);
+        this.failures = Collections.unmodifiableMap(failures);
+        TreeMap<String, Query> parsed = new TreeMap<>();
+        TreeMap<String, Query> searched = new TreeMap<>();
+        List<List<QueryIndex.Anchor>> anchors = new ArrayList<>(categories.size());
+        Set<String> fields = new TreeSet<>();
+        Set<String> reversed = new TreeSet<>();
+        boolean allFields = false;
+        long bytes = 0;
+        for (Entry<String, Category> entry : categories.entrySet()) {
+            bytes += entry.getValue().estimateBytes();
+            parsed.put(entry.getKey(), entry.getValue().query);
+            searched.put(entry.getKey(), entry.getValue().searched);
+            anchors.add(entry.getValue().anchors);
+            reversed.addAll(entry.getValue().reversedFields);
+            if (entry.getValue().fields == null) {
+                allFields = true;
+            } else {
+                fields.addAll(entry.getValue().fields);
+            }
+        }
+        this.queries = Collections.unmodifiableMap(parsed);
+        this.index = new QueryIndex(searched, anchors);
+        // The index assigns ordinals in the map's order, which is name order, so ordinals double as ids.
+        this.ids = new CategoryIds(parsed.keySet());
+        this.fieldList = Collections.unmodifiableSet(fields);
+        this.referencedFields = allFields ? null : fieldList;
+        this.reversedFields = reversed.isEmpty() ? Collections.emptySet() : Collections.unmodifiableSet(reversed);
+        this.estimatedBytes = bytes + ids.estimateBytes();
+        this.costs = Collections.emptyList();
+        this.quarantined = new BitSet();
+        this.excluded = new BitSet();
+    }
+
+    /**
+     * Compiles the categories in a properties file. Categories whose query is
+     * unchanged from the previous set are carried over rather than parsed
+     * again; the rest are parsed in parallel, with one parser per thread,
+     * since QueryParser isn't thread-safe.
+     *
+     * @param properties the category file's contents
+     * @param checksum the checksum of the category file
+     * @param loadTime the time of the load, in milliseconds since the epoch
+     * @param previous the set being replaced
+     * @param snapshot a snapshot that may hold the derived metadata of the
+     * categories, or null
+     * @param analyzer the analyzer used by the query parser
+     * @param reverseWildcards true to search leading-wildcard queries against
+     * {@link ReversedTerms reversed} copies of their fields
+     * @return the new set, with the next generation number
+     */
+    static CategorySet compile(Properties properties, String checksum, long loadTime, CategorySet previous, CategorySnapshot snapshot, Analyzer analyzer,
+            boolean reverseWildcards) {
+        List<String> keys = new ArrayList<>();
+        for (Object o : properties.keySet()) {
+            String key = String.valueOf(o);
+            if (!key.contains(".")) {
+                keys.add(key);
+            }
+        }
+        Collections.sort(keys);
+        Category[] compiled = new Category[keys.size()];
+        Map<String, String> failures = new TreeMap<>();
+        List<Integer> changed = new ArrayList<>();
+        for (int i = 0; i < compiled.length; i++) {
+            String key = keys.get(i);
+            String source = properties.getProperty(key);
+            Category old = previous.categories.get(key);
+            if (old != null && old.source.equals(source) && old.reverseWildcards == reverseWildcards) {
+                compiled[i] = old;
+            } else if (source.equals(previous.failures.get(key))) {
+                // Still broken, and already reported.
+                failures.put(key, source);
+            } else {
+                changed.add(i);
+            }
+        }
+        ThreadLocal<QueryParser> parsers = ThreadLocal.withInitial(() -> {
+            QueryParser parser = new QueryParser(LuceneEvaluator.DEFAULT_FIELD_NAME, analyzer);
+            parser.setAllowLeadingWildcard(true);
+            return parser;
+        });
+        Query[] parsed = new Query[compiled.length];
+        String[] errors = new String[compiled.length];
+        changed.parallelStream().forEach(i -> {
+            try {
+                parsed[i] = parsers.get().parse(properties.getProperty(keys.get(i)));
+            } catch (ParseException parseException) {
+                errors[i] = parseException.getLocalizedMessage();
+            }
+        });
+        for (int i : changed) {
+            if (parsed[i] == null) {
+                System.err.println("Error parsing category '" + keys.get(i) + "':");
+                System.err.println(errors[i]);
+                failures.put(keys.get(i), properties.getProperty(keys.get(i)));
+            }
+        }
+        List<String> compiledKeys = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>();
+        for (int i = 0; i < compiled.length; i++) {
+            if (compiled[i] != null || parsed[i] != null) {
+                compiledKeys.add(keys.get(i));
+                positions.add(i);
+            }
+        }
+        boolean useSnapshot = snapshot != null && snapshot.getChecksum().equals(checksum) && snapshot.getKeys().equals(compiledKeys);
+        changed.parallelStream().filter(i -> parsed[i] != null).forEach(i -> {
+            String source = properties.getProperty(keys.get(i));
+            Query searched = reverseWildcards ? ReversedTerms.rewrite(parsed[i]) : parsed[i];
+            if (useSnapshot) {
+                // Snapshot entries are in the order of the compiled keys.
+                int position = Collections.binarySearch(compiledKeys, keys.get(i));
+                compiled[i] = new Category(source, parsed[i], searched, reverseWildcards,
+                        snapshot.getAnchors().get(position), snapshot.getFields().get(position));
+            } else {
+                // Anchored on the reversed fields, where there are any, so that leading wildcards are pre-filtered too.
+                compiled[i] = new Category(source, parsed[i], searched, reverseWildcards,
+                        QueryIndex.extractAnchors(searched), LuceneEvaluator.collectFields(parsed[i]));
+            }
+        });
+        TreeMap<String, Category> categories = new TreeMap<>();
+        for (int i : positions) {
+            categories.put(keys.get(i), compiled[i]);
+        }
+        return new CategorySet(previous.generation + 1, loadTime, checksum, categories, failures);
+    }
+
+    /**
+     * @return a snapshot of this set's derived metadata
+     */
+    CategorySnapshot toSnapshot() {
+        List<String> keys = new ArrayList<>(categories.size());
+        List<Set<String>> fields = new ArrayList<>(categories.size());
+        List<List<QueryIndex.Anchor>> anchors = new ArrayList<>(categories.size());
+        for (Entry<String, Category> entry : categories.entrySet()) {
+            keys.add(entry.getKey());
+            fields.add(entry.getValue().fields);
+            anchors.add(entry.getValue().anchors);
+        }
+        return new CategorySnapshot(checksum, keys, fields, anchors);
+    }
+
+    /**
+     * @param loadTime the time of a reload that found the file unchanged
+     * @return this set, with the given load time
+     */
+    CategorySet withLoadTime(long loadTime) {
+        return new CategorySet(this, loadTime);
+    }
+
+    private CategorySet(CategorySet other, long loadTime) {
+        this.generation = other.generation;
+        this.loadTime = loadTime;
+        this.checksum = other.checksum;
+        this.categories = other.categories;
+        this.failures = other.failures;
+        this.queries = other.queries;
+        this.index = other.index;
+        this.ids = other.ids;
+        this.fieldList = other.fieldList;
+        this.referencedFields = other.referencedFields;
+        this.reversedFields = other.reversedFields;
+        this.estimatedBytes = other.estimatedBytes;
+        this.costs = other.costs;
+        this.quarantined = other.quarantined;
+        this.excluded = other.excluded;
+    }
+
+    /**
+     * @param costs the assessed costs of this set's queries
+     * @param generation the generation of the new set; a new generation if
+     * the costs exclude categories that this set doesn't, or vice versa
+     * @return this set, with the given costs, and excluding the categories
+     * they quarantine or reject
+     */
+    CategorySet withCosts(List<QueryCost> costs, long generation) {
+        BitSet quarantined = new BitSet();
+        BitSet excluded = new BitSet();
+        for (QueryCost cost : costs) {
+            int id = ids.getId(cost.getCategory());
+            if (id >= 0 && cost.getAction() == QueryCost.Action.QUARANTINE) {
+                quarantined.set(id);
+                excluded.set(id);
+            } else if (id >= 0 && cost.getAction() == QueryCost.Action.REJECT) {
+                excluded.set(id);
+            }
+        }
+        return new CategorySet(this, generation, Collections.unmodifiableList(new ArrayList<>(costs)), quarantined, excluded);
+    }
+
+    private CategorySet(CategorySet other, long generation, List<QueryCost> costs, BitSet quarantined, BitSet excluded) {
+        this.generation = generation;
+        this.loadTime = other.loadTime;
+        this.checksum = other.checksum;
+        this.categories = other.categories;
+        this.failures = other.failures;
+        this.queries = other.queries;
+        this.index = other.index;
+        this.ids = other.ids;
+        this.fieldList = other.fieldList;
+        this.referencedFields = other.referencedFields;
+        this.reversedFields = other.reversedFields;
+        this.estimatedBytes = other.estimatedBytes;
+        this.costs = costs;
+        this.quarantined = quarantined;
+        this.excluded = excluded;
+    }
+
+    /**
+     * @return the generation of this set; each reload that changes the
+     * categories increments it
+     */
+    long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return the time this set was loaded, in milliseconds since the epoch
+     */
+    long getLoadTime() {
+        return loadTime;
+    }
+
+    /**
+     * @return the checksum of the category file this set was compiled from
+     */
+    String getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * @return the parsed queries, by category key
+     */
+    Map<String, Query> getQueries() {
+        return queries;
+    }
+
+    /**
+     * @return the keys of the categories that failed to parse
+     */
+    Set<String> getFailures() {
+        return failures.keySet();
+    }
+
+    /**
+     * @return the pre-filtering index over the queries
+     */
+    QueryIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the ids of the categories, which are also their ordinals in the
+     * index
+     */
+    CategoryIds getIds() {
+        return ids;
+    }
+
+    /**
+     * @return the fields referenced by any of the queries
+     */
+    Set<String> getFieldList() {
+        return fieldList;
+    }
+
+    /**
+     * @return the only fields of a document that can affect which of these
+     * categories it matches, or null if some query's fields can't be
+     * determined and every field must be analyzed
+     */
+    Set<String> getReferencedFields() {
+        return referencedFields;
+    }
+
+    /**
+     * @return the fields that leading-wildcard queries read reversed copies
+     * of, which must be indexed alongside them; empty if there are none
+     */
+    Set<String> getReversedFields() {
+        return reversedFields;
+    }
+
+    /**
+     * @param key a category key
+     * @return true if the category's query is pre-filtered by anchor terms,
+     * false if it's run against every document
+     */
+    boolean isAnchored(String key) {
+        Category category = categories.get(key);
+        return category != null && category.anchors != null;
+    }
+
+    /**
+     * @return the assessed costs of the queries, most expensive first
+     */
+    List<QueryCost> getCosts() {
+        return costs;
+    }
+
+    /**
+     * @return the ids of the categories that are only evaluated when a
+     * selection names them; not to be modified
+     */
+    BitSet getQuarantined() {
+        return quarantined;
+    }
+
+    /**
+     * @return the ids of the categories that are quarantined or rejected; not
+     * to be modified
+     */
+    BitSet getExcluded() {
+        return excluded;
+    }
+
+    /**
+     * @return a rough estimate of the heap used by the compiled categories,
+     * in bytes
+     */
+    long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    /**
+     * One compiled category.
+     */
+    static final class Category {
+
+        private final String source;
+        private final Query query;
+        private final Query searched;
+        private final boolean reverseWildcards;
+        private final List<QueryIndex.Anchor> anchors;
+        private final Set<String> fields;
+        private final Set<String> reversedFields;
+
+        /**
+         * @param source the query's source
+         * @param query the parsed query
+         * @param searched the query as it's searched, which may differ from
+         * the parsed query in reading reversed fields
+         * @param reverseWildcards true if the searched query was rewritten
+         * for reversed fields, where it could be
+         * @param anchors the searched query's anchors
+         * @param fields the parsed query's fields
+         */
+        Category(String source, Query query, Query searched, boolean reverseWildcards, List<QueryIndex.Anchor> anchors, Set<String> fields) {
+            this.source = source;
+            this.query = query;
+            this.searched = searched;
+            this.reverseWildcards = reverseWildcards;
+            this.anchors = anchors;
+            this.fields = fields;
+            this.reversedFields = searched == query ? Collections.emptySet() : ReversedTerms.sourceFields(searched);
+        }
+
+        long estimateBytes() {
+            // The pre-filtering index holds each anchor once more.
+            long bytes = RamUsageEstimator.sizeOf(source) + RamUsageEstimator.sizeOf(query);
+            if (searched != query) {
+                bytes += RamUsageEstimator.sizeOf(searched);
+            }
+            if (anchors != null) {
+                for (QueryIndex.Anchor anchor : anchors) {
+                    bytes += 2 * (ANCHOR_OVERHEAD + anchor.bytes.length);
+                }
+            }
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.handshape.classifier.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Version;
+
+/**
+ * Precompiled metadata for a category file: the category keys, and the fields
+ * referenced by and the anchors extracted from each query for pre-filtering.
+ * A snapshot records a checksum of the source file and the Lucene version it
+ * was derived with, so that it's only ever used with the exact file (and
+ * analysis) it was built from. Lucene queries have no stable
+ * serialized form, so the queries themselves are still parsed on load.
+ *
+ * @author jturner
+ */
+final class CategorySnapshot {
+
+    private static final int MAGIC = 0x53434c53;
+    private static final int FORMAT_VERSION = 3;
+
+    private final String checksum;
+    private final List<String> keys;
+    private final List<Set<String>> fields;
+    private final List<List<QueryIndex.Anchor>> anchors;
+
+    /**
+     * @param checksum the checksum of the source category file
+     * @param keys the keys of the categories whose queries parsed, in order
+     * @param fields the fields referenced by each query, in key order; null
+     * entries for queries whose fields can't be determined
+     * @param anchors the anchors of each query, in key order; null entries
+     * for queries that can't be pre-filtered
+     */
+    CategorySnapshot(String checksum, List<String> keys, List<Set<String>> fields, List<List<QueryIndex.Anchor>> anchors) {
+        this.checksum = checksum;
+        this.keys = Collections.unmodifiableList(keys);
+        this.fields = Collections.unmodifiableList(fields);
+        this.anchors = Collections.unmodifiableList(anchors);
+    }
+
+    /**
+     * @return the checksum of the source category file
+     */
+    String getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * @return the keys of the compiled categories, in order
+     */
+    List<String> getKeys() {
+        return keys;
+    }
+
+    /**
+     * @return the fields referenced by each query, in key order
+     */
+    List<Set<String>> getFields() {
+        return fields;
+    }
+
+    /**
+     * @return the anchors of each query, in key order
+     */
+    List<List<QueryIndex.Anchor>> getAnchors() {
+        return anchors;
+    }
+
+    /**
+     * @param source the contents of a category file
+     * @return the hex-encoded SHA-256 of the contents
+     */
+    static String checksum(byte[] source) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(source);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            // Every JDK is required to support SHA-256.
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Reads a snapshot.
+     *
+     * @param file the snapshot file
+     * @return the snapshot, or null if it was written by a different format
+     * or Lucene version
+     * @throws IOException if the file can't be read, or is corrupt
+     */
+    static CategorySnapshot read(File file) throws IOException {
+        try ( DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a category snapshot.");
+            }
+            if (in.readInt() != FORMAT_VERSION || !Version.LATEST.toString().equals(in.readUTF())) {
+                return null;
+            }
+            String checksum = in.readUTF();
+            int count = in.readInt();
+            List<String> keys = new ArrayList<>(count);
+            List<Set<String>> fields = new ArrayList<>(count);
+            List<List<QueryIndex.Anchor>> anchors = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                keys.add(in.readUTF());
+                int fieldCount = in.readInt();
+                Set<String> queryFields = fieldCount < 0 ? null : new TreeSet<>();
+                for (int j = 0; j < fieldCount; j++) {
+                    queryFields.add(in.readUTF());
+                }
+                fields.add(queryFields);
+                int anchorCount = in.readInt();
+                if (anchorCount < 0) {
+                    anchors.add(null);
+                    continue;
+                }
+                List<QueryIndex.Anchor> queryAnchors = new ArrayList<>(anchorCount);
+                for (int j = 0; j < anchorCount; j++) {
+                    String field = in.readUTF();
+                    boolean prefix = in.readBoolean();
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    queryAnchors.add(new QueryIndex.Anchor(new Term(field, new BytesRef(bytes)), prefix));
+                }
+                anchors.add(queryAnchors);
+            }
+            return new CategorySnapshot(checksum, keys, fields, anchors);
+        }
+    }
+
+    /**
+     * Writes this snapshot. The file is replaced atomically where the file
+     * system allows, so a concurrent reader never sees a partial snapshot.
+     *
+     * @param file the snapshot file
+     * @throws IOException if the file can't be written
+     */
+    void write(File file) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile(file.getName(), ".tmp", parent);
+        try {
+            try ( DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp.toPath())))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeUTF(Version.LATEST.toString());
+                out.writeUTF(checksum);
+                out.writeInt(keys.size());
+                for (int i = 0; i < keys.size(); i++) {
+                    out.writeUTF(keys.get(i));
+                    Set<String> queryFields = fields.get(i);
+                    if (queryFields == null) {
+                        out.writeInt(-1);
+                    } else {
+                        out.writeInt(queryFields.size());
+                        for (String field : queryFields) {
+                            out.writeUTF(field);
+                        }
+                    }
+                    List<QueryIndex.Anchor> queryAnchors = anchors.get(i);
+                    if (queryAnchors == null) {
+                        out.writeInt(-1);
+                        continue;
+                    }
+                    out.writeInt(queryAnchors.size());
+                    for (QueryIndex.Anchor anchor : queryAnchors) {
+                        out.writeUTF(anchor.field);
+                        out.writeBoolean(anchor.prefix);
+                        out.writeInt(anchor.bytes.length);
+                        out.write(anchor.bytes.bytes, anchor.bytes.offset, anchor.bytes.length);
+                    }
+                }
+            }
+            try {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException ex) {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+}
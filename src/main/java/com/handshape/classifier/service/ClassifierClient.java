@@ -0,0 +1,238 @@
+package com.handshape.classifier.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client for the service's binary protocol listener (see the
+ * {@code --binary-port} option). One client holds one persistent connection,
+ * and may be shared between threads: requests are pipelined, so any number may
+ * be in flight at once, and each is completed when its own response arrives.
+ *
+ * <pre>
+ * try (ClassifierClient client = new ClassifierClient("localhost", 9091)) {
+ *     Set&lt;String&gt; categories = client.evaluate(Collections.singletonMap("text", "loafers"));
+ * }
+ * </pre>
+ *
+ * @author jturner
+ */
+public class ClassifierClient implements Closeable {
+
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final Map<Integer, CompletableFuture<Set<String>>> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final Thread reader;
+    private volatile IOException failure;
+
+    /**
+     * Connects to the service.
+     *
+     * @param host the service's host
+     * @param port the service's binary protocol port
+     * @throws IOException if the connection can't be made
+     */
+    public ClassifierClient(String host, int port) throws IOException {
+        this(host, port, 0);
+    }
+
+    /**
+     * Connects to the service, giving up after a time.
+     *
+     * @param host the service's host
+     * @param port the service's binary protocol port
+     * @param connectTimeoutMillis how long to wait for the connection to be
+     * made, in milliseconds; zero to wait indefinitely
+     * @throws IOException if the connection can't be made in time
+     */
+    ClassifierClient(String host, int port, int connectTimeoutMillis) throws IOException {
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        try {
+            socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+        } catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        reader = new Thread(() -> readResponses(in), "classifier client " + host + ":" + port);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Evaluates a document against every category, and waits for the result.
+     *
+     * @param document the document's fields
+     * @return the names of the matching categories
+     * @throws IOException if the request fails
+     */
+    public Set<String> evaluate(Map<String, String> document) throws IOException {
+        return evaluate(document, CategorySelection.ALL, true);
+    }
+
+    /**
+     * Evaluates a document, and waits for the result.
+     *
+     * @param document the document's fields
+     * @param selection the categories to evaluate
+     * @param useCache false to have the document evaluated afresh rather than
+     * answered from the result cache
+     * @return the names of the matching categories
+     * @throws IOException if the request fails
+     */
+    public Set<String> evaluate(Map<String, String> document, CategorySelection selection, boolean useCache) throws IOException {
+        try {
+            return evaluateAsync(document, selection, useCache).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a response.", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    /**
+     * Sends a document for evaluation without waiting for the result.
+     *
+     * @param document the document's fields
+     * @param selection the categories to evaluate
+     * @param useCache false to have the document evaluated afresh rather than
+     * answered from the result cache
+     * @return the names of the matching categories, once they arrive; fails
+     * with a {@link ClassifierException} if the service refuses the request,
+     * or an IOException if the connection fails
+     */
+    public CompletableFuture<Set<String>> evaluateAsync(Map<String, String> document, CategorySelection selection, boolean useCache) {
+        CompletableFuture<Set<String>> result = new CompletableFuture<>();
+        int id = nextId.incrementAndGet();
+        pending.put(id, result);
+        try {
+            synchronized (out) {
+                if (failure != null) {
+                    throw failure;
+                }
+                BinaryProtocol.writeRequest(out, id, document, selection, useCache);
+                out.flush();
+            }
+        } catch (IOException ex) {
+            pending.remove(id);
+            result.completeExceptionally(ex);
+        }
+        return result;
+    }
+
+    private void readResponses(DataInputStream in) {
+        try {
+            while (true) {
+                BinaryProtocol.Response response = BinaryProtocol.readResponse(in);
+                CompletableFuture<Set<String>> result = pending.remove(response.id);
+                if (response.status == BinaryProtocol.STATUS_OK) {
+                    if (result != null) {
+                        result.complete(response.categories);
+                    }
+                } else {
+                    ClassifierException error = new ClassifierException(response.status, response.message);
+                    if (result != null) {
+                        result.completeExceptionally(error);
+                    } else {
+                        // A failure not tied to a request means the service is closing the connection.
+                        throw error;
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            fail(ex);
+        }
+    }
+
+    private void fail(IOException ex) {
+        synchronized (out) {
+            if (failure == null) {
+                failure = ex;
+            }
+        }
+        for (Integer id : pending.keySet()) {
+            CompletableFuture<Set<String>> result = pending.remove(id);
+            if (result != null) {
+                result.completeExceptionally(ex);
+            }
+        }
+    }
+
+    /**
+     * @return false once the connection has failed or been closed
+     */
+    boolean isOpen() {
+        return failure == null && !socket.isClosed();
+    }
+
+    /**
+     * @return the number of requests awaiting a response
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Closes the connection. Requests still awaiting a response fail.
+     */
+    @Override
+    public void close() throws IOException {
+        socket.close();
+        try {
+            reader.join(1000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        fail(new IOException("The client was closed."));
+    }
+
+    /**
+     * A request refused by the service.
+     */
+    public static class ClassifierException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        ClassifierException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+
+        /**
+         * @return the response status; see the protocol description in the
+         * README
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return true if the service was too busy to take the request, which
+         * may be retried later
+         */
+        public boolean isOverloaded() {
+            return status == BinaryProtocol.STATUS_OVERLOADED;
+        }
+    }
+}
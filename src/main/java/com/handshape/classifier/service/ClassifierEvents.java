@@ -0,0 +1,271 @@
+package com.handshape.classifier.service;
+
+import com.sun.net.httpserver.HttpExchange;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * JDK Flight Recorder events for the phases of a request, for reloads, and
+ * for categories that are slow to search. An event costs no more than an
+ * allocation the JIT can usually remove while no recording has it enabled;
+ * phase times and per-category timings are only taken while one does. Each
+ * event has a threshold, so that a recording with the default settings only
+ * keeps the outliers; recordings can lower it, e.g. with
+ * <code>jfr configure</code> or a custom .jfc file.
+ *
+ * @author jturner
+ */
+final class ClassifierEvents {
+
+    private static final String CATEGORY = "Classifier";
+
+    private ClassifierEvents() {
+    }
+
+    /**
+     * One request to the evaluation endpoint, from the start of its handling
+     * to the end of its response. Parsing a POST body happens as it's
+     * analyzed, so is counted as evaluation time.
+     */
+    @Name("com.handshape.classifier.Request")
+    @Label("Classifier Request")
+    @Category(CATEGORY)
+    @Description("An evaluation request, and the time spent parsing it, evaluating it, and writing its response")
+    @Threshold("10 ms")
+    @StackTrace(false)
+    static final class Request extends Event {
+
+        @Label("Method")
+        String method;
+
+        @Label("Content Type")
+        String contentType;
+
+        @Label("Body Size")
+        @Description("The declared length of the request body; -1 if it wasn't declared")
+        @DataAmount
+        long bodySize = -1;
+
+        @Label("Status")
+        int status;
+
+        @Label("Parse Time")
+        @Timespan
+        long parseTime;
+
+        @Label("Evaluation Time")
+        @Timespan
+        long evaluationTime;
+
+        @Label("Write Time")
+        @Timespan
+        long writeTime;
+
+        private transient long mark;
+        private transient int phase;
+
+        /**
+         * Starts timing the request, and its parse phase.
+         */
+        void start() {
+            begin();
+            if (isEnabled()) {
+                mark = System.nanoTime();
+            }
+        }
+
+        /**
+         * Ends the parse phase, and starts the evaluation phase.
+         */
+        void evaluating() {
+            phase(1);
+        }
+
+        /**
+         * Ends the evaluation phase, and starts writing the response.
+         */
+        void responding() {
+            phase(2);
+        }
+
+        private void phase(int next) {
+            if (isEnabled()) {
+                long now = System.nanoTime();
+                switch (phase) {
+                    case 0:
+                        parseTime += now - mark;
+                        break;
+                    case 1:
+                        evaluationTime += now - mark;
+                        break;
+                    default:
+                        writeTime += now - mark;
+                        break;
+                }
+                mark = now;
+                phase = next;
+            }
+        }
+
+        /**
+         * Ends the request, and commits the event if it took long enough.
+         *
+         * @param exchange the request and its response
+         */
+        void finish(HttpExchange exchange) {
+            phase(phase);
+            end();
+            if (shouldCommit()) {
+                method = exchange.getRequestMethod();
+                contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+                String length = exchange.getRequestHeaders().getFirst("Content-Length");
+                if (length != null) {
+                    try {
+                        bodySize = Long.parseLong(length.trim());
+                    } catch (NumberFormatException ex) {
+                        // Left undeclared.
+                    }
+                }
+                status = exchange.getResponseCode();
+                commit();
+            }
+        }
+    }
+
+    /**
+     * One document's evaluation: its analysis into a MemoryIndex, and the
+     * search of its candidate queries.
+     */
+    @Name("com.handshape.classifier.Evaluation")
+    @Label("Classifier Evaluation")
+    @Category(CATEGORY)
+    @Description("A document's analysis and search, with its size and the number of categories searched and matched")
+    @Threshold("10 ms")
+    @StackTrace(false)
+    static final class Evaluation extends Event {
+
+        @Label("Document Size")
+        @Description("The characters of field values analyzed")
+        long documentSize;
+
+        @Label("Skipped Size")
+        @Description("The characters of field values skipped, because no query reads their field")
+        long skippedSize;
+
+        @Label("Field Count")
+        @Description("The number of fields analyzed")
+        int fieldCount;
+
+        @Label("Categories Searched")
+        int searched;
+
+        @Label("Categories Matched")
+        int matched;
+
+        @Label("Analysis Time")
+        @Timespan
+        long analysisTime;
+
+        @Label("Search Time")
+        @Timespan
+        long searchTime;
+
+        @Label("Generation")
+        @Description("The generation of the category set evaluated against")
+        long generation;
+    }
+
+    /**
+     * A single category query that took longer than the threshold to search.
+     * One event is reused for every category searched by a thread against a
+     * document, so that timing them doesn't allocate per category; each
+     * search begins it again, and {@link #finish} sets every field before
+     * committing it.
+     */
+    @Name("com.handshape.classifier.SlowCategory")
+    @Label("Slow Category")
+    @Category(CATEGORY)
+    @Description("A category whose query took longer than the threshold to search against one document")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static final class SlowCategory extends Event {
+
+        @Label("Category")
+        String category;
+
+        @Label("Matched")
+        boolean matched;
+
+        @Label("Document Size")
+        @Description("The characters of field values analyzed")
+        long documentSize;
+
+        /**
+         * @return an event to time a document's category searches with, or
+         * null if no recording has slow category events enabled, so that
+         * category searches needn't be timed
+         */
+        static SlowCategory ifEnabled() {
+            SlowCategory event = new SlowCategory();
+            return event.isEnabled() ? event : null;
+        }
+
+        /**
+         * Ends the search, and commits the event if it took long enough.
+         *
+         * @param index the queries
+         * @param ordinal the ordinal of the query searched
+         * @param matched true if the document matched
+         * @param documentSize the size of the document, in characters
+         */
+        void finish(QueryIndex index, int ordinal, boolean matched, long documentSize) {
+            end();
+            if (shouldCommit()) {
+                this.category = index.getKey(ordinal);
+                this.matched = matched;
+                this.documentSize = documentSize;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * A load of the category file, whether or not it changed.
+     */
+    @Name("com.handshape.classifier.Reload")
+    @Label("Category Reload")
+    @Category(CATEGORY)
+    @Description("A load of a category file, and the time spent compiling and assessing its queries")
+    @StackTrace(false)
+    static final class Reload extends Event {
+
+        @Label("File")
+        String file;
+
+        @Label("Outcome")
+        @Description("loaded, unchanged, or failed")
+        String outcome = "failed";
+
+        @Label("Categories")
+        int categories;
+
+        @Label("Generation")
+        long generation;
+
+        @Label("Compile Time")
+        @Timespan
+        long compileTime;
+
+        @Label("Assessment Time")
+        @Description("The time spent assessing the cost of the queries")
+        @Timespan
+        long assessmentTime;
+    }
+}
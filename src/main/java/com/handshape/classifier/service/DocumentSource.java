@@ -0,0 +1,68 @@
+package com.handshape.classifier.service;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * A document whose fields are read one at a time, with each value supplied as
+ * a reader rather than a string, so that large values can be analyzed as they
+ * arrive instead of being materialized first. A source can only be read once.
+ *
+ * @author jturner
+ */
+interface DocumentSource {
+
+    /**
+     * Reads the document, passing each field to the consumer in turn. A
+     * field's value reader is only valid until the consumer returns; whatever
+     * the consumer leaves unread is skipped. A name that appears more than
+     * once is passed once per value, and every value is indexed.
+     *
+     * @param consumer receives each field
+     * @throws IOException if the document can't be read or is malformed
+     */
+    void read(FieldConsumer consumer) throws IOException;
+
+    /**
+     * Reads the whole document into memory.
+     *
+     * @return the document's fields, by name; the values of a repeated name
+     * are joined, as by {@link #put}
+     * @throws IOException if the document can't be read or is malformed
+     */
+    default Map<String, String> toMap() throws IOException {
+        Map<String, String> fields = new TreeMap<>();
+        read((name, value) -> put(fields, name, IOUtils.toString(value)));
+        return fields;
+    }
+
+    /**
+     * Adds a field value to a document, after any value the name already has.
+     * Values are joined by a space, which analyzes to the same terms at the
+     * same positions as indexing each value in turn does.
+     *
+     * @param fields the document's fields, by name
+     * @param name the field name
+     * @param value the field value
+     */
+    static void put(Map<String, String> fields, String name, String value) {
+        fields.merge(name, value, (earlier, later) -> earlier + ' ' + later);
+    }
+
+    /**
+     * Receives the fields of a document.
+     */
+    @FunctionalInterface
+    interface FieldConsumer {
+
+        /**
+         * @param name the field name
+         * @param value the field value, valid only for the duration of the call
+         * @throws IOException if the value can't be read
+         */
+        void field(String name, Reader value) throws IOException;
+    }
+}
@@ -0,0 +1,375 @@
+package com.handshape.classifier.service;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.memory.MemoryIndex;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorable;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.SimpleCollector;
+
+/**
+ * Reusable per-thread state for a single document evaluation. Holding on to
+ * the {@link MemoryIndex} and resetting it between documents lets its internal
+ * buffers be recycled rather than reallocated; the analyzer already reuses its
+ * token stream components per thread. A context must only ever be used by one
+ * thread at a time.
+ *
+ * @author jturner
+ */
+final class EvaluationContext {
+
+    /**
+     * Bytes of the index's block pools to keep for reuse between documents.
+     * Without this, MemoryIndex releases (and later reallocates) its buffers
+     * on every reset.
+     */
+    private static final long MAX_REUSED_BYTES = 1024 * 1024;
+
+    private final MemoryIndex index;
+    private final MatchCollector collector = new MatchCollector();
+    private final BitSet candidates = new BitSet();
+    private final BitSet selection = new BitSet();
+    private final CountingReader counter = new CountingReader();
+    private final PrefixedReader prefixed = new PrefixedReader();
+    private final TokenCache.Replay replay = new TokenCache.Replay();
+    private final ReversedTerms reversed = new ReversedTerms();
+    private IndexSearcher searcher;
+    private long documentSize;
+    private long skippedSize;
+    private int fieldCount;
+
+    /**
+     * @param analyzer the analyzer that will be used with this context
+     */
+    EvaluationContext(Analyzer analyzer) {
+        // fromDocument is the only public route to a MemoryIndex that recycles its buffers.
+        index = MemoryIndex.fromDocument(Collections.emptyList(), analyzer, false, false, MAX_REUSED_BYTES);
+    }
+
+    /**
+     * Resets this context and indexes a new document into it.
+     *
+     * @param evaluationData the document, as field names and values
+     * @param analyzer the analyzer used to tokenize the field values
+     * @param fields the only fields to index, since no query reads the
+     * others; null to index every field
+     * @param reversedFields the fields to also index reversed copies of
+     * @param tokenCache the cache of short values' tokens; null for none
+     */
+    void load(Map<String, String> evaluationData, Analyzer analyzer, Set<String> fields, Set<String> reversedFields, TokenCache tokenCache) {
+        index.reset();
+        documentSize = 0;
+        skippedSize = 0;
+        fieldCount = 0;
+        for (Entry<String, String> entry : evaluationData.entrySet()) {
+            String name = entry.getKey();
+            String value = entry.getValue();
+            if (fields != null && !fields.contains(name)) {
+                skippedSize += value.length();
+                continue;
+            }
+            if (tokenCache != null && tokenCache.accepts(value.length())) {
+                addField(name, replay.replay(tokenCache.get(analyzer, name, value)), analyzer, reversedFields);
+            } else if (reversedFields.contains(name)) {
+                addField(name, analyzer.tokenStream(name, value), analyzer, reversedFields);
+            } else {
+                index.addField(name, value, analyzer);
+            }
+            documentSize += value.length();
+            fieldCount++;
+        }
+        index.freeze();
+        // One searcher serves every query against this document, rather than one per query.
+        searcher = index.createSearcher();
+    }
+
+    /**
+     * Resets this context and indexes a new document into it, analyzing each
+     * field value as it's read from the source rather than from a string.
+     *
+     * @param source the document
+     * @param analyzer the analyzer used to tokenize the field values
+     * @param fields the only fields to index, since no query reads the
+     * others; null to index every field
+     * @param reversedFields the fields to also index reversed copies of
+     * @param tokenCache the cache of short values' tokens; null for none
+     * @throws IOException if the source fails, or is malformed
+     */
+    void load(DocumentSource source, Analyzer analyzer, Set<String> fields, Set<String> reversedFields, TokenCache tokenCache) throws IOException {
+        index.reset();
+        documentSize = 0;
+        skippedSize = 0;
+        fieldCount = 0;
+        try {
+            source.read((name, value) -> {
+                counter.open(value);
+                if (fields == null || fields.contains(name)) {
+                    TokenStream stream;
+                    if (tokenCache == null) {
+                        stream = analyzer.tokenStream(name, counter);
+                    } else {
+                        // Read just far enough to tell whether the value is short enough to cache.
+                        int length = prefixed.fill(counter, tokenCache.getMaxValueLength() + 1);
+                        stream = tokenCache.accepts(length)
+                                ? replay.replay(tokenCache.get(analyzer, name, prefixed.toString()))
+                                : analyzer.tokenStream(name, prefixed);
+                    }
+                    addField(name, stream, analyzer, reversedFields);
+                    // Token filters may stop short of the end of the value.
+                    documentSize += counter.skipRest();
+                    fieldCount++;
+                } else {
+                    skippedSize += counter.skipRest();
+                }
+            });
+        } catch (RuntimeException ex) {
+            // MemoryIndex wraps the failures of the readers it consumes.
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw ex;
+        }
+        index.freeze();
+        searcher = index.createSearcher();
+    }
+
+    /**
+     * Indexes a field value, and its reversed copy if it needs one. The
+     * value is only analyzed once; its terms are recorded for the copy as
+     * they're indexed.
+     */
+    private void addField(String name, TokenStream stream, Analyzer analyzer, Set<String> reversedFields) {
+        int positionIncrementGap = analyzer.getPositionIncrementGap(name);
+        int offsetGap = analyzer.getOffsetGap(name);
+        if (reversedFields.contains(name)) {
+            index.addField(name, reversed.record(stream), positionIncrementGap, offsetGap);
+            index.addField(ReversedTerms.fieldName(name), reversed.replay(), positionIncrementGap, offsetGap);
+        } else {
+            index.addField(name, stream, positionIncrementGap, offsetGap);
+        }
+    }
+
+    /**
+     * @return a searcher over the currently-loaded document; safe to share
+     * between threads, since the index is frozen
+     */
+    IndexSearcher getSearcher() {
+        return searcher;
+    }
+
+    /**
+     * @return the total length, in characters, of the currently-loaded
+     * document's indexed field values
+     */
+    long getDocumentSize() {
+        return documentSize;
+    }
+
+    /**
+     * @return the number of fields of the currently-loaded document that were
+     * indexed
+     */
+    int getFieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * @return the total length, in characters, of the values of the fields
+     * of the current document that were skipped rather than indexed
+     */
+    long getSkippedSize() {
+        return skippedSize;
+    }
+
+    /**
+     * @return a reader over the currently-loaded document
+     */
+    LeafReader getReader() {
+        return searcher.getIndexReader().leaves().get(0).reader();
+    }
+
+    /**
+     * @return the (reused) set of candidate query ordinals for the current
+     * document
+     */
+    BitSet getCandidates() {
+        return candidates;
+    }
+
+    /**
+     * @return the (reused) set of selected query ordinals for the current
+     * evaluation
+     */
+    BitSet getSelection() {
+        return selection;
+    }
+
+    /**
+     * Runs a query against the currently-loaded document. Equivalent to
+     * {@code MemoryIndex.search(query) > 0}.
+     *
+     * @param query the query to run
+     * @return true if the document matches the query
+     */
+    boolean matches(Query query) {
+        return matches(searcher, query, collector);
+    }
+
+    /**
+     * Runs a query against a single-document searcher.
+     *
+     * @param searcher the searcher
+     * @param query the query to run
+     * @param collector a collector owned by the calling thread
+     * @return true if the document matches the query
+     */
+    static boolean matches(IndexSearcher searcher, Query query, MatchCollector collector) {
+        collector.score = 0.0f;
+        try {
+            searcher.search(query, collector);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        return collector.score > 0.0f;
+    }
+
+    /**
+     * Releases the reference to the last document's searcher.
+     */
+    void clear() {
+        searcher = null;
+    }
+
+    /**
+     * A reusable view of a field value that counts the characters read
+     * through it, and that doesn't close the value when the analyzer closes
+     * it.
+     */
+    private static final class CountingReader extends Reader {
+
+        private final char[] scratch = new char[1024];
+        private Reader value;
+        private long count;
+
+        void open(Reader value) {
+            this.value = value;
+            count = 0;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            int n = value.read(cbuf, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        /**
+         * Reads to the end of the value.
+         *
+         * @return the length of the whole value, in characters
+         */
+        long skipRest() throws IOException {
+            while (read(scratch, 0, scratch.length) >= 0) {
+                // Discard.
+            }
+            return count;
+        }
+
+        @Override
+        public void close() {
+            // The source owns the value.
+        }
+    }
+
+    /**
+     * A reusable reader over the first characters of a value, read ahead,
+     * followed by the rest of it.
+     */
+    private static final class PrefixedReader extends Reader {
+
+        private char[] buffer = new char[0];
+        private int length;
+        private int position;
+        private Reader rest;
+
+        /**
+         * Reads ahead up to the given number of characters of a value.
+         *
+         * @return the number read, which is less than the maximum only if the
+         * value ended
+         */
+        int fill(Reader value, int max) throws IOException {
+            if (buffer.length < max) {
+                buffer = new char[max];
+            }
+            rest = value;
+            length = 0;
+            position = 0;
+            int n;
+            while (length < max && (n = value.read(buffer, length, max - length)) >= 0) {
+                length += n;
+            }
+            return length;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if (position < length) {
+                int n = Math.min(len, length - position);
+                System.arraycopy(buffer, position, cbuf, off, n);
+                position += n;
+                return n;
+            }
+            return rest.read(cbuf, off, len);
+        }
+
+        /**
+         * @return the characters read ahead
+         */
+        @Override
+        public String toString() {
+            return new String(buffer, 0, length);
+        }
+
+        @Override
+        public void close() {
+            // The source owns the value.
+        }
+    }
+
+    /**
+     * Records the score of the single document, as MemoryIndex.search does.
+     */
+    static final class MatchCollector extends SimpleCollector {
+
+        private Scorable scorer;
+        private float score;
+
+        @Override
+        public void setScorer(Scorable scorer) {
+            this.scorer = scorer;
+        }
+
+        @Override
+        public void collect(int doc) throws IOException {
+            score = scorer.score();
+        }
+
+        @Override
+        public ScoreMode scoreMode() {
+            return ScoreMode.COMPLETE;
+        }
+    }
+}
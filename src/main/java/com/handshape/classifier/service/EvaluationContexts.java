@@ -0,0 +1,91 @@
+package com.handshape.classifier.service;
+
+import java.io.Closeable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.util.CloseableThreadLocal;
+
+/**
+ * Evaluation contexts kept for reuse, so that their buffers are recycled from
+ * document to document. Platform threads each keep their own. A virtual
+ * thread usually handles a single request and is gone, so a context kept for
+ * it would never be reused; virtual threads borrow contexts from a bounded
+ * pool instead, and return them when they're done.
+ *
+ * @author jturner
+ */
+final class EvaluationContexts implements Closeable {
+
+    /**
+     * The most contexts pooled for virtual threads; more are made as needed,
+     * and dropped when they're returned.
+     */
+    private static final int MAX_POOLED = 2 * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Thread.isVirtual(), on JDKs that have it.
+     */
+    private static final MethodHandle IS_VIRTUAL = isVirtualHandle();
+
+    private final CloseableThreadLocal<EvaluationContext> perThread = new CloseableThreadLocal<>();
+    private final BlockingQueue<EvaluationContext> pooled = new ArrayBlockingQueue<>(MAX_POOLED);
+
+    /**
+     * @param analyzer the analyzer a new context will be used with
+     * @return a context for the current thread, which must be cleared and
+     * passed to {@link #release} once the thread is done with it
+     */
+    EvaluationContext borrow(Analyzer analyzer) {
+        if (isVirtual()) {
+            EvaluationContext context = pooled.poll();
+            return context != null ? context : new EvaluationContext(analyzer);
+        }
+        EvaluationContext context = perThread.get();
+        if (context == null) {
+            context = new EvaluationContext(analyzer);
+            perThread.set(context);
+        }
+        return context;
+    }
+
+    /**
+     * @param context a context borrowed by the current thread, and cleared
+     */
+    void release(EvaluationContext context) {
+        if (isVirtual()) {
+            pooled.offer(context);
+        }
+    }
+
+    /**
+     * Drops every context kept for reuse.
+     */
+    @Override
+    public void close() {
+        perThread.close();
+        pooled.clear();
+    }
+
+    private static boolean isVirtual() {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(Thread.currentThread());
+        } catch (Throwable ex) {
+            return false;
+        }
+    }
+
+    private static MethodHandle isVirtualHandle() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+}
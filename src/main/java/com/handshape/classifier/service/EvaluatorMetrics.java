@@ -0,0 +1,219 @@
+package com.handshape.classifier.service;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters describing the work done by a {@link LuceneEvaluator}: time spent
+ * analyzing documents versus searching them, per-category hit counts and
+ * (optionally) search times, and category reloads. All counters are striped
+ * so that recording from the evaluation hot path stays cheap under
+ * contention.
+ *
+ * @author jturner
+ */
+final class EvaluatorMetrics {
+
+    private final LongAdder evaluations = new LongAdder();
+    private final LongAdder analysisNanos = new LongAdder();
+    private final LongAdder searchNanos = new LongAdder();
+    private final LongAdder queriesSearched = new LongAdder();
+    private final LongAdder skippedChars = new LongAdder();
+    private final LongAdder reloadFailures = new LongAdder();
+    private final LatencyHistogram reloads = new LatencyHistogram();
+    private final ConcurrentHashMap<String, CategoryStats> categories = new ConcurrentHashMap<>();
+    private volatile CategoryCounters current = new CategoryCounters(null, new CategoryStats[0]);
+    private volatile boolean categoryTiming = false;
+
+    /**
+     * Binds the per-category counters to a newly-loaded query index.
+     * Counters for categories that are still present carry over; those for
+     * removed categories are dropped.
+     *
+     * @param index the new index
+     */
+    synchronized void bind(QueryIndex index) {
+        CategoryStats[] stats = new CategoryStats[index.size()];
+        Set<String> keys = new HashSet<>();
+        for (int i = 0; i < stats.length; i++) {
+            String key = index.getKey(i);
+            keys.add(key);
+            stats[i] = categories.computeIfAbsent(key, k -> new CategoryStats());
+        }
+        categories.keySet().retainAll(keys);
+        current = new CategoryCounters(index, stats);
+    }
+
+    /**
+     * @param index the index an evaluation is using
+     * @return the per-category counters for that index, or null if it has
+     * since been replaced by a reload
+     */
+    CategoryCounters countersFor(QueryIndex index) {
+        CategoryCounters counters = current;
+        return counters.index == index ? counters : null;
+    }
+
+    /**
+     * Records one evaluation.
+     *
+     * @param analysisNanos time spent building the document's index
+     * @param searchNanos time spent selecting and running queries
+     * @param searched the number of queries run
+     * @param skipped the length, in characters, of the field values that
+     * weren't analyzed because no query reads them
+     */
+    void recordEvaluation(long analysisNanos, long searchNanos, int searched, long skipped) {
+        evaluations.increment();
+        this.analysisNanos.add(analysisNanos);
+        this.searchNanos.add(searchNanos);
+        queriesSearched.add(searched);
+        if (skipped > 0) {
+            skippedChars.add(skipped);
+        }
+    }
+
+    /**
+     * @param nanos the duration of a successful reload
+     */
+    void recordReload(long nanos) {
+        reloads.record(nanos);
+    }
+
+    /**
+     * Records a reload that failed.
+     */
+    void recordReloadFailure() {
+        reloadFailures.increment();
+    }
+
+    /**
+     * @return true if the search time of each category is being recorded
+     */
+    boolean isCategoryTiming() {
+        return categoryTiming;
+    }
+
+    /**
+     * @param categoryTiming true to record the search time of each category
+     */
+    void setCategoryTiming(boolean categoryTiming) {
+        this.categoryTiming = categoryTiming;
+    }
+
+    /**
+     * @return the number of evaluations recorded
+     */
+    long getEvaluations() {
+        return evaluations.sum();
+    }
+
+    /**
+     * @return the number of category queries run against documents
+     */
+    long getQueriesSearched() {
+        return queriesSearched.sum();
+    }
+
+    /**
+     * @return the total length, in characters, of the field values skipped
+     * rather than analyzed
+     */
+    long getSkippedChars() {
+        return skippedChars.sum();
+    }
+
+    /**
+     * @return the number of successful reloads recorded
+     */
+    long getReloads() {
+        return reloads.getCount();
+    }
+
+    /**
+     * @return the hit count of each category, by key
+     */
+    Map<String, Long> getHits() {
+        Map<String, Long> hits = new TreeMap<>();
+        categories.forEach((key, stats) -> hits.put(key, stats.hits.sum()));
+        return hits;
+    }
+
+    /**
+     * Writes all of the evaluator metrics in the Prometheus text format.
+     */
+    void write(StringBuilder out) {
+        PrometheusText.single(out, "classifier_evaluations_total", "counter",
+                "Documents evaluated.", evaluations.sum());
+        PrometheusText.single(out, "classifier_evaluation_analysis_seconds_total", "counter",
+                "Time spent analyzing documents into their in-memory index.", analysisNanos.sum() / 1e9);
+        PrometheusText.single(out, "classifier_evaluation_search_seconds_total", "counter",
+                "Time spent selecting and running category queries.", searchNanos.sum() / 1e9);
+        PrometheusText.single(out, "classifier_evaluation_queries_searched_total", "counter",
+                "Category queries run against documents, after pre-filtering.", queriesSearched.sum());
+        PrometheusText.single(out, "classifier_evaluation_skipped_chars_total", "counter",
+                "Characters of field values not analyzed because no category query reads the field.", skippedChars.sum());
+        PrometheusText.header(out, "classifier_reload_duration_seconds", "histogram",
+                "Time taken to load the category file.");
+        reloads.write(out, "classifier_reload_duration_seconds", null);
+        PrometheusText.single(out, "classifier_reload_failures_total", "counter",
+                "Category file loads that failed.", reloadFailures.sum());
+        PrometheusText.single(out, "classifier_category_timing_enabled", "gauge",
+                "1 if per-category search time is being recorded.", categoryTiming ? 1 : 0);
+        Map<String, CategoryStats> sorted = new TreeMap<>(categories);
+        PrometheusText.header(out, "classifier_category_hits_total", "counter",
+                "Documents that matched each category.");
+        sorted.forEach((key, stats) -> PrometheusText.sample(out, "classifier_category_hits_total",
+                PrometheusText.label("category", key), stats.hits.sum()));
+        PrometheusText.header(out, "classifier_category_searches_total", "counter",
+                "Timed searches of each category's query.");
+        sorted.forEach((key, stats) -> PrometheusText.sample(out, "classifier_category_searches_total",
+                PrometheusText.label("category", key), stats.searches.sum()));
+        PrometheusText.header(out, "classifier_category_search_seconds_total", "counter",
+                "Cumulative time spent in timed searches of each category's query.");
+        sorted.forEach((key, stats) -> PrometheusText.sample(out, "classifier_category_search_seconds_total",
+                PrometheusText.label("category", key), stats.searchNanos.sum() / 1e9));
+    }
+
+    private static final class CategoryStats {
+
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder searches = new LongAdder();
+        private final LongAdder searchNanos = new LongAdder();
+    }
+
+    /**
+     * Per-category counters for one loaded index, addressed by query ordinal.
+     */
+    static final class CategoryCounters {
+
+        private final QueryIndex index;
+        private final CategoryStats[] stats;
+
+        private CategoryCounters(QueryIndex index, CategoryStats[] stats) {
+            this.index = index;
+            this.stats = stats;
+        }
+
+        /**
+         * @param ordinal the ordinal of a category that matched a document
+         */
+        void hit(int ordinal) {
+            stats[ordinal].hits.increment();
+        }
+
+        /**
+         * @param ordinal the ordinal of a category whose query was run
+         * @param nanos the time the search took
+         */
+        void searched(int ordinal, long nanos) {
+            CategoryStats s = stats[ordinal];
+            s.searches.increment();
+            s.searchNanos.add(nanos);
+        }
+    }
+}
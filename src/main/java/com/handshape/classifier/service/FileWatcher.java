@@ -0,0 +1,194 @@
+package com.handshape.classifier.service;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches files for changes on a single thread, and runs a callback for each
+ * changed file once a burst of changes has settled. One watcher can serve any
+ * number of files, in any number of directories; callbacks run one at a time
+ * on the watcher's thread. Blocks while there's nothing to do.
+ *
+ * @author jturner
+ */
+final class FileWatcher extends Thread {
+
+    private final AtomicBoolean stop = new AtomicBoolean(false);
+    private final WatchService service;
+    private final Map<Path, List<Watch>> watches = new ConcurrentHashMap<>();
+    private final Map<Path, WatchKey> keys = new HashMap<>();
+    private volatile long debounceMillis = 250L;
+
+    /**
+     * @param name the name of the watcher thread
+     */
+    FileWatcher(String name) {
+        super(name);
+        setDaemon(true);
+        WatchService watchService = null;
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException ex) {
+            Logger.getLogger(FileWatcher.class.getName()).log(Level.WARNING,
+                    "Can't watch files for changes; categories will only be reloaded on request.", ex);
+        }
+        service = watchService;
+    }
+
+    /**
+     * Starts watching a file. The file's directory is registered before this
+     * returns, so no change made after it returns can be missed.
+     *
+     * @param file the file to watch
+     * @param onChange run on the watcher thread after the file changes
+     * @return a handle that stops watching the file when closed
+     */
+    Closeable watch(File file, Runnable onChange) {
+        Path path = file.toPath().toAbsolutePath();
+        Path directory = path.getParent();
+        if (service == null || directory == null) {
+            return () -> {
+            };
+        }
+        synchronized (keys) {
+            if (!keys.containsKey(directory)) {
+                try {
+                    // Editors that save by writing a new file and renaming it over the old one produce a create event.
+                    keys.put(directory, directory.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY));
+                } catch (IOException | ClosedWatchServiceException ex) {
+                    Logger.getLogger(FileWatcher.class.getName()).log(Level.WARNING,
+                            "Can't watch " + file + " for changes; categories will only be reloaded on request.", ex);
+                    return () -> {
+                    };
+                }
+            }
+        }
+        Watch watch = new Watch(path.getFileName().toString(), onChange);
+        watches.computeIfAbsent(directory, d -> new CopyOnWriteArrayList<>()).add(watch);
+        return () -> {
+            List<Watch> directoryWatches = watches.get(directory);
+            if (directoryWatches != null) {
+                directoryWatches.remove(watch);
+            }
+        };
+    }
+
+    /**
+     * @return the time, in milliseconds, that a file must go unchanged before
+     * its callback is run
+     */
+    long getDebounceMillis() {
+        return debounceMillis;
+    }
+
+    /**
+     * @param debounceMillis the time, in milliseconds, that a file must go
+     * unchanged before its callback is run
+     */
+    void setDebounceMillis(long debounceMillis) {
+        this.debounceMillis = Math.max(0L, debounceMillis);
+    }
+
+    boolean isStopped() {
+        return stop.get();
+    }
+
+    void stopThread() {
+        stop.set(true);
+        closeService();
+    }
+
+    private void closeService() {
+        if (service != null) {
+            try {
+                // Wakes the watcher thread if it's waiting for events.
+                service.close();
+            } catch (IOException ex) {
+                Logger.getLogger(FileWatcher.class.getName()).log(Level.FINE, null, ex);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        if (service == null) {
+            return;
+        }
+        try {
+            while (!isStopped()) {
+                Set<Watch> changed = new LinkedHashSet<>();
+                collect(service.take(), changed);
+                if (changed.isEmpty()) {
+                    continue;
+                }
+                // Let a burst of writes settle before reacting.
+                WatchKey key;
+                while ((key = service.poll(debounceMillis, TimeUnit.MILLISECONDS)) != null) {
+                    collect(key, changed);
+                }
+                for (Watch watch : changed) {
+                    try {
+                        watch.onChange.run();
+                    } catch (RuntimeException ex) {
+                        Logger.getLogger(FileWatcher.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException ex) {
+            // Stopped.
+        } finally {
+            closeService();
+        }
+    }
+
+    /**
+     * Consumes a key's events, and re-arms it.
+     *
+     * @param changed receives the watches of the files the events may
+     * concern
+     */
+    private void collect(WatchKey key, Set<Watch> changed) {
+        List<Watch> candidates = key.watchable() instanceof Path ? watches.get((Path) key.watchable()) : null;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (candidates == null) {
+                continue;
+            }
+            for (Watch watch : candidates) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW || watch.fileName.equals(String.valueOf(event.context()))) {
+                    changed.add(watch);
+                }
+            }
+        }
+        key.reset();
+    }
+
+    private static final class Watch {
+
+        private final String fileName;
+        private final Runnable onChange;
+
+        Watch(String fileName, Runnable onChange) {
+            this.fileName = fileName;
+            this.onChange = onChange;
+        }
+    }
+}
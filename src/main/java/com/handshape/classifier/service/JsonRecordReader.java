@@ -0,0 +1,128 @@
+package com.handshape.classifier.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Splits a stream of JSON documents into individual records without parsing
+ * the whole stream up front. Accepts either a JSON array of objects or
+ * newline-delimited JSON (or any mix of whitespace- and comma-separated
+ * top-level values). Each call to {@link #next()} returns the source text of
+ * one top-level value.
+ *
+ * @author jturner
+ */
+class JsonRecordReader implements Closeable {
+
+    private final Reader reader;
+    private final StringBuilder record = new StringBuilder();
+    private int pushback = -1;
+    private boolean started = false;
+
+    /**
+     * @param reader the source of the JSON text; should be buffered.
+     */
+    JsonRecordReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Reads the next top-level record.
+     *
+     * @return the text of the record, or null at the end of the stream
+     * @throws IOException if the underlying reader fails, or the stream ends
+     * in the middle of a record
+     */
+    String next() throws IOException {
+        int c = skipSeparators();
+        if (c < 0) {
+            return null;
+        }
+        record.setLength(0);
+        if (c == '{' || c == '[') {
+            readStructure(c);
+        } else if (c == '"') {
+            record.append((char) c);
+            readString();
+        } else {
+            // A bare literal; read up to the next separator.
+            while (c >= 0 && !isSeparator(c)) {
+                record.append((char) c);
+                c = reader.read();
+            }
+            pushback = c;
+        }
+        return record.toString();
+    }
+
+    private int read() throws IOException {
+        if (pushback >= 0) {
+            int c = pushback;
+            pushback = -1;
+            return c;
+        }
+        return reader.read();
+    }
+
+    private int skipSeparators() throws IOException {
+        int c = read();
+        while (c >= 0) {
+            if (c == '[' && !started) {
+                // Opening bracket of a top-level array; its elements are the records.
+                started = true;
+            } else if (!isSeparator(c)) {
+                started = true;
+                return c;
+            }
+            c = read();
+        }
+        return c;
+    }
+
+    private static boolean isSeparator(int c) {
+        return c == ',' || c == ']' || Character.isWhitespace(c);
+    }
+
+    private void readStructure(int open) throws IOException {
+        record.append((char) open);
+        int depth = 1;
+        while (depth > 0) {
+            int c = read();
+            if (c < 0) {
+                throw new IOException("Unexpected end of input inside a JSON record.");
+            }
+            record.append((char) c);
+            if (c == '"') {
+                readString();
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                depth--;
+            }
+        }
+    }
+
+    private void readString() throws IOException {
+        boolean escaped = false;
+        while (true) {
+            int c = read();
+            if (c < 0) {
+                throw new IOException("Unexpected end of input inside a JSON string.");
+            }
+            record.append((char) c);
+            if (escaped) {
+                escaped = false;
+            } else if (c == '\\') {
+                escaped = true;
+            } else if (c == '"') {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
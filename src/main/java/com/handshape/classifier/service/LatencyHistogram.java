@@ -0,0 +1,83 @@
+package com.handshape.classifier.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-bucket histogram of durations, written as a Prometheus histogram in
+ * seconds. Recording only touches striped counters, so it is cheap under
+ * contention.
+ *
+ * @author jturner
+ */
+final class LatencyHistogram {
+
+    private static final double[] BOUNDS_SECONDS = new double[]{
+        0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+    private static final long[] BOUNDS_NANOS = new long[BOUNDS_SECONDS.length];
+
+    static {
+        for (int i = 0; i < BOUNDS_SECONDS.length; i++) {
+            BOUNDS_NANOS[i] = (long) (BOUNDS_SECONDS[i] * TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    private final LongAdder[] buckets = new LongAdder[BOUNDS_NANOS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param nanos the duration to record
+     */
+    void record(long nanos) {
+        int bucket = 0;
+        while (bucket < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[bucket]) {
+            bucket++;
+        }
+        buckets[bucket].increment();
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * @return the number of durations recorded
+     */
+    long getCount() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * @return the sum of the durations recorded, in nanoseconds
+     */
+    long getSumNanos() {
+        return sumNanos.sum();
+    }
+
+    /**
+     * Writes the bucket, sum and count samples of this histogram. The caller
+     * writes the family header.
+     *
+     * @param labels the rendered labels for this series, or null for none
+     */
+    void write(StringBuilder out, String name, String labels) {
+        String prefix = labels == null || labels.isEmpty() ? "" : labels + ",";
+        long cumulative = 0;
+        for (int i = 0; i < BOUNDS_SECONDS.length; i++) {
+            cumulative += buckets[i].sum();
+            PrometheusText.sample(out, name + "_bucket", prefix + "le=\"" + BOUNDS_SECONDS[i] + "\"", cumulative);
+        }
+        cumulative += buckets[BOUNDS_SECONDS.length].sum();
+        PrometheusText.sample(out, name + "_bucket", prefix + "le=\"+Inf\"", cumulative);
+        PrometheusText.sample(out, name + "_sum", labels, sumNanos.sum() / 1e9);
+        PrometheusText.sample(out, name + "_count", labels, cumulative);
+    }
+}
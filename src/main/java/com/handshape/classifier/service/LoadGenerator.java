@@ -0,0 +1,566 @@
+package com.handshape.classifier.service;
+
+import com.github.cliftonlabs.json_simple.JsonObject;
+import com.github.cliftonlabs.json_simple.Jsoner;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a running service with synthetic documents over HTTP, and reports
+ * the throughput it sustained and the latency its clients saw. Documents are
+ * built from the terms of a category file's queries, as for the warm-up, and
+ * sent in turn as GET query strings, form POSTs and JSON POSTs.
+ *
+ * <p>
+ * With a request rate set, the load is an open model: requests are started on
+ * a fixed schedule whether or not earlier ones have been answered, and each
+ * one's latency is measured from when it was scheduled to start, so a stall
+ * in the service shows up in the latency of every request it delayed rather
+ * than holding the load back (coordinated omission). Otherwise the load is a
+ * closed model: a fixed number of clients each send a request as soon as
+ * their last one is answered.
+ *
+ * @author jturner
+ */
+public final class LoadGenerator {
+
+    /**
+     * The ways a document is sent.
+     */
+    public enum Kind {
+        GET, FORM, JSON
+    }
+
+    private final URI target;
+    private final List<byte[]> forms = new ArrayList<>();
+    private final List<byte[]> jsons = new ArrayList<>();
+    private Set<Kind> kinds = EnumSet.allOf(Kind.class);
+    private double rate = 0.0;
+    private int concurrency = 16;
+    private long durationMillis = 30000L;
+    private long warmUpMillis = 0L;
+    private long timeoutMillis = 10000L;
+    private int maxInFlight = 1024;
+
+    /**
+     * @param target the service's evaluation URL, e.g.
+     * "http://localhost:9090/"
+     * @param documents the documents to send, in turn
+     */
+    public LoadGenerator(URI target, List<Map<String, String>> documents) {
+        if (documents.isEmpty()) {
+            throw new IllegalArgumentException("At least one document is needed.");
+        }
+        this.target = target;
+        for (Map<String, String> document : documents) {
+            forms.add(WarmUp.formEncode(document));
+            jsons.add(new JsonObject(document).toJson().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Builds synthetic documents from the terms of a category file's queries.
+     *
+     * @param categories the category file
+     * @param count the number of documents
+     * @param seed the seed of the documents
+     * @return the documents
+     * @throws IOException if the category file can't be read
+     */
+    public static List<Map<String, String>> documents(File categories, int count, long seed) throws IOException {
+        try ( LuceneEvaluator evaluator = new LuceneEvaluator(categories)) {
+            evaluator.stop();
+            WarmUp generator = new WarmUp(evaluator, seed);
+            List<Map<String, String>> documents = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                documents.add(generator.document());
+            }
+            return documents;
+        }
+    }
+
+    /**
+     * Runs the load generator from the command line:
+     * <code>loadtest CATEGORIES URL [OPTIONS]</code>. Prints a summary on the
+     * standard error stream, and the results as JSON to the output file, if
+     * one is given.
+     *
+     * @param args the arguments
+     * @throws Exception if the run fails
+     */
+    public static void main(String[] args) throws Exception {
+        List<String> positional = new ArrayList<>();
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                int idx = arg.indexOf('=');
+                if (idx > 0) {
+                    options.put(arg.substring(2, idx), arg.substring(idx + 1));
+                } else {
+                    options.put(arg.substring(2), "true");
+                }
+            } else {
+                positional.add(arg);
+            }
+        }
+        if (positional.size() != 2) {
+            System.err.println("Usage: loadtest CATEGORIES URL");
+            System.err.println("Options: --rate=N | --concurrency=N --duration=SECONDS --warm-up=SECONDS --kinds=get,form,json");
+            System.err.println("         --documents=N --seed=N --timeout=MILLIS --max-in-flight=N --output=FILE");
+            System.exit(-1);
+        }
+        int documentCount = Integer.parseInt(options.getOrDefault("documents", "1000"));
+        long seed = Long.parseLong(options.getOrDefault("seed", "1"));
+        LoadGenerator generator = new LoadGenerator(URI.create(positional.get(1)),
+                documents(new File(positional.get(0)), documentCount, seed));
+        File output = null;
+        for (Entry<String, String> option : options.entrySet()) {
+            switch (option.getKey()) {
+                case "rate":
+                    generator.setRate(Double.parseDouble(option.getValue()));
+                    break;
+                case "concurrency":
+                    generator.setConcurrency(Integer.parseInt(option.getValue()));
+                    break;
+                case "duration":
+                    generator.setDurationMillis((long) (Double.parseDouble(option.getValue()) * 1000));
+                    break;
+                case "warm-up":
+                    generator.setWarmUpMillis((long) (Double.parseDouble(option.getValue()) * 1000));
+                    break;
+                case "kinds":
+                    Set<Kind> kinds = EnumSet.noneOf(Kind.class);
+                    for (String kind : option.getValue().split(",")) {
+                        kinds.add(Kind.valueOf(kind.trim().toUpperCase()));
+                    }
+                    generator.setKinds(kinds);
+                    break;
+                case "timeout":
+                    generator.setTimeoutMillis(Long.parseLong(option.getValue()));
+                    break;
+                case "max-in-flight":
+                    generator.setMaxInFlight(Integer.parseInt(option.getValue()));
+                    break;
+                case "output":
+                    output = new File(option.getValue());
+                    break;
+                case "documents":
+                case "seed":
+                    break;
+                default:
+                    System.err.println("Ignoring unknown option --" + option.getKey());
+                    break;
+            }
+        }
+        Report report = generator.run();
+        System.err.println(report);
+        if (output != null) {
+            try ( Writer out = new OutputStreamWriter(Files.newOutputStream(output.toPath()), StandardCharsets.UTF_8)) {
+                out.write(report.toJson());
+                out.write('\n');
+            }
+        }
+    }
+
+    /**
+     * Sends one request to prime the client, then load for the warm-up period
+     * and then the measured duration, and waits for the last requests to be
+     * answered or time out. Only requests scheduled to start during the
+     * measured duration are reported.
+     *
+     * @return what the service sustained
+     * @throws InterruptedException if interrupted while sending load
+     */
+    public Report run() throws InterruptedException {
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofMillis(timeoutMillis))
+                .build();
+        // The client's first request loads its classes and opens a connection.
+        try {
+            client.send(request(Kind.GET, 0), HttpResponse.BodyHandlers.discarding());
+        } catch (IOException ex) {
+            // Measured with the rest, if it persists.
+        }
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.MILLISECONDS.toNanos(warmUpMillis);
+        long end = measureFrom + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        Report report = new Report(this);
+        Kind[] order = kinds.toArray(new Kind[0]);
+        if (rate > 0) {
+            runOpen(client, order, start, measureFrom, end, report);
+        } else {
+            runClosed(client, order, measureFrom, end, report);
+        }
+        return report;
+    }
+
+    private void runOpen(HttpClient client, Kind[] order, long start, long measureFrom, long end, Report report) throws InterruptedException {
+        double intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        for (long i = 0;; i++) {
+            long scheduled = start + (long) (i * intervalNanos);
+            if (scheduled - end >= 0) {
+                break;
+            }
+            long wait;
+            while ((wait = scheduled - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            // Waiting here delays the send, but not the start the latency is measured from.
+            inFlight.acquire();
+            Kind kind = order[(int) (i % order.length)];
+            boolean measured = scheduled - measureFrom >= 0;
+            client.sendAsync(request(kind, (int) (i % forms.size())), HttpResponse.BodyHandlers.discarding())
+                    .whenComplete((response, failure) -> {
+                        if (measured) {
+                            report.record(kind, System.nanoTime() - scheduled, response == null ? -1 : response.statusCode());
+                        }
+                        // Released after recording, so the run doesn't end with results outstanding.
+                        inFlight.release();
+                    });
+        }
+        // Let the last requests be answered or time out.
+        inFlight.tryAcquire(maxInFlight, timeoutMillis + 1000L, TimeUnit.MILLISECONDS);
+    }
+
+    private void runClosed(HttpClient client, Kind[] order, long measureFrom, long end, Report report) throws InterruptedException {
+        List<Thread> clients = new ArrayList<>(concurrency);
+        for (int c = 0; c < concurrency; c++) {
+            int first = c;
+            Thread thread = new Thread(() -> {
+                for (long i = first; System.nanoTime() - end < 0 && !Thread.currentThread().isInterrupted(); i += concurrency) {
+                    Kind kind = order[(int) (i % order.length)];
+                    long started = System.nanoTime();
+                    int status;
+                    try {
+                        status = client.send(request(kind, (int) (i % forms.size())), HttpResponse.BodyHandlers.discarding()).statusCode();
+                    } catch (IOException ex) {
+                        status = -1;
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                    if (started - measureFrom >= 0) {
+                        report.record(kind, System.nanoTime() - started, status);
+                    }
+                }
+            }, "load client " + c);
+            thread.setDaemon(true);
+            clients.add(thread);
+            thread.start();
+        }
+        try {
+            for (Thread thread : clients) {
+                thread.join();
+            }
+        } finally {
+            clients.forEach(Thread::interrupt);
+        }
+    }
+
+    private HttpRequest request(Kind kind, int document) {
+        HttpRequest.Builder builder;
+        switch (kind) {
+            case GET:
+                String query = new String(forms.get(document), StandardCharsets.UTF_8);
+                builder = HttpRequest.newBuilder(target.resolve("?" + query)).GET();
+                break;
+            case FORM:
+                builder = HttpRequest.newBuilder(target)
+                        .header("Content-Type", "application/x-www-form-urlencoded")
+                        .POST(HttpRequest.BodyPublishers.ofByteArray(forms.get(document)));
+                break;
+            default:
+                builder = HttpRequest.newBuilder(target)
+                        .header("Content-Type", "application/json")
+                        .POST(HttpRequest.BodyPublishers.ofByteArray(jsons.get(document)));
+                break;
+        }
+        return builder.timeout(Duration.ofMillis(timeoutMillis)).build();
+    }
+
+    /**
+     * @return the ways documents are sent, in turn
+     */
+    public Set<Kind> getKinds() {
+        return kinds;
+    }
+
+    /**
+     * @param kinds the ways documents are sent, in turn (default: all of
+     * them)
+     */
+    public void setKinds(Set<Kind> kinds) {
+        if (kinds.isEmpty()) {
+            throw new IllegalArgumentException("At least one kind of request is needed.");
+        }
+        this.kinds = EnumSet.copyOf(kinds);
+    }
+
+    /**
+     * @return the requests started per second, or zero for a closed model
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * @param rate the requests to start per second regardless of how quickly
+     * they're answered; zero (the default) to send from a fixed number of
+     * clients instead
+     */
+    public void setRate(double rate) {
+        this.rate = rate;
+    }
+
+    /**
+     * @return the number of clients, when no rate is set
+     */
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * @param concurrency the number of clients, each sending a request as
+     * soon as its last is answered, when no rate is set (default: 16)
+     */
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * @return how long load is measured for, in milliseconds
+     */
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    /**
+     * @param durationMillis how long load is measured for, in milliseconds
+     * (default: 30 seconds)
+     */
+    public void setDurationMillis(long durationMillis) {
+        this.durationMillis = durationMillis;
+    }
+
+    /**
+     * @return how long load is sent for before it's measured, in milliseconds
+     */
+    public long getWarmUpMillis() {
+        return warmUpMillis;
+    }
+
+    /**
+     * @param warmUpMillis how long load is sent for before it's measured, in
+     * milliseconds (default: 0)
+     */
+    public void setWarmUpMillis(long warmUpMillis) {
+        this.warmUpMillis = warmUpMillis;
+    }
+
+    /**
+     * @return how long a request may take before it fails, in milliseconds
+     */
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * @param timeoutMillis how long a request may take before it fails, in
+     * milliseconds (default: 10 seconds)
+     */
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @return the most requests that may be awaiting a response at once, when
+     * a rate is set
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * @param maxInFlight the most requests that may be awaiting a response at
+     * once, when a rate is set (default: 1024). Requests beyond it are sent
+     * late, but their latency is still measured from when they were
+     * scheduled.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * The outcome of a run: request and error counts, and latency overall and
+     * by kind of request.
+     */
+    public static final class Report {
+
+        private static final double[] PERCENTILES = new double[]{50, 90, 99, 99.9};
+
+        private final String target;
+        private final String model;
+        private final double rate;
+        private final int concurrency;
+        private final long durationMillis;
+        private final PercentileHistogram latency = new PercentileHistogram();
+        private final Map<Kind, PercentileHistogram> latencyByKind = new EnumMap<>(Kind.class);
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder shed = new LongAdder();
+
+        private Report(LoadGenerator generator) {
+            this.target = generator.target.toString();
+            this.model = generator.rate > 0 ? "open" : "closed";
+            this.rate = generator.rate;
+            this.concurrency = generator.concurrency;
+            this.durationMillis = generator.durationMillis;
+            for (Kind kind : generator.kinds) {
+                latencyByKind.put(kind, new PercentileHistogram());
+            }
+        }
+
+        private void record(Kind kind, long nanos, int status) {
+            latency.record(nanos);
+            latencyByKind.get(kind).record(nanos);
+            if (status == 503) {
+                shed.increment();
+            }
+            if (status != 200) {
+                errors.increment();
+            }
+        }
+
+        /**
+         * @return the number of requests measured
+         */
+        public long getRequests() {
+            return latency.getCount();
+        }
+
+        /**
+         * @return the number of measured requests that failed or weren't
+         * answered with a 200, including those shed
+         */
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        /**
+         * @return the number of measured requests shed with a 503
+         */
+        public long getShed() {
+            return shed.sum();
+        }
+
+        /**
+         * @return the measured requests per second
+         */
+        public double getThroughput() {
+            return durationMillis == 0 ? 0.0 : getRequests() * 1000.0 / durationMillis;
+        }
+
+        /**
+         * @param percentile the percentile, from 0 to 100
+         * @return the latency at that percentile, in milliseconds
+         */
+        public double getLatencyMillis(double percentile) {
+            return latency.getValueAtPercentile(percentile) / 1e6;
+        }
+
+        /**
+         * @return the longest latency, in milliseconds
+         */
+        public double getMaxLatencyMillis() {
+            return latency.getMaxNanos() / 1e6;
+        }
+
+        /**
+         * @return the results as indented JSON, with keys in a fixed order so
+         * that the results of two runs can be compared line by line
+         */
+        public String toJson() {
+            Map<String, Object> json = new LinkedHashMap<>();
+            json.put("target", target);
+            json.put("model", model);
+            json.put("rate", rate);
+            json.put("concurrency", concurrency);
+            json.put("durationSeconds", durationMillis / 1000.0);
+            json.put("requests", getRequests());
+            json.put("errors", getErrors());
+            json.put("shed", getShed());
+            json.put("throughput", round(getThroughput()));
+            json.put("latencyMillis", latencyJson(latency));
+            Map<String, Object> byKind = new LinkedHashMap<>();
+            for (Entry<Kind, PercentileHistogram> entry : latencyByKind.entrySet()) {
+                byKind.put(entry.getKey().name().toLowerCase(), latencyJson(entry.getValue()));
+            }
+            json.put("latencyMillisByKind", byKind);
+            return Jsoner.prettyPrint(Jsoner.serialize(json));
+        }
+
+        private static Map<String, Object> latencyJson(PercentileHistogram histogram) {
+            Map<String, Object> json = new LinkedHashMap<>();
+            json.put("count", histogram.getCount());
+            json.put("mean", round(histogram.getMeanNanos() / 1e6));
+            for (double percentile : PERCENTILES) {
+                json.put("p" + (percentile == Math.rint(percentile) ? String.valueOf((int) percentile) : String.valueOf(percentile)),
+                        round(histogram.getValueAtPercentile(percentile) / 1e6));
+            }
+            json.put("max", round(histogram.getMaxNanos() / 1e6));
+            return json;
+        }
+
+        private static double round(double value) {
+            return Math.round(value * 1000.0) / 1000.0;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder();
+            out.append(String.format("%d requests in %.1fs (%.1f/s, %s model), %d errors, %d shed%n",
+                    getRequests(), durationMillis / 1000.0, getThroughput(), model, getErrors(), getShed()));
+            out.append(String.format("%-8s %10s %10s %10s %10s %10s %10s%n", "latency", "mean", "p50", "p90", "p99", "p99.9", "max"));
+            out.append(latencyLine("all", latency));
+            for (Entry<Kind, PercentileHistogram> entry : latencyByKind.entrySet()) {
+                out.append(latencyLine(entry.getKey().name().toLowerCase(), entry.getValue()));
+            }
+            return out.toString();
+        }
+
+        private static String latencyLine(String name, PercentileHistogram histogram) {
+            return String.format("%-8s %8.3fms %8.3fms %8.3fms %8.3fms %8.3fms %8.3fms%n", name,
+                    histogram.getMeanNanos() / 1e6,
+                    histogram.getValueAtPercentile(50) / 1e6,
+                    histogram.getValueAtPercentile(90) / 1e6,
+                    histogram.getValueAtPercentile(99) / 1e6,
+                    histogram.getValueAtPercentile(99.9) / 1e6,
+                    histogram.getMaxNanos() / 1e6);
+        }
+    }
+}
@@ -1,38 +1,29 @@
 package com.handshape.classifier.service;
 
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.file.FileSystems;
-import java.nio.file.Path;
-import java.nio.file.StandardWatchEventKinds;
-import java.nio.file.WatchEvent;
-import java.nio.file.WatchKey;
-import java.nio.file.WatchService;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.TreeSet;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.index.Term;
-import org.apache.lucene.index.memory.MemoryIndex;
-import org.apache.lucene.queryparser.classic.ParseException;
-import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.BooleanClause;
-import org.apache.lucene.search.BooleanQuery;
-import org.apache.lucene.search.MultiPhraseQuery;
-import org.apache.lucene.search.MultiTermQuery;
-import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.MatchNoDocsQuery;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.QueryVisitor;
 
 /**
  * Classifier that uses a set of Lucene queries to assign categories to
@@ -44,10 +35,11 @@ import org.apache.lucene.search.TermQuery;
 public class LuceneEvaluator implements Closeable {
 
     /**
-     * @return the lastLoadTime
+     * @return the time the categories were last (successfully) loaded, in
+     * milliseconds since the epoch
      */
     public long getLastLoadTime() {
-        return lastLoadTime;
+        return categories.get().getLoadTime();
     }
 
     /**
@@ -56,11 +48,48 @@ public class LuceneEvaluator implements Closeable {
      */
     public static final String DEFAULT_FIELD_NAME = "text";
 
+    /**
+     * A selection of categories smaller than this fraction of the index is
+     * pre-filtered query by query, rather than by intersecting the candidates
+     * of the whole index with it.
+     */
+    private static final int SELECTIVE_RATIO = 16;
+
+    /**
+     * The longest field value, in characters, whose tokens are cached unless
+     * configured otherwise.
+     */
+    public static final int DEFAULT_TOKEN_CACHE_MAX_LENGTH = 256;
+
     private Analyzer analyzer = new StandardAnalyzer();
     private final File myFile;
+    private final File snapshotFile;
     private final FileWatcher watcher;
-    private Map<String, Query> queries = new TreeMap<>();
-    private long lastLoadTime = 0L;
+    private final boolean ownWatcher;
+    private final Closeable watch;
+    private final AtomicReference<CategorySet> categories = new AtomicReference<>(CategorySet.EMPTY);
+    private final EvaluatorMetrics metrics = new EvaluatorMetrics();
+    private final EvaluationContexts contexts;
+    private final boolean ownContexts;
+    private volatile int parallelQueryThreshold = 0;
+    private volatile long parallelDocumentThreshold = 0L;
+    private volatile ForkJoinPool parallelPool = ForkJoinPool.commonPool();
+    private volatile long reloadDebounceMillis = 250L;
+    private volatile ResultCache resultCache;
+    private long resultCacheSize = 0L;
+    private volatile TokenCache tokenCache;
+    private long tokenCacheSize = 0L;
+    private int tokenCacheMaxLength = DEFAULT_TOKEN_CACHE_MAX_LENGTH;
+    private QueryCostPolicy costPolicy = QueryCostPolicy.DEFAULT;
+    private File querySampleFile;
+    private int shardIndex = 0;
+    private int shardCount = 1;
+    private boolean reverseWildcards = true;
+
+    /**
+     * The number of the most expensive queries logged after each load.
+     */
+    private static final int LOGGED_COSTS = 10;
 
     /**
      * Constructor for a new Lucene evaluator. Malformed queries get logged to
@@ -71,195 +100,954 @@ public class LuceneEvaluator implements Closeable {
      * @throws IOException if the properties file can't be read for any reason.
      */
     public LuceneEvaluator(File f) throws IOException {
+        this(f, null);
+    }
+
+    /**
+     * Constructor for a new Lucene evaluator that keeps a precompiled snapshot
+     * of its categories. If the snapshot file was compiled from the current
+     * contents of the properties file, the metadata derived from the queries
+     * is loaded from it rather than recomputed; otherwise it's rewritten after
+     * every load. Replicas serving the same properties file can share a
+     * snapshot.
+     *
+     * @param f A properties file from which the set of queries and categories
+     * will be loaded.
+     * @param snapshotFile the snapshot file, or null to keep no snapshot
+     * @throws IOException if the properties file can't be read for any reason.
+     */
+    public LuceneEvaluator(File f, File snapshotFile) throws IOException {
+        this(f, snapshotFile, null, null);
+    }
+
+    /**
+     * Constructor for an evaluator that shares its file watcher and its
+     * per-thread evaluation state with other evaluators, so that hosting many
+     * category sets costs neither a thread nor a memory index per thread for
+     * each of them. Sharing evaluation state is safe because an evaluation
+     * never calls into another on the same thread.
+     *
+     * @param f the properties file
+     * @param snapshotFile the snapshot file, or null to keep no snapshot
+     * @param sharedWatcher a running watcher to register with, or null to
+     * start a watcher of this evaluator's own
+     * @param sharedContexts the per-thread evaluation state to use, or null to
+     * keep this evaluator's own
+     * @throws IOException if the properties file can't be read for any reason.
+     */
+    LuceneEvaluator(File f, File snapshotFile, FileWatcher sharedWatcher, EvaluationContexts sharedContexts) throws IOException {
         myFile = f;
-        loadCategories();
-        watcher = new FileWatcher(myFile);
-        watcher.start();
+        this.snapshotFile = snapshotFile;
+        ownContexts = sharedContexts == null;
+        contexts = ownContexts ? new EvaluationContexts() : sharedContexts;
+        ownWatcher = sharedWatcher == null;
+        watcher = ownWatcher ? new FileWatcher(f.getName() + " watcher") : sharedWatcher;
+        // Start watching before the first load, so that no change can slip in between.
+        watch = watcher.watch(f, this::reloadOnChange);
+        try {
+            loadCategories();
+        } catch (IOException | RuntimeException ex) {
+            stop();
+            throw ex;
+        }
+        if (ownWatcher) {
+            watcher.start();
+        }
+    }
+
+    private void reloadOnChange() {
+        Logger.getLogger(LuceneEvaluator.class.getName()).log(Level.INFO, "Detected change in {0} - reloading.", myFile.getName());
+        try {
+            loadCategories();
+        } catch (IOException ex) {
+            Logger.getLogger(LuceneEvaluator.class.getName()).log(Level.SEVERE, null, ex);
+        }
     }
 
     /**
-     * Manually stop the thread that watches for changes to the category file.
+     * Manually stop watching for changes to the category file.
      */
     public void stop() {
-        if (!watcher.isStopped()) {
+        try {
+            watch.close();
+        } catch (IOException ex) {
+            Logger.getLogger(LuceneEvaluator.class.getName()).log(Level.FINE, null, ex);
+        }
+        if (ownWatcher && !watcher.isStopped()) {
             watcher.stopThread();
         }
     }
 
     /**
-     * Loads the categories from the file associated with this classifer.
+     * Loads the categories from the file associated with this classifer. Only
+     * the categories that were added or changed since the last load are
+     * parsed; the new set is then published in one step, so evaluations in
+     * progress finish against the set they started with.
+     *
      * @throws IOException if the given file can't be loaded for any reason.
      */
-    
-    public void loadCategories() throws IOException {
+    public synchronized void loadCategories() throws IOException {
+        ClassifierEvents.Reload event = new ClassifierEvents.Reload();
+        event.begin();
+        try {
+            loadCategories(event);
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.file = myFile.getPath();
+                CategorySet current = categories.get();
+                event.categories = current.getQueries().size();
+                event.generation = current.getGeneration();
+                event.commit();
+            }
+        }
+    }
+
+    private void loadCategories(ClassifierEvents.Reload event) throws IOException {
+        long start = System.nanoTime();
+        byte[] source;
         Properties p = new Properties();
-        try ( FileInputStream fis = new FileInputStream(myFile)) {
-            p.load(fis);
-            lastLoadTime = System.currentTimeMillis();
-        }
-        TreeMap<String, Query> newQueries = new TreeMap<>();
-        QueryParser parser = new QueryParser("text", analyzer);
-        parser.setAllowLeadingWildcard(true);
-        for (Object o : p.keySet()) {
-            String key = String.valueOf(o);
-            if (!key.contains(".")) {
-                try {
-                    Query query = parser.parse(p.getProperty(key));
-                    newQueries.put(key, query);
-                } catch (ParseException parseException) {
-                    System.err.println("Error parsing category '" + key + "':");
-                    System.err.println(parseException.getLocalizedMessage());
-                }
+        try {
+            source = Files.readAllBytes(myFile.toPath());
+            p.load(new ByteArrayInputStream(source));
+        } catch (IOException ex) {
+            metrics.recordReloadFailure();
+            throw ex;
+        }
+        String checksum = CategorySnapshot.checksum(source);
+        if (shardCount > 1) {
+            // A different slice of the same file is a different set of categories.
+            checksum += "/" + shardIndex + "/" + shardCount;
+            p = shard(p);
+        }
+        if (!reverseWildcards) {
+            // Compiled differently, with different anchors.
+            checksum += "/forward";
+        }
+        CategorySet current = categories.get();
+        if (checksum.equals(current.getChecksum())) {
+            // Touched, but not changed.
+            categories.set(current.withLoadTime(System.currentTimeMillis()));
+            metrics.recordReload(System.nanoTime() - start);
+            event.outcome = "unchanged";
+            return;
+        }
+        CategorySnapshot snapshot = readSnapshot(checksum);
+        long compileStart = System.nanoTime();
+        CategorySet next = CategorySet.compile(p, checksum, System.currentTimeMillis(), current, snapshot, analyzer, reverseWildcards);
+        long assessStart = System.nanoTime();
+        next = next.withCosts(costPolicy.assess(next, analyzer), next.getGeneration());
+        event.compileTime = assessStart - compileStart;
+        event.assessmentTime = System.nanoTime() - assessStart;
+        logCosts(next);
+        if (snapshotFile != null && (snapshot == null || !snapshot.getKeys().equals(new ArrayList<>(next.getQueries().keySet())))) {
+            writeSnapshot(next.toSnapshot());
+        }
+        metrics.bind(next.getIndex());
+        categories.set(next);
+        ResultCache cache = resultCache;
+        if (cache != null) {
+            cache.invalidate(next.getGeneration());
+        }
+        metrics.recordReload(System.nanoTime() - start);
+        event.outcome = "loaded";
+    }
+
+    /**
+     * @return the categories of this evaluator's shard, and every property
+     * that isn't a category
+     */
+    private Properties shard(Properties all) {
+        Properties slice = new Properties();
+        for (String key : all.stringPropertyNames()) {
+            if (key.contains(".") || ShardCoordinator.shardOf(key, shardCount) == shardIndex) {
+                slice.setProperty(key, all.getProperty(key));
+            }
+        }
+        return slice;
+    }
+
+    /**
+     * @return this evaluator's shard, from zero
+     */
+    public synchronized int getShardIndex() {
+        return shardIndex;
+    }
+
+    /**
+     * @return the number of shards the categories are split into; 1 if they
+     * aren't
+     */
+    public synchronized int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * Restricts this evaluator to one shard of its categories: those whose
+     * key {@link ShardCoordinator#shardOf(String, int) hashes} to the shard.
+     * The categories are reloaded at once.
+     *
+     * @param shardIndex the shard, from zero
+     * @param shardCount the number of shards; 1 for all of the categories
+     * @throws IOException if the categories can't be reloaded
+     */
+    public synchronized void setShard(int shardIndex, int shardCount) throws IOException {
+        if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount) {
+            throw new IllegalArgumentException("No shard " + shardIndex + " of " + shardCount + ".");
+        }
+        this.shardIndex = shardIndex;
+        this.shardCount = shardCount;
+        loadCategories();
+    }
+
+    /**
+     * @return true if leading-wildcard queries are searched against reversed
+     * copies of their fields
+     */
+    public synchronized boolean isReverseWildcards() {
+        return reverseWildcards;
+    }
+
+    /**
+     * Sets whether leading-wildcard queries, like {@code *ectomy}, are
+     * rewritten as prefix queries against a reversed copy of each field they
+     * read, which is indexed alongside it. Either way, they match the same
+     * documents; reversal trades a little analysis of those fields for not
+     * having to test every term of a document against each such query. On
+     * by default. The categories are reloaded at once.
+     *
+     * @param reverseWildcards true to reverse, false to search the fields as
+     * they are
+     * @throws IOException if the categories can't be reloaded
+     */
+    public synchronized void setReverseWildcards(boolean reverseWildcards) throws IOException {
+        if (this.reverseWildcards != reverseWildcards) {
+            this.reverseWildcards = reverseWildcards;
+            loadCategories();
+        }
+    }
+
+    /**
+     * Reassesses the loaded categories against a changed cost policy, and
+     * publishes them as a new generation.
+     */
+    private synchronized void reassessCosts() {
+        CategorySet current = categories.get();
+        if (current == CategorySet.EMPTY) {
+            return;
+        }
+        CategorySet next = current.withCosts(costPolicy.assess(current, analyzer), current.getGeneration() + 1);
+        logCosts(next);
+        categories.set(next);
+        ResultCache cache = resultCache;
+        if (cache != null) {
+            cache.invalidate(next.getGeneration());
+        }
+    }
+
+    private void logCosts(CategorySet set) {
+        Logger logger = Logger.getLogger(LuceneEvaluator.class.getName());
+        List<QueryCost> costs = set.getCosts();
+        if (costs.isEmpty()) {
+            return;
+        }
+        StringBuilder report = new StringBuilder("Most expensive queries in ").append(myFile.getName()).append(':');
+        for (int i = 0; i < Math.min(LOGGED_COSTS, costs.size()); i++) {
+            report.append("\n  ").append(costs.get(i));
+        }
+        logger.info(report.toString());
+        for (QueryCost cost : costs) {
+            switch (cost.getAction()) {
+                case WARN:
+                    logger.log(Level.WARNING, "Category ''{0}'' in {1} is over the query cost limit: {2}", new Object[]{cost.getCategory(), myFile.getName(), cost});
+                    break;
+                case QUARANTINE:
+                    logger.log(Level.WARNING, "Category ''{0}'' in {1} is over the query cost limit, and is only evaluated when requested by name: {2}", new Object[]{cost.getCategory(), myFile.getName(), cost});
+                    break;
+                case REJECT:
+                    logger.log(Level.WARNING, "Category ''{0}'' in {1} is over the query cost limit, and is not evaluated: {2}", new Object[]{cost.getCategory(), myFile.getName(), cost});
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private CategorySnapshot readSnapshot(String checksum) {
+        if (snapshotFile == null || !snapshotFile.isFile()) {
+            return null;
+        }
+        try {
+            CategorySnapshot snapshot = CategorySnapshot.read(snapshotFile);
+            if (snapshot != null && snapshot.getChecksum().equals(checksum)) {
+                return snapshot;
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(LuceneEvaluator.class.getName()).log(Level.WARNING, "Ignoring unreadable category snapshot " + snapshotFile, ex);
+        }
+        return null;
+    }
+
+    private void writeSnapshot(CategorySnapshot snapshot) {
+        if (snapshotFile != null) {
+            try {
+                snapshot.write(snapshotFile);
+            } catch (IOException ex) {
+                Logger.getLogger(LuceneEvaluator.class.getName()).log(Level.WARNING, "Couldn't write category snapshot " + snapshotFile, ex);
             }
         }
-        queries = newQueries;
     }
 
     /**
      * Evaluates the passed-in map against the set of categories and queries
      * that have been loaded, and returns the set of matching categories. Each
      * key in the map is converted to a Lucene field for the purposes of query
-     * evaluation.
+     * evaluation. Only the queries whose required terms appear in the document
+     * are actually run. Safe for concurrent use; each calling thread reuses its
+     * own in-memory index between calls.
      *
      * @param evaluationData the map to be evaluated
      * @return the set of matching category keys
      */
     public Set<String> evaluate(Map<String, String> evaluationData) {
-        MemoryIndex mi = new MemoryIndex();
-        for (Entry<String, String> entry : evaluationData.entrySet()) {
-            mi.addField(entry.getKey(), entry.getValue(), analyzer);
-        }
-        mi.freeze();
-        TreeSet<String> returnable = new TreeSet<>();
-        for (Entry<String, Query> entry : queries.entrySet()) {
-            if (mi.search(entry.getValue()) > 0.0) {
-                returnable.add(entry.getKey());
-            }
+        return evaluate(evaluationData, true);
+    }
+
+    /**
+     * Evaluates a map, optionally bypassing the result cache. When the cache
+     * is enabled and used, the returned set is unmodifiable.
+     *
+     * @param evaluationData the map to be evaluated
+     * @param useCache false to evaluate the map even if its result is cached
+     * @return the set of matching category keys
+     */
+    public Set<String> evaluate(Map<String, String> evaluationData, boolean useCache) {
+        return evaluate(evaluationData, useCache, CategorySelection.ALL);
+    }
+
+    /**
+     * Evaluates a map against a selection of the categories, stopping once
+     * the selection's limit on matches is reached. Only the selected queries
+     * are pre-filtered and run, so the cost of a small selection doesn't
+     * depend on the total number of categories. Results of evaluations
+     * against anything less than every category aren't cached.
+     *
+     * @param evaluationData the map to be evaluated
+     * @param useCache false to evaluate the map even if its result is cached
+     * @param selection the categories to evaluate, and the match limit
+     * @return the set of matching category keys
+     */
+    public Set<String> evaluate(Map<String, String> evaluationData, boolean useCache, CategorySelection selection) {
+        return evaluateMatches(evaluationData, useCache, selection).toSet();
+    }
+
+    /**
+     * Evaluates a map against a selection of the categories, and returns the
+     * matches as category ids, which cost less to produce and to serialize
+     * than a set of names.
+     *
+     * @param evaluationData the map to be evaluated
+     * @param useCache false to evaluate the map even if its result is cached
+     * @param selection the categories to evaluate, and the match limit
+     * @return the matching categories
+     */
+    public CategoryMatches evaluateMatches(Map<String, String> evaluationData, boolean useCache, CategorySelection selection) {
+        CategorySet set = categories.get();
+        ResultCache cache = resultCache;
+        if (useCache && cache != null && selection.isAll()) {
+            return cache.get(set.getGeneration(), evaluationData, set.getReferencedFields(), data -> evaluate(set, data, CategorySelection.ALL));
         }
-        return returnable;
+        return evaluate(set, evaluationData, selection);
     }
 
     /**
-     * Fetches the set of fields used in the union of all queries.
+     * Evaluates a document that is read as it's analyzed, so that no field
+     * value need be held in memory whole. When the result cache is enabled
+     * and used, the document is read into memory first, since its content is
+     * the cache key.
      *
-     * @return the set of all field keys used
+     * @param source the document to be evaluated
+     * @param useCache false to evaluate the document even if its result is
+     * cached
+     * @param selection the categories to evaluate, and the match limit
+     * @return the matching categories
+     * @throws IOException if the document can't be read, or is malformed
      */
-    public Set<String> getFieldList() {
-        Set<String> returnable = new TreeSet<>();
-        for (Query q : queries.values()) {
-            returnable.addAll(collectFields(q));
+    CategoryMatches evaluateMatches(DocumentSource source, boolean useCache, CategorySelection selection) throws IOException {
+        if (useCache && resultCache != null && selection.isAll()) {
+            return evaluateMatches(source.toMap(), true, selection);
+        }
+        CategorySet set = categories.get();
+        EvaluationContext context = context();
+        ClassifierEvents.Evaluation event = new ClassifierEvents.Evaluation();
+        try {
+            event.begin();
+            long start = System.nanoTime();
+            context.load(source, analyzer, set.getReferencedFields(), set.getReversedFields(), tokenCache);
+            return search(set, context, start, selection, event);
+        } finally {
+            context.clear();
+            contexts.release(context);
         }
-        return returnable;
     }
 
-    private Set<String> collectFields(Query query) {
-        Set<String> fields = new TreeSet<>();
-        if (query instanceof BooleanQuery) {
-            for (BooleanClause child : ((BooleanQuery) query).clauses()) {
-                fields.addAll(collectFields(child.getQuery()));
+    /**
+     * Opens a stream of text to be classified as it arrives, over a sliding
+     * window of tokens; see {@link StreamingClassification} for how windows
+     * are searched. The stream uses the categories loaded when it's opened
+     * for its whole life, and bypasses the result cache.
+     *
+     * @param field the field the streamed text is indexed as
+     * @param fixedFields fields that accompany every window, such as a title
+     * or a source; may be empty
+     * @param windowTokens the size of the window, in tokens
+     * @param stepTokens how far the window moves at a time, in tokens; no
+     * larger than the window
+     * @param selection the categories to evaluate; the stream is done once
+     * the match limit is reached
+     * @param listener receives each category as soon as the stream is known
+     * to match it
+     * @return the stream
+     */
+    public StreamingClassification openStream(String field, Map<String, String> fixedFields, int windowTokens, int stepTokens,
+            CategorySelection selection, StreamingClassification.Listener listener) {
+        CategorySet set = categories.get();
+        QueryIndex index = set.getIndex();
+        // Ordinals are the category ids.
+        BitSet eligible = new BitSet(index.size());
+        if (selection.isRestricted()) {
+            index.select(selection.getNames(), selection.getPrefixes(), eligible);
+            exclude(set, selection, eligible);
+        } else {
+            eligible.set(0, index.size());
+            eligible.andNot(set.getExcluded());
+        }
+        return new StreamingClassification(set, analyzer, field, fixedFields, windowTokens, stepTokens,
+                eligible, selection.getLimit(), listener, metrics.countersFor(index));
+    }
+
+    private CategoryMatches evaluate(CategorySet set, Map<String, String> evaluationData, CategorySelection selection) {
+        EvaluationContext context = context();
+        ClassifierEvents.Evaluation event = new ClassifierEvents.Evaluation();
+        try {
+            event.begin();
+            long start = System.nanoTime();
+            context.load(evaluationData, analyzer, set.getReferencedFields(), set.getReversedFields(), tokenCache);
+            return search(set, context, start, selection, event);
+        } finally {
+            context.clear();
+            contexts.release(context);
+        }
+    }
+
+    private EvaluationContext context() {
+        return contexts.borrow(analyzer);
+    }
+
+    /**
+     * Runs the candidate queries against the document loaded into a context.
+     *
+     * @param start the System.nanoTime() at which loading the document began
+     * @param selection the categories to evaluate, and the match limit
+     * @param event the flight recorder event for the evaluation, begun
+     * before loading the document
+     */
+    private CategoryMatches search(CategorySet set, EvaluationContext context, long start, CategorySelection selection, ClassifierEvents.Evaluation event) {
+        long analyzed = System.nanoTime();
+        QueryIndex index = set.getIndex();
+        EvaluatorMetrics.CategoryCounters counters = metrics.countersFor(index);
+        EvaluatorMetrics.CategoryCounters timing = metrics.isCategoryTiming() ? counters : null;
+        // Searches are only timed one by one while a recording wants to know about slow ones.
+        ClassifierEvents.SlowCategory slowEvent = ClassifierEvents.SlowCategory.ifEnabled();
+        BitSet candidates = context.getCandidates();
+        try {
+            if (!selection.isRestricted()) {
+                index.candidates(context.getReader(), candidates);
+                candidates.andNot(set.getExcluded());
+            } else {
+                BitSet selected = context.getSelection();
+                index.select(selection.getNames(), selection.getPrefixes(), selected);
+                int selectedCount = exclude(set, selection, selected);
+                if (selectedCount * SELECTIVE_RATIO < index.size()) {
+                    index.candidates(context.getReader(), selected, candidates);
+                } else {
+                    index.candidates(context.getReader(), candidates);
+                    candidates.and(selected);
+                }
             }
-        } else if (query instanceof TermQuery) {
-            fields.add(((TermQuery) query).getTerm().field());
-        } else if (query instanceof MultiTermQuery) {
-            fields.add(((MultiTermQuery) query).getField());
-        } else if (query instanceof PhraseQuery) {
-            for (Term t : ((PhraseQuery) query).getTerms()) {
-                fields.add(t.field());
+        } catch (IOException ex) {
+            // Can't happen with an in-memory index; fall back to running every query.
+            candidates.set(0, index.size());
+            if (selection.isRestricted()) {
+                candidates.and(context.getSelection());
+            } else {
+                candidates.andNot(set.getExcluded());
+            }
+        }
+        // Ordinals are the category ids.
+        BitSet matched = new BitSet(index.size());
+        int matchCount = 0;
+        int candidateCount = candidates.cardinality();
+        int limit = selection.getLimit();
+        ForkJoinPool pool = parallelPool;
+        if (limit > 0) {
+            // Searched in order, stopping at the limit, so there's nothing to parallelize.
+            candidateCount = 0;
+            for (int i = candidates.nextSetBit(0); i >= 0 && matchCount < limit; i = candidates.nextSetBit(i + 1)) {
+                candidateCount++;
+                if (matches(context, index, i, timing, slowEvent)) {
+                    matched.set(i);
+                    matchCount++;
+                    if (counters != null) {
+                        counters.hit(i);
+                    }
+                }
             }
-            // Is this covered by the automaton query? There's a spearate 'field' field.
-            //        } else if (query instanceof PrefixQuery) {
-            //            fields.add(((PrefixQuery) query).getPrefix().field());
-        } else if (query instanceof MultiPhraseQuery) {
-            for (Term[] t1 : ((MultiPhraseQuery) query).getTermArrays()) {
-                for (Term t : t1) {
-                    fields.add(t.field());
+        } else if (shouldParallelize(pool, candidateCount, context.getDocumentSize())) {
+            int[] ordinals = candidates.stream().toArray();
+            boolean[] found = new boolean[ordinals.length];
+            int partitions = pool.getParallelism() * 2;
+            pool.invoke(new PartitionedSearch(context.getSearcher(), index, ordinals, found, (ordinals.length + partitions - 1) / partitions, timing,
+                    slowEvent != null ? context.getDocumentSize() : -1));
+            for (int i = 0; i < ordinals.length; i++) {
+                if (found[i]) {
+                    matched.set(ordinals[i]);
+                    if (counters != null) {
+                        counters.hit(ordinals[i]);
+                    }
                 }
             }
-        } else if (query instanceof MultiTermQuery) { // Does Fuzzy and numeric range query terms
-            fields.add(((MultiTermQuery) query).getField());
+        } else {
+            for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+                if (matches(context, index, i, timing, slowEvent)) {
+                    matched.set(i);
+                    if (counters != null) {
+                        counters.hit(i);
+                    }
+                }
+            }
+        }
+        long searched = System.nanoTime();
+        metrics.recordEvaluation(analyzed - start, searched - analyzed, candidateCount, context.getSkippedSize());
+        event.end();
+        if (event.shouldCommit()) {
+            event.documentSize = context.getDocumentSize();
+            event.skippedSize = context.getSkippedSize();
+            event.fieldCount = context.getFieldCount();
+            event.searched = candidateCount;
+            event.matched = matched.cardinality();
+            event.analysisTime = analyzed - start;
+            event.searchTime = searched - analyzed;
+            event.generation = set.getGeneration();
+            event.commit();
         }
-        return fields;
+        return new CategoryMatches(set.getIds(), matched);
     }
 
     /**
-     * Implementation of Closeable that stops the watcher thread
+     * Removes the categories excluded by the cost policy from a selection,
+     * except for quarantined categories the selection names.
      *
-     * @throws IOException
+     * @return the number of categories left selected
      */
-    @Override
-    public void close() throws IOException {
-        stop();
+    private static int exclude(CategorySet set, CategorySelection selection, BitSet selected) {
+        BitSet excluded = set.getExcluded();
+        if (!excluded.intersects(selected)) {
+            return selected.cardinality();
+        }
+        selected.andNot(excluded);
+        for (String name : selection.getNames()) {
+            int id = set.getIds().getId(name);
+            if (id >= 0 && set.getQuarantined().get(id)) {
+                selected.set(id);
+            }
+        }
+        return selected.cardinality();
+    }
+
+    private static boolean matches(EvaluationContext context, QueryIndex index, int ordinal, EvaluatorMetrics.CategoryCounters timing, ClassifierEvents.SlowCategory event) {
+        if (timing == null && event == null) {
+            return context.matches(index.getQuery(ordinal));
+        }
+        if (event != null) {
+            event.begin();
+        }
+        long searchStart = System.nanoTime();
+        boolean matched = context.matches(index.getQuery(ordinal));
+        if (timing != null) {
+            timing.searched(ordinal, System.nanoTime() - searchStart);
+        }
+        if (event != null) {
+            event.finish(index, ordinal, matched, context.getDocumentSize());
+        }
+        return matched;
+    }
+
+    private boolean shouldParallelize(ForkJoinPool pool, int candidateCount, long documentSize) {
+        if (candidateCount < 2 || pool.getParallelism() < 2) {
+            return false;
+        }
+        return (parallelQueryThreshold > 0 && candidateCount >= parallelQueryThreshold)
+                || (parallelDocumentThreshold > 0 && documentSize >= parallelDocumentThreshold);
+    }
+
+    /**
+     * @return the number of candidate queries at or above which a document's
+     * queries are searched in parallel; zero if disabled
+     */
+    public int getParallelQueryThreshold() {
+        return parallelQueryThreshold;
+    }
+
+    /**
+     * Enables parallel searching of a single document's candidate queries when
+     * there are at least this many of them. The results are identical to
+     * sequential evaluation; only the calling thread's latency changes.
+     *
+     * @param parallelQueryThreshold the number of candidate queries at or
+     * above which they are searched in parallel; zero to disable
+     */
+    public void setParallelQueryThreshold(int parallelQueryThreshold) {
+        this.parallelQueryThreshold = parallelQueryThreshold;
+    }
+
+    /**
+     * @return the document size, in characters, at or above which a
+     * document's queries are searched in parallel; zero if disabled
+     */
+    public long getParallelDocumentThreshold() {
+        return parallelDocumentThreshold;
+    }
+
+    /**
+     * Enables parallel searching of a single document's candidate queries when
+     * the document's field values total at least this many characters.
+     *
+     * @param parallelDocumentThreshold the document size, in characters, at or
+     * above which its queries are searched in parallel; zero to disable
+     */
+    public void setParallelDocumentThreshold(long parallelDocumentThreshold) {
+        this.parallelDocumentThreshold = parallelDocumentThreshold;
+    }
+
+    /**
+     * @return true if the search time of each category is being recorded
+     */
+    public boolean isCategoryTiming() {
+        return metrics.isCategoryTiming();
     }
 
-    private class FileWatcher extends Thread {
+    /**
+     * Switches the recording of each category's cumulative search time on or
+     * off. Off by default, since it adds two clock reads per query searched;
+     * hit counts and per-document analysis and search times are always
+     * recorded.
+     *
+     * @param categoryTiming true to record the search time of each category
+     */
+    public void setCategoryTiming(boolean categoryTiming) {
+        metrics.setCategoryTiming(categoryTiming);
+    }
 
-        private final File file;
-        private final AtomicBoolean stop = new AtomicBoolean(false);
+    /**
+     * @return the time, in milliseconds, that the category file must go
+     * unchanged before a change to it is reloaded
+     */
+    public long getReloadDebounceMillis() {
+        return reloadDebounceMillis;
+    }
 
-        public FileWatcher(File file) {
-            super(file.getName() + " watcher");
-            this.file = file;
+    /**
+     * Sets how long the category file must go unchanged before a change to it
+     * is reloaded, so that a file written in several steps is only reloaded
+     * once. 250ms by default.
+     *
+     * @param reloadDebounceMillis the quiet period, in milliseconds
+     */
+    public void setReloadDebounceMillis(long reloadDebounceMillis) {
+        this.reloadDebounceMillis = Math.max(0L, reloadDebounceMillis);
+        if (ownWatcher) {
+            watcher.setDebounceMillis(reloadDebounceMillis);
         }
+    }
+
+    /**
+     * @return the estimated size, in bytes, of the result cache; zero if
+     * results aren't cached
+     */
+    public long getResultCacheSize() {
+        return resultCacheSize;
+    }
 
-        public boolean isStopped() {
-            return stop.get();
+    /**
+     * Enables or resizes a cache of evaluation results, so that documents
+     * with identical content are only evaluated once per category reload.
+     * Concurrent evaluations of identical documents are coalesced. Resizing
+     * discards the cached results.
+     *
+     * @param resultCacheSize the estimated size, in bytes, of the cached
+     * results; zero to disable the cache
+     */
+    public synchronized void setResultCacheSize(long resultCacheSize) {
+        this.resultCacheSize = resultCacheSize;
+        ResultCache cache = resultCacheSize > 0 ? new ResultCache(resultCacheSize) : null;
+        if (cache != null) {
+            cache.invalidate(categories.get().getGeneration());
         }
+        resultCache = cache;
+    }
+
+    /**
+     * @return the result cache, or null if results aren't cached
+     */
+    ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * @return the estimated size, in bytes, of the token cache; zero if
+     * field values' tokens aren't cached
+     */
+    public long getTokenCacheSize() {
+        return tokenCacheSize;
+    }
+
+    /**
+     * Enables or resizes a cache of the tokens of short field values, so that
+     * values repeated from document to document are only analyzed once.
+     * Results are the same with the cache as without it. Resizing discards
+     * the cached tokens.
+     *
+     * @param tokenCacheSize the estimated size, in bytes, of the cached
+     * tokens; zero to disable the cache
+     */
+    public synchronized void setTokenCacheSize(long tokenCacheSize) {
+        this.tokenCacheSize = tokenCacheSize;
+        tokenCache = tokenCacheSize > 0 ? new TokenCache(tokenCacheSize, tokenCacheMaxLength) : null;
+    }
+
+    /**
+     * @return the longest field value, in characters, whose tokens are cached
+     */
+    public int getTokenCacheMaxLength() {
+        return tokenCacheMaxLength;
+    }
+
+    /**
+     * @param tokenCacheMaxLength the longest field value, in characters,
+     * whose tokens are cached (default: 256); longer values are always
+     * analyzed. Changing it discards the cached tokens.
+     */
+    public synchronized void setTokenCacheMaxLength(int tokenCacheMaxLength) {
+        this.tokenCacheMaxLength = tokenCacheMaxLength;
+        setTokenCacheSize(tokenCacheSize);
+    }
+
+    /**
+     * @return the estimated query cost above which a category is over the
+     * limit; zero if there's no limit
+     */
+    public synchronized long getQueryCostLimit() {
+        return costPolicy.getCostLimit();
+    }
+
+    /**
+     * Limits the estimated cost of a category's query. A term query that is
+     * pre-filtered by its term costs 1; see {@link QueryCost} for the rest.
+     * Categories over the limit are dealt with by the
+     * {@link #setQueryCostAction(QueryCost.Action) query cost action}.
+     *
+     * @param queryCostLimit the estimated cost above which a category is over
+     * the limit; zero for no limit
+     */
+    public synchronized void setQueryCostLimit(long queryCostLimit) {
+        costPolicy = costPolicy.withCostLimit(queryCostLimit);
+        reassessCosts();
+    }
+
+    /**
+     * @return the mean search time per sample document, in microseconds,
+     * above which a category is over the limit; zero if there's no limit
+     */
+    public synchronized double getQueryTimeLimit() {
+        return costPolicy.getTimeLimitMicros();
+    }
+
+    /**
+     * Limits the measured search time of a category's query. Only applies
+     * when there's a {@link #setQuerySampleFile(File) sample corpus} to time
+     * the queries against.
+     *
+     * @param queryTimeLimit the mean search time per sample document, in
+     * microseconds, above which a category is over the limit; zero for no
+     * limit
+     */
+    public synchronized void setQueryTimeLimit(double queryTimeLimit) {
+        costPolicy = costPolicy.withTimeLimitMicros(queryTimeLimit);
+        reassessCosts();
+    }
 
-        public void stopThread() {
-            stop.set(true);
+    /**
+     * @return what is done with categories over a query cost limit
+     */
+    public synchronized QueryCost.Action getQueryCostAction() {
+        return costPolicy.getAction();
+    }
+
+    /**
+     * @param queryCostAction what to do with categories over a query cost
+     * limit (default: WARN); NONE ignores the limits
+     */
+    public synchronized void setQueryCostAction(QueryCost.Action queryCostAction) {
+        costPolicy = costPolicy.withAction(queryCostAction);
+        reassessCosts();
+    }
+
+    /**
+     * @return the sample corpus the queries are timed against, or null
+     */
+    public synchronized File getQuerySampleFile() {
+        return querySampleFile;
+    }
+
+    /**
+     * Times every query against a sample corpus whenever the categories are
+     * loaded. The corpus is read once, here; its documents should resemble
+     * the ones being classified, and a few dozen are plenty.
+     *
+     * @param querySampleFile a JSON array of documents, or newline-delimited
+     * JSON documents; null to stop timing the queries
+     * @throws IOException if the file can't be read, or isn't JSON objects
+     */
+    public void setQuerySampleFile(File querySampleFile) throws IOException {
+        setQuerySamples(querySampleFile, querySampleFile == null ? Collections.emptyList() : QueryCostPolicy.readSamples(querySampleFile));
+    }
+
+    /**
+     * @param querySampleFile the file the samples were read from, or null
+     * @param samples the sample documents the queries are timed against
+     */
+    synchronized void setQuerySamples(File querySampleFile, List<Map<String, String>> samples) {
+        this.querySampleFile = querySampleFile;
+        costPolicy = costPolicy.withSamples(samples);
+        reassessCosts();
+    }
+
+    /**
+     * @return the assessed costs of the loaded categories' queries, most
+     * expensive first
+     */
+    public List<QueryCost> getQueryCosts() {
+        return categories.get().getCosts();
+    }
+
+    /**
+     * @return the token cache, or null if tokens aren't cached
+     */
+    TokenCache getTokenCache() {
+        return tokenCache;
+    }
+
+    /**
+     * @return the counters describing this evaluator's work
+     */
+    EvaluatorMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param parallelPool the pool on which parallel searches are run; the
+     * common pool by default
+     */
+    public void setParallelPool(ForkJoinPool parallelPool) {
+        this.parallelPool = parallelPool;
+    }
+
+    /**
+     * @return a rough estimate of the heap used by the loaded categories, in
+     * bytes
+     */
+    long getEstimatedBytes() {
+        return categories.get().getEstimatedBytes();
+    }
+
+    /**
+     * Fetches the set of fields used in the union of all queries. The set is
+     * computed when the categories are loaded.
+     *
+     * @return the (unmodifiable) set of all field keys used
+     */
+    public Set<String> getFieldList() {
+        return categories.get().getFieldList();
+    }
+
+    /**
+     * @return the only fields of a document that can affect which categories
+     * it matches, or null if every field can
+     */
+    Set<String> getReferencedFields() {
+        return categories.get().getReferencedFields();
+    }
+
+    /**
+     * @return the parsed queries of the loaded categories, by category key
+     */
+    Map<String, Query> getQueries() {
+        return categories.get().getQueries();
+    }
+
+    /**
+     * Collects the fields a query reads. Fields in prohibited clauses count,
+     * since their absence can change whether a document matches.
+     *
+     * @param query the query
+     * @return the fields, or null if the query contains a leaf whose fields
+     * can't be determined
+     */
+    static Set<String> collectFields(Query query) {
+        FieldCollector collector = new FieldCollector();
+        query.visit(collector);
+        return collector.unknown ? null : collector.fields;
+    }
+
+    private static final class FieldCollector extends QueryVisitor {
+
+        private final Set<String> fields = new TreeSet<>();
+        private boolean unknown = false;
+
+        @Override
+        public boolean acceptField(String field) {
+            fields.add(field);
+            // Only the field is of interest, not the terms.
+            return false;
         }
 
-        public void doOnChange() {
-            Logger.getLogger(LuceneEvaluator.class.getName()).log(Level.INFO, "Detected change in {0} - reloading.", myFile.getName());
-            try {
-                loadCategories();
-            } catch (IOException ex) {
-                Logger.getLogger(LuceneEvaluator.class.getName()).log(Level.SEVERE, null, ex);
+        @Override
+        public void visitLeaf(Query query) {
+            // Leaves that read a field report it through acceptField first, and aren't visited if it's refused.
+            if (!(query instanceof MatchAllDocsQuery || query instanceof MatchNoDocsQuery)) {
+                unknown = true;
             }
         }
 
         @Override
-        public void run() {
-            try ( WatchService watcher = FileSystems.getDefault().newWatchService()) {
-                Path path = file.toPath().toAbsolutePath().getParent();
-                if (path != null) {
-                    path.register(watcher, StandardWatchEventKinds.ENTRY_MODIFY);
-                    while (!isStopped()) {
-                        WatchKey key;
-                        try {
-                            key = watcher.poll(25, TimeUnit.MILLISECONDS);
-                        } catch (InterruptedException e) {
-                            return;
-                        }
-                        if (key == null) {
-                            Thread.yield();
-                            continue;
-                        }
-                        for (WatchEvent<?> event : key.pollEvents()) {
-                            WatchEvent.Kind<?> kind = event.kind();
-
-                            @SuppressWarnings("unchecked")
-                            WatchEvent<Path> ev = (WatchEvent<Path>) event;
-                            Path filename = ev.context();
-
-                            if (kind == StandardWatchEventKinds.OVERFLOW) {
-                                Thread.yield();
-                                continue;
-                            } else if (kind == java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY
-                                    && filename.toString().equals(file.getName())) {
-                                doOnChange();
-                            }
-                            boolean valid = key.reset();
-                            if (!valid) {
-                                break;
-                            }
-                        }
-                        Thread.yield();
-                    }
-                }
-            } catch (Throwable e) {
-                // Log or rethrow the error
-            }
+        public QueryVisitor getSubVisitor(BooleanClause.Occur occur, Query parent) {
+            // The default skips MUST_NOT clauses.
+            return this;
+        }
+    }
+
+    /**
+     * Implementation of Closeable that stops the watcher thread and releases
+     * the per-thread evaluation state.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        stop();
+        if (ownContexts) {
+            contexts.close();
         }
     }
 }
@@ -0,0 +1,84 @@
+package com.handshape.classifier.service;
+
+import java.util.concurrent.RecursiveAction;
+import org.apache.lucene.search.IndexSearcher;
+
+/**
+ * Fork/join task that runs a range of candidate queries against a frozen
+ * single-document index, splitting the range in half until it is no larger
+ * than the partition size. Each partition uses its own collector; the searcher
+ * is shared, which is safe once the index is frozen.
+ *
+ * @author jturner
+ */
+final class PartitionedSearch extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final IndexSearcher searcher;
+    private final QueryIndex index;
+    private final int[] ordinals;
+    private final boolean[] matched;
+    private final int from;
+    private final int to;
+    private final int partitionSize;
+    private final EvaluatorMetrics.CategoryCounters timing;
+    private final long slowEventDocumentSize;
+
+    /**
+     * @param searcher a searcher over the frozen document
+     * @param index the queries
+     * @param ordinals the ordinals of the queries to run
+     * @param matched receives, at each position, whether the query at the same
+     * position in ordinals matched
+     * @param partitionSize the largest number of queries run by one task
+     * @param timing counters to record each query's search time in, or null
+     * @param slowEventDocumentSize the size of the document, in characters,
+     * to emit slow category events for it; -1 for none
+     */
+    PartitionedSearch(IndexSearcher searcher, QueryIndex index, int[] ordinals, boolean[] matched, int partitionSize, EvaluatorMetrics.CategoryCounters timing,
+            long slowEventDocumentSize) {
+        this(searcher, index, ordinals, matched, 0, ordinals.length, Math.max(1, partitionSize), timing, slowEventDocumentSize);
+    }
+
+    private PartitionedSearch(IndexSearcher searcher, QueryIndex index, int[] ordinals, boolean[] matched, int from, int to, int partitionSize, EvaluatorMetrics.CategoryCounters timing,
+            long slowEventDocumentSize) {
+        this.searcher = searcher;
+        this.index = index;
+        this.ordinals = ordinals;
+        this.matched = matched;
+        this.from = from;
+        this.to = to;
+        this.partitionSize = partitionSize;
+        this.timing = timing;
+        this.slowEventDocumentSize = slowEventDocumentSize;
+    }
+
+    @Override
+    protected void compute() {
+        if (to - from <= partitionSize) {
+            EvaluationContext.MatchCollector collector = new EvaluationContext.MatchCollector();
+            // Events aren't thread-safe, so each task times its queries with its own.
+            ClassifierEvents.SlowCategory event = slowEventDocumentSize >= 0 ? new ClassifierEvents.SlowCategory() : null;
+            for (int i = from; i < to; i++) {
+                if (event != null) {
+                    event.begin();
+                }
+                if (timing != null) {
+                    long start = System.nanoTime();
+                    matched[i] = EvaluationContext.matches(searcher, index.getQuery(ordinals[i]), collector);
+                    timing.searched(ordinals[i], System.nanoTime() - start);
+                } else {
+                    matched[i] = EvaluationContext.matches(searcher, index.getQuery(ordinals[i]), collector);
+                }
+                if (event != null) {
+                    event.finish(index, ordinals[i], matched[i], slowEventDocumentSize);
+                }
+            }
+        } else {
+            int mid = (from + to) >>> 1;
+            invokeAll(new PartitionedSearch(searcher, index, ordinals, matched, from, mid, partitionSize, timing, slowEventDocumentSize),
+                    new PartitionedSearch(searcher, index, ordinals, matched, mid, to, partitionSize, timing, slowEventDocumentSize));
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.handshape.classifier.service;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations in the style of HdrHistogram, for reading off
+ * percentiles: values below 2048ns are counted exactly, and larger ones in
+ * log-linear buckets of 1024 per power of two, so any recorded value is
+ * reported to within 0.1%. Values above an hour are counted as an hour.
+ * Recording is lock-free, so one histogram may be shared between threads.
+ *
+ * @author jturner
+ */
+final class PercentileHistogram {
+
+    private static final int SUB_BUCKET_BITS = 10;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final long MAX_NANOS = 3600L * 1000000000L;
+
+    private final AtomicLongArray counts = new AtomicLongArray(index(MAX_NANOS) + 1);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0L);
+
+    /**
+     * @param nanos the duration to record; negative durations are counted as
+     * zero
+     */
+    void record(long nanos) {
+        nanos = Math.max(0L, Math.min(nanos, MAX_NANOS));
+        counts.incrementAndGet(index(nanos));
+        count.increment();
+        sumNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    /**
+     * Adds every duration recorded by another histogram to this one.
+     *
+     * @param other the histogram to add
+     */
+    void add(PercentileHistogram other) {
+        for (int i = 0; i < counts.length(); i++) {
+            long n = other.counts.get(i);
+            if (n > 0) {
+                counts.addAndGet(i, n);
+            }
+        }
+        count.add(other.count.sum());
+        sumNanos.add(other.sumNanos.sum());
+        maxNanos.accumulate(other.maxNanos.get());
+    }
+
+    /**
+     * @return the number of durations recorded
+     */
+    long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return the longest duration recorded, in nanoseconds
+     */
+    long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * @return the mean duration recorded, in nanoseconds; zero if none were
+     */
+    double getMeanNanos() {
+        long n = count.sum();
+        return n == 0 ? 0.0 : (double) sumNanos.sum() / n;
+    }
+
+    /**
+     * @param percentile the percentile, from 0 to 100
+     * @return the smallest duration that the given percentage of recorded
+     * durations are no longer than, in nanoseconds, rounded up to the top of
+     * its bucket; zero if none were recorded
+     */
+    long getValueAtPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0L;
+        }
+        long rank = Math.max(1L, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestEquivalent(i), maxNanos.get());
+            }
+        }
+        return maxNanos.get();
+    }
+
+    /**
+     * @return the bucket holding a value
+     */
+    static int index(long nanos) {
+        if (nanos < 2 * SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BUCKET_BITS;
+        return 2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) ((nanos >>> shift) - SUB_BUCKETS);
+    }
+
+    /**
+     * @return the largest value counted in a bucket
+     */
+    static long highestEquivalent(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+        long sub = (index - 2 * SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
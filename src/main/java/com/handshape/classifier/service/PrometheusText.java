@@ -0,0 +1,79 @@
+package com.handshape.classifier.service;
+
+/**
+ * Helpers for writing metrics in the Prometheus text exposition format.
+ *
+ * @author jturner
+ */
+final class PrometheusText {
+
+    /**
+     * The content type of the Prometheus text format.
+     */
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private PrometheusText() {
+    }
+
+    /**
+     * Writes the HELP and TYPE lines for a metric family.
+     */
+    static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Writes a single sample line.
+     *
+     * @param labels the rendered label set, e.g. {@code method="GET"}, or
+     * null for none
+     */
+    static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (labels != null && !labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    /**
+     * Writes a metric family with a single, unlabelled sample.
+     */
+    static void single(StringBuilder out, String name, String type, String help, double value) {
+        header(out, name, type, help);
+        sample(out, name, null, value);
+    }
+
+    /**
+     * Renders one label, escaping its value.
+     */
+    static String label(String name, String value) {
+        StringBuilder out = new StringBuilder(name.length() + value.length() + 3);
+        out.append(name).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                default:
+                    out.append(c);
+                    break;
+            }
+        }
+        return out.append('"').toString();
+    }
+}
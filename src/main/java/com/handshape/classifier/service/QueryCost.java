@@ -0,0 +1,295 @@
+package com.handshape.classifier.service;
+
+import com.github.cliftonlabs.json_simple.JsonArray;
+import com.github.cliftonlabs.json_simple.JsonObject;
+import java.util.List;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.FuzzyQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.MultiPhraseQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.RegexpQuery;
+import org.apache.lucene.search.SynonymQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
+import org.apache.lucene.search.WildcardQuery;
+
+/**
+ * The expected cost of one category's query, as assessed when the categories
+ * are loaded. Each part of a query is classified by {@link Kind}; the query's
+ * kind is that of its most expensive part, and its estimated cost is the sum
+ * of its parts' weights, multiplied for a query that can't be pre-filtered
+ * and so is run against every document. When a sample corpus is configured,
+ * the query's mean search time per sample document is measured too.
+ *
+ * @author jturner
+ */
+public final class QueryCost {
+
+    /**
+     * Kinds of query, from cheapest to most expensive. Multi-term kinds match
+     * by enumerating a document's terms, and the leading wildcard and
+     * match-all kinds enumerate all of a field's terms, with no anchor term
+     * to pre-filter the query by.
+     */
+    public enum Kind {
+        TERM(1), PHRASE(2), PREFIX(4), RANGE(8), WILDCARD(8), FUZZY(16), REGEXP(16), OTHER(16), LEADING_WILDCARD(32), MATCH_ALL(32);
+
+        private final int weight;
+
+        Kind(int weight) {
+            this.weight = weight;
+        }
+
+        /**
+         * @return the relative cost of a query part of this kind; a term
+         * query costs 1
+         */
+        public int getWeight() {
+            return weight;
+        }
+    }
+
+    /**
+     * What the cost policy did with a category.
+     */
+    public enum Action {
+        /**
+         * Within the limits.
+         */
+        NONE,
+        /**
+         * Over a limit, and logged, but evaluated as usual.
+         */
+        WARN,
+        /**
+         * Over a limit, and only evaluated when a request names it.
+         */
+        QUARANTINE,
+        /**
+         * Over a limit, and never evaluated.
+         */
+        REJECT
+    }
+
+    /**
+     * The multiplier applied to the cost of a query that is run against every
+     * document because it can't be pre-filtered.
+     */
+    static final int ALWAYS_RUN_FACTOR = 8;
+
+    private final String category;
+    private final Kind kind;
+    private final boolean anchored;
+    private final long estimate;
+    private final double sampleMicros;
+    private final Action action;
+
+    private QueryCost(String category, Kind kind, boolean anchored, long estimate, double sampleMicros, Action action) {
+        this.category = category;
+        this.kind = kind;
+        this.anchored = anchored;
+        this.estimate = estimate;
+        this.sampleMicros = sampleMicros;
+        this.action = action;
+    }
+
+    /**
+     * Assesses a query without running it.
+     *
+     * @param category the category's name
+     * @param query the category's query
+     * @param anchored true if the query can be pre-filtered by anchor terms
+     * @return the query's cost, with no sample time and no action
+     */
+    static QueryCost analyze(String category, Query query, boolean anchored) {
+        Kind[] kind = new Kind[]{Kind.TERM};
+        long weight = weigh(query, kind);
+        return new QueryCost(category, kind[0], anchored, anchored ? weight : weight * ALWAYS_RUN_FACTOR, Double.NaN, Action.NONE);
+    }
+
+    /**
+     * @param query a query or part of one
+     * @param kind holds the most expensive kind seen so far, updated
+     * @return the summed weights of the query's parts
+     */
+    private static long weigh(Query query, Kind[] kind) {
+        if (query instanceof BooleanQuery) {
+            long weight = 0;
+            for (BooleanClause clause : ((BooleanQuery) query).clauses()) {
+                weight += weigh(clause.getQuery(), kind);
+            }
+            return Math.max(1, weight);
+        }
+        if (query instanceof BoostQuery) {
+            return weigh(((BoostQuery) query).getQuery(), kind);
+        }
+        if (query instanceof ConstantScoreQuery) {
+            return weigh(((ConstantScoreQuery) query).getQuery(), kind);
+        }
+        Kind leaf = classify(query);
+        if (leaf.compareTo(kind[0]) > 0) {
+            kind[0] = leaf;
+        }
+        if (query instanceof SynonymQuery) {
+            return (long) leaf.weight * ((SynonymQuery) query).getTerms().size();
+        }
+        if (query instanceof PhraseQuery) {
+            return (long) leaf.weight * ((PhraseQuery) query).getTerms().length;
+        }
+        if (query instanceof MultiPhraseQuery) {
+            long terms = 0;
+            for (Object position : ((MultiPhraseQuery) query).getTermArrays()) {
+                terms += ((Object[]) position).length;
+            }
+            return leaf.weight * terms;
+        }
+        return leaf.weight;
+    }
+
+    /**
+     * @param query a query that isn't a wrapper or a boolean combination
+     * @return its kind
+     */
+    static Kind classify(Query query) {
+        if (query instanceof TermQuery || query instanceof SynonymQuery) {
+            return Kind.TERM;
+        }
+        if (query instanceof PhraseQuery || query instanceof MultiPhraseQuery) {
+            return Kind.PHRASE;
+        }
+        if (query instanceof PrefixQuery) {
+            return ((PrefixQuery) query).getPrefix().bytes().length == 0 ? Kind.MATCH_ALL : Kind.PREFIX;
+        }
+        if (query instanceof WildcardQuery) {
+            String pattern = ((WildcardQuery) query).getTerm().text();
+            if (pattern.chars().allMatch(c -> c == WildcardQuery.WILDCARD_STRING)) {
+                return Kind.MATCH_ALL;
+            }
+            if (pattern.isEmpty() || pattern.charAt(0) == WildcardQuery.WILDCARD_STRING || pattern.charAt(0) == WildcardQuery.WILDCARD_CHAR) {
+                return Kind.LEADING_WILDCARD;
+            }
+            return Kind.WILDCARD;
+        }
+        if (query instanceof FuzzyQuery) {
+            return ((FuzzyQuery) query).getPrefixLength() == 0 ? Kind.FUZZY : Kind.PREFIX;
+        }
+        if (query instanceof RegexpQuery) {
+            String pattern = ((RegexpQuery) query).getRegexp().text();
+            if (pattern.equals(".*")) {
+                return Kind.MATCH_ALL;
+            }
+            return pattern.startsWith(".") || pattern.startsWith("(") || pattern.startsWith("[") ? Kind.LEADING_WILDCARD : Kind.REGEXP;
+        }
+        if (query instanceof TermRangeQuery) {
+            TermRangeQuery range = (TermRangeQuery) query;
+            return range.getLowerTerm() == null && range.getUpperTerm() == null ? Kind.MATCH_ALL : Kind.RANGE;
+        }
+        if (query instanceof MatchAllDocsQuery) {
+            return Kind.MATCH_ALL;
+        }
+        return Kind.OTHER;
+    }
+
+    /**
+     * @param sampleMicros the query's mean search time per sample document
+     * @return this cost, with the sample time
+     */
+    QueryCost withSampleMicros(double sampleMicros) {
+        return new QueryCost(category, kind, anchored, estimate, sampleMicros, action);
+    }
+
+    /**
+     * @param action what the policy did with the category
+     * @return this cost, with the action
+     */
+    QueryCost withAction(Action action) {
+        return new QueryCost(category, kind, anchored, estimate, sampleMicros, action);
+    }
+
+    /**
+     * @return the category's name
+     */
+    public String getCategory() {
+        return category;
+    }
+
+    /**
+     * @return the kind of the query's most expensive part
+     */
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return true if the query is pre-filtered by anchor terms, rather than
+     * run against every document
+     */
+    public boolean isAnchored() {
+        return anchored;
+    }
+
+    /**
+     * @return the estimated relative cost of the query; a lone, anchored
+     * term query costs 1
+     */
+    public long getEstimate() {
+        return estimate;
+    }
+
+    /**
+     * @return the query's mean search time per sample document, in
+     * microseconds, or NaN if there's no sample corpus
+     */
+    public double getSampleMicros() {
+        return sampleMicros;
+    }
+
+    /**
+     * @return what the cost policy did with the category
+     */
+    public Action getAction() {
+        return action;
+    }
+
+    /**
+     * @param costs the costs of a set's queries
+     * @return the report served by the query cost endpoint
+     */
+    static JsonObject toJson(List<QueryCost> costs) {
+        JsonArray categories = new JsonArray();
+        for (QueryCost cost : costs) {
+            JsonObject category = new JsonObject();
+            category.put("name", cost.category);
+            category.put("kind", cost.kind.name());
+            category.put("anchored", cost.anchored);
+            category.put("cost", cost.estimate);
+            if (!Double.isNaN(cost.sampleMicros)) {
+                category.put("sampleMicros", cost.sampleMicros);
+            }
+            category.put("action", cost.action.name());
+            categories.add(category);
+        }
+        JsonObject report = new JsonObject();
+        report.put("categories", categories);
+        return report;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        out.append(category).append(" (").append(kind).append(", cost ").append(estimate);
+        if (!anchored) {
+            out.append(", always run");
+        }
+        if (!Double.isNaN(sampleMicros)) {
+            out.append(String.format(", %.1fus per sample document", sampleMicros));
+        }
+        return out.append(')').toString();
+    }
+}
@@ -0,0 +1,167 @@
+package com.handshape.classifier.service;
+
+import com.github.cliftonlabs.json_simple.JsonException;
+import com.github.cliftonlabs.json_simple.JsonObject;
+import com.github.cliftonlabs.json_simple.Jsoner;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import org.apache.lucene.analysis.Analyzer;
+
+/**
+ * The limits on the cost of a category's query, and what to do with the
+ * categories that exceed them. Immutable; the evaluator replaces its policy
+ * when it's reconfigured.
+ *
+ * @author jturner
+ */
+final class QueryCostPolicy {
+
+    /**
+     * No limits, and no sample corpus.
+     */
+    static final QueryCostPolicy DEFAULT = new QueryCostPolicy(0L, 0.0, QueryCost.Action.WARN, Collections.emptyList());
+
+    private final long costLimit;
+    private final double timeLimitMicros;
+    private final QueryCost.Action action;
+    private final List<Map<String, String>> samples;
+
+    private QueryCostPolicy(long costLimit, double timeLimitMicros, QueryCost.Action action, List<Map<String, String>> samples) {
+        this.costLimit = costLimit;
+        this.timeLimitMicros = timeLimitMicros;
+        this.action = action;
+        this.samples = samples;
+    }
+
+    QueryCostPolicy withCostLimit(long costLimit) {
+        return new QueryCostPolicy(costLimit, timeLimitMicros, action, samples);
+    }
+
+    QueryCostPolicy withTimeLimitMicros(double timeLimitMicros) {
+        return new QueryCostPolicy(costLimit, timeLimitMicros, action, samples);
+    }
+
+    QueryCostPolicy withAction(QueryCost.Action action) {
+        return new QueryCostPolicy(costLimit, timeLimitMicros, action, samples);
+    }
+
+    QueryCostPolicy withSamples(List<Map<String, String>> samples) {
+        return new QueryCostPolicy(costLimit, timeLimitMicros, action, Collections.unmodifiableList(new ArrayList<>(samples)));
+    }
+
+    long getCostLimit() {
+        return costLimit;
+    }
+
+    double getTimeLimitMicros() {
+        return timeLimitMicros;
+    }
+
+    QueryCost.Action getAction() {
+        return action;
+    }
+
+    List<Map<String, String>> getSamples() {
+        return samples;
+    }
+
+    /**
+     * Assesses every category in a set: estimates the cost of its query as
+     * it's searched (with any leading wildcards reversed), times it against
+     * the sample corpus if there is one, and decides what to do with it.
+     *
+     * @param set the categories
+     * @param analyzer the analyzer the sample documents are loaded with
+     * @return the costs, most expensive first
+     */
+    List<QueryCost> assess(CategorySet set, Analyzer analyzer) {
+        QueryIndex index = set.getIndex();
+        List<QueryCost> costs = new ArrayList<>(index.size());
+        for (int i = 0; i < index.size(); i++) {
+            String key = index.getKey(i);
+            costs.add(QueryCost.analyze(key, index.getQuery(i), set.isAnchored(key)));
+        }
+        if (!samples.isEmpty() && !costs.isEmpty()) {
+            double[] micros = time(set, analyzer);
+            for (int i = 0; i < costs.size(); i++) {
+                costs.set(i, costs.get(i).withSampleMicros(micros[i]));
+            }
+        }
+        for (int i = 0; i < costs.size(); i++) {
+            QueryCost cost = costs.get(i);
+            boolean over = (costLimit > 0 && cost.getEstimate() > costLimit)
+                    || (timeLimitMicros > 0 && cost.getSampleMicros() > timeLimitMicros);
+            costs.set(i, cost.withAction(over ? action : QueryCost.Action.NONE));
+        }
+        costs.sort(Comparator.comparing((QueryCost cost) -> Double.isNaN(cost.getSampleMicros()) ? 0.0 : cost.getSampleMicros())
+                .thenComparingLong(QueryCost::getEstimate).reversed()
+                .thenComparing(QueryCost::getCategory));
+        return costs;
+    }
+
+    /**
+     * Times each query against every sample document, after one untimed pass
+     * to warm up the search code.
+     *
+     * @return the mean search time per sample document of each query, in
+     * microseconds, by ordinal
+     */
+    private double[] time(CategorySet set, Analyzer analyzer) {
+        QueryIndex index = set.getIndex();
+        long[] nanos = new long[index.size()];
+        EvaluationContext context = new EvaluationContext(analyzer);
+        for (int pass = 0; pass < 2; pass++) {
+            for (Map<String, String> sample : samples) {
+                context.load(sample, analyzer, null, set.getReversedFields(), null);
+                try {
+                    for (int i = 0; i < nanos.length; i++) {
+                        long start = System.nanoTime();
+                        context.matches(index.getQuery(i));
+                        if (pass > 0) {
+                            nanos[i] += System.nanoTime() - start;
+                        }
+                    }
+                } finally {
+                    context.clear();
+                }
+            }
+        }
+        double[] micros = new double[nanos.length];
+        for (int i = 0; i < nanos.length; i++) {
+            micros[i] = nanos[i] / 1000.0 / samples.size();
+        }
+        return micros;
+    }
+
+    /**
+     * Reads a sample corpus: a JSON array of objects, or newline-delimited
+     * JSON objects.
+     *
+     * @param file the corpus
+     * @return its documents
+     * @throws IOException if the file can't be read, or isn't JSON objects
+     */
+    static List<Map<String, String>> readSamples(File file) throws IOException {
+        List<Map<String, String>> samples = new ArrayList<>();
+        try ( Reader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);  JsonRecordReader records = new JsonRecordReader(in)) {
+            for (String record = records.next(); record != null; record = records.next()) {
+                Object parsed = Jsoner.deserialize(record);
+                if (!(parsed instanceof JsonObject)) {
+                    throw new IOException("Sample documents in " + file + " must be JSON objects.");
+                }
+                samples.add(SimpleClassifierService.jsonToMap((JsonObject) parsed));
+            }
+        } catch (JsonException ex) {
+            throw new IOException("Malformed sample document in " + file, ex);
+        }
+        return samples;
+    }
+}
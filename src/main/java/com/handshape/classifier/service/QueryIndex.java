@@ -0,0 +1,479 @@
+package com.handshape.classifier.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.MultiPhraseQuery;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryVisitor;
+import org.apache.lucene.search.SynonymQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+
+/**
+ * Inverted index over a set of category queries. For each query, a set of
+ * "anchor" terms is extracted such that the query can only match a document
+ * containing at least one of them. At evaluation time, only the queries whose
+ * anchors appear in the document's terms need to be run. Queries for which no
+ * anchors can be derived (pure negations, match-all queries) are always run.
+ *
+ * @author jturner
+ */
+final class QueryIndex {
+
+    private final String[] keys;
+    private final Query[] queries;
+    private final Map<String, Map<BytesRef, int[]>> termAnchors;
+    private final Map<String, Map<BytesRef, int[]>> prefixAnchors;
+    private final int[] alwaysRun;
+    private final List<List<Anchor>> anchorsByOrdinal;
+    private final String[] sortedKeys;
+    private final int[] sortedOrdinals;
+    private volatile BitSet negated;
+
+    /**
+     * Builds an index over the given queries. Queries are assigned ordinals in
+     * the iteration order of the map.
+     *
+     * @param queries the category keys and their parsed queries
+     */
+    QueryIndex(Map<String, Query> queries) {
+        this(queries, extractAll(queries));
+    }
+
+    /**
+     * Builds an index over the given queries, with anchors that have already
+     * been extracted from them.
+     *
+     * @param queries the category keys and their parsed queries
+     * @param queryAnchors the anchors of each query, in the iteration order of
+     * the map; a null entry for a query that can't be pre-filtered
+     */
+    QueryIndex(Map<String, Query> queries, List<List<Anchor>> queryAnchors) {
+        if (queryAnchors.size() != queries.size()) {
+            throw new IllegalArgumentException("Expected anchors for " + queries.size() + " queries, got " + queryAnchors.size());
+        }
+        int size = queries.size();
+        keys = new String[size];
+        this.queries = new Query[size];
+        Map<String, Map<BytesRef, List<Integer>>> terms = new TreeMap<>();
+        Map<String, Map<BytesRef, List<Integer>>> prefixes = new TreeMap<>();
+        List<Integer> unanchored = new ArrayList<>();
+        int ordinal = 0;
+        for (Entry<String, Query> entry : queries.entrySet()) {
+            keys[ordinal] = entry.getKey();
+            this.queries[ordinal] = entry.getValue();
+            List<Anchor> anchors = queryAnchors.get(ordinal);
+            if (anchors == null) {
+                unanchored.add(ordinal);
+            } else {
+                for (Anchor anchor : anchors) {
+                    Map<String, Map<BytesRef, List<Integer>>> target = anchor.prefix ? prefixes : terms;
+                    target.computeIfAbsent(anchor.field, k -> new HashMap<>())
+                            .computeIfAbsent(anchor.bytes, k -> new ArrayList<>())
+                            .add(ordinal);
+                }
+            }
+            ordinal++;
+        }
+        termAnchors = freeze(terms);
+        prefixAnchors = freeze(prefixes);
+        alwaysRun = toArray(unanchored);
+        anchorsByOrdinal = new ArrayList<>(queryAnchors);
+        Integer[] byKey = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            byKey[i] = i;
+        }
+        Arrays.sort(byKey, (a, b) -> keys[a].compareTo(keys[b]));
+        sortedKeys = new String[size];
+        sortedOrdinals = new int[size];
+        for (int i = 0; i < size; i++) {
+            sortedOrdinals[i] = byKey[i];
+            sortedKeys[i] = keys[byKey[i]];
+        }
+    }
+
+    private static List<List<Anchor>> extractAll(Map<String, Query> queries) {
+        List<List<Anchor>> anchors = new ArrayList<>(queries.size());
+        for (Query query : queries.values()) {
+            anchors.add(extractAnchors(query));
+        }
+        return anchors;
+    }
+
+    /**
+     * @return the number of queries in this index
+     */
+    int size() {
+        return keys.length;
+    }
+
+    /**
+     * @param ordinal the ordinal of a query
+     * @return the category key for that query
+     */
+    String getKey(int ordinal) {
+        return keys[ordinal];
+    }
+
+    /**
+     * @param ordinal the ordinal of a query
+     * @return the parsed query
+     */
+    Query getQuery(int ordinal) {
+        return queries[ordinal];
+    }
+
+    /**
+     * @return the ordinals of the queries with a prohibited clause, whose
+     * match can be undone by adding text to a document; computed on first
+     * use, and not to be modified
+     */
+    BitSet getNegated() {
+        BitSet result = negated;
+        if (result == null) {
+            result = new BitSet(queries.length);
+            for (int i = 0; i < queries.length; i++) {
+                if (hasProhibitedClause(queries[i])) {
+                    result.set(i);
+                }
+            }
+            negated = result;
+        }
+        return result;
+    }
+
+    /**
+     * @param query a query
+     * @return true if the query, or any query nested in it, has a prohibited
+     * (MUST_NOT) clause
+     */
+    static boolean hasProhibitedClause(Query query) {
+        boolean[] found = new boolean[1];
+        query.visit(new QueryVisitor() {
+            @Override
+            public QueryVisitor getSubVisitor(BooleanClause.Occur occur, Query parent) {
+                if (occur == BooleanClause.Occur.MUST_NOT) {
+                    found[0] = true;
+                }
+                return this;
+            }
+        });
+        return found[0];
+    }
+
+    /**
+     * @return the number of queries that can't be pre-filtered, and are run
+     * against every document
+     */
+    int getAlwaysRunCount() {
+        return alwaysRun.length;
+    }
+
+    /**
+     * Determines which queries could possibly match a document.
+     *
+     * @param reader a reader over the (single) document being evaluated
+     * @param candidates populated with the ordinals of the candidate queries;
+     * any previous contents are cleared
+     * @throws IOException if the reader's terms can't be read
+     */
+    void candidates(LeafReader reader, BitSet candidates) throws IOException {
+        candidates.clear();
+        for (int ordinal : alwaysRun) {
+            candidates.set(ordinal);
+        }
+        for (Entry<String, Map<BytesRef, int[]>> field : termAnchors.entrySet()) {
+            Terms terms = reader.terms(field.getKey());
+            if (terms != null) {
+                collectTerms(terms, field.getValue(), candidates);
+            }
+        }
+        for (Entry<String, Map<BytesRef, int[]>> field : prefixAnchors.entrySet()) {
+            Terms terms = reader.terms(field.getKey());
+            if (terms != null) {
+                collectPrefixes(terms, field.getValue(), candidates);
+            }
+        }
+    }
+
+    /**
+     * Determines which of a selection of queries could possibly match a
+     * document, by checking the anchors of each selected query in turn. The
+     * cost is proportional to the size of the selection, rather than to the
+     * size of the index.
+     *
+     * @param reader a reader over the (single) document being evaluated
+     * @param selection the ordinals of the queries to consider
+     * @param candidates populated with the ordinals of the candidate queries;
+     * any previous contents are cleared
+     * @throws IOException if the reader's terms can't be read
+     */
+    void candidates(LeafReader reader, BitSet selection, BitSet candidates) throws IOException {
+        candidates.clear();
+        for (int ordinal = selection.nextSetBit(0); ordinal >= 0; ordinal = selection.nextSetBit(ordinal + 1)) {
+            if (mayMatch(reader, anchorsByOrdinal.get(ordinal))) {
+                candidates.set(ordinal);
+            }
+        }
+    }
+
+    private static boolean mayMatch(LeafReader reader, List<Anchor> anchors) throws IOException {
+        if (anchors == null) {
+            return true;
+        }
+        for (Anchor anchor : anchors) {
+            Terms terms = reader.terms(anchor.field);
+            if (terms == null) {
+                continue;
+            }
+            TermsEnum te = terms.iterator();
+            if (anchor.prefix) {
+                if (te.seekCeil(anchor.bytes) != TermsEnum.SeekStatus.END && StringHelper.startsWith(te.term(), anchor.bytes)) {
+                    return true;
+                }
+            } else if (te.seekExact(anchor.bytes)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the ordinals of the queries whose keys are among the given names,
+     * or start with one of the given prefixes.
+     *
+     * @param names exact keys
+     * @param prefixes key prefixes
+     * @param selection populated with the ordinals of the selected queries;
+     * any previous contents are cleared
+     * @return the number of queries selected
+     */
+    int select(Collection<String> names, Collection<String> prefixes, BitSet selection) {
+        selection.clear();
+        for (String name : names) {
+            int position = Arrays.binarySearch(sortedKeys, name);
+            if (position >= 0) {
+                selection.set(sortedOrdinals[position]);
+            }
+        }
+        for (String prefix : prefixes) {
+            int position = Arrays.binarySearch(sortedKeys, prefix);
+            for (int i = position < 0 ? -position - 1 : position; i < sortedKeys.length && sortedKeys[i].startsWith(prefix); i++) {
+                selection.set(sortedOrdinals[i]);
+            }
+        }
+        return selection.cardinality();
+    }
+
+    private static void collectTerms(Terms terms, Map<BytesRef, int[]> anchors, BitSet candidates) throws IOException {
+        TermsEnum te = terms.iterator();
+        long docTermCount = terms.size();
+        if (docTermCount >= 0 && docTermCount < anchors.size()) {
+            // Fewer distinct terms in the document than anchors on the field; walk the document.
+            BytesRef term;
+            while ((term = te.next()) != null) {
+                setAll(anchors.get(term), candidates);
+            }
+        } else {
+            for (Entry<BytesRef, int[]> anchor : anchors.entrySet()) {
+                if (te.seekExact(anchor.getKey())) {
+                    setAll(anchor.getValue(), candidates);
+                }
+            }
+        }
+    }
+
+    private static void collectPrefixes(Terms terms, Map<BytesRef, int[]> anchors, BitSet candidates) throws IOException {
+        TermsEnum te = terms.iterator();
+        for (Entry<BytesRef, int[]> anchor : anchors.entrySet()) {
+            if (te.seekCeil(anchor.getKey()) != TermsEnum.SeekStatus.END
+                    && StringHelper.startsWith(te.term(), anchor.getKey())) {
+                setAll(anchor.getValue(), candidates);
+            }
+        }
+    }
+
+    private static void setAll(int[] ordinals, BitSet candidates) {
+        if (ordinals != null) {
+            for (int ordinal : ordinals) {
+                candidates.set(ordinal);
+            }
+        }
+    }
+
+    /**
+     * Extracts a set of anchors from a query, at least one of which must be
+     * present in a document for the query to match it.
+     *
+     * @param query the query to analyze
+     * @return the anchors, or null if the query can't be pre-filtered
+     */
+    static List<Anchor> extractAnchors(Query query) {
+        List<Anchor> anchors = new ArrayList<>();
+        if (query instanceof BoostQuery) {
+            return extractAnchors(((BoostQuery) query).getQuery());
+        } else if (query instanceof ConstantScoreQuery) {
+            return extractAnchors(((ConstantScoreQuery) query).getQuery());
+        } else if (query instanceof TermQuery) {
+            anchors.add(new Anchor(((TermQuery) query).getTerm(), false));
+        } else if (query instanceof PhraseQuery) {
+            // Every term of a phrase is required; the longest is likely the rarest.
+            Term best = null;
+            for (Term t : ((PhraseQuery) query).getTerms()) {
+                if (best == null || t.bytes().length > best.bytes().length) {
+                    best = t;
+                }
+            }
+            if (best == null) {
+                return null;
+            }
+            anchors.add(new Anchor(best, false));
+        } else if (query instanceof MultiPhraseQuery) {
+            // Every position is required; one of the terms at the narrowest position must appear.
+            Term[] best = null;
+            for (Term[] position : ((MultiPhraseQuery) query).getTermArrays()) {
+                if (best == null || position.length < best.length) {
+                    best = position;
+                }
+            }
+            if (best == null || best.length == 0) {
+                return null;
+            }
+            for (Term t : best) {
+                anchors.add(new Anchor(t, false));
+            }
+        } else if (query instanceof SynonymQuery) {
+            for (Term t : ((SynonymQuery) query).getTerms()) {
+                anchors.add(new Anchor(t, false));
+            }
+        } else if (query instanceof PrefixQuery) {
+            anchors.add(new Anchor(((PrefixQuery) query).getPrefix(), true));
+        } else if (query instanceof WildcardQuery) {
+            Term term = ((WildcardQuery) query).getTerm();
+            anchors.add(new Anchor(new Term(term.field(), literalPrefix(term.text())), true));
+        } else if (query instanceof MultiTermQuery) {
+            // Fuzzy, regexp and range queries: at least require some term in the field.
+            anchors.add(new Anchor(new Term(((MultiTermQuery) query).getField(), ""), true));
+        } else if (query instanceof BooleanQuery) {
+            return extractBooleanAnchors((BooleanQuery) query);
+        } else {
+            return null;
+        }
+        return anchors;
+    }
+
+    private static List<Anchor> extractBooleanAnchors(BooleanQuery query) {
+        List<Anchor> best = null;
+        boolean hasRequired = false;
+        List<Anchor> optional = new ArrayList<>();
+        boolean optionalAnchored = true;
+        boolean hasOptional = false;
+        for (BooleanClause clause : query.clauses()) {
+            switch (clause.getOccur()) {
+                case MUST:
+                case FILTER:
+                    hasRequired = true;
+                    List<Anchor> anchors = extractAnchors(clause.getQuery());
+                    if (anchors != null && (best == null || anchors.size() < best.size())) {
+                        best = anchors;
+                    }
+                    break;
+                case SHOULD:
+                    hasOptional = true;
+                    List<Anchor> shouldAnchors = extractAnchors(clause.getQuery());
+                    if (shouldAnchors == null) {
+                        optionalAnchored = false;
+                    } else {
+                        optional.addAll(shouldAnchors);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (hasRequired) {
+            return best;
+        }
+        // With no required clauses, at least one optional clause has to match.
+        return hasOptional && optionalAnchored ? optional : null;
+    }
+
+    /**
+     * @param pattern a wildcard pattern
+     * @return the literal text before the first wildcard character
+     */
+    static String literalPrefix(String pattern) {
+        StringBuilder prefix = new StringBuilder();
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == WildcardQuery.WILDCARD_STRING || c == WildcardQuery.WILDCARD_CHAR) {
+                break;
+            } else if (c == WildcardQuery.WILDCARD_ESCAPE) {
+                if (i + 1 >= pattern.length()) {
+                    break;
+                }
+                c = pattern.charAt(++i);
+            }
+            prefix.append(c);
+        }
+        return prefix.toString();
+    }
+
+    private static Map<String, Map<BytesRef, int[]>> freeze(Map<String, Map<BytesRef, List<Integer>>> source) {
+        Map<String, Map<BytesRef, int[]>> frozen = new TreeMap<>();
+        for (Entry<String, Map<BytesRef, List<Integer>>> field : source.entrySet()) {
+            Map<BytesRef, int[]> anchors = new HashMap<>();
+            for (Entry<BytesRef, List<Integer>> anchor : field.getValue().entrySet()) {
+                anchors.put(anchor.getKey(), toArray(anchor.getValue()));
+            }
+            frozen.put(field.getKey(), anchors);
+        }
+        return frozen;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * A term, or term prefix, whose presence in a document is necessary for a
+     * query to match.
+     */
+    static final class Anchor {
+
+        final String field;
+        final BytesRef bytes;
+        final boolean prefix;
+
+        Anchor(Term term, boolean prefix) {
+            this.field = term.field();
+            this.bytes = BytesRef.deepCopyOf(term.bytes());
+            this.prefix = prefix;
+        }
+    }
+}
@@ -0,0 +1,446 @@
+package com.handshape.classifier.service;
+
+import com.github.cliftonlabs.json_simple.JsonException;
+import com.github.cliftonlabs.json_simple.Jsoner;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental parsers for evaluation request bodies. Rather than reading a
+ * body into a string and deserializing it, which copies a large document
+ * several times before analysis starts, these read the body as the document's
+ * fields are consumed, and hand each string value over as a reader that
+ * decodes it in place.
+ *
+ * @author jturner
+ */
+final class RequestBodies {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private RequestBodies() {
+    }
+
+    /**
+     * A document in the form of a JSON object. String values are streamed;
+     * any other value is read whole and stringified, as it would be by
+     * {@link SimpleClassifierService#jsonToMap}. An empty body is an empty
+     * document.
+     *
+     * @param in the body; needn't be buffered
+     * @return the document
+     */
+    static DocumentSource json(Reader in) {
+        return new JsonSource(in);
+    }
+
+    /**
+     * A document in application/x-www-form-urlencoded form. Pairs without a
+     * name or an '=' are ignored, as by
+     * {@link SimpleClassifierService#parseUrlFormEncoded}.
+     *
+     * @param in the body, encoded as UTF-8; needn't be buffered
+     * @return the document
+     */
+    static DocumentSource form(InputStream in) {
+        return new FormSource(in);
+    }
+
+    /**
+     * @param in a request body
+     * @param maxBytes the largest body allowed, in bytes; zero or less for no
+     * limit
+     * @return the body, which throws a {@link BodyTooLargeException} when
+     * read beyond the limit
+     */
+    static InputStream limit(InputStream in, long maxBytes) {
+        if (maxBytes <= 0) {
+            return in;
+        }
+        return new FilterInputStream(in) {
+            private long remaining = maxBytes;
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    count(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    count(n);
+                }
+                return n;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(n);
+                count(skipped);
+                return skipped;
+            }
+
+            private void count(long n) throws BodyTooLargeException {
+                remaining -= n;
+                if (remaining < 0) {
+                    throw new BodyTooLargeException(maxBytes);
+                }
+            }
+        };
+    }
+
+    /**
+     * Thrown when a request body isn't well-formed.
+     */
+    static final class MalformedBodyException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        MalformedBodyException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Thrown when a request body exceeds the size limit.
+     */
+    static final class BodyTooLargeException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        BodyTooLargeException(long maxBytes) {
+            super("Request body exceeds the limit of " + maxBytes + " bytes.");
+        }
+    }
+
+    private static final class JsonSource implements DocumentSource {
+
+        private final Reader in;
+        private final char[] buffer = new char[BUFFER_SIZE];
+        private final StringValue string = new StringValue();
+        private final char[] scratch = new char[256];
+        private int position;
+        private int limit;
+
+        JsonSource(Reader in) {
+            this.in = in;
+        }
+
+        @Override
+        public void read(FieldConsumer consumer) throws IOException {
+            int c = skipWhitespace();
+            if (c < 0) {
+                return;
+            }
+            if (c != '{') {
+                throw new MalformedBodyException("The body must be a JSON object.");
+            }
+            c = skipWhitespace();
+            if (c != '}') {
+                while (true) {
+                    if (c != '"') {
+                        throw new MalformedBodyException("Expected a field name at character " + position + ".");
+                    }
+                    String name = readName();
+                    if (skipWhitespace() != ':') {
+                        throw new MalformedBodyException("Expected ':' after field name \"" + name + "\".");
+                    }
+                    c = skipWhitespace();
+                    if (c == '"') {
+                        string.open();
+                        consumer.field(name, string);
+                        string.skipRest();
+                    } else {
+                        consumer.field(name, new StringReader(readOther(c)));
+                    }
+                    c = skipWhitespace();
+                    if (c == '}') {
+                        break;
+                    } else if (c != ',') {
+                        throw new MalformedBodyException("Expected ',' or '}' after the value of \"" + name + "\".");
+                    }
+                    c = skipWhitespace();
+                }
+            }
+            if (skipWhitespace() >= 0) {
+                throw new MalformedBodyException("Unexpected content after the JSON object.");
+            }
+        }
+
+        private int next() throws IOException {
+            if (position == limit) {
+                int n = in.read(buffer, 0, buffer.length);
+                if (n <= 0) {
+                    return -1;
+                }
+                position = 0;
+                limit = n;
+            }
+            return buffer[position++];
+        }
+
+        private int skipWhitespace() throws IOException {
+            int c = next();
+            while (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                c = next();
+            }
+            return c;
+        }
+
+        private String readName() throws IOException {
+            StringBuilder name = new StringBuilder();
+            string.open();
+            int n;
+            while ((n = string.read(scratch, 0, scratch.length)) >= 0) {
+                name.append(scratch, 0, n);
+            }
+            return name.toString();
+        }
+
+        /**
+         * Reads a non-string value whole, and stringifies it.
+         */
+        private String readOther(int first) throws IOException {
+            StringBuilder raw = new StringBuilder();
+            int c = first;
+            if (c == '{' || c == '[') {
+                int depth = 0;
+                boolean inString = false;
+                boolean escaped = false;
+                do {
+                    if (c < 0) {
+                        throw new MalformedBodyException("Unexpected end of body inside a JSON value.");
+                    }
+                    raw.append((char) c);
+                    if (inString) {
+                        if (escaped) {
+                            escaped = false;
+                        } else if (c == '\\') {
+                            escaped = true;
+                        } else if (c == '"') {
+                            inString = false;
+                        }
+                    } else if (c == '"') {
+                        inString = true;
+                    } else if (c == '{' || c == '[') {
+                        depth++;
+                    } else if (c == '}' || c == ']') {
+                        depth--;
+                    }
+                    if (depth > 0) {
+                        c = next();
+                    }
+                } while (depth > 0);
+            } else {
+                while (c >= 0 && c != ',' && c != '}' && c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                    raw.append((char) c);
+                    c = next();
+                }
+                if (c >= 0) {
+                    // Leave the terminator for the caller.
+                    position--;
+                }
+            }
+            try {
+                return String.valueOf(Jsoner.deserialize(raw.toString()));
+            } catch (JsonException ex) {
+                throw new MalformedBodyException("Invalid JSON value: " + ex.getMessage());
+            }
+        }
+
+        /**
+         * The content of the JSON string at the current position, with escapes
+         * decoded, ending at its closing quote.
+         */
+        private final class StringValue extends Reader {
+
+            private boolean done;
+
+            void open() {
+                done = false;
+            }
+
+            @Override
+            public int read(char[] cbuf, int off, int len) throws IOException {
+                if (done) {
+                    return -1;
+                }
+                int n = 0;
+                while (n < len) {
+                    int c = next();
+                    if (c < 0) {
+                        throw new MalformedBodyException("Unexpected end of body inside a JSON string.");
+                    } else if (c == '"') {
+                        done = true;
+                        break;
+                    } else if (c == '\\') {
+                        c = unescape();
+                    }
+                    cbuf[off + n++] = (char) c;
+                }
+                return n == 0 && done ? -1 : n;
+            }
+
+            private int unescape() throws IOException {
+                int c = next();
+                switch (c) {
+                    case '"':
+                    case '\\':
+                    case '/':
+                        return c;
+                    case 'b':
+                        return '\b';
+                    case 'f':
+                        return '\f';
+                    case 'n':
+                        return '\n';
+                    case 'r':
+                        return '\r';
+                    case 't':
+                        return '\t';
+                    case 'u':
+                        int value = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int digit = Character.digit(next(), 16);
+                            if (digit < 0) {
+                                throw new MalformedBodyException("Invalid \\u escape in a JSON string.");
+                            }
+                            value = (value << 4) | digit;
+                        }
+                        return value;
+                    default:
+                        throw new MalformedBodyException("Invalid escape in a JSON string.");
+                }
+            }
+
+            void skipRest() throws IOException {
+                while (read(scratch, 0, scratch.length) >= 0) {
+                    // Discard.
+                }
+            }
+
+            @Override
+            public void close() {
+                // The body outlives each value.
+            }
+        }
+    }
+
+    private static final class FormSource implements DocumentSource {
+
+        private final InputStream in;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int position;
+        private int limit;
+        private boolean ended;
+
+        FormSource(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public void read(FieldConsumer consumer) throws IOException {
+            ByteArrayOutputStream name = new ByteArrayOutputStream();
+            while (!ended) {
+                name.reset();
+                int terminator = decodeName(name);
+                if (terminator != '=') {
+                    // A pair without a value.
+                    continue;
+                }
+                FormValue value = new FormValue();
+                if (name.size() > 0) {
+                    consumer.field(new String(name.toByteArray(), StandardCharsets.UTF_8), new InputStreamReader(value, StandardCharsets.UTF_8));
+                }
+                value.skipRest();
+            }
+        }
+
+        private int next() throws IOException {
+            if (position == limit) {
+                int n = in.read(buffer, 0, buffer.length);
+                if (n <= 0) {
+                    ended = true;
+                    return -1;
+                }
+                position = 0;
+                limit = n;
+            }
+            return buffer[position++] & 0xff;
+        }
+
+        private int decodeName(ByteArrayOutputStream name) throws IOException {
+            int c;
+            while ((c = next()) >= 0 && c != '=' && c != '&') {
+                name.write(decode(c));
+            }
+            return c;
+        }
+
+        private int decode(int c) throws IOException {
+            if (c == '+') {
+                return ' ';
+            } else if (c == '%') {
+                int high = Character.digit(next(), 16);
+                int low = Character.digit(next(), 16);
+                if (high < 0 || low < 0) {
+                    throw new MalformedBodyException("Invalid percent-encoding in a form body.");
+                }
+                return (high << 4) | low;
+            }
+            return c;
+        }
+
+        /**
+         * The decoded bytes of the value at the current position, ending at
+         * the next '&amp;'.
+         */
+        private final class FormValue extends InputStream {
+
+            private boolean done;
+
+            @Override
+            public int read() throws IOException {
+                if (done) {
+                    return -1;
+                }
+                int c = next();
+                if (c < 0 || c == '&') {
+                    done = true;
+                    return -1;
+                }
+                return decode(c);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = 0;
+                while (n < len) {
+                    int c = read();
+                    if (c < 0) {
+                        break;
+                    }
+                    b[off + n++] = (byte) c;
+                }
+                return n == 0 && len > 0 ? -1 : n;
+            }
+
+            void skipRest() throws IOException {
+                while (read() >= 0) {
+                    // Discard.
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.handshape.classifier.service;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Executor for HTTP exchanges that bounds the amount of queued work. Requests
+ * are run either on a fixed pool of platform threads with a bounded queue, or
+ * (on a JDK that supports them) on virtual threads with a bound on the number
+ * of concurrent requests. Requests that can't be admitted, or that waited in
+ * the queue for longer than the configured limit, are shed: they're answered
+ * with a 503 and a Retry-After header by the filter returned from
+ * {@link #getFilter()}. Requests that can't be admitted are shed on a small
+ * pool of their own, so that neither the 503 nor a slow client holds up the
+ * server's dispatcher thread; only if that pool is swamped too is a request
+ * shed on the thread that submitted it. A context without the filter is
+ * served where its requests are shed instead, outside the request pool and
+ * its queue. That's only for cheap handlers, such as health probes, that must
+ * answer however busy the service is; every other context must have the
+ * filter.
+ *
+ * @author jturner
+ */
+class RequestExecutor implements Executor, Closeable {
+
+    /**
+     * Threads, and queued requests, for answering shed requests.
+     */
+    private static final int SHED_THREADS = 2;
+    private static final int SHED_QUEUE_DEPTH = 1024;
+
+    private final ExecutorService delegate;
+    private final ExecutorService shedder = new ThreadPoolExecutor(SHED_THREADS, SHED_THREADS, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(SHED_QUEUE_DEPTH), new RequestThreadFactory("request shedder"),
+            // Swamped or shut down: shed in the calling thread.
+            (task, executor) -> task.run());
+    private final Semaphore admissions;
+    private final long maxQueueWaitNanos;
+    private final int retryAfterSeconds;
+    private final ThreadLocal<Boolean> shedding = new ThreadLocal<>();
+    private final LongAdder shedCount = new LongAdder();
+
+    /**
+     * @param threads the number of worker threads; ignored for virtual threads
+     * @param queueDepth the number of requests that may wait for a thread
+     * @param maxQueueWaitMillis requests that waited longer than this are shed
+     * when they reach a thread; zero or less disables the limit
+     * @param retryAfterSeconds the value of the Retry-After header on shed
+     * requests
+     * @param virtualThreads true to run each request on its own virtual thread,
+     * if the JDK supports them
+     */
+    RequestExecutor(int threads, int queueDepth, long maxQueueWaitMillis, int retryAfterSeconds, boolean virtualThreads) {
+        this.maxQueueWaitNanos = maxQueueWaitMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(maxQueueWaitMillis) : Long.MAX_VALUE;
+        this.retryAfterSeconds = retryAfterSeconds;
+        ExecutorService virtual = virtualThreads ? newVirtualThreadExecutor() : null;
+        if (virtual != null) {
+            delegate = virtual;
+            admissions = new Semaphore(Math.max(1, threads) + Math.max(0, queueDepth));
+        } else {
+            int poolSize = Math.max(1, threads);
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                    queueDepth > 0 ? new ArrayBlockingQueue<>(queueDepth) : new SynchronousQueue<>(),
+                    new RequestThreadFactory("request handler"),
+                    (task, executor) -> shedElsewhere(task));
+            delegate = pool;
+            admissions = null;
+        }
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (admissions != null) {
+            if (!admissions.tryAcquire()) {
+                shedElsewhere(task);
+                return;
+            }
+            delegate.execute(new QueuedTask(task) {
+                @Override
+                public void run() {
+                    try {
+                        super.run();
+                    } finally {
+                        admissions.release();
+                    }
+                }
+            });
+        } else {
+            delegate.execute(new QueuedTask(task));
+        }
+    }
+
+    /**
+     * Sheds a task that couldn't be admitted on the shedding pool, or, if
+     * that's full, in the calling thread.
+     */
+    private void shedElsewhere(Runnable task) {
+        shedder.execute(() -> shed(task));
+    }
+
+    /**
+     * Runs a task in the calling thread, flagged so that the filter answers it
+     * with a 503 without doing any real work.
+     */
+    private void shed(Runnable task) {
+        Runnable original = task instanceof QueuedTask ? ((QueuedTask) task).task : task;
+        shedding.set(Boolean.TRUE);
+        try {
+            original.run();
+        } finally {
+            shedding.remove();
+        }
+    }
+
+    /**
+     * @return the number of requests shed since this executor was created
+     */
+    long getShedCount() {
+        return shedCount.sum();
+    }
+
+    /**
+     * @return true if the request being handled on this thread is to be shed
+     */
+    boolean isShedding() {
+        return shedding.get() != null;
+    }
+
+    /**
+     * @return a filter that answers shed requests with a 503
+     */
+    Filter getFilter() {
+        return new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                if (isShedding()) {
+                    shedCount.increment();
+                    exchange.getResponseHeaders().add("Retry-After", String.valueOf(retryAfterSeconds));
+                    exchange.sendResponseHeaders(503, -1);
+                    exchange.close();
+                } else {
+                    chain.doFilter(exchange);
+                }
+            }
+
+            @Override
+            public String description() {
+                return "Sheds requests that the executor could not admit.";
+            }
+        };
+    }
+
+    /**
+     * Stops accepting new requests, and waits briefly for running ones.
+     */
+    @Override
+    public void close() {
+        delegate.shutdown();
+        shedder.shutdown();
+        try {
+            delegate.awaitTermination(5, TimeUnit.SECONDS);
+            shedder.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            Logger.getLogger(RequestExecutor.class.getName()).log(Level.WARNING,
+                    "Virtual threads are not supported by this JDK; falling back to a thread pool.");
+            return null;
+        }
+    }
+
+    /**
+     * Wraps a task with the time it was queued, so that stale requests can be
+     * shed when they reach a thread.
+     */
+    private class QueuedTask implements Runnable {
+
+        private final Runnable task;
+        private final long queuedAt = System.nanoTime();
+
+        QueuedTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            if (System.nanoTime() - queuedAt > maxQueueWaitNanos) {
+                shed(this);
+            } else {
+                task.run();
+            }
+        }
+    }
+
+    private static class RequestThreadFactory implements ThreadFactory {
+
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        RequestThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, name + " " + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.handshape.classifier.service;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Request counts and latency histograms, labelled by request method and
+ * content type. Recorded by the filter returned from {@link #getFilter()}.
+ * Label values are normalized to a small fixed set so that clients can't
+ * inflate the number of series.
+ *
+ * @author jturner
+ */
+final class RequestMetrics {
+
+    private final ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * @return a filter that times every exchange passing through it
+     */
+    Filter getFilter() {
+        return new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                long start = System.nanoTime();
+                try {
+                    chain.doFilter(exchange);
+                } finally {
+                    record(exchange.getRequestMethod(), exchange.getRequestHeaders().getFirst("Content-Type"), System.nanoTime() - start);
+                }
+            }
+
+            @Override
+            public String description() {
+                return "Records request counts and latencies.";
+            }
+        };
+    }
+
+    /**
+     * Records one request.
+     *
+     * @param method the request method
+     * @param contentType the request content type, or null
+     * @param nanos the time taken to handle the request
+     */
+    void record(String method, String contentType, long nanos) {
+        String labels = PrometheusText.label("method", normalizeMethod(method)) + ","
+                + PrometheusText.label("content_type", normalizeContentType(contentType));
+        histograms.computeIfAbsent(labels, k -> new LatencyHistogram()).record(nanos);
+    }
+
+    /**
+     * Writes the request metrics in the Prometheus text format.
+     */
+    void write(StringBuilder out) {
+        Map<String, LatencyHistogram> sorted = new TreeMap<>(histograms);
+        PrometheusText.header(out, "classifier_requests_total", "counter", "HTTP requests handled.");
+        sorted.forEach((labels, histogram) -> PrometheusText.sample(out, "classifier_requests_total", labels, histogram.getCount()));
+        PrometheusText.header(out, "classifier_request_duration_seconds", "histogram", "Time taken to handle HTTP requests.");
+        sorted.forEach((labels, histogram) -> histogram.write(out, "classifier_request_duration_seconds", labels));
+    }
+
+    private static String normalizeMethod(String method) {
+        switch (method) {
+            case "GET":
+            case "POST":
+            case "HEAD":
+                return method;
+            default:
+                return "other";
+        }
+    }
+
+    private static String normalizeContentType(String contentType) {
+        if (contentType == null || contentType.isEmpty()) {
+            return "none";
+        }
+        int idx = contentType.indexOf(';');
+        String type = (idx >= 0 ? contentType.substring(0, idx) : contentType).trim().toLowerCase();
+        switch (type) {
+            case "application/json":
+            case "application/x-www-form-urlencoded":
+            case "application/x-ndjson":
+            case "text/plain":
+                return type;
+            default:
+                return "other";
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package com.handshape.classifier.service;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Bounded cache of evaluation results, keyed by the normalized content of the
+ * evaluated document and the generation of the category set that produced
+ * them. Entries are evicted least-recently-used first once their estimated
+ * size exceeds the configured budget. Concurrent requests for the same
+ * document are coalesced, so that only one of them is evaluated.
+ *
+ * @author jturner
+ */
+final class ResultCache {
+
+    /**
+     * Rough per-entry overhead, in bytes, of the key and the map entries
+     * holding it and its result.
+     */
+    private static final long ENTRY_OVERHEAD = 160;
+
+    private final long maxBytes;
+    private final LinkedHashMap<Key, CategoryMatches> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ConcurrentHashMap<Key, CompletableFuture<CategoryMatches>> inFlight = new ConcurrentHashMap<>();
+    private long bytes = 0L;
+    private volatile long generation = 0L;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxBytes the estimated size, in bytes, beyond which entries are
+     * evicted
+     */
+    ResultCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Looks up the result for a document, evaluating it if it's neither cached
+     * nor already being evaluated by another thread.
+     *
+     * @param generation the generation of the category set the result must
+     * come from
+     * @param evaluationData the document
+     * @param fields the only fields that can affect the result, which are the
+     * only ones that need to match for documents to share a result; null if
+     * every field can
+     * @param evaluator evaluates the document if necessary
+     * @return the matching categories
+     */
+    CategoryMatches get(long generation, Map<String, String> evaluationData, Set<String> fields, Function<Map<String, String>, CategoryMatches> evaluator) {
+        Key key = new Key(generation, evaluationData, fields);
+        CategoryMatches result;
+        synchronized (this) {
+            result = entries.get(key);
+        }
+        if (result != null) {
+            hits.increment();
+            return result;
+        }
+        CompletableFuture<CategoryMatches> future = new CompletableFuture<>();
+        CompletableFuture<CategoryMatches> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            coalesced.increment();
+            try {
+                return existing.join();
+            } catch (CompletionException ex) {
+                throw ex.getCause() instanceof RuntimeException ? (RuntimeException) ex.getCause() : ex;
+            }
+        }
+        misses.increment();
+        try {
+            result = evaluator.apply(evaluationData);
+            put(key, result);
+            future.complete(result);
+            return result;
+        } catch (RuntimeException | Error ex) {
+            future.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    private synchronized void put(Key key, CategoryMatches result) {
+        if (key.generation < generation) {
+            // The categories were reloaded while this result was being computed.
+            return;
+        }
+        long size = key.size + result.estimateBytes();
+        if (size > maxBytes) {
+            return;
+        }
+        CategoryMatches previous = entries.put(key, result);
+        if (previous != null) {
+            bytes -= key.size + previous.estimateBytes();
+        }
+        bytes += size;
+        Iterator<Entry<Key, CategoryMatches>> eldest = entries.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            Entry<Key, CategoryMatches> entry = eldest.next();
+            bytes -= entry.getKey().size + entry.getValue().estimateBytes();
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Drops every entry from generations before the given one, and refuses
+     * results from them that are still being computed.
+     *
+     * @param generation the current generation of the category set
+     */
+    synchronized void invalidate(long generation) {
+        this.generation = generation;
+        entries.clear();
+        bytes = 0L;
+    }
+
+    /**
+     * @return the number of lookups answered from the cache
+     */
+    long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of lookups that had to be evaluated
+     */
+    long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of lookups that waited for an identical in-flight
+     * evaluation rather than evaluating
+     */
+    long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return the number of entries evicted to stay within the size budget
+     */
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the number of cached results
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the estimated size, in bytes, of the cached results
+     */
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Writes the cache metrics in the Prometheus text format.
+     */
+    void write(StringBuilder out) {
+        PrometheusText.single(out, "classifier_cache_hits_total", "counter",
+                "Evaluations answered from the result cache.", getHits());
+        PrometheusText.single(out, "classifier_cache_misses_total", "counter",
+                "Evaluations that missed the result cache.", getMisses());
+        PrometheusText.single(out, "classifier_cache_coalesced_total", "counter",
+                "Evaluations that waited for an identical in-flight evaluation.", getCoalesced());
+        PrometheusText.single(out, "classifier_cache_evictions_total", "counter",
+                "Results evicted from the cache to stay within its size limit.", getEvictions());
+        PrometheusText.single(out, "classifier_cache_entries", "gauge",
+                "Results currently cached.", size());
+        PrometheusText.single(out, "classifier_cache_bytes", "gauge",
+                "Estimated size of the cached results.", getBytes());
+    }
+
+    /**
+     * A document's relevant field names and values in field order, with the
+     * category generation. Equality compares the full content, so a hash collision
+     * can never return another document's result.
+     */
+    private static final class Key {
+
+        private final long generation;
+        private final String[] fields;
+        private final int hash;
+        private final long size;
+
+        Key(long generation, Map<String, String> evaluationData, Set<String> relevant) {
+            this.generation = generation;
+            String[] names = new String[evaluationData.size()];
+            int count = 0;
+            for (Entry<String, String> entry : evaluationData.entrySet()) {
+                if (entry.getKey() != null && entry.getValue() != null && (relevant == null || relevant.contains(entry.getKey()))) {
+                    names[count++] = entry.getKey();
+                }
+            }
+            Arrays.sort(names, 0, count);
+            fields = new String[count * 2];
+            long chars = 0;
+            for (int i = 0; i < count; i++) {
+                fields[i * 2] = names[i];
+                fields[i * 2 + 1] = evaluationData.get(names[i]);
+                chars += names[i].length() + fields[i * 2 + 1].length();
+            }
+            hash = 31 * Long.hashCode(generation) + Arrays.hashCode(fields);
+            size = ENTRY_OVERHEAD + 2 * chars;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && generation == other.generation && Arrays.equals(fields, other.fields);
+        }
+    }
+}
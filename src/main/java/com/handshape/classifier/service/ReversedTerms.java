@@ -0,0 +1,260 @@
+package com.handshape.classifier.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.BytesTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryVisitor;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.util.ByteBlockPool;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.Counter;
+import org.apache.lucene.util.RecyclingByteBlockAllocator;
+
+/**
+ * Reversed copies of fields, for leading-wildcard queries. A query like
+ * {@code *ectomy} can only be run by testing every term of its field, which
+ * on a large document is most of the cost of evaluating it. Rewritten as
+ * {@code ymotce*} against a field holding each of the field's terms
+ * reversed, it seeks straight to the few terms that can match, and can be
+ * pre-filtered like any other prefix query. A term matches a pattern exactly
+ * when the reversed term matches the reversed pattern, so the rewritten query
+ * matches the same documents.
+ *
+ * <p>
+ * Only the distinct terms of a field are copied, not their positions, since
+ * wildcard queries only test whether a term is present. An instance records
+ * the terms of one field value at a time as they're analyzed, and must only
+ * be used by one thread at a time.
+ *
+ * @author jturner
+ */
+final class ReversedTerms {
+
+    /**
+     * Appended to a field's name to name its reversed copy. The NUL keeps it
+     * apart from the fields of real documents.
+     */
+    private static final String SUFFIX = "\u0000reversed";
+
+    /**
+     * Blocks of recorded terms kept for reuse between field values.
+     */
+    private static final int MAX_REUSED_BLOCKS = 32;
+
+    private final BytesRefHash terms = new BytesRefHash(new ByteBlockPool(
+            new RecyclingByteBlockAllocator(ByteBlockPool.BYTE_BLOCK_SIZE, MAX_REUSED_BLOCKS, Counter.newCounter())));
+    private final BytesRefBuilder scratch = new BytesRefBuilder();
+    private final BytesRef term = new BytesRef();
+    private final TermStream stream = new TermStream();
+    private char[] reversed = new char[32];
+
+    /**
+     * @param field a field
+     * @return the name of the field's reversed copy
+     */
+    static String fieldName(String field) {
+        return field + SUFFIX;
+    }
+
+    /**
+     * Rewrites the leading-wildcard queries within a query to run against
+     * reversed fields. Wildcards that also end their pattern, like
+     * {@code *ect*}, gain nothing from reversal and are left alone, as are
+     * queries nested in anything but boolean queries, boosts and constant
+     * scores.
+     *
+     * @param query a query
+     * @return the rewritten query, or the same query if it has nothing to
+     * rewrite
+     */
+    static Query rewrite(Query query) {
+        if (query instanceof WildcardQuery) {
+            return rewrite((WildcardQuery) query);
+        } else if (query instanceof BoostQuery) {
+            BoostQuery boost = (BoostQuery) query;
+            Query inner = rewrite(boost.getQuery());
+            return inner == boost.getQuery() ? query : new BoostQuery(inner, boost.getBoost());
+        } else if (query instanceof ConstantScoreQuery) {
+            ConstantScoreQuery constant = (ConstantScoreQuery) query;
+            Query inner = rewrite(constant.getQuery());
+            return inner == constant.getQuery() ? query : new ConstantScoreQuery(inner);
+        } else if (query instanceof BooleanQuery) {
+            BooleanQuery bool = (BooleanQuery) query;
+            BooleanQuery.Builder builder = new BooleanQuery.Builder().setMinimumNumberShouldMatch(bool.getMinimumNumberShouldMatch());
+            boolean changed = false;
+            for (BooleanClause clause : bool.clauses()) {
+                Query inner = rewrite(clause.getQuery());
+                changed |= inner != clause.getQuery();
+                builder.add(inner, clause.getOccur());
+            }
+            return changed ? builder.build() : query;
+        }
+        return query;
+    }
+
+    private static Query rewrite(WildcardQuery query) {
+        String pattern = query.getTerm().text();
+        List<String> units = new ArrayList<>();
+        for (int i = 0; i < pattern.length();) {
+            int end = i + Character.charCount(pattern.codePointAt(i));
+            if (pattern.charAt(i) == WildcardQuery.WILDCARD_ESCAPE) {
+                if (end < pattern.length()) {
+                    end += Character.charCount(pattern.codePointAt(end));
+                } else {
+                    // A trailing escape is a literal backslash, which must stay one once it leads.
+                    units.add("\\\\");
+                    break;
+                }
+            }
+            units.add(pattern.substring(i, end));
+            i = end;
+        }
+        if (units.isEmpty() || !isWildcard(units.get(0)) || isWildcard(units.get(units.size() - 1))) {
+            return query;
+        }
+        Collections.reverse(units);
+        String field = fieldName(query.getTerm().field());
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < units.size() - 1; i++) {
+            String unit = units.get(i);
+            if (isWildcard(unit)) {
+                // More than a suffix: keep the pattern, which still seeks to its literal start.
+                return new WildcardQuery(new Term(field, String.join("", units)));
+            }
+            literal.append(unit.charAt(0) == WildcardQuery.WILDCARD_ESCAPE ? unit.substring(1) : unit);
+        }
+        String last = units.get(units.size() - 1);
+        if (last.charAt(0) == WildcardQuery.WILDCARD_STRING) {
+            return new PrefixQuery(new Term(field, literal.toString()));
+        }
+        return new WildcardQuery(new Term(field, String.join("", units)));
+    }
+
+    private static boolean isWildcard(String unit) {
+        return unit.length() == 1 && (unit.charAt(0) == WildcardQuery.WILDCARD_STRING || unit.charAt(0) == WildcardQuery.WILDCARD_CHAR);
+    }
+
+    /**
+     * @param query a rewritten query
+     * @return the fields whose reversed copies the query reads
+     */
+    static Set<String> sourceFields(Query query) {
+        Set<String> fields = new TreeSet<>();
+        query.visit(new QueryVisitor() {
+            @Override
+            public boolean acceptField(String field) {
+                if (field.endsWith(SUFFIX)) {
+                    fields.add(field.substring(0, field.length() - SUFFIX.length()));
+                }
+                return false;
+            }
+
+            @Override
+            public QueryVisitor getSubVisitor(BooleanClause.Occur occur, Query parent) {
+                // The default skips MUST_NOT clauses.
+                return this;
+            }
+        });
+        return fields.isEmpty() ? Collections.emptySet() : fields;
+    }
+
+    /**
+     * Starts recording the terms of a field value.
+     *
+     * @param input the value's tokens
+     * @return the same tokens, recorded as they're consumed
+     */
+    TokenStream record(TokenStream input) {
+        terms.clear();
+        terms.reinit();
+        return new Recorder(input);
+    }
+
+    /**
+     * @return the distinct terms recorded from the last field value, each
+     * reversed; valid until the next value is recorded
+     */
+    TokenStream replay() {
+        return stream;
+    }
+
+    private void add(char[] buffer, int length) {
+        if (reversed.length < length) {
+            reversed = new char[Math.max(length, 2 * reversed.length)];
+        }
+        for (int i = 0; i < length; i++) {
+            char c = buffer[length - 1 - i];
+            if (Character.isLowSurrogate(c) && i + 1 < length && Character.isHighSurrogate(buffer[length - 2 - i])) {
+                // Reversed by code point, as wildcards match code points.
+                reversed[i] = buffer[length - 2 - i];
+                reversed[++i] = c;
+            } else {
+                reversed[i] = c;
+            }
+        }
+        scratch.copyChars(reversed, 0, length);
+        terms.add(scratch.get());
+    }
+
+    /**
+     * Passes tokens through, recording their terms.
+     */
+    private final class Recorder extends TokenFilter {
+
+        private final CharTermAttribute charTerm = addAttribute(CharTermAttribute.class);
+
+        Recorder(TokenStream input) {
+            super(input);
+        }
+
+        @Override
+        public boolean incrementToken() throws IOException {
+            if (!input.incrementToken()) {
+                return false;
+            }
+            add(charTerm.buffer(), charTerm.length());
+            return true;
+        }
+    }
+
+    /**
+     * Replays the recorded terms.
+     */
+    private final class TermStream extends TokenStream {
+
+        private final BytesTermAttribute bytes = addAttribute(BytesTermAttribute.class);
+        private int next;
+
+        @Override
+        public void reset() throws IOException {
+            super.reset();
+            next = 0;
+        }
+
+        @Override
+        public boolean incrementToken() {
+            if (next >= terms.size()) {
+                return false;
+            }
+            clearAttributes();
+            bytes.setBytesRef(terms.get(next++, term));
+            return true;
+        }
+    }
+}
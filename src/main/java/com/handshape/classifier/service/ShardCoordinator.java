@@ -0,0 +1,485 @@
+package com.handshape.classifier.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+
+/**
+ * Scatters documents to the shards of a category set, and gathers their
+ * results. Each shard is a service started with {@code --shard=I/N}, which
+ * loads only the categories whose key hashes to it (see
+ * {@link #shardOf(String, int)}), and may have several replicas. Documents are
+ * sent over the binary protocol, on one persistent, pipelined connection per
+ * replica, to every shard at once; the matches are merged once every shard
+ * has answered or the shard timeout has passed, whichever comes first. A
+ * shard that fails or times out makes the result partial, rather than failing
+ * it.
+ *
+ * <p>
+ * A shard's replicas take turns at being asked first. If the first replica
+ * fails, the next is asked straight away; with a hedge delay set, the next is
+ * also asked if the first hasn't answered within the delay, and the first
+ * answer wins. Connections are made in the background, so a replica that
+ * can't be reached costs a document no more than the shard timeout.
+ *
+ * @author jturner
+ */
+public class ShardCoordinator implements Closeable {
+
+    private final List<List<Replica>> shards;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService connector;
+    private final AtomicInteger rotation = new AtomicInteger();
+    private volatile long timeoutMillis = 1000L;
+    private volatile long hedgeDelayMillis = 0L;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder partials = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder[] errors;
+    private final LongAdder[] timeouts;
+
+    /**
+     * @param shards the addresses of each shard's replicas' binary protocol
+     * listeners, in shard order
+     */
+    public ShardCoordinator(List<List<InetSocketAddress>> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is needed.");
+        }
+        this.shards = new ArrayList<>(shards.size());
+        for (List<InetSocketAddress> replicas : shards) {
+            if (replicas.isEmpty()) {
+                throw new IllegalArgumentException("Every shard needs at least one replica.");
+            }
+            List<Replica> shard = new ArrayList<>(replicas.size());
+            for (InetSocketAddress address : replicas) {
+                shard.add(new Replica(address));
+            }
+            this.shards.add(shard);
+        }
+        errors = new LongAdder[shards.size()];
+        timeouts = new LongAdder[shards.size()];
+        for (int i = 0; i < errors.length; i++) {
+            errors[i] = new LongAdder();
+            timeouts[i] = new LongAdder();
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "shard hedging");
+            t.setDaemon(true);
+            return t;
+        });
+        // At most one connection is being made to each replica at a time.
+        connector = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "shard connector");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Parses a list of shards: the shards are separated by commas, and each
+     * shard's replicas by '|', as in
+     * {@code node1:9101|node2:9101,node1:9102|node2:9102}.
+     *
+     * @param spec the shards
+     * @return the addresses of each shard's replicas
+     * @throws IllegalArgumentException if an address is malformed
+     */
+    public static List<List<InetSocketAddress>> parse(String spec) {
+        List<List<InetSocketAddress>> shards = new ArrayList<>();
+        for (String shard : spec.split(",")) {
+            List<InetSocketAddress> replicas = new ArrayList<>();
+            for (String replica : shard.split("\\|")) {
+                String address = replica.trim();
+                int colon = address.lastIndexOf(':');
+                if (colon <= 0) {
+                    throw new IllegalArgumentException("Expected host:port, but found '" + address + "'.");
+                }
+                replicas.add(InetSocketAddress.createUnresolved(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))));
+            }
+            shards.add(replicas);
+        }
+        return shards;
+    }
+
+    /**
+     * The shard a category belongs to. The hash is of the key's UTF-8 bytes,
+     * so the assignment is the same on every node and JVM.
+     *
+     * @param key the category key
+     * @param count the number of shards
+     * @return the shard, from zero to count - 1
+     */
+    public static int shardOf(String key, int count) {
+        return (StringHelper.murmurhash3_x86_32(new BytesRef(key), 0) & Integer.MAX_VALUE) % count;
+    }
+
+    /**
+     * Evaluates a document on every shard, and merges the results. A
+     * selection's match limit is applied to the merged result, by category
+     * name.
+     *
+     * @param document the document's fields
+     * @param selection the categories to evaluate
+     * @param useCache false to have the shards evaluate the document afresh
+     * @return the merged matches, and which shards, if any, are missing from
+     * them
+     */
+    public Result evaluate(Map<String, String> document, CategorySelection selection, boolean useCache) {
+        requests.increment();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        List<Request> sent = new ArrayList<>(shards.size());
+        for (List<Replica> replicas : shards) {
+            sent.add(new Request(replicas, document, selection, useCache));
+        }
+        Set<String> categories = new TreeSet<>();
+        List<Integer> failed = new ArrayList<>();
+        for (int i = 0; i < sent.size(); i++) {
+            CompletableFuture<Set<String>> result = sent.get(i).result;
+            try {
+                categories.addAll(result.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+            } catch (TimeoutException ex) {
+                // Stops any hedge still to come.
+                result.completeExceptionally(ex);
+                timeouts[i].increment();
+                failed.add(i);
+            } catch (ExecutionException ex) {
+                errors[i].increment();
+                failed.add(i);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                failed.add(i);
+            }
+        }
+        if (!failed.isEmpty()) {
+            partials.increment();
+        }
+        int limit = selection.getLimit();
+        if (limit > 0 && categories.size() > limit) {
+            Iterator<String> it = categories.iterator();
+            for (int i = 0; it.hasNext(); i++) {
+                it.next();
+                if (i >= limit) {
+                    it.remove();
+                }
+            }
+        }
+        return new Result(categories, failed);
+    }
+
+    /**
+     * @return the number of shards
+     */
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * @return how long to wait for the shards' results, in milliseconds
+     */
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * @param timeoutMillis how long to wait for the shards' results, in
+     * milliseconds (default: 1000); shards that haven't answered by then are
+     * left out of the result, which is flagged as partial
+     */
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @return how long to wait for a replica before also asking the next one,
+     * in milliseconds; zero if requests aren't hedged
+     */
+    public long getHedgeDelayMillis() {
+        return hedgeDelayMillis;
+    }
+
+    /**
+     * Hedges requests to shards with more than one replica: if the replica
+     * asked first hasn't answered within the delay, the next one is asked
+     * too. A delay around the shards' 95th percentile latency cuts the tail
+     * for a few percent more requests.
+     *
+     * @param hedgeDelayMillis the delay, in milliseconds; zero (the default)
+     * to only ask the next replica when one fails
+     */
+    public void setHedgeDelayMillis(long hedgeDelayMillis) {
+        this.hedgeDelayMillis = hedgeDelayMillis;
+    }
+
+    /**
+     * Writes the coordinator's metrics in the Prometheus text format.
+     */
+    void write(StringBuilder out) {
+        PrometheusText.single(out, "classifier_shard_requests_total", "counter",
+                "Documents scattered to the shards.", requests.sum());
+        PrometheusText.single(out, "classifier_shard_partial_results_total", "counter",
+                "Documents answered without the results of every shard.", partials.sum());
+        PrometheusText.single(out, "classifier_shard_hedged_requests_total", "counter",
+                "Requests sent to a second replica because the first was slow.", hedges.sum());
+        PrometheusText.header(out, "classifier_shard_failures_total", "counter",
+                "Shard requests that failed or timed out, by shard.");
+        for (int i = 0; i < errors.length; i++) {
+            PrometheusText.sample(out, "classifier_shard_failures_total",
+                    PrometheusText.label("shard", String.valueOf(i)) + "," + PrometheusText.label("reason", "error"), errors[i].sum());
+            PrometheusText.sample(out, "classifier_shard_failures_total",
+                    PrometheusText.label("shard", String.valueOf(i)) + "," + PrometheusText.label("reason", "timeout"), timeouts[i].sum());
+        }
+    }
+
+    /**
+     * Closes the connections to the shards.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        connector.shutdownNow();
+        for (List<Replica> replicas : shards) {
+            for (Replica replica : replicas) {
+                replica.close();
+            }
+        }
+    }
+
+    /**
+     * The merged result of a document's evaluation on every shard.
+     */
+    public static final class Result {
+
+        private final Set<String> categories;
+        private final List<Integer> failedShards;
+
+        Result(Set<String> categories, List<Integer> failedShards) {
+            this.categories = Collections.unmodifiableSet(categories);
+            this.failedShards = Collections.unmodifiableList(failedShards);
+        }
+
+        /**
+         * @return the names of the matching categories, in name order
+         */
+        public Set<String> getCategories() {
+            return categories;
+        }
+
+        /**
+         * @return true if some shard failed or timed out, so that categories
+         * may be missing
+         */
+        public boolean isPartial() {
+            return !failedShards.isEmpty();
+        }
+
+        /**
+         * @return the shards missing from the result, in order
+         */
+        public List<Integer> getFailedShards() {
+            return failedShards;
+        }
+    }
+
+    /**
+     * One document's request to one shard, which may be sent to several of
+     * its replicas.
+     */
+    private final class Request {
+
+        private final CompletableFuture<Set<String>> result = new CompletableFuture<>();
+        private final List<Replica> replicas;
+        private final Map<String, String> document;
+        private final CategorySelection selection;
+        private final boolean useCache;
+        private final int first;
+        private int tried = 0;
+        private int outstanding = 0;
+
+        Request(List<Replica> replicas, Map<String, String> document, CategorySelection selection, boolean useCache) {
+            this.replicas = replicas;
+            this.document = document;
+            this.selection = selection;
+            this.useCache = useCache;
+            this.first = replicas.size() > 1 ? Math.floorMod(rotation.getAndIncrement(), replicas.size()) : 0;
+            send();
+            long delay = hedgeDelayMillis;
+            if (delay > 0 && replicas.size() > 1) {
+                scheduler.schedule(this::hedge, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void hedge() {
+            if (!result.isDone()) {
+                hedges.increment();
+                send();
+            }
+        }
+
+        /**
+         * Sends the document to the next replica not yet tried, if any.
+         */
+        private void send() {
+            Replica replica;
+            synchronized (this) {
+                if (result.isDone() || tried >= replicas.size()) {
+                    return;
+                }
+                replica = replicas.get((first + tried++) % replicas.size());
+                outstanding++;
+            }
+            // Never blocks: a connection still being made is waited for asynchronously.
+            replica.client().thenCompose(client -> client.evaluateAsync(document, selection, useCache)).whenComplete((categories, ex) -> {
+                if (ex == null) {
+                    result.complete(categories);
+                } else {
+                    failed(ex);
+                }
+            });
+        }
+
+        private void failed(Throwable ex) {
+            boolean last;
+            synchronized (this) {
+                outstanding--;
+                last = tried >= replicas.size() && outstanding == 0;
+            }
+            if (last) {
+                result.completeExceptionally(ex);
+            } else {
+                send();
+            }
+        }
+    }
+
+    /**
+     * One replica of a shard, and the connection to it. Connections are made
+     * on the connector threads, never on the caller's. Requests made while
+     * the first connection is being made wait for it; once a connection has
+     * failed or been lost, requests fail straight away, so that they move on
+     * to the next replica, while the replica is reconnected in the background.
+     */
+    private final class Replica {
+
+        private final InetSocketAddress address;
+        private ClassifierClient client;
+        private CompletableFuture<ClassifierClient> connecting;
+        private boolean down = false;
+        private boolean closed = false;
+
+        Replica(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        /**
+         * @return the connection to the replica, which completes
+         * exceptionally if it can't be made or the replica is reconnecting
+         */
+        synchronized CompletableFuture<ClassifierClient> client() {
+            if (client != null && client.isOpen()) {
+                return CompletableFuture.completedFuture(client);
+            }
+            if (client != null) {
+                down = true;
+                discard();
+            }
+            CompletableFuture<ClassifierClient> pending = connecting;
+            if (pending == null && !closed) {
+                CompletableFuture<ClassifierClient> attempt = new CompletableFuture<>();
+                connecting = attempt;
+                pending = attempt;
+                try {
+                    connector.execute(() -> connect(attempt));
+                } catch (RejectedExecutionException ex) {
+                    attempt.completeExceptionally(ex);
+                }
+                // May run here and now, if the attempt is already over.
+                attempt.whenComplete((connected, ex) -> connected(attempt, connected));
+            }
+            if (down || pending == null) {
+                CompletableFuture<ClassifierClient> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new IOException("Reconnecting to " + address.getHostString() + ":" + address.getPort() + "."));
+                return failed;
+            }
+            return pending;
+        }
+
+        private void connect(CompletableFuture<ClassifierClient> attempt) {
+            int connectTimeout = (int) Math.min(Integer.MAX_VALUE, Math.max(1L, timeoutMillis));
+            try {
+                attempt.complete(new ClassifierClient(address.getHostString(), address.getPort(), connectTimeout));
+            } catch (IOException ex) {
+                attempt.completeExceptionally(ex);
+            }
+        }
+
+        private synchronized void connected(CompletableFuture<ClassifierClient> attempt, ClassifierClient connected) {
+            if (connecting == attempt) {
+                connecting = null;
+            }
+            if (connected == null) {
+                down = true;
+            } else if (closed) {
+                client = connected;
+                discard();
+            } else {
+                client = connected;
+                down = false;
+            }
+        }
+
+        private void discard() {
+            if (client != null) {
+                try {
+                    client.close();
+                } catch (IOException ex) {
+                    Logger.getLogger(ShardCoordinator.class.getName()).log(Level.FINE, null, ex);
+                }
+                client = null;
+            }
+        }
+
+        synchronized void close() {
+            closed = true;
+            discard();
+        }
+    }
+
+    /**
+     * @return the shards' addresses, for logging
+     */
+    @Override
+    public String toString() {
+        Map<Integer, List<String>> addresses = new TreeMap<>();
+        for (int i = 0; i < shards.size(); i++) {
+            List<String> replicas = new ArrayList<>();
+            for (Replica replica : shards.get(i)) {
+                replicas.add(replica.address.getHostString() + ":" + replica.address.getPort());
+            }
+            addresses.put(i, replicas);
+        }
+        return "ShardCoordinator" + addresses;
+    }
+}
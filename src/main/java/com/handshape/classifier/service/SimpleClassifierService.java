@@ -3,22 +3,43 @@ package com.handshape.classifier.service;
 import com.github.cliftonlabs.json_simple.JsonArray;
 import com.github.cliftonlabs.json_simple.JsonObject;
 import com.github.cliftonlabs.json_simple.Jsoner;
+import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BooleanSupplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.io.IOUtils;
@@ -34,27 +55,205 @@ import org.jsoup.nodes.Element;
  */
 public class SimpleClassifierService {
 
+    private static final String NODELAY_PROPERTY = "sun.net.httpserver.nodelay";
+
     private File categoriesFile;
+    private File snapshotFile;
     private HttpServer server;
+    private LuceneEvaluator evaluator;
+    private ExecutorService batchExecutor;
+    private int maxBatchSize = 1000000;
+    private int maxBatchInFlight = Runtime.getRuntime().availableProcessors() * 2;
+    private RequestExecutor requestExecutor;
+    private int requestThreads = Runtime.getRuntime().availableProcessors();
+    private int requestQueueDepth = 256;
+    private long maxQueueWaitMillis = 0L;
+    private int retryAfterSeconds = 1;
+    private boolean virtualThreads = false;
+    private int parallelQueryThreshold = 0;
+    private long parallelDocumentThreshold = 0L;
+    private boolean categoryTiming = false;
+    private long resultCacheSize = 0L;
+    private long tokenCacheSize = 0L;
+    private int tokenCacheMaxLength = LuceneEvaluator.DEFAULT_TOKEN_CACHE_MAX_LENGTH;
+    private long reloadDebounceMillis = 250L;
+    private long queryCostLimit = 0L;
+    private double queryTimeLimit = 0.0;
+    private QueryCost.Action queryCostAction = QueryCost.Action.WARN;
+    private File querySampleFile;
+    private List<Map<String, String>> querySamples = Collections.emptyList();
+    private long maxBodySize = 16L * 1024 * 1024;
+    private File categoryDirectory;
+    private long categoryIdleMillis = 10L * 60 * 1000;
+    private long categoryMemoryBudget = 0L;
+    private CategoryRegistry registry;
+    private int binaryPort = 0;
+    private BinaryServer binaryServer;
+    private long warmUpMillis = 0L;
+    private long warmUpIterations = 0L;
+    private Thread warmUpThread;
+    private int shardIndex = 0;
+    private int shardCount = 1;
+    private String shards;
+    private long shardTimeoutMillis = 1000L;
+    private long hedgeDelayMillis = 0L;
+    private ShardCoordinator coordinator;
+    private volatile boolean ready = false;
+    private final RequestMetrics requestMetrics = new RequestMetrics();
 
     /**
-     * Entry point for the application.
+     * Entry point for the application. Starts the service, or with "classify"
+     * as the first argument, classifies a file offline (see
+     * {@link BulkClassifier#main}), or with "loadtest", sends load to a running
+     * service (see {@link LoadGenerator#main}).
      *
      * @param args The command line args passed from the OS
      * @throws Exception if the requested port can't be opened or the config
      * file can't be read
      */
     public static void main(String[] args) throws Exception {
-        if (args.length != 2) {
+        if (args.length > 0 && "classify".equals(args[0])) {
+            BulkClassifier.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && "loadtest".equals(args[0])) {
+            LoadGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        List<String> positional = new ArrayList<>();
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--")) {
+                int idx = args[i].indexOf('=');
+                if (idx > 0) {
+                    options.put(args[i].substring(2, idx), args[i].substring(idx + 1));
+                } else {
+                    options.put(args[i].substring(2), "true");
+                }
+            } else {
+                positional.add(args[i]);
+            }
+        }
+        if (positional.size() != 2) {
             System.err.println("This service takes two parameters: a port, and a path to a .properties file.");
             System.err.println("Defaulting to port 9090 and a file named 'categories.properties' in the current working directory.");
+            System.err.println("Options: --threads=N --queue=N --max-queue-wait=MILLIS --retry-after=SECONDS --virtual-threads");
+            System.err.println("         --max-batch-size=N --max-batch-in-flight=N --parallel-queries=N --parallel-document-size=CHARS");
+            System.err.println("         --category-timing --cache-size=BYTES --snapshot=FILE");
+            System.err.println("         --token-cache-size=BYTES --token-cache-max-length=CHARS");
+            System.err.println("         --query-cost-limit=N --query-time-limit=MICROS --query-cost-action=warn|quarantine|reject --query-sample=FILE");
+            System.err.println("         --reload-debounce=MILLIS --max-body-size=BYTES");
+            System.err.println("         --category-dir=DIR --category-idle-timeout=MILLIS --category-memory-budget=BYTES");
+            System.err.println("         --binary-port=PORT --warm-up=MILLIS --warm-up-iterations=N");
+            System.err.println("         --shard=I/N --shards=HOST:PORT|HOST:PORT,... --shard-timeout=MILLIS --hedge-delay=MILLIS");
             //System.exit(-1);
-            args = new String[]{"9090", "categories.properties"};
+            positional = Arrays.asList("9090", "categories.properties");
         }
 
-        int port = Integer.parseInt(args[0]);
+        int port = Integer.parseInt(positional.get(0));
         SimpleClassifierService service = new SimpleClassifierService();
-        service.setCategoriesFile(new File(args[1]));
+        service.setCategoriesFile(new File(positional.get(1)));
+        for (Entry<String, String> option : options.entrySet()) {
+            switch (option.getKey()) {
+                case "threads":
+                    service.setRequestThreads(Integer.parseInt(option.getValue()));
+                    break;
+                case "queue":
+                    service.setRequestQueueDepth(Integer.parseInt(option.getValue()));
+                    break;
+                case "max-queue-wait":
+                    service.setMaxQueueWaitMillis(Long.parseLong(option.getValue()));
+                    break;
+                case "retry-after":
+                    service.setRetryAfterSeconds(Integer.parseInt(option.getValue()));
+                    break;
+                case "virtual-threads":
+                    service.setVirtualThreads(Boolean.parseBoolean(option.getValue()));
+                    break;
+                case "parallel-queries":
+                    service.setParallelQueryThreshold(Integer.parseInt(option.getValue()));
+                    break;
+                case "parallel-document-size":
+                    service.setParallelDocumentThreshold(Long.parseLong(option.getValue()));
+                    break;
+                case "category-timing":
+                    service.setCategoryTiming(Boolean.parseBoolean(option.getValue()));
+                    break;
+                case "reload-debounce":
+                    service.setReloadDebounceMillis(Long.parseLong(option.getValue()));
+                    break;
+                case "snapshot":
+                    service.setSnapshotFile(new File(option.getValue()));
+                    break;
+                case "max-body-size":
+                    service.setMaxBodySize(Long.parseLong(option.getValue()));
+                    break;
+                case "cache-size":
+                    service.setResultCacheSize(Long.parseLong(option.getValue()));
+                    break;
+                case "token-cache-size":
+                    service.setTokenCacheSize(Long.parseLong(option.getValue()));
+                    break;
+                case "token-cache-max-length":
+                    service.setTokenCacheMaxLength(Integer.parseInt(option.getValue()));
+                    break;
+                case "query-cost-limit":
+                    service.setQueryCostLimit(Long.parseLong(option.getValue()));
+                    break;
+                case "query-time-limit":
+                    service.setQueryTimeLimit(Double.parseDouble(option.getValue()));
+                    break;
+                case "query-cost-action":
+                    service.setQueryCostAction(QueryCost.Action.valueOf(option.getValue().toUpperCase(Locale.ROOT)));
+                    break;
+                case "query-sample":
+                    service.setQuerySampleFile(new File(option.getValue()));
+                    break;
+                case "category-dir":
+                    service.setCategoryDirectory(new File(option.getValue()));
+                    break;
+                case "category-idle-timeout":
+                    service.setCategoryIdleMillis(Long.parseLong(option.getValue()));
+                    break;
+                case "category-memory-budget":
+                    service.setCategoryMemoryBudget(Long.parseLong(option.getValue()));
+                    break;
+                case "binary-port":
+                    service.setBinaryPort(Integer.parseInt(option.getValue()));
+                    break;
+                case "shard":
+                    String[] shard = option.getValue().split("/");
+                    if (shard.length != 2) {
+                        throw new IllegalArgumentException("Expected --shard=I/N, but found --shard=" + option.getValue());
+                    }
+                    service.setShard(Integer.parseInt(shard[0]), Integer.parseInt(shard[1]));
+                    break;
+                case "shards":
+                    service.setShards(option.getValue());
+                    break;
+                case "shard-timeout":
+                    service.setShardTimeoutMillis(Long.parseLong(option.getValue()));
+                    break;
+                case "hedge-delay":
+                    service.setHedgeDelayMillis(Long.parseLong(option.getValue()));
+                    break;
+                case "warm-up":
+                    service.setWarmUpMillis(Long.parseLong(option.getValue()));
+                    break;
+                case "warm-up-iterations":
+                    service.setWarmUpIterations(Long.parseLong(option.getValue()));
+                    break;
+                case "max-batch-size":
+                    service.setMaxBatchSize(Integer.parseInt(option.getValue()));
+                    break;
+                case "max-batch-in-flight":
+                    service.setMaxBatchInFlight(Integer.parseInt(option.getValue()));
+                    break;
+                default:
+                    System.err.println("Ignoring unknown option --" + option.getKey());
+                    break;
+            }
+        }
         service.start(port);
     }
 
@@ -65,42 +264,256 @@ public class SimpleClassifierService {
      */
     public synchronized void start(int port) throws IOException {
         stop();
+        if (shards != null && binaryPort > 0) {
+            throw new IllegalStateException("A coordinator can't serve the binary protocol; its shards do.");
+        }
+        evaluator = new LuceneEvaluator(getCategoriesFile(), snapshotFile);
+        if (shardCount > 1) {
+            evaluator.setShard(shardIndex, shardCount);
+        }
+        configure(evaluator);
+        if (shards != null) {
+            coordinator = new ShardCoordinator(ShardCoordinator.parse(shards));
+            coordinator.setTimeoutMillis(shardTimeoutMillis);
+            coordinator.setHedgeDelayMillis(hedgeDelayMillis);
+        }
+        evaluator.setReloadDebounceMillis(reloadDebounceMillis);
+        if (categoryDirectory != null) {
+            registry = new CategoryRegistry(categoryDirectory, categoryIdleMillis, categoryMemoryBudget, this::configure);
+            registry.setReloadDebounceMillis(reloadDebounceMillis);
+        }
+        batchExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+            Thread t = new Thread(r, "batch evaluator");
+            t.setDaemon(true);
+            return t;
+        });
+        requestExecutor = new RequestExecutor(requestThreads, requestQueueDepth, maxQueueWaitMillis, retryAfterSeconds, virtualThreads);
+        if (System.getProperty(NODELAY_PROPERTY) == null) {
+            // The server writes response headers and body separately; with Nagle's algorithm on, the body waits
+            // for the client's delayed ACK, adding ~40ms to every response. Only read when the first server starts.
+            System.setProperty(NODELAY_PROPERTY, "true");
+        }
         server = HttpServer.create(new InetSocketAddress(port), 0);
-        server.createContext("/", new EvaluationHandler());
-        server.setExecutor(null);
+        createContext("/", new EvaluationHandler(evaluator, coordinator));
+        createContext("/batch", new BatchHandler(evaluator, coordinator));
+        createContext(StreamHandler.PATH, new StreamHandler(evaluator, coordinator != null));
+        if (registry != null) {
+            createContext(NamedSetHandler.PREFIX, new NamedSetHandler());
+        }
+        createContext("/metrics", new MetricsHandler(), false);
+        createContext(QueryCostHandler.PATH, new QueryCostHandler(evaluator));
+        createContext("/live", new ProbeHandler(() -> true, "live"), false);
+        createContext("/ready", new ProbeHandler(() -> ready, "ready"), false);
+        server.setExecutor(requestExecutor);
         server.start();
+        if (binaryPort > 0) {
+            int maxFrameSize = maxBodySize > 0 && maxBodySize < Integer.MAX_VALUE ? (int) maxBodySize : Integer.MAX_VALUE;
+            binaryServer = new BinaryServer(binaryPort, evaluator, requestExecutor, maxFrameSize, maxBatchInFlight);
+            binaryServer.start();
+        }
+        if (warmUpMillis > 0 || warmUpIterations > 0) {
+            LuceneEvaluator target = evaluator;
+            warmUpThread = new Thread(() -> warmUp(target), "warm-up");
+            warmUpThread.setDaemon(true);
+            warmUpThread.start();
+        } else {
+            ready = true;
+        }
+    }
+
+    /**
+     * Runs synthetic documents through the request path, then reports ready.
+     * The listeners are already open, so that liveness can be probed while
+     * warming up.
+     */
+    private void warmUp(LuceneEvaluator target) {
+        long start = System.nanoTime();
+        try {
+            long iterations = new WarmUp(target, 42L).run(warmUpMillis, warmUpIterations);
+            Logger.getLogger(SimpleClassifierService.class.getName()).log(Level.INFO, "Warmed up with {0} documents in {1}ms; ready.",
+                    new Object[]{iterations, (System.nanoTime() - start) / 1000000L});
+        } catch (RuntimeException ex) {
+            // A cold service is better than one that never takes traffic.
+            Logger.getLogger(SimpleClassifierService.class.getName()).log(Level.WARNING, "Warm-up failed; ready without it.", ex);
+        }
+        // Interrupted by stop().
+        if (!Thread.currentThread().isInterrupted()) {
+            ready = true;
+        }
+    }
+
+    /**
+     * Applies the service's evaluation settings to an evaluator.
+     */
+    private void configure(LuceneEvaluator target) {
+        target.setParallelQueryThreshold(parallelQueryThreshold);
+        target.setParallelDocumentThreshold(parallelDocumentThreshold);
+        target.setCategoryTiming(categoryTiming);
+        target.setResultCacheSize(resultCacheSize);
+        target.setTokenCacheMaxLength(tokenCacheMaxLength);
+        target.setTokenCacheSize(tokenCacheSize);
+        target.setQueryCostLimit(queryCostLimit);
+        target.setQueryTimeLimit(queryTimeLimit);
+        target.setQueryCostAction(queryCostAction);
+        if (querySampleFile != null) {
+            target.setQuerySamples(querySampleFile, querySamples);
+        }
+    }
+
+    private void createContext(String path, HttpHandler handler) {
+        createContext(path, handler, true);
+    }
+
+    /**
+     * @param path the context's path
+     * @param handler the context's handler
+     * @param shed false to serve requests that the request executor would
+     * shed where it sheds them instead, outside the request pool, which is
+     * only for cheap handlers that must answer however busy the service is
+     */
+    private void createContext(String path, HttpHandler handler, boolean shed) {
+        HttpContext context = server.createContext(path, handler);
+        context.getFilters().add(requestMetrics.getFilter());
+        if (shed) {
+            context.getFilters().add(requestExecutor.getFilter());
+        }
     }
 
     /**
      * Shuts down the server.
      */
     public synchronized void stop() {
+        ready = false;
+        if (warmUpThread != null) {
+            warmUpThread.interrupt();
+            warmUpThread = null;
+        }
+        if (binaryServer != null) {
+            binaryServer.close();
+            binaryServer = null;
+        }
         if (server != null) {
             server.stop(5);
             server = null;
         }
+        if (requestExecutor != null) {
+            requestExecutor.close();
+            requestExecutor = null;
+        }
+        if (batchExecutor != null) {
+            batchExecutor.shutdownNow();
+            batchExecutor = null;
+        }
+        if (evaluator != null) {
+            evaluator.stop();
+            evaluator = null;
+        }
+        if (registry != null) {
+            registry.close();
+            registry = null;
+        }
+        if (coordinator != null) {
+            coordinator.close();
+            coordinator = null;
+        }
+    }
+
+    /**
+     * Handler for the named category sets in the category directory. A
+     * request for "/c/{name}/" is evaluated, and one for "/c/{name}/batch"
+     * batch-evaluated, and one for "/c/{name}/stream" streamed, as the same
+     * request to "/", "/batch" or "/stream" would be, but against the
+     * categories in {name}.properties; "/c/{name}/query-costs" reports on
+     * their queries. Unknown sets are answered
+     * with a 404.
+     */
+    private class NamedSetHandler implements HttpHandler {
+
+        static final String PREFIX = "/c/";
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String path = exchange.getRequestURI().getPath().substring(PREFIX.length());
+            int slash = path.indexOf('/');
+            String name = slash < 0 ? path : path.substring(0, slash);
+            String rest = slash < 0 ? "" : path.substring(slash);
+            LuceneEvaluator named = null;
+            if (rest.isEmpty() || rest.equals("/") || rest.equals("/batch") || rest.equals(StreamHandler.PATH) || rest.equals(QueryCostHandler.PATH)) {
+                named = registry.get(name);
+            }
+            if (named == null) {
+                byte[] message = ("Error: No category set at " + exchange.getRequestURI().getPath()).getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("Content-Type", "text/plain");
+                exchange.sendResponseHeaders(404, message.length);
+                try ( OutputStream os = exchange.getResponseBody()) {
+                    os.write(message);
+                }
+                return;
+            }
+            if (rest.equals("/batch")) {
+                new BatchHandler(named, null).handle(exchange);
+            } else if (rest.equals(StreamHandler.PATH)) {
+                new StreamHandler(named, false).handle(exchange);
+            } else if (rest.equals(QueryCostHandler.PATH)) {
+                new QueryCostHandler(named).handle(exchange);
+            } else {
+                new EvaluationHandler(named, null).handle(exchange);
+            }
+        }
     }
 
     private class EvaluationHandler implements HttpHandler {
 
-        LuceneEvaluator evaluator;
+        private final LuceneEvaluator evaluator;
+        private final ShardCoordinator coordinator;
 
-        public EvaluationHandler() throws IOException {
-            evaluator = new LuceneEvaluator(getCategoriesFile());
+        /**
+         * @param evaluator the categories
+         * @param coordinator the shards that documents are evaluated on, or
+         * null to evaluate them with the evaluator
+         */
+        EvaluationHandler(LuceneEvaluator evaluator, ShardCoordinator coordinator) {
+            this.evaluator = evaluator;
+            this.coordinator = coordinator;
         }
 
         @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            ClassifierEvents.Request event = new ClassifierEvents.Request();
+            event.start();
+            try {
+                handle(exchange, event);
+            } finally {
+                event.finish(exchange);
+            }
+        }
+
         @edu.umd.cs.findbugs.annotations.SuppressFBWarnings(value = "RV_RETURN_VALUE_IGNORED_INFERRED", 
         justification = "No need to store references to elements that don't get used afterwards.")
-        public void handle(HttpExchange exchange) throws IOException {
+        private void handle(HttpExchange exchange, ClassifierEvents.Request event) throws IOException {
             //System.out.println(exchange.getRequestURI());
             Map<String, String> evaluationData = null;
+            // Selection parameters are taken from the query string, whatever the method. On a GET, the rest of
+            // the query string is the document, so it's decoded as one, keeping every value of a repeated field.
+            Map<String, String> query;
+            CategorySelection selection;
+            try {
+                query = "GET".equals(exchange.getRequestMethod()) ? decodeDocument(exchange.getRequestURI().getRawQuery()) : splitQuery(exchange.getRequestURI());
+            } catch (IllegalArgumentException | RequestBodies.MalformedBodyException ex) {
+                sendResponse(exchange, 400, "text/plain", "Error: " + ex.getMessage());
+                return;
+            }
+            // Only a bare GET gets the form; one with nothing but selection parameters evaluates an empty document.
+            boolean bare = query.isEmpty();
+            try {
+                selection = CategorySelection.extract(query);
+            } catch (IllegalArgumentException ex) {
+                sendResponse(exchange, 400, "text/plain", "Error: " + ex.getMessage());
+                return;
+            }
             switch (exchange.getRequestMethod()) {
                 case "GET":
-                    evaluationData = splitQuery(exchange.getRequestURI());
-                    if (evaluationData != null && !evaluationData.isEmpty()) {
-                        evaluateAndRespond(evaluationData, exchange);
-                    } else {
+                    if (bare) {
                         Document doc = Jsoup.parse(getClass().getResourceAsStream("/www/index.html"), "UTF-8", exchange.getRequestURI().toASCIIString());
                         Element form = doc.body().appendElement("form");
                         form.attr("method", "GET");
@@ -115,95 +528,1173 @@ public class SimpleClassifierService {
                         sendResponse(exchange, 200, "text/html", doc.outerHtml());
                         return;
                     }
+                    evaluationData = query;
                     break;
                 case "POST":
-                    try ( InputStream body = exchange.getRequestBody()) {
-                    if (exchange.getRequestHeaders().containsKey("Content-Type")) {
-                        if (exchange.getRequestHeaders().getFirst("Content-Type").startsWith("application/json")) {
-                            JsonObject jsonBody = Jsoner.deserialize(IOUtils.toString(body, "UTF-8"), new JsonObject());
-                            evaluationData = jsonToMap(jsonBody);
-                        } else if (exchange.getRequestHeaders().getFirst("Content-Type").startsWith("application/x-www-form-urlencoded")) {
-                            evaluationData = parseUrlFormEncoded(IOUtils.toString(body, "UTF-8"));
+                    if (isTooLarge(exchange)) {
+                        sendResponse(exchange, 413, "text/plain", "Error: Request body exceeds the limit of " + maxBodySize + " bytes.");
+                        return;
+                    }
+                    try ( InputStream body = RequestBodies.limit(exchange.getRequestBody(), maxBodySize)) {
+                        DocumentSource source = null;
+                        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+                        if (contentType == null || contentType.startsWith("application/x-www-form-urlencoded")) {
+                            source = RequestBodies.form(body);
+                        } else if (contentType.startsWith("application/json")) {
+                            source = RequestBodies.json(new InputStreamReader(body, StandardCharsets.UTF_8));
                         }
-                    } else {
-                        evaluationData = parseUrlFormEncoded(IOUtils.toString(body, "UTF-8"));
+                        evaluateAndRespond(source, selection, exchange, event);
                     }
-                    break;
-                }
+                    return;
                 default:
                     break;
             }
-            evaluateAndRespond(evaluationData, exchange);
+            evaluateAndRespond(evaluationData, selection, exchange, event);
         }
 
-        private void evaluateAndRespond(Map<String, String> evaluationData, HttpExchange exchange) throws IOException {
-            int code = 200;
-            String response;
-            String contentType = "text/plain";
-            JsonObject responseObject = new JsonObject();
+        private boolean isTooLarge(HttpExchange exchange) {
+            String length = exchange.getRequestHeaders().getFirst("Content-Length");
+            try {
+                return maxBodySize > 0 && length != null && Long.parseLong(length.trim()) > maxBodySize;
+            } catch (NumberFormatException ex) {
+                return false;
+            }
+        }
+
+        private void evaluateAndRespond(Map<String, String> evaluationData, CategorySelection selection, HttpExchange exchange,
+                ClassifierEvents.Request event) throws IOException {
+            event.evaluating();
+            byte[] response;
+            try {
+                if (coordinator != null) {
+                    response = toJsonResponse(coordinator.evaluate(
+                            referencedFields(evaluator, evaluationData), selection, useCache(exchange))).toJson().getBytes(StandardCharsets.UTF_8);
+                } else {
+                    response = evaluator.evaluateMatches(evaluationData, useCache(exchange), selection).toJson();
+                }
+            } catch (Exception ex) {
+                Logger.getLogger(SimpleClassifierService.class.getName()).log(Level.SEVERE, null, ex);
+                sendResponse(exchange, 500, "text/plain", "Error: " + ex.getMessage());
+                return;
+            }
+            event.responding();
+            sendResponse(exchange, 200, "application/json", response);
+        }
+
+        /**
+         * Evaluates a request body as it's read. A body that turns out to be
+         * too large, or malformed, is rejected with a 413 or a 400.
+         */
+        private void evaluateAndRespond(DocumentSource source, CategorySelection selection, HttpExchange exchange,
+                ClassifierEvents.Request event) throws IOException {
+            CategoryMatches matches;
             try {
-                Set<String> categories = evaluator.evaluate(evaluationData);
-                JsonArray categoriesArray = new JsonArray(categories);
-                responseObject.put("categories", categoriesArray);
-                response = responseObject.toJson();
-                contentType = "application/json";
+                if (source == null) {
+                    throw new IllegalArgumentException("Unsupported content type.");
+                }
+                if (coordinator != null) {
+                    evaluateAndRespond(source.toMap(), selection, exchange, event);
+                    return;
+                }
+                event.evaluating();
+                matches = evaluator.evaluateMatches(source, useCache(exchange), selection);
+            } catch (RequestBodies.BodyTooLargeException ex) {
+                sendResponse(exchange, 413, "text/plain", "Error: " + ex.getMessage());
+                return;
+            } catch (RequestBodies.MalformedBodyException ex) {
+                sendResponse(exchange, 400, "text/plain", "Error: " + ex.getMessage());
+                return;
             } catch (Exception ex) {
                 Logger.getLogger(SimpleClassifierService.class.getName()).log(Level.SEVERE, null, ex);
-                response = "Error: " + ex.getMessage();
-                code = 500;
+                sendResponse(exchange, 500, "text/plain", "Error: " + ex.getMessage());
+                return;
             }
-            sendResponse(exchange, code, contentType, response);
+            event.responding();
+            sendResponse(exchange, 200, "application/json", matches.toJson());
         }
 
         private void sendResponse(HttpExchange exchange, int responseCode, String contentType, String response) throws IOException {
+            sendResponse(exchange, responseCode, contentType, response.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void sendResponse(HttpExchange exchange, int responseCode, String contentType, byte[] bytes) throws IOException {
             exchange.getResponseHeaders().add("Content-Type", contentType);
-            exchange.sendResponseHeaders(responseCode, response.length());
+            exchange.sendResponseHeaders(responseCode, bytes.length);
             try (OutputStream os = exchange.getResponseBody()) {
-                os.write(response.getBytes("UTF-8"));
+                os.write(bytes);
                 os.flush();
             }
         }
 
+        private Map<String, String> decodeDocument(String rawQuery) throws IOException {
+            if (rawQuery == null) {
+                return new TreeMap<>();
+            }
+            return RequestBodies.form(new ByteArrayInputStream(rawQuery.getBytes(StandardCharsets.UTF_8))).toMap();
+        }
+
         private Map<String, String> splitQuery(URI url) throws UnsupportedEncodingException {
             String query = url.getRawQuery();
             return parseUrlFormEncoded(query);
         }
+    }
+
+    /**
+     * Handler for batches of JSON documents. The request body is either a JSON
+     * array of objects or newline-delimited JSON objects. Documents are
+     * evaluated concurrently, and one result line is streamed back per
+     * document as soon as it's available, so result order may differ from
+     * input order. Each result carries the document's id (taken from the field
+     * named by the "idField" request parameter, "id" by default, which is not
+     * evaluated) or, failing that, its zero-based position in the batch.
+     */
+    private class BatchHandler implements HttpHandler {
+
+        private final LuceneEvaluator evaluator;
+        private final ShardCoordinator coordinator;
+
+        /**
+         * @param evaluator the categories
+         * @param coordinator the shards that documents are evaluated on, or
+         * null to evaluate them with the evaluator
+         */
+        BatchHandler(LuceneEvaluator evaluator, ShardCoordinator coordinator) {
+            this.evaluator = evaluator;
+            this.coordinator = coordinator;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().add("Allow", "POST");
+                exchange.sendResponseHeaders(405, -1);
+                exchange.close();
+                return;
+            }
+            Map<String, String> params = parseUrlFormEncoded(exchange.getRequestURI().getRawQuery());
+            String idField = params.getOrDefault("idField", "id");
+            boolean useCache = useCache(exchange);
+            CategorySelection selection;
+            try {
+                selection = CategorySelection.extract(params);
+            } catch (IllegalArgumentException ex) {
+                byte[] message = ("Error: " + ex.getMessage()).getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(400, message.length);
+                try ( OutputStream os = exchange.getResponseBody()) {
+                    os.write(message);
+                }
+                return;
+            }
+            BlockingQueue<JsonObject> results = new LinkedBlockingQueue<>();
+            exchange.getResponseHeaders().add("Content-Type", "application/x-ndjson");
+            // A zero length requests chunked transfer encoding.
+            exchange.sendResponseHeaders(200, 0);
+            try ( JsonRecordReader records = new JsonRecordReader(new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)));
+                     Writer out = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8))) {
+                int pending = 0;
+                long position = 0;
+                try {
+                    String record;
+                    while ((record = records.next()) != null) {
+                        if (position >= maxBatchSize) {
+                            JsonObject error = new JsonObject();
+                            error.put("error", "Batch size limit of " + maxBatchSize + " documents exceeded; remaining documents were not evaluated.");
+                            writeLine(out, error);
+                            break;
+                        }
+                        while (pending >= maxBatchInFlight) {
+                            writeLine(out, results.take());
+                            pending--;
+                        }
+                        pending -= drain(results, out);
+                        if (!submit(record, position++, idField, useCache, selection, results)) {
+                            // The pool is shutting down; the rest of the batch would be refused too.
+                            break;
+                        }
+                        pending++;
+                    }
+                } catch (IOException ex) {
+                    JsonObject error = new JsonObject();
+                    error.put("error", ex.getMessage());
+                    results.add(error);
+                    pending++;
+                }
+                while (pending > 0) {
+                    writeLine(out, results.take());
+                    pending--;
+                }
+                // The error for a refused document, which isn't counted as pending.
+                drain(results, out);
+                out.flush();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
 
-        private Map<String, String> parseUrlFormEncoded(String query) throws UnsupportedEncodingException {
-            Map<String, String> query_pairs = new LinkedHashMap<>();
-            if (query != null) {
-                String[] pairs = query.split("&");
-                for (String pair : pairs) {
-                    int idx = pair.indexOf("=");
-                    if (idx > 0) {
-                        query_pairs.put(URLDecoder.decode(pair.substring(0, idx), "UTF-8"), URLDecoder.decode(pair.substring(idx + 1), "UTF-8"));
+        /**
+         * Queues a document for evaluation, which adds its result to the
+         * results once it's done.
+         *
+         * @return true if the document was queued; false if the pool refused
+         * it, in which case an error result has already been added
+         */
+        private boolean submit(String record, long position, String idField, boolean useCache, CategorySelection selection, BlockingQueue<JsonObject> results) {
+            ExecutorService executor = batchExecutor;
+            Runnable task = () -> {
+                JsonObject result = new JsonObject();
+                result.put("id", position);
+                try {
+                    Object parsed = Jsoner.deserialize(record);
+                    if (!(parsed instanceof JsonObject)) {
+                        throw new IllegalArgumentException("Batch records must be JSON objects.");
                     }
+                    JsonObject jsonDocument = (JsonObject) parsed;
+                    if (jsonDocument.containsKey(idField)) {
+                        // As sent, whatever its JSON type.
+                        result.put("id", jsonDocument.get(idField));
+                    }
+                    // Flattened as a request body is, since the JsonObject keeps only the last value of a repeated field.
+                    Map<String, String> document = RequestBodies.json(new StringReader(record)).toMap();
+                    document.remove(idField);
+                    if (coordinator != null) {
+                        result.putAll(toJsonResponse(coordinator.evaluate(referencedFields(evaluator, document), selection, useCache)));
+                    } else {
+                        result.put("categories", new JsonArray(evaluator.evaluate(document, useCache, selection)));
+                    }
+                } catch (Exception ex) {
+                    result.put("error", String.valueOf(ex.getMessage()));
+                }
+                results.add(result);
+            };
+            try {
+                if (executor == null) {
+                    throw new RejectedExecutionException("The batch pool has been shut down.");
                 }
+                executor.execute(task);
+                return true;
+            } catch (RejectedExecutionException ex) {
+                JsonObject error = new JsonObject();
+                error.put("id", position);
+                error.put("error", "The service is stopping; this and the remaining documents were not evaluated.");
+                results.add(error);
+                return false;
             }
-            return query_pairs;
         }
 
-        private Map<String, String> jsonToMap(JsonObject jsonBody) {
-            TreeMap<String, String> returnable = new TreeMap<>();
-            for (Entry<String, Object> entry : jsonBody.entrySet()) {
-                returnable.put(entry.getKey(), String.valueOf(entry.getValue()));
+        private int drain(BlockingQueue<JsonObject> results, Writer out) throws IOException {
+            int written = 0;
+            JsonObject result;
+            while ((result = results.poll()) != null) {
+                writeLine(out, result);
+                written++;
+            }
+            if (written > 0) {
+                out.flush();
             }
-            return returnable;
+            return written;
+        }
+
+        private void writeLine(Writer out, JsonObject result) throws IOException {
+            out.write(result.toJson());
+            out.write('\n');
         }
     }
 
     /**
-     * @return the categoriesFile
+     * Handler for streams of text, classified as they arrive. The POST body is
+     * read as UTF-8 text for the field named by the "_field" parameter ("text"
+     * by default), over a window of "_window" tokens (default 256) that moves
+     * "_step" tokens at a time (default a quarter of the window). Other
+     * parameters, apart from the category selection, are fields that
+     * accompany every window. The response is newline-delimited JSON, sent
+     * with chunked transfer encoding: one line per category as soon as it
+     * matches, and a last line with the number of tokens read and every
+     * category matched.
      */
-    public File getCategoriesFile() {
-        return categoriesFile;
+    private class StreamHandler implements HttpHandler {
+
+        static final String PATH = "/stream";
+        static final int DEFAULT_WINDOW_TOKENS = 256;
+
+        private final LuceneEvaluator evaluator;
+        private final boolean coordinating;
+
+        /**
+         * @param evaluator the categories
+         * @param coordinating true if the categories are held by shards, which
+         * don't stream
+         */
+        StreamHandler(LuceneEvaluator evaluator, boolean coordinating) {
+            this.evaluator = evaluator;
+            this.coordinating = coordinating;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().add("Allow", "POST");
+                exchange.sendResponseHeaders(405, -1);
+                exchange.close();
+                return;
+            }
+            if (coordinating) {
+                sendError(exchange, 501, "Streams can't be classified by a coordinator; send them to an unsharded instance.");
+                return;
+            }
+            Map<String, String> params = parseUrlFormEncoded(exchange.getRequestURI().getRawQuery());
+            StreamingClassification stream;
+            try {
+                CategorySelection selection = CategorySelection.extract(params);
+                String field = params.remove("_field");
+                int window = parseInt(params.remove("_window"), DEFAULT_WINDOW_TOKENS);
+                int step = parseInt(params.remove("_step"), Math.max(1, window / 4));
+                stream = evaluator.openStream(field == null ? LuceneEvaluator.DEFAULT_FIELD_NAME : field, params, window, step, selection,
+                        (category, tokens) -> writeLine(exchange.getResponseBody(), matchLine(category, tokens)));
+            } catch (IllegalArgumentException ex) {
+                sendError(exchange, 400, "Error: " + ex.getMessage());
+                return;
+            }
+            exchange.getResponseHeaders().add("Content-Type", "application/x-ndjson");
+            // A zero length requests chunked transfer encoding.
+            exchange.sendResponseHeaders(200, 0);
+            try ( Reader in = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8);
+                     OutputStream out = exchange.getResponseBody();
+                     StreamingClassification s = stream) {
+                JsonObject last = new JsonObject();
+                try {
+                    s.append(in);
+                    last.put("categories", new JsonArray(s.finish()));
+                } catch (IOException ex) {
+                    last.put("error", String.valueOf(ex.getMessage()));
+                    last.put("categories", new JsonArray(s.getMatched()));
+                }
+                last.put("tokens", s.getTokens());
+                writeLine(out, last.toJson());
+            }
+        }
+
+        private int parseInt(String value, int defaultValue) {
+            if (value == null || value.trim().isEmpty()) {
+                return defaultValue;
+            }
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Expected a number but found " + value);
+            }
+        }
+
+        private String matchLine(String category, long tokens) {
+            JsonObject line = new JsonObject();
+            line.put("category", category);
+            line.put("tokens", tokens);
+            return line.toJson();
+        }
+
+        private void writeLine(OutputStream out, String line) throws IOException {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            // Each match goes out as its own chunk, straight away.
+            out.flush();
+        }
+
+        private void sendError(HttpExchange exchange, int status, String message) throws IOException {
+            byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/plain");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try ( OutputStream os = exchange.getResponseBody()) {
+                os.write(bytes);
+            }
+        }
     }
 
     /**
-     * @param categoriesFile the categoriesFile to set
+     * Handler for the metrics endpoint. A GET returns all metrics in the
+     * Prometheus text format; a form-encoded POST of "categoryTiming=true" or
+     * "categoryTiming=false" switches per-category search timing on or off.
      */
-    public void setCategoriesFile(File categoriesFile) {
-        this.categoriesFile = categoriesFile;
+    private class MetricsHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String response;
+            if ("POST".equals(exchange.getRequestMethod())) {
+                Map<String, String> params;
+                try ( InputStream body = exchange.getRequestBody()) {
+                    params = parseUrlFormEncoded(IOUtils.toString(body, "UTF-8"));
+                }
+                if (params.containsKey("categoryTiming")) {
+                    setCategoryTiming(Boolean.parseBoolean(params.get("categoryTiming")));
+                }
+                response = "categoryTiming=" + evaluator.isCategoryTiming() + "\n";
+                sendPlain(exchange, "text/plain; charset=utf-8", response);
+                return;
+            }
+            StringBuilder out = new StringBuilder();
+            requestMetrics.write(out);
+            PrometheusText.single(out, "classifier_requests_shed_total", "counter",
+                    "Requests answered with a 503 because the request queue was full.", requestExecutor.getShedCount());
+            evaluator.getMetrics().write(out);
+            ResultCache cache = evaluator.getResultCache();
+            if (cache != null) {
+                cache.write(out);
+            }
+            TokenCache tokenCache = evaluator.getTokenCache();
+            if (tokenCache != null) {
+                tokenCache.write(out);
+            }
+            if (registry != null) {
+                registry.write(out);
+            }
+            if (binaryServer != null) {
+                binaryServer.write(out);
+            }
+            if (coordinator != null) {
+                coordinator.write(out);
+            }
+            sendPlain(exchange, PrometheusText.CONTENT_TYPE, out.toString());
+        }
+
+        private void sendPlain(HttpExchange exchange, String contentType, String response) throws IOException {
+            byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", contentType);
+            exchange.sendResponseHeaders(200, bytes.length);
+            try ( OutputStream os = exchange.getResponseBody()) {
+                os.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * Handler for the health probes. "/live" answers 200 as long as the
+     * service is running; "/ready" answers 503 until the service has warmed
+     * up, so that a load balancer only sends traffic to warmed instances.
+     * Neither is shed when the request pool is full, so that a busy instance
+     * isn't taken for a dead one.
+     */
+    private static class ProbeHandler implements HttpHandler {
+
+        private final BooleanSupplier up;
+        private final String state;
+
+        ProbeHandler(BooleanSupplier up, String state) {
+            this.up = up;
+            this.state = state;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            boolean isUp = up.getAsBoolean();
+            byte[] bytes = ((isUp ? state : "not " + state) + "\n").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
+            if (!isUp) {
+                exchange.getResponseHeaders().add("Retry-After", "1");
+            }
+            exchange.sendResponseHeaders(isUp ? 200 : 503, bytes.length);
+            try ( OutputStream os = exchange.getResponseBody()) {
+                os.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * Handler for the query cost report: a JSON list of the categories'
+     * queries, most expensive first, with each one's kind, estimated cost,
+     * measured time per sample document if there's a sample corpus, and what
+     * the cost policy did with it.
+     */
+    private static class QueryCostHandler implements HttpHandler {
+
+        static final String PATH = "/query-costs";
+
+        private final LuceneEvaluator evaluator;
+
+        QueryCostHandler(LuceneEvaluator evaluator) {
+            this.evaluator = evaluator;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            byte[] bytes = QueryCost.toJson(evaluator.getQueryCosts()).toJson().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try ( OutputStream os = exchange.getResponseBody()) {
+                os.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * @return false if the request asks, with a "Cache-Control: no-cache" or
+     * "no-store" header, for its documents to be evaluated afresh
+     */
+    static boolean useCache(HttpExchange exchange) {
+        List<String> values = exchange.getRequestHeaders().get("Cache-Control");
+        if (values != null) {
+            for (String value : values) {
+                for (String directive : value.split(",")) {
+                    String d = directive.trim().toLowerCase(Locale.ROOT);
+                    if (d.equals("no-cache") || d.equals("no-store")) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    static Map<String, String> parseUrlFormEncoded(String query) throws UnsupportedEncodingException {
+        Map<String, String> query_pairs = new LinkedHashMap<>();
+        if (query != null) {
+            String[] pairs = query.split("&");
+            for (String pair : pairs) {
+                int idx = pair.indexOf("=");
+                if (idx > 0) {
+                    query_pairs.put(URLDecoder.decode(pair.substring(0, idx), "UTF-8"), URLDecoder.decode(pair.substring(idx + 1), "UTF-8"));
+                }
+            }
+        }
+        return query_pairs;
     }
 
+    static Map<String, String> jsonToMap(JsonObject jsonBody) {
+        TreeMap<String, String> returnable = new TreeMap<>();
+        for (Entry<String, Object> entry : jsonBody.entrySet()) {
+            returnable.put(entry.getKey(), String.valueOf(entry.getValue()));
+        }
+        return returnable;
+    }
+
+    /**
+     * @return the response to a document evaluated on the shards: its
+     * categories and, if some shards failed, which ones
+     */
+    static JsonObject toJsonResponse(ShardCoordinator.Result result) {
+        JsonObject responseObject = new JsonObject();
+        responseObject.put("categories", new JsonArray(result.getCategories()));
+        responseObject.put("partial", result.isPartial());
+        if (result.isPartial()) {
+            responseObject.put("failedShards", new JsonArray(result.getFailedShards()));
+        }
+        return responseObject;
+    }
+
+    /**
+     * @return the fields of a document that some category reads; the rest
+     * needn't be sent to the shards
+     */
+    private static Map<String, String> referencedFields(LuceneEvaluator evaluator, Map<String, String> document) {
+        Set<String> fields = evaluator.getReferencedFields();
+        if (fields == null) {
+            return document;
+        }
+        Map<String, String> referenced = new TreeMap<>(document);
+        referenced.keySet().retainAll(fields);
+        return referenced;
+    }
+
+    static String toJsonResponse(Set<String> categories) {
+        JsonObject responseObject = new JsonObject();
+        responseObject.put("categories", new JsonArray(categories));
+        return responseObject.toJson();
+    }
+
+    /**
+     * @return the categoriesFile
+     */
+    public File getCategoriesFile() {
+        return categoriesFile;
+    }
+
+    /**
+     * @param categoriesFile the categoriesFile to set
+     */
+    public void setCategoriesFile(File categoriesFile) {
+        this.categoriesFile = categoriesFile;
+    }
+
+    /**
+     * @return the estimated size, in bytes, of the result cache; zero if
+     * disabled
+     */
+    public long getResultCacheSize() {
+        return resultCacheSize;
+    }
+
+    /**
+     * @param resultCacheSize the estimated size, in bytes, of the cache of
+     * evaluation results; zero (the default) to disable it. Changing the size
+     * of a running service discards the cached results.
+     */
+    public synchronized void setResultCacheSize(long resultCacheSize) {
+        this.resultCacheSize = resultCacheSize;
+        if (evaluator != null) {
+            evaluator.setResultCacheSize(resultCacheSize);
+        }
+        if (registry != null) {
+            registry.forEachLoaded(loaded -> loaded.setResultCacheSize(resultCacheSize));
+        }
+    }
+
+    /**
+     * @return the estimated size, in bytes, of the token cache; zero if
+     * disabled
+     */
+    public long getTokenCacheSize() {
+        return tokenCacheSize;
+    }
+
+    /**
+     * @param tokenCacheSize the estimated size, in bytes, of the cache of
+     * short field values' tokens; zero (the default) to disable it. Changing
+     * the size of a running service discards the cached tokens.
+     */
+    public synchronized void setTokenCacheSize(long tokenCacheSize) {
+        this.tokenCacheSize = tokenCacheSize;
+        if (evaluator != null) {
+            evaluator.setTokenCacheSize(tokenCacheSize);
+        }
+        if (registry != null) {
+            registry.forEachLoaded(loaded -> loaded.setTokenCacheSize(tokenCacheSize));
+        }
+    }
+
+    /**
+     * @return the longest field value, in characters, whose tokens are cached
+     */
+    public int getTokenCacheMaxLength() {
+        return tokenCacheMaxLength;
+    }
+
+    /**
+     * @param tokenCacheMaxLength the longest field value, in characters,
+     * whose tokens are cached (default: 256)
+     */
+    public synchronized void setTokenCacheMaxLength(int tokenCacheMaxLength) {
+        this.tokenCacheMaxLength = tokenCacheMaxLength;
+        if (evaluator != null) {
+            evaluator.setTokenCacheMaxLength(tokenCacheMaxLength);
+        }
+        if (registry != null) {
+            registry.forEachLoaded(loaded -> loaded.setTokenCacheMaxLength(tokenCacheMaxLength));
+        }
+    }
+
+    /**
+     * @return the estimated query cost above which a category is over the
+     * limit; zero if there's no limit
+     */
+    public long getQueryCostLimit() {
+        return queryCostLimit;
+    }
+
+    /**
+     * @param queryCostLimit the estimated query cost above which a category
+     * is over the limit; zero (the default) for no limit
+     * @see LuceneEvaluator#setQueryCostLimit(long)
+     */
+    public synchronized void setQueryCostLimit(long queryCostLimit) {
+        this.queryCostLimit = queryCostLimit;
+        if (evaluator != null) {
+            evaluator.setQueryCostLimit(queryCostLimit);
+        }
+        if (registry != null) {
+            registry.forEachLoaded(loaded -> loaded.setQueryCostLimit(queryCostLimit));
+        }
+    }
+
+    /**
+     * @return the mean search time per sample document, in microseconds,
+     * above which a category is over the limit; zero if there's no limit
+     */
+    public double getQueryTimeLimit() {
+        return queryTimeLimit;
+    }
+
+    /**
+     * @param queryTimeLimit the mean search time per sample document, in
+     * microseconds, above which a category is over the limit; zero (the
+     * default) for no limit
+     */
+    public synchronized void setQueryTimeLimit(double queryTimeLimit) {
+        this.queryTimeLimit = queryTimeLimit;
+        if (evaluator != null) {
+            evaluator.setQueryTimeLimit(queryTimeLimit);
+        }
+        if (registry != null) {
+            registry.forEachLoaded(loaded -> loaded.setQueryTimeLimit(queryTimeLimit));
+        }
+    }
+
+    /**
+     * @return what is done with categories over a query cost limit
+     */
+    public QueryCost.Action getQueryCostAction() {
+        return queryCostAction;
+    }
+
+    /**
+     * @param queryCostAction what to do with categories over a query cost
+     * limit (default: WARN)
+     */
+    public synchronized void setQueryCostAction(QueryCost.Action queryCostAction) {
+        this.queryCostAction = queryCostAction;
+        if (evaluator != null) {
+            evaluator.setQueryCostAction(queryCostAction);
+        }
+        if (registry != null) {
+            registry.forEachLoaded(loaded -> loaded.setQueryCostAction(queryCostAction));
+        }
+    }
+
+    /**
+     * @return the sample corpus the queries are timed against, or null
+     */
+    public File getQuerySampleFile() {
+        return querySampleFile;
+    }
+
+    /**
+     * @param querySampleFile a JSON array of documents, or newline-delimited
+     * JSON documents, to time every query against whenever categories are
+     * loaded; null (the default) to only estimate their costs
+     * @throws IOException if the file can't be read, or isn't JSON objects
+     */
+    public synchronized void setQuerySampleFile(File querySampleFile) throws IOException {
+        List<Map<String, String>> samples = querySampleFile == null ? Collections.emptyList() : QueryCostPolicy.readSamples(querySampleFile);
+        this.querySampleFile = querySampleFile;
+        this.querySamples = samples;
+        if (evaluator != null) {
+            evaluator.setQuerySamples(querySampleFile, samples);
+        }
+        if (registry != null) {
+            registry.forEachLoaded(loaded -> loaded.setQuerySamples(querySampleFile, samples));
+        }
+    }
+
+    /**
+     * @return the time, in milliseconds, that the category file must go
+     * unchanged before a change to it is reloaded
+     */
+    public long getReloadDebounceMillis() {
+        return reloadDebounceMillis;
+    }
+
+    /**
+     * @param reloadDebounceMillis the time, in milliseconds, that the category
+     * file must go unchanged before a change to it is reloaded; 250 by default
+     */
+    public void setReloadDebounceMillis(long reloadDebounceMillis) {
+        this.reloadDebounceMillis = reloadDebounceMillis;
+    }
+
+    /**
+     * @return the largest request body accepted for evaluation, in bytes;
+     * zero if unlimited
+     */
+    public long getMaxBodySize() {
+        return maxBodySize;
+    }
+
+    /**
+     * @param maxBodySize the largest request body accepted for evaluation, in
+     * bytes; larger bodies are answered with a 413. 16MB by default; zero for
+     * no limit.
+     */
+    public void setMaxBodySize(long maxBodySize) {
+        this.maxBodySize = maxBodySize;
+    }
+
+    /**
+     * @return the directory of named category sets, or null if none is served
+     */
+    public File getCategoryDirectory() {
+        return categoryDirectory;
+    }
+
+    /**
+     * @param categoryDirectory a directory of category files to serve as named
+     * sets, each under "/c/{name}/" where the file is {name}.properties; null
+     * (the default) to serve none
+     */
+    public void setCategoryDirectory(File categoryDirectory) {
+        this.categoryDirectory = categoryDirectory;
+    }
+
+    /**
+     * @return how long, in milliseconds, a named category set may go unused
+     * before it's unloaded; zero if never
+     */
+    public long getCategoryIdleMillis() {
+        return categoryIdleMillis;
+    }
+
+    /**
+     * @param categoryIdleMillis how long, in milliseconds, a named category set
+     * may go unused before it's unloaded; ten minutes by default, zero to keep
+     * sets loaded
+     */
+    public void setCategoryIdleMillis(long categoryIdleMillis) {
+        this.categoryIdleMillis = categoryIdleMillis;
+    }
+
+    /**
+     * @return the estimated heap, in bytes, that loaded named category sets
+     * may hold; zero if unlimited
+     */
+    public long getCategoryMemoryBudget() {
+        return categoryMemoryBudget;
+    }
+
+    /**
+     * @param categoryMemoryBudget the estimated heap, in bytes, that loaded
+     * named category sets may hold before the least recently used are
+     * unloaded; zero (the default) for no limit
+     */
+    public void setCategoryMemoryBudget(long categoryMemoryBudget) {
+        this.categoryMemoryBudget = categoryMemoryBudget;
+    }
+
+    /**
+     * @return this service's shard of the categories, from zero
+     */
+    public int getShardIndex() {
+        return shardIndex;
+    }
+
+    /**
+     * @return the number of shards the categories are split into; 1 if this
+     * service serves all of them
+     */
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * Makes this service one shard of a category set, serving only the
+     * categories whose key hashes to it, for a coordinator to send documents
+     * to over the binary protocol. Takes effect on the next start.
+     *
+     * @param shardIndex this service's shard, from zero
+     * @param shardCount the number of shards; 1 (the default) to serve every
+     * category
+     */
+    public void setShard(int shardIndex, int shardCount) {
+        if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount) {
+            throw new IllegalArgumentException("No shard " + shardIndex + " of " + shardCount + ".");
+        }
+        this.shardIndex = shardIndex;
+        this.shardCount = shardCount;
+    }
+
+    /**
+     * @return the shards this service coordinates, or null if it evaluates
+     * documents itself
+     */
+    public String getShards() {
+        return shards;
+    }
+
+    /**
+     * Makes this service a coordinator, which evaluates documents sent to "/"
+     * and "/batch" by sending them to every shard and merging the results.
+     * Takes effect on the next start.
+     *
+     * @param shards the binary protocol addresses of the shards: shards
+     * separated by commas, and each shard's replicas by '|', as in
+     * {@code node1:9101|node2:9101,node1:9102|node2:9102}; null (the default)
+     * to evaluate documents locally
+     * @see ShardCoordinator
+     */
+    public void setShards(String shards) {
+        if (shards != null) {
+            ShardCoordinator.parse(shards);
+        }
+        this.shards = shards;
+    }
+
+    /**
+     * @return how long a coordinator waits for its shards, in milliseconds
+     */
+    public long getShardTimeoutMillis() {
+        return shardTimeoutMillis;
+    }
+
+    /**
+     * @param shardTimeoutMillis how long a coordinator waits for its shards,
+     * in milliseconds (default: 1000); results missing a shard are flagged
+     * as partial
+     */
+    public void setShardTimeoutMillis(long shardTimeoutMillis) {
+        this.shardTimeoutMillis = shardTimeoutMillis;
+    }
+
+    /**
+     * @return how long a coordinator waits for a shard's replica before also
+     * asking the next one, in milliseconds; zero if requests aren't hedged
+     */
+    public long getHedgeDelayMillis() {
+        return hedgeDelayMillis;
+    }
+
+    /**
+     * @param hedgeDelayMillis how long a coordinator waits for a shard's
+     * replica before also asking the next one, in milliseconds; zero (the
+     * default) to only ask the next replica when one fails
+     */
+    public void setHedgeDelayMillis(long hedgeDelayMillis) {
+        this.hedgeDelayMillis = hedgeDelayMillis;
+    }
+
+    /**
+     * @return true once the service has started and, if a warm-up is
+     * configured, finished warming up
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * @return the longest the service warms up for after starting, in
+     * milliseconds; zero if there's no time limit
+     */
+    public long getWarmUpMillis() {
+        return warmUpMillis;
+    }
+
+    /**
+     * Makes the service warm up after starting, by running synthetic
+     * documents built from the terms of the queries through the request
+     * path, so that the first real requests run compiled code. The service
+     * listens while warming up, but reports itself ready on "/ready" only
+     * once it's done. With both a time and an iteration limit, whichever is
+     * reached first ends the warm-up.
+     *
+     * @param warmUpMillis how long to warm up for, in milliseconds; zero (the
+     * default) for no time limit
+     */
+    public void setWarmUpMillis(long warmUpMillis) {
+        this.warmUpMillis = warmUpMillis;
+    }
+
+    /**
+     * @return the most synthetic documents the service warms up with; zero if
+     * there's no limit
+     */
+    public long getWarmUpIterations() {
+        return warmUpIterations;
+    }
+
+    /**
+     * @param warmUpIterations the most synthetic documents to warm up with;
+     * zero (the default) for no limit
+     * @see #setWarmUpMillis(long)
+     */
+    public void setWarmUpIterations(long warmUpIterations) {
+        this.warmUpIterations = warmUpIterations;
+    }
+
+    /**
+     * @return the port of the binary protocol listener; zero if disabled
+     */
+    public int getBinaryPort() {
+        return binaryPort;
+    }
+
+    /**
+     * @param binaryPort the port on which to serve evaluations in the binary
+     * protocol used by {@link ClassifierClient}, alongside HTTP; zero (the
+     * default) to disable it. Requests share the HTTP request threads and
+     * queue, are limited in size by the maximum body size, and are limited in
+     * number per connection by the maximum batch documents in flight.
+     */
+    public void setBinaryPort(int binaryPort) {
+        this.binaryPort = binaryPort;
+    }
+
+    /**
+     * @return the precompiled category snapshot file, or null if none is kept
+     */
+    public File getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    /**
+     * @param snapshotFile the file in which a precompiled snapshot of the
+     * categories is kept, to speed up starts; null (the default) to keep none
+     */
+    public void setSnapshotFile(File snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    /**
+     * @return the maximum number of documents accepted in one batch request
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * @param maxBatchSize the maximum number of documents accepted in one batch
+     * request; documents beyond the limit are reported as an error and not
+     * evaluated
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * @return the maximum number of documents from one batch request that may
+     * be under evaluation (or awaiting output) at once
+     */
+    public int getMaxBatchInFlight() {
+        return maxBatchInFlight;
+    }
+
+    /**
+     * @param maxBatchInFlight the maximum number of documents from one batch
+     * request that may be under evaluation (or awaiting output) at once
+     */
+    public void setMaxBatchInFlight(int maxBatchInFlight) {
+        this.maxBatchInFlight = Math.max(1, maxBatchInFlight);
+    }
+
+    /**
+     * @return the number of threads handling requests
+     */
+    public int getRequestThreads() {
+        return requestThreads;
+    }
+
+    /**
+     * @param requestThreads the number of threads handling requests; defaults
+     * to the number of available processors. With virtual threads, this is
+     * the number of requests handled concurrently.
+     */
+    public void setRequestThreads(int requestThreads) {
+        this.requestThreads = requestThreads;
+    }
+
+    /**
+     * @return the number of requests that may wait for a thread
+     */
+    public int getRequestQueueDepth() {
+        return requestQueueDepth;
+    }
+
+    /**
+     * @param requestQueueDepth the number of requests that may wait for a
+     * thread; requests beyond this are answered with a 503
+     */
+    public void setRequestQueueDepth(int requestQueueDepth) {
+        this.requestQueueDepth = requestQueueDepth;
+    }
+
+    /**
+     * @return the longest a request may wait for a thread, in milliseconds
+     */
+    public long getMaxQueueWaitMillis() {
+        return maxQueueWaitMillis;
+    }
+
+    /**
+     * @param maxQueueWaitMillis the longest a request may wait for a thread
+     * before it is answered with a 503 instead of being handled; zero disables
+     * the limit
+     */
+    public void setMaxQueueWaitMillis(long maxQueueWaitMillis) {
+        this.maxQueueWaitMillis = maxQueueWaitMillis;
+    }
+
+    /**
+     * @return the Retry-After value sent with 503 responses, in seconds
+     */
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    /**
+     * @param retryAfterSeconds the Retry-After value sent with 503 responses,
+     * in seconds
+     */
+    public void setRetryAfterSeconds(int retryAfterSeconds) {
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * @return true if requests are handled on virtual threads
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Evaluation state that platform threads each keep for reuse is borrowed
+     * from a bounded pool by virtual threads instead, but the analyzer's
+     * token stream components are still kept per thread, and so rebuilt for
+     * every request.
+     *
+     * @param virtualThreads true to handle each request on its own virtual
+     * thread, if the JDK supports them; otherwise a pool of platform threads is
+     * used
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * @return the number of candidate queries at or above which a document's
+     * queries are searched in parallel; zero if disabled
+     */
+    public int getParallelQueryThreshold() {
+        return parallelQueryThreshold;
+    }
+
+    /**
+     * @param parallelQueryThreshold the number of candidate queries at or
+     * above which a document's queries are searched in parallel; zero to
+     * disable
+     */
+    public void setParallelQueryThreshold(int parallelQueryThreshold) {
+        this.parallelQueryThreshold = parallelQueryThreshold;
+    }
+
+    /**
+     * @return the document size, in characters, at or above which a
+     * document's queries are searched in parallel; zero if disabled
+     */
+    public long getParallelDocumentThreshold() {
+        return parallelDocumentThreshold;
+    }
+
+    /**
+     * @param parallelDocumentThreshold the document size, in characters, at or
+     * above which a document's queries are searched in parallel; zero to
+     * disable
+     */
+    public void setParallelDocumentThreshold(long parallelDocumentThreshold) {
+        this.parallelDocumentThreshold = parallelDocumentThreshold;
+    }
+
+    /**
+     * @return true if the search time of each category is recorded
+     */
+    public boolean isCategoryTiming() {
+        return categoryTiming;
+    }
+
+    /**
+     * Switches the recording of each category's search time, as reported on
+     * the metrics endpoint, on or off. May be changed while running.
+     *
+     * @param categoryTiming true to record the search time of each category
+     */
+    public synchronized void setCategoryTiming(boolean categoryTiming) {
+        this.categoryTiming = categoryTiming;
+        if (evaluator != null) {
+            evaluator.setCategoryTiming(categoryTiming);
+        }
+        if (registry != null) {
+            registry.forEachLoaded(loaded -> loaded.setCategoryTiming(categoryTiming));
+        }
+    }
 }
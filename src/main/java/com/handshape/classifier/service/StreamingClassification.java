@@ -0,0 +1,332 @@
+package com.handshape.classifier.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.index.memory.MemoryIndex;
+import org.apache.lucene.search.IndexSearcher;
+
+/**
+ * Classifies text that arrives a piece at a time, such as a transcript or a
+ * log tail, over a sliding window of tokens, so that memory stays bounded
+ * however long the stream runs. Obtained from
+ * {@link LuceneEvaluator#openStream}.
+ *
+ * <p>
+ * A window is the last {@code windowTokens} tokens of the streamed field at
+ * every multiple of {@code stepTokens} tokens, plus the last
+ * {@code windowTokens} at the end of the stream. Until the stream has filled
+ * a window, these are all the tokens so far, so the first windows of a
+ * stream are shorter than the rest. The stream matches a category if the category's
+ * query matches any window, with the stream's fixed fields alongside it. Each
+ * matching category is reported once, as soon as it's known:
+ * <ul>
+ * <li>A query without a prohibited clause can only gain matches as text is
+ * added, so it's searched against the text received so far after every
+ * append, and reported as soon as it matches part of a window.</li>
+ * <li>A query with a prohibited clause (such as {@code +elbows -knees}) could
+ * stop matching when more of its window arrives, so it's only searched
+ * against complete windows, including the shorter ones at the start.</li>
+ * </ul>
+ * A stream holds its category set for its whole life, so a reload doesn't
+ * change the categories part way through. A stream must only be used by one
+ * thread at a time.
+ *
+ * @author jturner
+ */
+public final class StreamingClassification implements Closeable {
+
+    /**
+     * The largest window, in tokens.
+     */
+    public static final int MAX_WINDOW_TOKENS = 65536;
+
+    /**
+     * Text buffered without whitespace beyond this length is analyzed anyway,
+     * splitting whatever token it's part of.
+     */
+    private static final int MAX_PENDING_CHARS = 16384;
+
+    private static final long MAX_REUSED_BYTES = 1024 * 1024;
+
+    /**
+     * Receives the categories the stream matches.
+     */
+    public interface Listener {
+
+        /**
+         * @param category the name of a category the stream matches
+         * @param tokens the number of tokens received when the match was found
+         * @throws IOException if the match can't be passed on; the append
+         * that found it fails with the same exception
+         */
+        void matched(String category, long tokens) throws IOException;
+    }
+
+    private final CategorySet set;
+    private final Analyzer analyzer;
+    private final String field;
+    private final List<Entry<String, TokenCache.Tokens>> fixedFields = new ArrayList<>();
+    private final int windowTokens;
+    private final int stepTokens;
+    private final BitSet eligible;
+    private final int limit;
+    private final Listener listener;
+    private final EvaluatorMetrics.CategoryCounters counters;
+    private final MemoryIndex index;
+    private final TokenCache.Replay replay = new TokenCache.Replay();
+    private final ReversedTerms reversed = new ReversedTerms();
+    private final WindowStream window = new WindowStream();
+    private final EvaluationContext.MatchCollector collector = new EvaluationContext.MatchCollector();
+    private final BitSet candidates = new BitSet();
+    private final BitSet matched = new BitSet();
+    private final StringBuilder pending = new StringBuilder();
+    private final char[] buffer = new char[4096];
+    private final String[] terms;
+    private final int[] increments;
+    private long tokens = 0;
+    private long evaluatedTo = 0;
+    private boolean closedEvaluated = false;
+    private boolean finished = false;
+
+    StreamingClassification(CategorySet set, Analyzer analyzer, String field, Map<String, String> fixedFields, int windowTokens, int stepTokens,
+            BitSet eligible, int limit, Listener listener, EvaluatorMetrics.CategoryCounters counters) {
+        if (windowTokens < 1 || windowTokens > MAX_WINDOW_TOKENS) {
+            throw new IllegalArgumentException("The window must be from 1 to " + MAX_WINDOW_TOKENS + " tokens.");
+        }
+        if (stepTokens < 1 || stepTokens > windowTokens) {
+            throw new IllegalArgumentException("The step must be from 1 token to the size of the window.");
+        }
+        this.set = set;
+        this.analyzer = analyzer;
+        this.field = field;
+        for (Entry<String, String> fixed : fixedFields.entrySet()) {
+            if (!fixed.getKey().equals(field)) {
+                this.fixedFields.add(new AbstractMap.SimpleImmutableEntry<>(fixed.getKey(),
+                        TokenCache.Tokens.analyze(analyzer, fixed.getKey(), fixed.getValue())));
+            }
+        }
+        this.windowTokens = windowTokens;
+        this.stepTokens = stepTokens;
+        this.eligible = eligible;
+        this.limit = limit;
+        this.listener = listener;
+        this.counters = counters;
+        // Recycles its buffers from window to window, as an evaluation context's does.
+        this.index = MemoryIndex.fromDocument(Collections.emptyList(), analyzer, false, false, MAX_REUSED_BYTES);
+        this.terms = new String[windowTokens];
+        this.increments = new int[windowTokens];
+    }
+
+    /**
+     * Adds text to the stream, and reports any categories it completes. Text
+     * after the last whitespace is held back until the token it ends in is
+     * complete.
+     *
+     * @param text the text
+     * @throws IOException if the listener fails
+     */
+    public void append(CharSequence text) throws IOException {
+        if (finished) {
+            throw new IllegalStateException("The stream is closed.");
+        }
+        pending.append(text);
+        int end = pending.length();
+        while (end > 0 && !Character.isWhitespace(pending.charAt(end - 1))) {
+            end--;
+        }
+        if (end == 0 && pending.length() > MAX_PENDING_CHARS) {
+            end = pending.length();
+        }
+        if (end > 0) {
+            analyze(pending.substring(0, end));
+            pending.delete(0, end);
+            if (tokens > evaluatedTo) {
+                // Early matches, from the part of the next window that's arrived.
+                long nextBoundary = (tokens + stepTokens - 1) / stepTokens * stepTokens;
+                evaluate(Math.max(0, nextBoundary - windowTokens), false);
+            }
+        }
+    }
+
+    /**
+     * Reads text into the stream until the reader is exhausted, or the
+     * category limit is reached. Each read is appended as soon as it
+     * returns, so categories are reported as the text arrives.
+     *
+     * @param reader the text; not closed
+     * @throws IOException if the reader or the listener fails
+     */
+    public void append(Reader reader) throws IOException {
+        int n;
+        while (!isDone() && (n = reader.read(buffer)) >= 0) {
+            append(CharBuffer.wrap(buffer, 0, n));
+        }
+    }
+
+    /**
+     * Ends the stream, searching its last window.
+     *
+     * @return the names of every category the stream matched
+     * @throws IOException if the listener fails
+     */
+    public Set<String> finish() throws IOException {
+        if (!finished) {
+            if (pending.length() > 0) {
+                analyze(pending.toString());
+                pending.setLength(0);
+            }
+            if (!closedEvaluated && !isDone()) {
+                evaluate(Math.max(0, tokens - windowTokens), true);
+            }
+            finished = true;
+        }
+        return getMatched();
+    }
+
+    /**
+     * @return true once the category limit has been reached, so that no more
+     * text need be sent
+     */
+    public boolean isDone() {
+        return limit > 0 && matched.cardinality() >= limit;
+    }
+
+    /**
+     * @return the number of tokens received so far
+     */
+    public long getTokens() {
+        return tokens;
+    }
+
+    /**
+     * @return the names of the categories matched so far
+     */
+    public Set<String> getMatched() {
+        Set<String> names = new TreeSet<>();
+        for (int i = matched.nextSetBit(0); i >= 0; i = matched.nextSetBit(i + 1)) {
+            names.add(set.getIds().getName(i));
+        }
+        return Collections.unmodifiableSet(names);
+    }
+
+    /**
+     * Releases the stream without searching its last window.
+     */
+    @Override
+    public void close() {
+        finished = true;
+        pending.setLength(0);
+        index.reset();
+    }
+
+    private void analyze(String text) throws IOException {
+        try ( TokenStream stream = analyzer.tokenStream(field, text)) {
+            CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+            PositionIncrementAttribute positionIncrement = stream.addAttribute(PositionIncrementAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                int slot = (int) (tokens % windowTokens);
+                terms[slot] = term.toString();
+                increments[slot] = positionIncrement.getPositionIncrement();
+                tokens++;
+                closedEvaluated = false;
+                if (tokens % stepTokens == 0 && !isDone()) {
+                    // A whole window, even if the stream hasn't yet filled one.
+                    evaluate(Math.max(0, tokens - windowTokens), true);
+                }
+            }
+            stream.end();
+        }
+    }
+
+    /**
+     * Searches the tokens from a position to the latest.
+     *
+     * @param from the position of the first token to search
+     * @param closed true if the tokens are a whole window, so that queries
+     * with prohibited clauses can be decided
+     */
+    private void evaluate(long from, boolean closed) throws IOException {
+        QueryIndex queries = set.getIndex();
+        index.reset();
+        for (Entry<String, TokenCache.Tokens> fixed : fixedFields) {
+            addField(fixed.getKey(), replay.replay(fixed.getValue()));
+        }
+        addField(field, window.replay(from, tokens));
+        index.freeze();
+        IndexSearcher searcher = index.createSearcher();
+        queries.candidates(searcher.getIndexReader().leaves().get(0).reader(), candidates);
+        candidates.and(eligible);
+        candidates.andNot(matched);
+        if (!closed) {
+            candidates.andNot(queries.getNegated());
+        }
+        for (int i = candidates.nextSetBit(0); i >= 0 && !isDone(); i = candidates.nextSetBit(i + 1)) {
+            if (EvaluationContext.matches(searcher, queries.getQuery(i), collector)) {
+                matched.set(i);
+                if (counters != null) {
+                    counters.hit(i);
+                }
+                listener.matched(queries.getKey(i), tokens);
+            }
+        }
+        evaluatedTo = tokens;
+        closedEvaluated = closed;
+    }
+
+    private void addField(String name, TokenStream stream) {
+        int positionIncrementGap = analyzer.getPositionIncrementGap(name);
+        int offsetGap = analyzer.getOffsetGap(name);
+        if (set.getReversedFields().contains(name)) {
+            index.addField(name, reversed.record(stream), positionIncrementGap, offsetGap);
+            index.addField(ReversedTerms.fieldName(name), reversed.replay(), positionIncrementGap, offsetGap);
+        } else {
+            index.addField(name, stream, positionIncrementGap, offsetGap);
+        }
+    }
+
+    /**
+     * Replays a range of the window's tokens into an index.
+     */
+    private final class WindowStream extends TokenStream {
+
+        private final CharTermAttribute term = addAttribute(CharTermAttribute.class);
+        private final PositionIncrementAttribute positionIncrement = addAttribute(PositionIncrementAttribute.class);
+        private long next;
+        private long end;
+
+        WindowStream replay(long from, long to) {
+            this.next = from;
+            this.end = to;
+            return this;
+        }
+
+        @Override
+        public boolean incrementToken() {
+            if (next >= end) {
+                return false;
+            }
+            clearAttributes();
+            int slot = (int) (next % windowTokens);
+            term.setEmpty().append(terms[slot]);
+            positionIncrement.setPositionIncrement(increments[slot]);
+            next++;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package com.handshape.classifier.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+
+/**
+ * Bounded cache of analyzed field values, keyed by field name and value, for
+ * the short values that recur from document to document (titles, sources,
+ * country codes). A cached value's terms, position increments and offsets are
+ * replayed into the document's index instead of being analyzed again. Values
+ * longer than the configured maximum are never cached. Entries are evicted
+ * least-recently-used first once their estimated size exceeds the budget.
+ *
+ * <p>
+ * Replayed terms are produced through a {@link CharTermAttribute}, so the
+ * analyzer must be one whose terms are indexed as their UTF-8 text, as the
+ * StandardAnalyzer's are.
+ *
+ * @author jturner
+ */
+final class TokenCache {
+
+    /**
+     * Rough per-entry overhead, in bytes, of the key, the tokens and the map
+     * entry holding them.
+     */
+    private static final long ENTRY_OVERHEAD = 160;
+
+    private final long maxBytes;
+    private final int maxValueLength;
+    private final LinkedHashMap<Key, Tokens> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0L;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder hitChars = new LongAdder();
+
+    /**
+     * @param maxBytes the estimated size, in bytes, beyond which entries are
+     * evicted
+     * @param maxValueLength the longest value, in characters, that is cached
+     */
+    TokenCache(long maxBytes, int maxValueLength) {
+        this.maxBytes = maxBytes;
+        this.maxValueLength = maxValueLength;
+    }
+
+    /**
+     * @return the longest value, in characters, that is cached
+     */
+    int getMaxValueLength() {
+        return maxValueLength;
+    }
+
+    /**
+     * @param length the length of a value, in characters
+     * @return true if a value of this length may be cached; if not, it's
+     * counted as skipped
+     */
+    boolean accepts(int length) {
+        if (length > maxValueLength) {
+            skipped.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Looks up the tokens of a field value, analyzing and caching them if
+     * they aren't cached.
+     *
+     * @param analyzer the analyzer that tokenizes the value
+     * @param field the field name
+     * @param value the value, which the cache {@link #accepts(int)}
+     * @return the tokens
+     */
+    Tokens get(Analyzer analyzer, String field, String value) {
+        Key key = new Key(field, value);
+        Tokens tokens;
+        synchronized (this) {
+            tokens = entries.get(key);
+        }
+        if (tokens != null) {
+            hits.increment();
+            hitChars.add(value.length());
+            return tokens;
+        }
+        misses.increment();
+        tokens = Tokens.analyze(analyzer, field, value);
+        put(key, tokens);
+        return tokens;
+    }
+
+    private synchronized void put(Key key, Tokens tokens) {
+        long size = key.size + tokens.estimateBytes();
+        if (size > maxBytes) {
+            return;
+        }
+        Tokens previous = entries.put(key, tokens);
+        if (previous != null) {
+            bytes -= key.size + previous.estimateBytes();
+        }
+        bytes += size;
+        Iterator<Entry<Key, Tokens>> eldest = entries.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            Entry<Key, Tokens> entry = eldest.next();
+            bytes -= entry.getKey().size + entry.getValue().estimateBytes();
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    /**
+     * @return the number of values whose tokens were replayed from the cache
+     */
+    long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of values that had to be analyzed
+     */
+    long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of values too long to be cached
+     */
+    long getSkipped() {
+        return skipped.sum();
+    }
+
+    /**
+     * @return the number of entries evicted to stay within the size budget
+     */
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the total length, in characters, of the values whose tokens
+     * were replayed rather than analyzed
+     */
+    long getHitChars() {
+        return hitChars.sum();
+    }
+
+    /**
+     * @return the number of cached values
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the estimated size, in bytes, of the cached values
+     */
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Writes the cache metrics in the Prometheus text format.
+     */
+    void write(StringBuilder out) {
+        PrometheusText.single(out, "classifier_token_cache_hits_total", "counter",
+                "Field values whose tokens were replayed from the token cache.", getHits());
+        PrometheusText.single(out, "classifier_token_cache_misses_total", "counter",
+                "Field values that missed the token cache and were analyzed.", getMisses());
+        PrometheusText.single(out, "classifier_token_cache_skipped_total", "counter",
+                "Field values too long for the token cache.", getSkipped());
+        PrometheusText.single(out, "classifier_token_cache_evictions_total", "counter",
+                "Field values evicted from the token cache to stay within its size limit.", getEvictions());
+        PrometheusText.single(out, "classifier_token_cache_hit_chars_total", "counter",
+                "Characters of field values replayed from the token cache rather than analyzed.", getHitChars());
+        PrometheusText.single(out, "classifier_token_cache_entries", "gauge",
+                "Field values currently in the token cache.", size());
+        PrometheusText.single(out, "classifier_token_cache_bytes", "gauge",
+                "Estimated size of the token cache.", getBytes());
+    }
+
+    /**
+     * The analyzed form of one field value: each token's term, position
+     * increment and offsets, and the final position increment and offset
+     * reported at the end of the stream.
+     */
+    static final class Tokens {
+
+        private final char[] terms;
+        /**
+         * The end of each token's term in the terms array, its position
+         * increment, and its start and end offsets.
+         */
+        private final int[] data;
+        private final int count;
+        private final int finalPositionIncrement;
+        private final int finalOffset;
+
+        private Tokens(char[] terms, int[] data, int count, int finalPositionIncrement, int finalOffset) {
+            this.terms = terms;
+            this.data = data;
+            this.count = count;
+            this.finalPositionIncrement = finalPositionIncrement;
+            this.finalOffset = finalOffset;
+        }
+
+        /**
+         * Runs a value through the analyzer, recording its tokens.
+         */
+        static Tokens analyze(Analyzer analyzer, String field, String value) {
+            char[] terms = new char[Math.max(16, value.length())];
+            int[] data = new int[32];
+            int length = 0;
+            int count = 0;
+            try ( TokenStream stream = analyzer.tokenStream(field, value)) {
+                CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+                PositionIncrementAttribute positionIncrement = stream.addAttribute(PositionIncrementAttribute.class);
+                OffsetAttribute offset = stream.addAttribute(OffsetAttribute.class);
+                stream.reset();
+                while (stream.incrementToken()) {
+                    if (length + term.length() > terms.length) {
+                        terms = Arrays.copyOf(terms, Math.max(terms.length * 2, length + term.length()));
+                    }
+                    System.arraycopy(term.buffer(), 0, terms, length, term.length());
+                    length += term.length();
+                    if (4 * count + 4 > data.length) {
+                        data = Arrays.copyOf(data, data.length * 2);
+                    }
+                    data[4 * count] = length;
+                    data[4 * count + 1] = positionIncrement.getPositionIncrement();
+                    data[4 * count + 2] = offset.startOffset();
+                    data[4 * count + 3] = offset.endOffset();
+                    count++;
+                }
+                stream.end();
+                return new Tokens(Arrays.copyOf(terms, length), Arrays.copyOf(data, 4 * count), count,
+                        positionIncrement.getPositionIncrement(), offset.endOffset());
+            } catch (IOException ex) {
+                // Analyzing a string doesn't do I/O.
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        /**
+         * @return the number of tokens
+         */
+        int size() {
+            return count;
+        }
+
+        long estimateBytes() {
+            return 2L * terms.length + 4L * data.length;
+        }
+    }
+
+    /**
+     * Replays cached tokens into an index. Reusable: point it at a value's
+     * tokens with {@link #replay(Tokens)} before each use.
+     */
+    static final class Replay extends TokenStream {
+
+        private final CharTermAttribute term = addAttribute(CharTermAttribute.class);
+        private final PositionIncrementAttribute positionIncrement = addAttribute(PositionIncrementAttribute.class);
+        private final OffsetAttribute offset = addAttribute(OffsetAttribute.class);
+        private Tokens tokens;
+        private int next;
+
+        /**
+         * @param tokens the tokens to replay
+         * @return this stream
+         */
+        Replay replay(Tokens tokens) {
+            this.tokens = tokens;
+            return this;
+        }
+
+        @Override
+        public void reset() throws IOException {
+            super.reset();
+            next = 0;
+        }
+
+        @Override
+        public boolean incrementToken() {
+            if (next >= tokens.count) {
+                return false;
+            }
+            clearAttributes();
+            int start = next == 0 ? 0 : tokens.data[4 * (next - 1)];
+            term.copyBuffer(tokens.terms, start, tokens.data[4 * next] - start);
+            positionIncrement.setPositionIncrement(tokens.data[4 * next + 1]);
+            offset.setOffset(tokens.data[4 * next + 2], tokens.data[4 * next + 3]);
+            next++;
+            return true;
+        }
+
+        @Override
+        public void end() throws IOException {
+            super.end();
+            positionIncrement.setPositionIncrement(tokens.finalPositionIncrement);
+            offset.setOffset(tokens.finalOffset, tokens.finalOffset);
+        }
+    }
+
+    private static final class Key {
+
+        private final String field;
+        private final String value;
+        private final int hash;
+        private final long size;
+
+        Key(String field, String value) {
+            this.field = field;
+            this.value = value;
+            hash = 31 * field.hashCode() + value.hashCode();
+            size = ENTRY_OVERHEAD + 2L * (field.length() + value.length());
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && field.equals(other.field) && value.equals(other.value);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.handshape.classifier.service;
+
+import com.github.cliftonlabs.json_simple.JsonObject;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryVisitor;
+
+/**
+ * Exercises an evaluator with synthetic documents before it takes traffic, so
+ * that the request path is compiled by the JIT rather than interpreted when
+ * the first real requests arrive. Documents are built from the terms of the
+ * loaded queries, mixed with filler, so that they reach the pre-filter, the
+ * query searches and the result encoding in roughly the proportions real
+ * documents do. Each one goes through the same steps as a request: the body
+ * is parsed as JSON or as a form, evaluated, and the result serialized.
+ *
+ * @author jturner
+ */
+final class WarmUp {
+
+    /**
+     * The most terms collected per field.
+     */
+    private static final int MAX_TERMS = 10000;
+
+    private static final String[] FILLER = new String[]{
+        "the", "of", "and", "report", "said", "new", "year", "people", "after", "market",
+        "first", "city", "state", "group", "week", "percent", "time", "service", "office", "local"
+    };
+
+    private final LuceneEvaluator evaluator;
+    private final Map<String, List<String>> terms;
+    private final List<String> categories;
+    private final Random random;
+
+    /**
+     * @param evaluator the evaluator to exercise, with its categories loaded
+     * @param seed the seed of the synthetic documents
+     */
+    WarmUp(LuceneEvaluator evaluator, long seed) {
+        this.evaluator = evaluator;
+        Map<String, Query> queries = evaluator.getQueries();
+        this.terms = collectTerms(queries.values());
+        this.categories = new ArrayList<>(queries.keySet());
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Collects the terms the queries look for, by field. The default field is
+     * always present, so that a document has somewhere to put its filler.
+     *
+     * @param queries the queries
+     * @return the terms, by field
+     */
+    static Map<String, List<String>> collectTerms(Iterable<Query> queries) {
+        Map<String, TreeSet<String>> collected = new TreeMap<>();
+        collected.put(LuceneEvaluator.DEFAULT_FIELD_NAME, new TreeSet<>());
+        QueryVisitor visitor = new QueryVisitor() {
+            @Override
+            public void consumeTerms(Query query, Term... terms) {
+                for (Term term : terms) {
+                    TreeSet<String> field = collected.computeIfAbsent(term.field(), f -> new TreeSet<>());
+                    if (field.size() < MAX_TERMS) {
+                        field.add(term.text());
+                    }
+                }
+            }
+        };
+        for (Query query : queries) {
+            query.visit(visitor);
+        }
+        Map<String, List<String>> terms = new TreeMap<>();
+        for (Entry<String, TreeSet<String>> entry : collected.entrySet()) {
+            terms.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+        }
+        return terms;
+    }
+
+    /**
+     * @return a synthetic document: a few words in each field the queries
+     * use, about half of them terms the queries look for
+     */
+    Map<String, String> document() {
+        Map<String, String> document = new TreeMap<>();
+        for (Entry<String, List<String>> field : terms.entrySet()) {
+            StringBuilder value = new StringBuilder();
+            int words = 1 + random.nextInt(field.getKey().equals(LuceneEvaluator.DEFAULT_FIELD_NAME) ? 64 : 8);
+            for (int i = 0; i < words; i++) {
+                if (i > 0) {
+                    value.append(' ');
+                }
+                List<String> candidates = field.getValue();
+                if (!candidates.isEmpty() && random.nextBoolean()) {
+                    value.append(candidates.get(random.nextInt(candidates.size())));
+                } else {
+                    value.append(FILLER[random.nextInt(FILLER.length)]);
+                }
+            }
+            document.put(field.getKey(), value.toString());
+        }
+        return document;
+    }
+
+    /**
+     * Evaluates synthetic documents until either limit is reached, or the
+     * thread is interrupted. The result cache is bypassed, so that warming up
+     * doesn't fill it with synthetic results.
+     *
+     * @param maxMillis the longest to run for, in milliseconds; zero for no
+     * limit
+     * @param maxIterations the most documents to evaluate; zero for no limit
+     * @return the number of documents evaluated
+     */
+    long run(long maxMillis, long maxIterations) {
+        long deadline = System.nanoTime() + maxMillis * 1000000L;
+        long iterations = 0;
+        while ((maxIterations <= 0 || iterations < maxIterations)
+                && (maxMillis <= 0 || System.nanoTime() - deadline < 0)
+                && !Thread.currentThread().isInterrupted()) {
+            iterate(iterations++);
+        }
+        return iterations;
+    }
+
+    private void iterate(long iteration) {
+        Map<String, String> document = document();
+        CategorySelection selection = CategorySelection.ALL;
+        if (iteration % 8 == 7 && !categories.isEmpty()) {
+            selection = CategorySelection.of(categories.get(random.nextInt(categories.size())));
+        }
+        CategoryMatches matches;
+        try {
+            switch ((int) (iteration % 4)) {
+                case 0:
+                case 1:
+                    matches = evaluator.evaluateMatches(RequestBodies.json(new StringReader(new JsonObject(document).toJson())), false, selection);
+                    break;
+                case 2:
+                    matches = evaluator.evaluateMatches(RequestBodies.form(new ByteArrayInputStream(formEncode(document))), false, selection);
+                    break;
+                default:
+                    matches = evaluator.evaluateMatches(document, false, selection);
+                    break;
+            }
+        } catch (IOException ex) {
+            // Synthetic bodies are well-formed, and read from memory.
+            throw new IllegalStateException(ex);
+        }
+        matches.toJson();
+        BinaryProtocol.encodeResult((int) iteration, matches);
+    }
+
+    /**
+     * @return the document as an application/x-www-form-urlencoded body
+     */
+    static byte[] formEncode(Map<String, String> document) {
+        StringBuilder body = new StringBuilder();
+        try {
+            for (Entry<String, String> field : document.entrySet()) {
+                if (body.length() > 0) {
+                    body.append('&');
+                }
+                body.append(URLEncoder.encode(field.getKey(), "UTF-8")).append('=').append(URLEncoder.encode(field.getValue(), "UTF-8"));
+            }
+        } catch (UnsupportedEncodingException ex) {
+            // UTF-8 is always supported.
+            throw new IllegalStateException(ex);
+        }
+        return body.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,140 @@
+package com.handshape.classifier.service;
+
+import com.github.cliftonlabs.json_simple.JsonArray;
+import com.github.cliftonlabs.json_simple.JsonException;
+import com.github.cliftonlabs.json_simple.JsonObject;
+import com.github.cliftonlabs.json_simple.Jsoner;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.URISyntaxException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import static org.testng.Assert.*;
+
+/**
+ *
+ * @author jturner
+ */
+public class BulkClassifierNGTest {
+
+    public BulkClassifierNGTest() {
+    }
+
+    /**
+     * Test of classify method, of class BulkClassifier, with NDJSON input.
+     */
+    @org.testng.annotations.Test
+    public void testClassifyNdjson() throws Exception {
+        System.out.println("classify - ndjson");
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            input.append(i % 2 == 0 ? "{\"text\":\"elbows and knees\"}" : "{\"id\":\"doc-" + i + "\",\"text\":\"nothing\"}");
+            input.append(i % 3 == 0 ? "\r\n" : "\n");
+            if (i == 1000) {
+                input.append("\n  \n[1]\n");
+            }
+        }
+        try ( LuceneEvaluator evaluator = evaluator()) {
+            Set<String> expected = evaluator.evaluate(Collections.singletonMap("text", "elbows and knees"));
+            assertFalse(expected.isEmpty());
+            for (boolean ordered : new boolean[]{true, false}) {
+                BulkClassifier classifier = new BulkClassifier(evaluator);
+                classifier.setThreads(3);
+                classifier.setOrdered(ordered);
+                // A small buffer exercises records that straddle reads.
+                classifier.setBufferSize(100);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                BulkClassifier.Summary summary = classifier.classify(
+                        Channels.newChannel(new ByteArrayInputStream(input.toString().getBytes(StandardCharsets.UTF_8))), out);
+                assertEquals(summary.getRecords(), 2001L);
+                assertEquals(summary.getErrors(), 1L);
+                List<JsonObject> results = lines(out);
+                assertEquals(results.size(), 2001);
+                if (ordered) {
+                    assertEquals(results.get(0).get("id"), BigDecimal.ZERO);
+                    assertEquals(results.get(1).get("id"), "doc-1");
+                    assertEquals(results.get(1001).get("error"), "Records must be JSON objects.");
+                    assertEquals(results.get(2000).get("id"), "doc-1999");
+                }
+                int matched = 0;
+                for (JsonObject result : results) {
+                    if (result.containsKey("categories") && !((JsonArray) result.get("categories")).isEmpty()) {
+                        matched++;
+                        assertEquals(new TreeSet<>((JsonArray) result.get("categories")), expected);
+                    }
+                }
+                assertEquals(matched, 1000);
+            }
+        }
+    }
+
+    /**
+     * Test of classify method, of class BulkClassifier, with CSV input.
+     */
+    @org.testng.annotations.Test
+    public void testClassifyCsv() throws Exception {
+        System.out.println("classify - csv");
+        String input = "id,text,title\n"
+                + "a,elbows,\"an unexpected\n journey\"\n"
+                + "b,\"say \"\"knees\"\"\",other\n"
+                + "c,too,many,values\n";
+        try ( LuceneEvaluator evaluator = evaluator()) {
+            BulkClassifier classifier = new BulkClassifier(evaluator);
+            classifier.setFormat(BulkClassifier.Format.CSV);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            BulkClassifier.Summary summary = classifier.classify(
+                    Channels.newChannel(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8))), out);
+            assertEquals(summary.getRecords(), 3L);
+            List<JsonObject> results = lines(out);
+            assertEquals(results.get(0).get("id"), "a");
+            Map<String, String> first = new TreeMap<>();
+            first.put("text", "elbows");
+            first.put("title", "an unexpected\n journey");
+            assertEquals(new TreeSet<>((JsonArray) results.get(0).get("categories")), evaluator.evaluate(first));
+            assertTrue(evaluator.evaluate(first).contains("positiveTest2"));
+            Map<String, String> second = new TreeMap<>();
+            second.put("text", "say \"knees\"");
+            second.put("title", "other");
+            assertEquals(results.get(1).get("id"), "b");
+            assertEquals(new TreeSet<>((JsonArray) results.get(1).get("categories")), evaluator.evaluate(second));
+            // A record without the right number of values has no id but its position.
+            assertEquals(results.get(2).get("id"), new BigDecimal(2));
+            assertTrue(results.get(2).containsKey("error"));
+        }
+    }
+
+    /**
+     * Test of the CSV record parser.
+     */
+    @org.testng.annotations.Test
+    public void testCsvParse() {
+        System.out.println("Csv.parse");
+        assertEquals(BulkClassifier.Csv.parse("a,\"b,c\",\"d \"\"e\"\"\",,"), Arrays.asList("a", "b,c", "d \"e\"", "", ""));
+        assertEquals(BulkClassifier.Csv.parse(""), Arrays.asList(""));
+    }
+
+    private LuceneEvaluator evaluator() throws IOException, URISyntaxException {
+        LuceneEvaluator evaluator = new LuceneEvaluator(new File(getClass().getResource("/testcategories.properties").toURI()));
+        evaluator.stop();
+        return evaluator;
+    }
+
+    private static List<JsonObject> lines(ByteArrayOutputStream out) throws JsonException {
+        List<JsonObject> results = new ArrayList<>();
+        for (String line : new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n")) {
+            results.add((JsonObject) Jsoner.deserialize(line));
+        }
+        return results;
+    }
+}
@@ -0,0 +1,76 @@
+package com.handshape.classifier.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import static org.testng.Assert.*;
+
+/**
+ *
+ * @author jturner
+ */
+public class CategoryMatchesNGTest {
+
+    public CategoryMatchesNGTest() {
+    }
+
+    /**
+     * Ids are positions in name order, and the matches read back as names.
+     */
+    @org.testng.annotations.Test
+    public void testIds() {
+        System.out.println("ids");
+        CategoryIds ids = new CategoryIds(Arrays.asList("alpha", "beta", "gamma"));
+        BitSet matched = new BitSet();
+        matched.set(0);
+        matched.set(2);
+        CategoryMatches matches = new CategoryMatches(ids, matched);
+        assertEquals(matches.size(), 2);
+        assertEquals(matches.getCategoryCount(), 3);
+        assertEquals(matches.getId("beta"), 1);
+        assertEquals(matches.getId("delta"), -1);
+        assertEquals(matches.getName(2), "gamma");
+        assertTrue(matches.contains(0));
+        assertFalse(matches.contains(1));
+        assertFalse(matches.contains(-1));
+        assertEquals(matches.nextMatch(1), 2);
+        assertEquals(matches.nextMatch(3), -1);
+        assertEquals(matches.toSet(), new TreeSet<>(Arrays.asList("alpha", "gamma")));
+        assertTrue(matches.toSet().contains("gamma"));
+        assertFalse(matches.toSet().contains("beta"));
+        assertEquals(matches.toBitSet(), matched);
+        assertTrue(new CategoryMatches(CategoryIds.EMPTY, new BitSet()).isEmpty());
+    }
+
+    /**
+     * Category names must be given in order, once each.
+     */
+    @org.testng.annotations.Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnsorted() {
+        System.out.println("unsorted");
+        new CategoryIds(Arrays.asList("beta", "alpha"));
+    }
+
+    /**
+     * The pre-encoded response is byte-for-byte the one built from the names.
+     */
+    @org.testng.annotations.Test
+    public void testToJson() {
+        System.out.println("toJson");
+        Set<String> names = new TreeSet<>(Arrays.asList("café", "quote\"d", "back\\slash", "日本", "plain"));
+        CategoryIds ids = new CategoryIds(names);
+        BitSet all = new BitSet();
+        all.set(0, names.size());
+        assertEquals(new CategoryMatches(ids, all).toJson(),
+                SimpleClassifierService.toJsonResponse(names).getBytes(StandardCharsets.UTF_8));
+        BitSet one = new BitSet();
+        one.set(ids.getId("café"));
+        assertEquals(new CategoryMatches(ids, one).toJson(),
+                SimpleClassifierService.toJsonResponse(Collections.singleton("café")).getBytes(StandardCharsets.UTF_8));
+        assertEquals(new CategoryMatches(ids, new BitSet()).toJson(),
+                SimpleClassifierService.toJsonResponse(Collections.emptySet()).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,163 @@
+package com.handshape.classifier.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+import org.apache.commons.io.FileUtils;
+import static org.testng.Assert.*;
+
+/**
+ *
+ * @author jturner
+ */
+public class CategoryRegistryNGTest {
+
+    private static final Map<String, String> ELBOWS = Collections.singletonMap("text", "elbows");
+    private static final Map<String, String> KNEES = Collections.singletonMap("text", "knees");
+
+    public CategoryRegistryNGTest() {
+    }
+
+    /**
+     * Test of get method, of class CategoryRegistry.
+     */
+    @org.testng.annotations.Test
+    public void testGet() throws IOException {
+        System.out.println("get");
+        File dir = Files.createTempDirectory("registry").toFile();
+        try {
+            FileUtils.write(new File(dir, "one.properties"), "elbows=elbows\n", "UTF-8");
+            FileUtils.write(new File(dir, "two.properties"), "knees=knees\n", "UTF-8");
+            try ( CategoryRegistry instance = new CategoryRegistry(dir, 0, 0, evaluator -> evaluator.setCategoryTiming(true))) {
+                assertEquals(instance.getLoadedCount(), 0);
+                LuceneEvaluator one = instance.get("one");
+                assertTrue(one.isCategoryTiming());
+                assertEquals(one.evaluate(ELBOWS), Collections.singleton("elbows"));
+                assertSame(instance.get("one"), one);
+                assertEquals(instance.get("two").evaluate(KNEES), Collections.singleton("knees"));
+                assertTrue(instance.get("two").evaluate(ELBOWS).isEmpty());
+                assertEquals(instance.getLoadedCount(), 2);
+                assertEquals(instance.getLoads(), 2);
+                assertTrue(instance.getEstimatedBytes() > 0);
+                for (String bad : new String[]{"three", "", "../one", ".hidden", "one/two", null}) {
+                    assertNull(instance.get(bad), bad);
+                }
+            }
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    /**
+     * Each set is reloaded when its own file changes, through the one shared
+     * watcher.
+     */
+    @org.testng.annotations.Test
+    public void testReload() throws IOException, InterruptedException {
+        System.out.println("reload");
+        File dir = Files.createTempDirectory("registry").toFile();
+        try {
+            File file = new File(dir, "one.properties");
+            FileUtils.write(file, "elbows=elbows\n", "UTF-8");
+            FileUtils.write(new File(dir, "two.properties"), "knees=knees\n", "UTF-8");
+            try ( CategoryRegistry instance = new CategoryRegistry(dir, 0, 0, evaluator -> {
+            })) {
+                instance.setReloadDebounceMillis(50);
+                LuceneEvaluator one = instance.get("one");
+                LuceneEvaluator two = instance.get("two");
+                long oneTime = one.getLastLoadTime();
+                long twoTime = two.getLastLoadTime();
+                FileUtils.write(file, "knees=knees\n", "UTF-8", true);
+                long deadline = System.currentTimeMillis() + 10000;
+                while (oneTime == one.getLastLoadTime()) {
+                    Thread.sleep(100);
+                    if (System.currentTimeMillis() > deadline) {
+                        System.out.println("WARNING - Change not detected ten seconds after being written to disk. This platform may not support registration of filesystem monitors!");
+                        one.loadCategories();
+                    }
+                }
+                assertEquals(one.evaluate(KNEES), Collections.singleton("knees"));
+                assertEquals(two.getLastLoadTime(), twoTime);
+            }
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    /**
+     * Test of evictIdle method, of class CategoryRegistry.
+     */
+    @org.testng.annotations.Test
+    public void testEvictIdle() throws IOException, InterruptedException {
+        System.out.println("evictIdle");
+        File dir = Files.createTempDirectory("registry").toFile();
+        try {
+            FileUtils.write(new File(dir, "one.properties"), "elbows=elbows\n", "UTF-8");
+            try ( CategoryRegistry instance = new CategoryRegistry(dir, 200, 0, evaluator -> {
+            })) {
+                LuceneEvaluator first = instance.get("one");
+                long deadline = System.currentTimeMillis() + 10000;
+                while (instance.getIdleEvictions() == 0 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(50);
+                }
+                assertEquals(instance.getLoadedCount(), 0);
+                assertEquals(instance.getIdleEvictions(), 1);
+                // An evaluator still held by a request keeps working.
+                assertEquals(first.evaluate(ELBOWS), Collections.singleton("elbows"));
+                LuceneEvaluator second = instance.get("one");
+                assertNotSame(second, first);
+                assertEquals(second.evaluate(ELBOWS), Collections.singleton("elbows"));
+                assertEquals(instance.getLoads(), 2);
+            }
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    /**
+     * The least recently used sets are unloaded to keep within the memory
+     * budget, but never the set just asked for.
+     */
+    @org.testng.annotations.Test
+    public void testMemoryBudget() throws IOException, InterruptedException {
+        System.out.println("memory budget");
+        File dir = Files.createTempDirectory("registry").toFile();
+        try {
+            for (String name : new String[]{"a", "b", "c"}) {
+                FileUtils.write(new File(dir, name + ".properties"), "elbows=elbows\nknees=knees\n", "UTF-8");
+            }
+            long size;
+            try ( CategoryRegistry unlimited = new CategoryRegistry(dir, 0, 0, evaluator -> {
+            })) {
+                size = unlimited.get("a").getEstimatedBytes();
+            }
+            assertTrue(size > 0);
+            try ( CategoryRegistry instance = new CategoryRegistry(dir, 0, size * 2, evaluator -> {
+            })) {
+                instance.get("a");
+                Thread.sleep(5);
+                instance.get("b");
+                Thread.sleep(5);
+                instance.get("a");
+                Thread.sleep(5);
+                instance.get("c");
+                assertEquals(instance.getLoadedCount(), 2);
+                assertEquals(instance.getMemoryEvictions(), 1);
+                assertTrue(instance.getEstimatedBytes() <= size * 2);
+                StringBuilder out = new StringBuilder();
+                instance.write(out);
+                assertTrue(out.toString().contains("classifier_category_set_evictions_total{reason=\"memory\"} 1\n"), out.toString());
+            }
+            try ( CategoryRegistry tiny = new CategoryRegistry(dir, 0, 1, evaluator -> {
+            })) {
+                assertNotNull(tiny.get("a"));
+                assertNotNull(tiny.get("b"));
+                assertEquals(tiny.getLoadedCount(), 1);
+            }
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+}
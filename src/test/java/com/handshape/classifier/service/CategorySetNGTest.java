@@ -0,0 +1,95 @@
+package com.handshape.classifier.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.TreeSet;
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import static org.testng.Assert.*;
+
+/**
+ *
+ * @author jturner
+ */
+public class CategorySetNGTest {
+
+    public CategorySetNGTest() {
+    }
+
+    /**
+     * A recompile only parses the categories that were added or changed.
+     */
+    @org.testng.annotations.Test
+    public void testIncrementalCompile() throws IOException {
+        System.out.println("incremental compile");
+        Analyzer analyzer = new StandardAnalyzer();
+        CategorySet first = CategorySet.compile(properties("alpha=elbows\nbeta=knees\ngamma=(broken\n"),
+                "one", 1L, CategorySet.EMPTY, null, analyzer, true);
+        assertEquals(first.getGeneration(), 1L);
+        assertEquals(first.getQueries().keySet(), new TreeSet<>(Arrays.asList("alpha", "beta")));
+        assertEquals(first.getFailures(), Collections.singleton("gamma"));
+        assertEquals(first.getFieldList(), Collections.singleton(LuceneEvaluator.DEFAULT_FIELD_NAME));
+
+        CategorySet second = CategorySet.compile(properties("alpha=elbows\nbeta=title:knees\ngamma=(broken\ndelta=toes\n"),
+                "two", 2L, first, null, analyzer, true);
+        assertEquals(second.getGeneration(), 2L);
+        assertSame(second.getQueries().get("alpha"), first.getQueries().get("alpha"));
+        assertNotSame(second.getQueries().get("beta"), first.getQueries().get("beta"));
+        assertEquals(second.getQueries().get("beta").toString(), "title:knees");
+        assertEquals(second.getQueries().keySet(), new TreeSet<>(Arrays.asList("alpha", "beta", "delta")));
+        assertEquals(second.getFailures(), Collections.singleton("gamma"));
+        assertEquals(second.getFieldList(), new TreeSet<>(Arrays.asList(LuceneEvaluator.DEFAULT_FIELD_NAME, "title")));
+        assertEquals(second.getIndex().size(), 3);
+
+        CategorySet third = CategorySet.compile(properties("beta=title:knees\ngamma=fixed\n"),
+                "three", 3L, second, null, analyzer, true);
+        assertEquals(third.getQueries().keySet(), new TreeSet<>(Arrays.asList("beta", "gamma")));
+        assertTrue(third.getFailures().isEmpty());
+        assertSame(third.getQueries().get("beta"), second.getQueries().get("beta"));
+    }
+
+    /**
+     * A burst of writes to the category file results in a single reload.
+     */
+    @org.testng.annotations.Test
+    public void testDebouncedReload() throws IOException, InterruptedException {
+        System.out.println("debounced reload");
+        File tempFile = File.createTempFile("debounce", ".properties", new File("."));
+        tempFile.deleteOnExit();
+        try {
+            FileUtils.write(tempFile, "alpha=elbows\n", StandardCharsets.UTF_8);
+            try ( LuceneEvaluator instance = new LuceneEvaluator(tempFile)) {
+                instance.setReloadDebounceMillis(1000);
+                long oldTime = instance.getLastLoadTime();
+                for (int i = 0; i < 5; i++) {
+                    FileUtils.write(tempFile, "beta" + i + "=knees\n", StandardCharsets.UTF_8, true);
+                    Thread.sleep(20);
+                }
+                long deadline = System.currentTimeMillis() + 10000;
+                while (instance.getLastLoadTime() == oldTime && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(50);
+                }
+                if (instance.getLastLoadTime() == oldTime) {
+                    System.out.println("WARNING - Change not detected; this platform may not support file system monitoring.");
+                    return;
+                }
+                assertEquals(instance.getMetrics().getReloads(), 2L);
+                assertEquals(instance.getFieldList(), Collections.singleton(LuceneEvaluator.DEFAULT_FIELD_NAME));
+            }
+        } finally {
+            FileUtils.deleteQuietly(tempFile);
+        }
+    }
+
+    private static Properties properties(String text) throws IOException {
+        Properties properties = new Properties();
+        properties.load(new StringReader(text));
+        return properties;
+    }
+}
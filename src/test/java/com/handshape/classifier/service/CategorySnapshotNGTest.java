@@ -0,0 +1,112 @@
+package com.handshape.classifier.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.index.Term;
+import static org.testng.Assert.*;
+
+/**
+ *
+ * @author jturner
+ */
+public class CategorySnapshotNGTest {
+
+    private static final String CATEGORIES = "alpha=elbows\n"
+            + "beta=title:unexpect* AND knees\n"
+            + "gamma=-knees\n"
+            + "delta=this is (not valid\n";
+
+    public CategorySnapshotNGTest() {
+    }
+
+    /**
+     * A snapshot reads back exactly as it was written.
+     */
+    @org.testng.annotations.Test
+    public void testRoundTrip() throws IOException {
+        System.out.println("round trip");
+        File file = File.createTempFile("snapshot", ".bin", new File("."));
+        file.deleteOnExit();
+        try {
+            List<QueryIndex.Anchor> anchors = Arrays.asList(
+                    new QueryIndex.Anchor(new Term("text", "elbows"), false),
+                    new QueryIndex.Anchor(new Term("title", "unexpect"), true));
+            List<Set<String>> fields = Arrays.asList(new TreeSet<>(Arrays.asList("text", "title")), Collections.emptySet());
+            CategorySnapshot snapshot = new CategorySnapshot("abc", Arrays.asList("a", "b"), fields, Arrays.asList(anchors, null));
+            snapshot.write(file);
+            CategorySnapshot read = CategorySnapshot.read(file);
+            assertEquals(read.getChecksum(), "abc");
+            assertEquals(read.getKeys(), Arrays.asList("a", "b"));
+            assertEquals(read.getFields(), fields);
+            assertNull(read.getAnchors().get(1));
+            List<QueryIndex.Anchor> readAnchors = read.getAnchors().get(0);
+            assertEquals(readAnchors.size(), 2);
+            assertEquals(readAnchors.get(1).field, "title");
+            assertEquals(readAnchors.get(1).bytes.utf8ToString(), "unexpect");
+            assertTrue(readAnchors.get(1).prefix);
+            assertFalse(readAnchors.get(0).prefix);
+        } finally {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+    /**
+     * An evaluator writes a snapshot on load, a later evaluator over the same
+     * file uses it, and a change to the file causes it to be rewritten.
+     */
+    @org.testng.annotations.Test
+    public void testEvaluatorSnapshot() throws IOException {
+        System.out.println("evaluator snapshot");
+        File categories = File.createTempFile("snapshot", ".properties", new File("."));
+        categories.deleteOnExit();
+        File snapshotFile = new File(categories.getPath() + ".snapshot");
+        snapshotFile.deleteOnExit();
+        try {
+            FileUtils.write(categories, CATEGORIES, StandardCharsets.UTF_8);
+            Map<String, String> evaluationData = new TreeMap<>();
+            evaluationData.put("text", "elbows");
+            evaluationData.put("title", "unexpectedly");
+            Set<String> expected;
+            try ( LuceneEvaluator plain = new LuceneEvaluator(categories)) {
+                plain.stop();
+                expected = plain.evaluate(evaluationData);
+            }
+            try ( LuceneEvaluator instance = new LuceneEvaluator(categories, snapshotFile)) {
+                instance.stop();
+                assertEquals(instance.evaluate(evaluationData), expected);
+            }
+            CategorySnapshot written = CategorySnapshot.read(snapshotFile);
+            assertEquals(written.getKeys(), Arrays.asList("alpha", "beta", "gamma"));
+            assertEquals(written.getFields().get(1), new TreeSet<>(Arrays.asList("text", "title")));
+
+            // Prove the snapshot is used: doctor its field lists, keeping the checksum.
+            Set<String> doctored = new TreeSet<>(Arrays.asList("doctored", "text", "title"));
+            new CategorySnapshot(written.getChecksum(), written.getKeys(),
+                    Collections.nCopies(3, doctored), written.getAnchors()).write(snapshotFile);
+            try ( LuceneEvaluator instance = new LuceneEvaluator(categories, snapshotFile)) {
+                instance.stop();
+                assertEquals(instance.getFieldList(), doctored);
+                assertEquals(instance.evaluate(evaluationData), expected);
+            }
+
+            FileUtils.write(categories, "epsilon=toes\n", StandardCharsets.UTF_8, true);
+            try ( LuceneEvaluator instance = new LuceneEvaluator(categories, snapshotFile)) {
+                instance.stop();
+                assertEquals(instance.getFieldList(), new TreeSet<>(Arrays.asList("text", "title")));
+            }
+            assertEquals(CategorySnapshot.read(snapshotFile).getKeys(), Arrays.asList("alpha", "beta", "epsilon", "gamma"));
+        } finally {
+            FileUtils.deleteQuietly(categories);
+            FileUtils.deleteQuietly(snapshotFile);
+        }
+    }
+}
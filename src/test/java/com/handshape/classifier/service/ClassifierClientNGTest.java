@@ -0,0 +1,123 @@
+package com.handshape.classifier.service;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.apache.commons.io.IOUtils;
+import static org.testng.Assert.*;
+
+/**
+ *
+ * @author jturner
+ */
+public class ClassifierClientNGTest {
+
+    private static final Map<String, String> ELBOWS = Collections.singletonMap("text", "elbows");
+    private static final Map<String, String> KNEES = Collections.singletonMap("text", "knees");
+
+    public ClassifierClientNGTest() {
+    }
+
+    /**
+     * Integration test of the binary protocol listener and its client.
+     */
+    @org.testng.annotations.Test
+    public void testEvaluate() throws Exception {
+        System.out.println("Binary protocol integration test");
+
+        SimpleClassifierService service = new SimpleClassifierService();
+        try {
+            service.setCategoriesFile(new File(getClass().getResource("/testcategories.properties").toURI()));
+            service.setBinaryPort(8894);
+            service.setMaxBodySize(1024);
+            service.start(8893);
+            try ( ClassifierClient client = new ClassifierClient("localhost", 8894)) {
+                Set<String> elbows = client.evaluate(ELBOWS);
+                assertTrue(elbows.contains("positiveTest1"), elbows.toString());
+                assertTrue(elbows.contains("negativeTest1"), elbows.toString());
+                assertFalse(client.evaluate(KNEES).contains("positiveTest1"));
+                assertEquals(client.evaluate(ELBOWS, CategorySelection.of("positiveTest1", "positiveTest2"), false), Collections.singleton("positiveTest1"));
+                assertEquals(client.evaluate(ELBOWS, new CategorySelection(Collections.emptySet(), Collections.singleton("negative"), 0), true),
+                        Collections.singleton("negativeTest1"));
+
+                // Many requests in flight at once on one connection, from several threads.
+                System.out.println("  Testing pipelining");
+                List<CompletableFuture<Set<String>>> results = Collections.synchronizedList(new ArrayList<>());
+                List<Thread> senders = new ArrayList<>();
+                for (int t = 0; t < 4; t++) {
+                    Thread sender = new Thread(() -> {
+                        for (int i = 0; i < 250; i++) {
+                            boolean positive = i % 2 == 0;
+                            results.add(client.evaluateAsync(positive ? ELBOWS : KNEES, CategorySelection.of("positiveTest1"), false)
+                                    .thenApply(categories -> positive == categories.contains("positiveTest1") ? categories : null));
+                        }
+                    });
+                    senders.add(sender);
+                    sender.start();
+                }
+                for (Thread sender : senders) {
+                    sender.join();
+                }
+                assertEquals(results.size(), 1000);
+                for (CompletableFuture<Set<String>> result : results) {
+                    assertNotNull(result.get(), "A response was matched to the wrong request");
+                }
+                assertEquals(client.getPendingCount(), 0);
+            }
+
+            // A frame larger than the body limit is refused, and the connection closed.
+            System.out.println("  Testing frame size limit");
+            StringBuilder large = new StringBuilder();
+            while (large.length() < 2048) {
+                large.append("elbows ");
+            }
+            try ( ClassifierClient client = new ClassifierClient("localhost", 8894)) {
+                try {
+                    client.evaluate(Collections.singletonMap("text", large.toString()));
+                    fail("Accepted an oversized request");
+                } catch (ClassifierClient.ClassifierException ex) {
+                    assertEquals(ex.getStatus(), BinaryProtocol.STATUS_TOO_LARGE);
+                }
+                try {
+                    client.evaluateAsync(ELBOWS, CategorySelection.ALL, true).get();
+                    fail("The connection wasn't closed");
+                } catch (ExecutionException ex) {
+                    // Expected.
+                }
+            }
+
+            // A malformed request is answered with an error, and the connection stays usable.
+            System.out.println("  Testing malformed requests");
+            try ( Socket socket = new Socket("localhost", 8894)) {
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                out.writeInt(5);
+                out.writeInt(42);
+                out.writeByte(99);
+                out.flush();
+                BinaryProtocol.Response response = BinaryProtocol.readResponse(in);
+                assertEquals(response.id, 42);
+                assertEquals(response.status, BinaryProtocol.STATUS_BAD_REQUEST);
+                BinaryProtocol.writeRequest(out, 43, ELBOWS, CategorySelection.ALL, true);
+                out.flush();
+                response = BinaryProtocol.readResponse(in);
+                assertEquals(response.id, 43);
+                assertTrue(response.categories.contains("positiveTest1"));
+            }
+
+            String metrics = IOUtils.toString(new URL("http://localhost:8893/metrics"), "UTF-8");
+            assertTrue(metrics.contains("classifier_binary_requests_total 1006\n"), metrics);
+        } finally {
+            service.stop();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.handshape.classifier.service;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import static org.testng.Assert.*;
+
+/**
+ *
+ * @author jturner
+ */
+public class ClassifierEventsNGTest {
+
+    public ClassifierEventsNGTest() {
+    }
+
+    /**
+     * The events emitted by a request, its evaluation, and a reload, as seen
+     * by a local recording.
+     */
+    @org.testng.annotations.Test
+    public void testEvents() throws Exception {
+        System.out.println("events");
+        File categories = new File(getClass().getResource("/testcategories.properties").toURI());
+        SimpleClassifierService service = new SimpleClassifierService();
+        service.setCategoriesFile(categories);
+        service.start(8905);
+        Path dump = Files.createTempFile("classifier", ".jfr");
+        try ( Recording recording = new Recording()) {
+            for (Class<?> type : new Class<?>[]{ClassifierEvents.Request.class, ClassifierEvents.Evaluation.class,
+                ClassifierEvents.SlowCategory.class, ClassifierEvents.Reload.class}) {
+                recording.enable(type.getAnnotation(jdk.jfr.Name.class).value()).withThreshold(Duration.ZERO);
+            }
+            recording.start();
+            try ( InputStream in = new URL("http://localhost:8905/?text=elbows&title=lost").openStream()) {
+                in.readAllBytes();
+            }
+            try ( LuceneEvaluator evaluator = new LuceneEvaluator(categories)) {
+                evaluator.stop();
+                evaluator.loadCategories();
+            }
+            recording.stop();
+            recording.dump(dump);
+            List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+
+            List<RecordedEvent> requests = byName(events, "com.handshape.classifier.Request");
+            assertEquals(requests.size(), 1);
+            RecordedEvent request = requests.get(0);
+            assertEquals(request.getString("method"), "GET");
+            assertEquals(request.getInt("status"), 200);
+            assertTrue(request.getDuration("evaluationTime").toNanos() > 0);
+            assertTrue(request.getDuration("writeTime").toNanos() > 0);
+
+            List<RecordedEvent> evaluations = byName(events, "com.handshape.classifier.Evaluation");
+            assertEquals(evaluations.size(), 1);
+            RecordedEvent evaluation = evaluations.get(0);
+            assertEquals(evaluation.getLong("documentSize"), (long) "elbows".length() + "lost".length());
+            assertEquals(evaluation.getInt("fieldCount"), 2);
+            assertEquals(evaluation.getInt("matched"), 2);
+            assertTrue(evaluation.getInt("searched") >= 2);
+            assertTrue(evaluation.getDuration("analysisTime").toNanos() > 0);
+
+            Set<String> slow = new HashSet<>();
+            for (RecordedEvent event : byName(events, "com.handshape.classifier.SlowCategory")) {
+                slow.add(event.getString("category"));
+                assertEquals(event.getBoolean("matched"), event.getString("category").equals("positiveTest1")
+                        || event.getString("category").equals("negativeTest1"));
+            }
+            assertEquals(slow.size(), evaluation.getInt("searched"));
+            assertTrue(slow.containsAll(Collections.singleton("positiveTest1")));
+
+            List<RecordedEvent> reloads = byName(events, "com.handshape.classifier.Reload");
+            assertEquals(reloads.size(), 2);
+            assertEquals(reloads.get(0).getString("outcome"), "loaded");
+            assertTrue(reloads.get(0).getDuration("compileTime").toNanos() > 0);
+            assertEquals(reloads.get(1).getString("outcome"), "unchanged");
+            assertEquals(reloads.get(1).getInt("categories"), 6);
+            assertEquals(reloads.get(1).getString("file"), categories.getPath());
+        } finally {
+            service.stop();
+            Files.deleteIfExists(dump);
+        }
+    }
+
+    /**
+     * Without a recording, nothing is timed.
+     */
+    @org.testng.annotations.Test
+    public void testDisabled() {
+        System.out.println("disabled");
+        assertNull(ClassifierEvents.SlowCategory.ifEnabled());
+    }
+
+    private static List<RecordedEvent> byName(List<RecordedEvent> events, String name) {
+        List<RecordedEvent> matching = new ArrayList<>();
+        for (RecordedEvent event : events) {
+            if (event.getEventType().getName().equals(name)) {
+                matching.add(event);
+            }
+        }
+        return matching;
+    }
+}
@@ -0,0 +1,37 @@
+package com.handshape.classifier.service;
+
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import static org.testng.Assert.*;
+
+/**
+ *
+ * @author jturner
+ */
+public class EvaluationContextsNGTest {
+
+    public EvaluationContextsNGTest() {
+    }
+
+    /**
+     * A platform thread gets its own context back every time, and another
+     * thread gets a different one.
+     */
+    @org.testng.annotations.Test
+    public void testPerThread() throws Exception {
+        System.out.println("per thread");
+        StandardAnalyzer analyzer = new StandardAnalyzer();
+        try ( EvaluationContexts instance = new EvaluationContexts()) {
+            EvaluationContext first = instance.borrow(analyzer);
+            first.clear();
+            instance.release(first);
+            assertSame(instance.borrow(analyzer), first);
+            AtomicReference<EvaluationContext> other = new AtomicReference<>();
+            Thread thread = new Thread(() -> other.set(instance.borrow(analyzer)));
+            thread.start();
+            thread.join();
+            assertNotNull(other.get());
+            assertNotSame(other.get(), first);
+        }
+    }
+}
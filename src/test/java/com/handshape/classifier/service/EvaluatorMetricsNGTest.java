@@ -0,0 +1,65 @@
+package com.handshape.classifier.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.Map;
+import java.util.TreeMap;
+import static org.testng.Assert.*;
+
+/**
+ *
+ * @author jturner
+ */
+public class EvaluatorMetricsNGTest {
+
+    public EvaluatorMetricsNGTest() {
+    }
+
+    /**
+     * Hits are counted per category, and survive a reload.
+     */
+    @org.testng.annotations.Test
+    public void testHits() throws IOException, URISyntaxException {
+        System.out.println("hits");
+        Map<String, String> evaluationData = new TreeMap<>();
+        evaluationData.put("text", "elbows");
+        try ( LuceneEvaluator instance = new LuceneEvaluator(new File(getClass().getResource("/testcategories.properties").toURI()))) {
+            instance.evaluate(evaluationData);
+            instance.evaluate(evaluationData);
+            EvaluatorMetrics metrics = instance.getMetrics();
+            assertEquals(metrics.getEvaluations(), 2L);
+            assertEquals(metrics.getHits().get("positiveTest1"), Long.valueOf(2));
+            assertEquals(metrics.getHits().get("positiveTest2"), Long.valueOf(0));
+            instance.loadCategories();
+            instance.evaluate(evaluationData);
+            assertEquals(metrics.getHits().get("positiveTest1"), Long.valueOf(3));
+            StringBuilder out = new StringBuilder();
+            metrics.write(out);
+            assertTrue(out.toString().contains("classifier_category_hits_total{category=\"positiveTest1\"} 3\n"), out.toString());
+            assertTrue(out.toString().contains("classifier_reload_duration_seconds_count 2\n"), out.toString());
+        }
+    }
+
+    /**
+     * Per-category search timing is only recorded while switched on.
+     */
+    @org.testng.annotations.Test
+    public void testCategoryTiming() throws IOException, URISyntaxException {
+        System.out.println("category timing");
+        Map<String, String> evaluationData = new TreeMap<>();
+        evaluationData.put("text", "elbows");
+        try ( LuceneEvaluator instance = new LuceneEvaluator(new File(getClass().getResource("/testcategories.properties").toURI()))) {
+            instance.evaluate(evaluationData);
+            StringBuilder out = new StringBuilder();
+            instance.getMetrics().write(out);
+            assertTrue(out.toString().contains("classifier_category_searches_total{category=\"positiveTest1\"} 0\n"), out.toString());
+            instance.setCategoryTiming(true);
+            instance.evaluate(evaluationData);
+            out.setLength(0);
+            instance.getMetrics().write(out);
+            assertTrue(out.toString().contains("classifier_category_searches_total{category=\"positiveTest1\"} 1\n"), out.toString());
+            assertTrue(out.toString().contains("classifier_category_timing_enabled 1\n"), out.toString());
+        }
+    }
+}
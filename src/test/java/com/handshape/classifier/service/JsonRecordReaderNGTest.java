@@ -0,0 +1,64 @@
+package com.handshape.classifier.service;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.testng.Assert.*;
+
+/**
+ *
+ * @author jturner
+ */
+public class JsonRecordReaderNGTest {
+
+    public JsonRecordReaderNGTest() {
+    }
+
+    /**
+     * Test of next method, of class JsonRecordReader, with a JSON array.
+     */
+    @org.testng.annotations.Test
+    public void testArray() throws IOException {
+        System.out.println("next - array");
+        assertEquals(readAll(" [ {\"a\":\"x]\"}, {\"b\":{\"c\":[1,2]}} ,{\"d\":\"\\\"}\"} ] "), Arrays.asList(
+                "{\"a\":\"x]\"}",
+                "{\"b\":{\"c\":[1,2]}}",
+                "{\"d\":\"\\\"}\"}"));
+    }
+
+    /**
+     * Test of next method, of class JsonRecordReader, with newline-delimited
+     * JSON.
+     */
+    @org.testng.annotations.Test
+    public void testNewlineDelimited() throws IOException {
+        System.out.println("next - ndjson");
+        assertEquals(readAll("{\"a\":1}\n\n{\"b\":2}\r\n42\n\"s\"\n"), Arrays.asList(
+                "{\"a\":1}",
+                "{\"b\":2}",
+                "42",
+                "\"s\""));
+    }
+
+    /**
+     * A record that is cut off should be reported as an error.
+     */
+    @org.testng.annotations.Test(expectedExceptions = IOException.class)
+    public void testTruncated() throws IOException {
+        System.out.println("next - truncated");
+        readAll("{\"a\":1}\n{\"b\":");
+    }
+
+    private static List<String> readAll(String text) throws IOException {
+        List<String> records = new ArrayList<>();
+        try ( JsonRecordReader reader = new JsonRecordReader(new StringReader(text))) {
+            String record;
+            while ((record = reader.next()) != null) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+}
@@ -0,0 +1,46 @@
+package com.handshape.classifier.service;
+
+import java.util.concurrent.TimeUnit;
+import static org.testng.Assert.*;
+
+/**
+ *
+ * @author jturner
+ */
+public class LatencyHistogramNGTest {
+
+    public LatencyHistogramNGTest() {
+    }
+
+    /**
+     * Test of write method, of class LatencyHistogram.
+     */
+    @org.testng.annotations.Test
+    public void testWrite() {
+        System.out.println("write");
+        LatencyHistogram instance = new LatencyHistogram();
+        instance.record(TimeUnit.MICROSECONDS.toNanos(50));
+        instance.record(TimeUnit.MILLISECONDS.toNanos(3));
+        instance.record(TimeUnit.SECONDS.toNanos(20));
+        assertEquals(instance.getCount(), 3L);
+        StringBuilder out = new StringBuilder();
+        instance.write(out, "test_seconds", "a=\"b\"");
+        String text = out.toString();
+        assertTrue(text.contains("test_seconds_bucket{a=\"b\",le=\"1.0E-4\"} 1\n"), text);
+        assertTrue(text.contains("test_seconds_bucket{a=\"b\",le=\"0.0025\"} 1\n"), text);
+        assertTrue(text.contains("test_seconds_bucket{a=\"b\",le=\"0.005\"} 2\n"), text);
+        assertTrue(text.contains("test_seconds_bucket{a=\"b\",le=\"10.0\"} 2\n"), text);
+        assertTrue(text.contains("test_seconds_bucket{a=\"b\",le=\"+Inf\"} 3\n"), text);
+        assertTrue(text.contains("test_seconds_count{a=\"b\"} 3\n"), text);
+        assertTrue(text.contains("test_seconds_sum{a=\"b\"} 20.00305\n"), text);
+    }
+
+    /**
+     * Label values must be escaped.
+     */
+    @org.testng.annotations.Test
+    public void testLabelEscaping() {
+        System.out.println("label");
+        assertEquals(PrometheusText.label("category", "a\"b\\c\nd"), "category=\"a\\\"b\\\\c\\nd\"");
+    }
+}
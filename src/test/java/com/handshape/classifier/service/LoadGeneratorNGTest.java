@@ -0,0 +1,74 @@
+package com.handshape.classifier.service;
+
+import com.github.cliftonlabs.json_simple.JsonObject;
+import com.github.cliftonlabs.json_simple.Jsoner;
+import java.io.File;
+import java.math.BigDecimal;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import static org.testng.Assert.*;
+
+/**
+ *
+ * @author jturner
+ */
+public class LoadGeneratorNGTest {
+
+    public LoadGeneratorNGTest() {
+    }
+
+    /**
+     * Test of run method, of class LoadGenerator, with both load models.
+     */
+    @org.testng.annotations.Test
+    public void testRun() throws Exception {
+        System.out.println("run");
+        File categories = new File(getClass().getResource("/testcategories.properties").toURI());
+        List<Map<String, String>> documents = LoadGenerator.documents(categories, 50, 1L);
+        assertEquals(documents.size(), 50);
+        assertEquals(LoadGenerator.documents(categories, 50, 1L), documents);
+        SimpleClassifierService service = new SimpleClassifierService();
+        service.setCategoriesFile(categories);
+        service.start(8903);
+        try {
+            LoadGenerator generator = new LoadGenerator(new URI("http://localhost:8903/"), documents);
+            generator.setWarmUpMillis(200);
+            generator.setDurationMillis(1000);
+
+            System.out.println("  Testing fixed concurrency");
+            generator.setConcurrency(4);
+            LoadGenerator.Report report = generator.run();
+            assertTrue(report.getRequests() > 0);
+            assertEquals(report.getErrors(), 0L);
+            assertTrue(report.getLatencyMillis(50) <= report.getLatencyMillis(99.9));
+            assertTrue(report.getLatencyMillis(99.9) <= report.getMaxLatencyMillis());
+
+            System.out.println("  Testing fixed rate");
+            generator.setRate(50);
+            report = generator.run();
+            // Requests scheduled during the second after the warm-up.
+            assertTrue(Math.abs(report.getRequests() - 50) <= 1, String.valueOf(report.getRequests()));
+            assertEquals(report.getErrors(), 0L);
+            JsonObject json = (JsonObject) Jsoner.deserialize(report.toJson());
+            assertEquals(json.get("model"), "open");
+            assertEquals(((BigDecimal) json.get("requests")).longValue(), report.getRequests());
+            JsonObject byKind = (JsonObject) json.get("latencyMillisByKind");
+            assertEquals(byKind.keySet().size(), 3);
+            assertTrue(((BigDecimal) ((JsonObject) byKind.get("form")).get("count")).longValue() >= 16);
+            assertTrue(((JsonObject) json.get("latencyMillis")).containsKey("p99.9"));
+            assertTrue(report.toJson().indexOf("\"requests\"") < report.toJson().indexOf("\"latencyMillis\""));
+
+            System.out.println("  Testing errors");
+            // Nothing listens on this port.
+            generator = new LoadGenerator(new URI("http://localhost:8904/"), documents);
+            generator.setDurationMillis(200);
+            generator.setRate(50);
+            report = generator.run();
+            assertTrue(report.getRequests() > 0);
+            assertEquals(report.getErrors(), report.getRequests());
+        } finally {
+            service.stop();
+        }
+    }
+}
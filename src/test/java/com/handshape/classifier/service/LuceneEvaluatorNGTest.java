@@ -2,12 +2,30 @@ package com.handshape.classifier.service;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import org.apache.commons.io.FileUtils;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.testng.SkipException;
 import static org.testng.Assert.*;
 
 /**
@@ -16,6 +34,15 @@ import static org.testng.Assert.*;
  */
 public class LuceneEvaluatorNGTest {
 
+    /**
+     * Bytes that one evaluation of a small document may allocate, on average.
+     * Creating a fresh MemoryIndex per document cost about 130KB here, half of
+     * it in index buffers; with the buffers recycled, nearly all of the
+     * remaining ~65KB is Lucene's per-document weights and scorers for the
+     * candidate queries, which can't be reused across documents.
+     */
+    private static final long ALLOCATION_BUDGET = 96 * 1024;
+
     public LuceneEvaluatorNGTest() {
     }
 
@@ -38,6 +65,180 @@ public class LuceneEvaluatorNGTest {
         }
     }
 
+    /**
+     * Evaluations from many threads at once must each get the same results as
+     * a lone evaluation, even though each thread reuses its own index.
+     */
+    @org.testng.annotations.Test
+    public void testConcurrentEvaluate() throws Exception {
+        System.out.println("evaluate - concurrent");
+        Map<String, String> matching = new TreeMap<>();
+        matching.put("text", "elbows shoulders knees and toes");
+        matching.put("title", "an unexpected journey");
+        Map<String, String> other = new TreeMap<>();
+        other.put("text", "elbows");
+        try ( LuceneEvaluator instance = new LuceneEvaluator(new File(getClass().getResource("/testcategories.properties").toURI()))) {
+            Set<String> expectedMatching = instance.evaluate(matching);
+            Set<String> expectedOther = instance.evaluate(other);
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            try {
+                List<Future<Boolean>> results = new ArrayList<>();
+                for (int i = 0; i < 2000; i++) {
+                    final boolean even = i % 2 == 0;
+                    results.add(executor.submit(() -> even
+                            ? instance.evaluate(matching).equals(expectedMatching)
+                            : instance.evaluate(other).equals(expectedOther)));
+                }
+                for (Future<Boolean> result : results) {
+                    assertTrue(result.get());
+                }
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Parallel evaluation of a document's queries must give exactly the same
+     * results as sequential evaluation.
+     */
+    @org.testng.annotations.Test
+    public void testParallelEvaluate() throws IOException {
+        System.out.println("evaluate - parallel");
+        String[] words = new String[]{"alpha", "bravo", "charlie", "delta", "echo", "foxtrot", "golf", "hotel"};
+        Random random = new Random(7);
+        StringBuilder categories = new StringBuilder();
+        for (int i = 0; i < 400; i++) {
+            String a = words[random.nextInt(words.length)];
+            String b = words[random.nextInt(words.length)];
+            switch (i % 4) {
+                case 0:
+                    categories.append("c").append(i).append('=').append(a).append(" AND ").append(b).append('\n');
+                    break;
+                case 1:
+                    categories.append("c").append(i).append("=title:\"").append(a).append(' ').append(b).append("\"\n");
+                    break;
+                case 2:
+                    categories.append("c").append(i).append('=').append(a, 0, 3).append("* -").append(b).append('\n');
+                    break;
+                default:
+                    categories.append("c").append(i).append('=').append(a).append(" OR title:").append(b).append('\n');
+                    break;
+            }
+        }
+        File tempFile = File.createTempFile("parallel", ".properties", new File("."));
+        tempFile.deleteOnExit();
+        FileUtils.write(tempFile, categories, "UTF-8");
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try ( LuceneEvaluator sequential = new LuceneEvaluator(tempFile);
+                 LuceneEvaluator parallel = new LuceneEvaluator(tempFile)) {
+            parallel.setParallelQueryThreshold(2);
+            parallel.setParallelPool(pool);
+            for (int doc = 0; doc < 200; doc++) {
+                Map<String, String> evaluationData = new TreeMap<>();
+                StringBuilder text = new StringBuilder();
+                StringBuilder title = new StringBuilder();
+                for (int i = 0; i < 6; i++) {
+                    text.append(words[random.nextInt(words.length)]).append(' ');
+                    title.append(words[random.nextInt(words.length)]).append(' ');
+                }
+                evaluationData.put("text", text.toString());
+                evaluationData.put("title", title.toString());
+                assertEquals(parallel.evaluate(evaluationData), sequential.evaluate(evaluationData));
+            }
+        } finally {
+            pool.shutdown();
+            FileUtils.deleteQuietly(tempFile);
+        }
+    }
+
+    /**
+     * Allocation-rate regression test for the evaluation hot path. After
+     * warm-up, evaluating a small document against the test categories must
+     * allocate no more than {@link #ALLOCATION_BUDGET} bytes per call on
+     * average.
+     */
+    @org.testng.annotations.Test
+    public void testAllocationBudget() throws IOException, URISyntaxException {
+        System.out.println("evaluate - allocation budget");
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            throw new SkipException("Per-thread allocation accounting is not supported on this JVM.");
+        }
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) bean;
+        Map<String, String> evaluationData = new TreeMap<>();
+        evaluationData.put("text", "elbows shoulders knees and toes");
+        evaluationData.put("title", "an unexpected journey");
+        try ( LuceneEvaluator instance = new LuceneEvaluator(new File(getClass().getResource("/testcategories.properties").toURI()))) {
+            for (int i = 0; i < 20000; i++) {
+                instance.evaluate(evaluationData);
+            }
+            int iterations = 10000;
+            long threadId = Thread.currentThread().getId();
+            long before = allocations.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < iterations; i++) {
+                instance.evaluate(evaluationData);
+            }
+            long perEvaluation = (allocations.getThreadAllocatedBytes(threadId) - before) / iterations;
+            System.out.println("  " + perEvaluation + " bytes allocated per evaluation");
+            assertTrue(perEvaluation <= ALLOCATION_BUDGET, perEvaluation + " bytes allocated per evaluation exceeds the budget of " + ALLOCATION_BUDGET);
+        }
+    }
+
+    /**
+     * An evaluation restricted to some categories only returns matches among
+     * them, and a limited one stops at the first matches in name order.
+     */
+    @org.testng.annotations.Test
+    public void testSelection() throws IOException, URISyntaxException {
+        System.out.println("evaluate - selection");
+        Map<String, String> evaluationData = new TreeMap<>();
+        evaluationData.put("text", "elbows shoulders knees and toes");
+        evaluationData.put("title", "an unexpected journey");
+        try ( LuceneEvaluator instance = new LuceneEvaluator(new File(getClass().getResource("/testcategories.properties").toURI()))) {
+            instance.stop();
+            Set<String> all = instance.evaluate(evaluationData);
+            assertEquals(all, new TreeSet<>(Arrays.asList("positiveTest1", "positiveTest2", "positiveTest3", "positiveTest4")));
+            assertEquals(instance.evaluate(evaluationData, false, CategorySelection.of("positiveTest2", "negativeTest1", "missing")),
+                    Collections.singleton("positiveTest2"));
+            assertEquals(instance.evaluate(evaluationData, false, new CategorySelection(Collections.emptySet(), Arrays.asList("negative"), 0)),
+                    Collections.emptySet());
+            long searched = instance.getMetrics().getQueriesSearched();
+            assertEquals(instance.evaluate(evaluationData, false, CategorySelection.ALL.withLimit(2)),
+                    new TreeSet<>(Arrays.asList("positiveTest1", "positiveTest2")));
+            // The negative tests come first in name order, and both are candidates; the search stops at positiveTest2.
+            assertEquals(instance.getMetrics().getQueriesSearched() - searched, 4L);
+            assertEquals(instance.evaluate(evaluationData, false, new CategorySelection(Arrays.asList("positiveTest4"), Arrays.asList("positiveTest"), 1)),
+                    Collections.singleton("positiveTest1"));
+        }
+    }
+
+    /**
+     * The matches are the same categories as the set of names, by id.
+     */
+    @org.testng.annotations.Test
+    public void testEvaluateMatches() throws IOException, URISyntaxException {
+        System.out.println("evaluateMatches");
+        Map<String, String> evaluationData = new TreeMap<>();
+        evaluationData.put("text", "elbows shoulders knees and toes");
+        evaluationData.put("title", "an unexpected journey");
+        try ( LuceneEvaluator instance = new LuceneEvaluator(new File(getClass().getResource("/testcategories.properties").toURI()))) {
+            instance.stop();
+            CategoryMatches matches = instance.evaluateMatches(evaluationData, false, CategorySelection.ALL);
+            assertEquals(matches.toSet(), instance.evaluate(evaluationData));
+            assertEquals(matches.getCategoryCount(), 6);
+            Set<String> names = new TreeSet<>();
+            for (int id = matches.nextMatch(0); id >= 0; id = matches.nextMatch(id + 1)) {
+                names.add(matches.getName(id));
+            }
+            assertEquals(names, matches.toSet());
+            assertTrue(matches.contains(matches.getId("positiveTest1")));
+            assertFalse(matches.contains(matches.getId("negativeTest1")));
+            assertEquals(matches.getId("missing"), -1);
+        }
+    }
+
     /**
      * Test of getFieldList method, of class LuceneEvaluator.
      */
@@ -52,6 +253,71 @@ public class LuceneEvaluatorNGTest {
         }
     }
 
+    /**
+     * Fields no query references aren't analyzed, and don't change the
+     * results; negated clauses and default-field queries still count their
+     * fields as referenced.
+     */
+    @org.testng.annotations.Test
+    public void testSkipUnreferencedFields() throws IOException {
+        System.out.println("skip unreferenced fields");
+        File tempFile = File.createTempFile("skip", ".properties", new File("."));
+        tempFile.deleteOnExit();
+        FileUtils.write(tempFile, "alpha=elbows\nbeta=knees -author:smith\n", "UTF-8");
+        try ( LuceneEvaluator instance = new LuceneEvaluator(tempFile)) {
+            instance.stop();
+            assertEquals(instance.getFieldList(), new TreeSet<>(Arrays.asList("author", LuceneEvaluator.DEFAULT_FIELD_NAME)));
+            Map<String, String> evaluationData = new TreeMap<>();
+            evaluationData.put("text", "elbows and knees");
+            evaluationData.put("author", "smith");
+            evaluationData.put("body", "knees elbows toes");
+            assertEquals(instance.evaluate(evaluationData), Collections.singleton("alpha"));
+            assertEquals(instance.getMetrics().getSkippedChars(), 17L);
+            evaluationData.remove("author");
+            assertEquals(instance.evaluate(evaluationData), new TreeSet<>(Arrays.asList("alpha", "beta")));
+            assertEquals(instance.getMetrics().getSkippedChars(), 34L);
+
+            // Matching every document doesn't need any field.
+            FileUtils.write(tempFile, "gamma=*:*\n", "UTF-8", true);
+            instance.loadCategories();
+            assertEquals(instance.evaluate(evaluationData), new TreeSet<>(Arrays.asList("alpha", "beta", "gamma")));
+            assertEquals(instance.getMetrics().getSkippedChars(), 51L);
+        } finally {
+            FileUtils.deleteQuietly(tempFile);
+        }
+    }
+
+    /**
+     * Test of collectFields method, of class LuceneEvaluator.
+     */
+    @org.testng.annotations.Test
+    public void testCollectFields() {
+        System.out.println("collectFields");
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        builder.add(new BoostQuery(new TermQuery(new Term("title", "knees")), 2f), BooleanClause.Occur.SHOULD);
+        builder.add(new TermQuery(new Term("author", "smith")), BooleanClause.Occur.MUST_NOT);
+        assertEquals(LuceneEvaluator.collectFields(builder.build()), new TreeSet<>(Arrays.asList("author", "title")));
+        assertEquals(LuceneEvaluator.collectFields(new MatchAllDocsQuery()), Collections.emptySet());
+        // A query that doesn't report its fields could read any of them.
+        builder.add(new Query() {
+            @Override
+            public String toString(String field) {
+                return "opaque";
+            }
+
+            @Override
+            public boolean equals(Object obj) {
+                return obj == this;
+            }
+
+            @Override
+            public int hashCode() {
+                return System.identityHashCode(this);
+            }
+        }, BooleanClause.Occur.MUST);
+        assertNull(LuceneEvaluator.collectFields(builder.build()));
+    }
+
     /**
      * Integration test of file-watching behaviour.
      */
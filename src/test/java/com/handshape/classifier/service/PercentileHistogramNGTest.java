@@ -0,0 +1,63 @@
+package com.handshape.classifier.service;
+
+import static org.testng.Assert.*;
+
+/**
+ *
+ * @author jturner
+ */
+public class PercentileHistogramNGTest {
+
+    public PercentileHistogramNGTest() {
+    }
+
+    /**
+     * Test of getValueAtPercentile method, of class PercentileHistogram.
+     */
+    @org.testng.annotations.Test
+    public void testGetValueAtPercentile() {
+        System.out.println("getValueAtPercentile");
+        PercentileHistogram instance = new PercentileHistogram();
+        assertEquals(instance.getValueAtPercentile(99), 0L);
+        for (long micros = 1; micros <= 10000; micros++) {
+            instance.record(micros * 1000);
+        }
+        assertEquals(instance.getCount(), 10000L);
+        assertEquals(instance.getMaxNanos(), 10000000L);
+        assertEquals(instance.getMeanNanos(), 5000500.0, 0.001);
+        assertWithin(instance.getValueAtPercentile(50), 5000000L);
+        assertWithin(instance.getValueAtPercentile(99), 9900000L);
+        assertWithin(instance.getValueAtPercentile(99.9), 9990000L);
+        assertEquals(instance.getValueAtPercentile(100), 10000000L);
+        assertWithin(instance.getValueAtPercentile(0), 1000L);
+
+        PercentileHistogram slow = new PercentileHistogram();
+        slow.record(-5);
+        slow.record(3600L * 1000000000L * 2);
+        instance.add(slow);
+        assertEquals(instance.getCount(), 10002L);
+        assertEquals(instance.getMaxNanos(), 3600L * 1000000000L);
+        assertEquals(instance.getValueAtPercentile(0), 0L);
+    }
+
+    /**
+     * Every value falls in a bucket whose top is within 0.1% of it.
+     */
+    @org.testng.annotations.Test
+    public void testIndex() {
+        System.out.println("index");
+        long[] values = {0, 1, 2047, 2048, 2049, 4095, 4096, 1000000, 123456789, 3600L * 1000000000L};
+        int previous = -1;
+        for (long value : values) {
+            int index = PercentileHistogram.index(value);
+            assertTrue(index >= previous, String.valueOf(value));
+            long top = PercentileHistogram.highestEquivalent(index);
+            assertTrue(top >= value && top - value <= value / 1000, value + " -> " + top);
+            previous = index;
+        }
+    }
+
+    private static void assertWithin(long actual, long expected) {
+        assertTrue(Math.abs(actual - expected) <= expected / 1000, actual + " != " + expected);
+    }
+}
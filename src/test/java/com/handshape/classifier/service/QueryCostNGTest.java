@@ -0,0 +1,178 @@
+package com.handshape.classifier.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import static org.testng.Assert.*;
+
+/**
+ *
+ * @author jturner
+ */
+public class QueryCostNGTest {
+
+    public QueryCostNGTest() {
+    }
+
+    /**
+     * Test of analyze method, of class QueryCost.
+     */
+    @org.testng.annotations.Test
+    public void testAnalyze() throws ParseException {
+        System.out.println("analyze");
+        QueryParser parser = new QueryParser(LuceneEvaluator.DEFAULT_FIELD_NAME, new StandardAnalyzer());
+        parser.setAllowLeadingWildcard(true);
+        Object[][] cases = {
+            {"elbows", QueryCost.Kind.TERM, 1L},
+            {"\"elbows and knees\"", QueryCost.Kind.PHRASE, 6L},
+            {"elb*", QueryCost.Kind.PREFIX, 4L},
+            {"el?ows", QueryCost.Kind.WILDCARD, 8L},
+            {"elbw~", QueryCost.Kind.FUZZY, 16L},
+            {"/el.*/", QueryCost.Kind.REGEXP, 16L},
+            {"[a TO c]", QueryCost.Kind.RANGE, 8L},
+            {"*ing", QueryCost.Kind.LEADING_WILDCARD, 32L},
+            {"/.*ing/", QueryCost.Kind.LEADING_WILDCARD, 32L},
+            {"title:*", QueryCost.Kind.MATCH_ALL, 32L},
+            {"title:[* TO *]", QueryCost.Kind.MATCH_ALL, 32L},
+            {"*:*", QueryCost.Kind.MATCH_ALL, 32L},
+            // The most expensive part decides the kind; every part adds to the cost.
+            {"elbows^2 -title:*ing", QueryCost.Kind.LEADING_WILDCARD, 33L},
+        };
+        for (Object[] c : cases) {
+            QueryCost cost = QueryCost.analyze("c", parser.parse((String) c[0]), true);
+            assertEquals(cost.getKind(), c[1], (String) c[0]);
+            assertEquals(cost.getEstimate(), (long) c[2], (String) c[0]);
+            assertTrue(Double.isNaN(cost.getSampleMicros()));
+            assertEquals(cost.getAction(), QueryCost.Action.NONE);
+        }
+        QueryCost unanchored = QueryCost.analyze("c", parser.parse("*ing"), false);
+        assertEquals(unanchored.getEstimate(), 32L * QueryCost.ALWAYS_RUN_FACTOR);
+    }
+
+    /**
+     * Categories over the cost limit are reported, and quarantined or
+     * rejected as configured.
+     */
+    @org.testng.annotations.Test
+    public void testPolicy() throws IOException {
+        System.out.println("policy");
+        File tempFile = File.createTempFile("costs", ".properties", new File("."));
+        tempFile.deleteOnExit();
+        // Both ends are wildcards, so reversing it wouldn't help.
+        FileUtils.write(tempFile, "cheap=elbows\nleading=*ing*\neverything=title:*\n", "UTF-8");
+        try ( LuceneEvaluator instance = new LuceneEvaluator(tempFile)) {
+            instance.stop();
+            instance.setResultCacheSize(1024 * 1024);
+            Map<String, String> document = new TreeMap<>();
+            document.put("text", "running elbows");
+            document.put("title", "knees");
+            TreeSet<String> all = new TreeSet<>(Arrays.asList("cheap", "everything", "leading"));
+            assertEquals(instance.evaluate(document), all);
+
+            List<QueryCost> costs = instance.getQueryCosts();
+            assertEquals(costs.size(), 3);
+            assertEquals(costs.get(costs.size() - 1).getCategory(), "cheap");
+            assertTrue(costs.get(costs.size() - 1).isAnchored());
+            for (QueryCost cost : costs) {
+                assertEquals(cost.getAction(), QueryCost.Action.NONE);
+            }
+
+            // Only a warning: still evaluated, and the cached result still stands.
+            instance.setQueryCostLimit(16);
+            assertEquals(instance.getQueryCosts().get(0).getAction(), QueryCost.Action.WARN);
+            assertEquals(instance.getQueryCosts().get(2).getAction(), QueryCost.Action.NONE);
+            assertEquals(instance.evaluate(document), all);
+
+            instance.setQueryCostAction(QueryCost.Action.QUARANTINE);
+            assertEquals(instance.evaluate(document), Collections.singleton("cheap"));
+            assertEquals(instance.evaluate(document, false, CategorySelection.of("cheap", "leading")), new TreeSet<>(Arrays.asList("cheap", "leading")));
+            assertEquals(instance.evaluate(document, false, new CategorySelection(Collections.emptySet(), Arrays.asList("e", "l"), 0)), Collections.emptySet());
+
+            instance.setQueryCostAction(QueryCost.Action.REJECT);
+            assertEquals(instance.evaluate(document), Collections.singleton("cheap"));
+            assertEquals(instance.evaluate(document, false, CategorySelection.of("cheap", "leading")), Collections.singleton("cheap"));
+
+            // Reloading keeps the policy.
+            FileUtils.write(tempFile, "knees=title:knees\n", "UTF-8", true);
+            instance.loadCategories();
+            assertEquals(instance.evaluate(document), new TreeSet<>(Arrays.asList("cheap", "knees")));
+
+            instance.setQueryCostLimit(0);
+            assertEquals(instance.evaluate(document), new TreeSet<>(Arrays.asList("cheap", "everything", "knees", "leading")));
+        } finally {
+            FileUtils.deleteQuietly(tempFile);
+        }
+    }
+
+    /**
+     * A suffix query is estimated as the prefix query it's searched as, unless
+     * wildcards aren't reversed.
+     */
+    @org.testng.annotations.Test
+    public void testReversedEstimate() throws IOException {
+        System.out.println("reversed estimate");
+        File tempFile = File.createTempFile("costs", ".properties", new File("."));
+        tempFile.deleteOnExit();
+        FileUtils.write(tempFile, "suffix=*ing\n", "UTF-8");
+        try ( LuceneEvaluator instance = new LuceneEvaluator(tempFile)) {
+            instance.stop();
+            instance.setQueryCostLimit(16);
+            QueryCost cost = instance.getQueryCosts().get(0);
+            assertEquals(cost.getKind(), QueryCost.Kind.PREFIX);
+            assertTrue(cost.isAnchored());
+            assertEquals(cost.getAction(), QueryCost.Action.NONE);
+            instance.setReverseWildcards(false);
+            cost = instance.getQueryCosts().get(0);
+            assertEquals(cost.getKind(), QueryCost.Kind.LEADING_WILDCARD);
+            assertEquals(cost.getAction(), QueryCost.Action.WARN);
+        } finally {
+            FileUtils.deleteQuietly(tempFile);
+        }
+    }
+
+    /**
+     * Queries are timed against the sample corpus, and can be held to a time
+     * limit.
+     */
+    @org.testng.annotations.Test
+    public void testSampleTiming() throws IOException {
+        System.out.println("sample timing");
+        File tempFile = File.createTempFile("costs", ".properties", new File("."));
+        tempFile.deleteOnExit();
+        File samples = File.createTempFile("samples", ".ndjson", new File("."));
+        samples.deleteOnExit();
+        FileUtils.write(tempFile, "cheap=elbows\nleading=*ing\n", "UTF-8");
+        FileUtils.write(samples, "{\"text\":\"running elbows\"}\n{\"text\":\"knees\",\"title\":\"walking\"}\n", "UTF-8");
+        try ( LuceneEvaluator instance = new LuceneEvaluator(tempFile)) {
+            instance.stop();
+            instance.setQuerySampleFile(samples);
+            for (QueryCost cost : instance.getQueryCosts()) {
+                assertTrue(cost.getSampleMicros() >= 0, cost.toString());
+            }
+            instance.setQueryTimeLimit(1e-6);
+            instance.setQueryCostAction(QueryCost.Action.REJECT);
+            for (QueryCost cost : instance.getQueryCosts()) {
+                assertEquals(cost.getAction(), cost.getSampleMicros() > 1e-6 ? QueryCost.Action.REJECT : QueryCost.Action.NONE);
+            }
+            instance.setQuerySampleFile(null);
+            for (QueryCost cost : instance.getQueryCosts()) {
+                assertTrue(Double.isNaN(cost.getSampleMicros()));
+                assertEquals(cost.getAction(), QueryCost.Action.NONE);
+            }
+            Map<String, String> document = Collections.singletonMap("text", "running elbows");
+            assertEquals(instance.evaluate(document), new TreeSet<>(Arrays.asList("cheap", "leading")));
+        } finally {
+            FileUtils.deleteQuietly(tempFile);
+            FileUtils.deleteQuietly(samples);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.handshape.classifier.service;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.memory.MemoryIndex;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.Query;
+import static org.testng.Assert.*;
+
+/**
+ *
+ * @author jturner
+ */
+public class QueryIndexNGTest {
+
+    private static final String[] QUERIES = new String[]{
+        "elbows",
+        "elbows knees",
+        "+elbows -knees",
+        "-knees",
+        "title:\"unexpected journey\"",
+        "title:\"unexpected journey\"~3",
+        "title:unexpect* AND knees",
+        "title:\"an unexpected jour\"* AND knees",
+        "-title:unexpect* AND knees",
+        "title:*",
+        "title:* +(\"neutron flow\" OR \"neutron flux\")",
+        "*ing",
+        "title:*ney",
+        "jo?rney",
+        "journ\\*y",
+        "knes~1",
+        "title:[a TO k]",
+        "/kn.*s/",
+        "(elbows OR toes) AND -(knees OR title:journey)",
+        "elbows^3 OR shoulders",
+        "*:*",
+        "+title:journey +(knees OR -toes)"
+    };
+
+    private static final String[] WORDS = new String[]{
+        "elbows", "shoulders", "knees", "and", "toes", "an", "unexpected",
+        "journey", "neutron", "flux", "flow", "running", "knee", "jorney"
+    };
+
+    public QueryIndexNGTest() {
+    }
+
+    /**
+     * The candidates yielded by the index must always include every query that
+     * matches, so that the results are identical to running every query.
+     */
+    @org.testng.annotations.Test
+    public void testCandidatesMatchFullScan() throws ParseException, IOException {
+        System.out.println("candidates");
+        Analyzer analyzer = new StandardAnalyzer();
+        QueryParser parser = new QueryParser(LuceneEvaluator.DEFAULT_FIELD_NAME, analyzer);
+        parser.setAllowLeadingWildcard(true);
+        Map<String, Query> queries = new TreeMap<>();
+        for (int i = 0; i < QUERIES.length; i++) {
+            queries.put("q" + i, parser.parse(QUERIES[i]));
+        }
+        QueryIndex index = new QueryIndex(queries);
+        Random random = new Random(42);
+        for (int doc = 0; doc < 500; doc++) {
+            MemoryIndex mi = new MemoryIndex();
+            if (random.nextBoolean()) {
+                mi.addField("text", randomText(random), analyzer);
+            }
+            if (random.nextBoolean()) {
+                mi.addField("title", randomText(random), analyzer);
+            }
+            mi.freeze();
+            TreeSet<String> expected = new TreeSet<>();
+            for (Map.Entry<String, Query> entry : queries.entrySet()) {
+                if (mi.search(entry.getValue()) > 0.0) {
+                    expected.add(entry.getKey());
+                }
+            }
+            BitSet candidates = new BitSet();
+            index.candidates(mi.createSearcher().getIndexReader().leaves().get(0).reader(), candidates);
+            TreeSet<String> actual = new TreeSet<>();
+            for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+                if (mi.search(index.getQuery(i)) > 0.0) {
+                    actual.add(index.getKey(i));
+                }
+            }
+            assertEquals(actual, expected, mi.toString());
+        }
+    }
+
+    /**
+     * Pre-filtering a selection query by query yields the same candidates as
+     * pre-filtering the whole index and intersecting it with the selection.
+     */
+    @org.testng.annotations.Test
+    public void testSelectiveCandidates() throws ParseException, IOException {
+        System.out.println("selective candidates");
+        Analyzer analyzer = new StandardAnalyzer();
+        QueryParser parser = new QueryParser(LuceneEvaluator.DEFAULT_FIELD_NAME, analyzer);
+        parser.setAllowLeadingWildcard(true);
+        Map<String, Query> queries = new TreeMap<>();
+        for (int i = 0; i < QUERIES.length; i++) {
+            queries.put("q" + i, parser.parse(QUERIES[i]));
+        }
+        QueryIndex index = new QueryIndex(queries);
+        Random random = new Random(7);
+        for (int doc = 0; doc < 200; doc++) {
+            MemoryIndex mi = new MemoryIndex();
+            mi.addField("text", randomText(random), analyzer);
+            mi.addField("title", randomText(random), analyzer);
+            mi.freeze();
+            LeafReader reader = mi.createSearcher().getIndexReader().leaves().get(0).reader();
+            BitSet selection = new BitSet();
+            for (int i = 0; i < QUERIES.length; i++) {
+                if (random.nextInt(4) == 0) {
+                    selection.set(i);
+                }
+            }
+            BitSet expected = new BitSet();
+            index.candidates(reader, expected);
+            expected.and(selection);
+            BitSet actual = new BitSet();
+            index.candidates(reader, selection, actual);
+            assertEquals(actual, expected, mi.toString());
+        }
+    }
+
+    /**
+     * Test of select method, of class QueryIndex.
+     */
+    @org.testng.annotations.Test
+    public void testSelect() throws ParseException {
+        System.out.println("select");
+        QueryParser parser = new QueryParser(LuceneEvaluator.DEFAULT_FIELD_NAME, new StandardAnalyzer());
+        Map<String, Query> queries = new TreeMap<>();
+        for (String key : new String[]{"hat", "shoes", "shoes-boots", "shoes-loafers", "shop", "socks"}) {
+            queries.put(key, parser.parse("elbows"));
+        }
+        QueryIndex index = new QueryIndex(queries);
+        BitSet selection = new BitSet();
+        assertEquals(index.select(Arrays.asList("hat", "missing"), Arrays.asList("shoes"), selection), 4);
+        BitSet expected = new BitSet();
+        expected.set(0, 4);
+        assertEquals(selection, expected);
+        assertEquals(index.select(Collections.emptySet(), Arrays.asList("sh", "z"), selection), 4);
+        assertEquals(selection.nextSetBit(0), 1);
+        assertEquals(index.select(Collections.emptySet(), Collections.singleton(""), selection), 6);
+    }
+
+    /**
+     * A document with no relevant terms should only yield the queries that
+     * can't be pre-filtered.
+     */
+    @org.testng.annotations.Test
+    public void testPrefiltering() throws ParseException, IOException {
+        System.out.println("prefiltering");
+        Analyzer analyzer = new StandardAnalyzer();
+        QueryParser parser = new QueryParser(LuceneEvaluator.DEFAULT_FIELD_NAME, analyzer);
+        Map<String, Query> queries = new TreeMap<>();
+        queries.put("a", parser.parse("elbows"));
+        queries.put("b", parser.parse("title:\"unexpected journey\""));
+        queries.put("c", parser.parse("title:unexpect* AND knees"));
+        queries.put("d", parser.parse("-knees"));
+        QueryIndex index = new QueryIndex(queries);
+        assertEquals(index.getAlwaysRunCount(), 1);
+        MemoryIndex mi = new MemoryIndex();
+        mi.addField("text", "nothing of interest", analyzer);
+        mi.addField("title", "unexpectedly", analyzer);
+        mi.freeze();
+        BitSet candidates = new BitSet();
+        candidates.set(1);
+        index.candidates(mi.createSearcher().getIndexReader().leaves().get(0).reader(), candidates);
+        BitSet expected = new BitSet();
+        expected.set(2);
+        expected.set(3);
+        assertEquals(candidates, expected);
+    }
+
+    /**
+     * Test of literalPrefix method, of class QueryIndex.
+     */
+    @org.testng.annotations.Test
+    public void testLiteralPrefix() {
+        System.out.println("literalPrefix");
+        assertEquals(QueryIndex.literalPrefix("journ*"), "journ");
+        assertEquals(QueryIndex.literalPrefix("jo?rney"), "jo");
+        assertEquals(QueryIndex.literalPrefix("*ing"), "");
+        assertEquals(QueryIndex.literalPrefix("a\\*b*"), "a*b");
+    }
+
+    private static String randomText(Random random) {
+        StringBuilder sb = new StringBuilder();
+        int length = random.nextInt(6);
+        for (int i = 0; i < length; i++) {
+            sb.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        return sb.toString();
+    }
+}
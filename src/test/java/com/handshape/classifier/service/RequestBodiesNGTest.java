@@ -0,0 +1,143 @@
+package com.handshape.classifier.service;
+
+import com.github.cliftonlabs.json_simple.JsonObject;
+import com.github.cliftonlabs.json_simple.Jsoner;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import org.apache.commons.io.IOUtils;
+import org.testng.SkipException;
+import static org.testng.Assert.*;
+
+/**
+ *
+ * @author jturner
+ */
+public class RequestBodiesNGTest {
+
+    public RequestBodiesNGTest() {
+    }
+
+    /**
+     * Test of json method, of class RequestBodies.
+     */
+    @org.testng.annotations.Test
+    public void testJson() throws IOException {
+        System.out.println("json");
+        String body = " {\"text\" : \"caf\\u00e9 \\\"quoted\\\"\\n\", \"count\": 12, \"flag\":true,"
+                + "\"none\":null, \"list\":[1, \"a]\"], \"esc\\u0061ped\":\"x\"} ";
+        Map<String, String> expected = SimpleClassifierService.jsonToMap(Jsoner.deserialize(body, new JsonObject()));
+        assertEquals(RequestBodies.json(new StringReader(body)).toMap(), expected);
+        assertEquals(expected.get("text"), "café \"quoted\"\n");
+        assertTrue(RequestBodies.json(new StringReader("")).toMap().isEmpty());
+        assertTrue(RequestBodies.json(new StringReader("{}")).toMap().isEmpty());
+        for (String malformed : new String[]{"[1]", "{\"a\":\"b\"", "{\"a\" \"b\"}", "{\"a\":\"b\"} x", "{\"a\":\"\\q\"}", "{\"a\":tru}"}) {
+            try {
+                RequestBodies.json(new StringReader(malformed)).toMap();
+                fail("Accepted " + malformed);
+            } catch (RequestBodies.MalformedBodyException ex) {
+                // Expected.
+            }
+        }
+    }
+
+    /**
+     * Test of form method, of class RequestBodies.
+     */
+    @org.testng.annotations.Test
+    public void testForm() throws IOException {
+        System.out.println("form");
+        String body = "text=caf%C3%A9+au+lait&title=a%26b%3Dc&novalue&=orphan&&empty=&x=1=2";
+        assertEquals(RequestBodies.form(bytes(body)).toMap(), new TreeMap<>(SimpleClassifierService.parseUrlFormEncoded(body)));
+        assertEquals(RequestBodies.form(bytes(body)).toMap().get("text"), "café au lait");
+        assertTrue(RequestBodies.form(bytes("")).toMap().isEmpty());
+        try {
+            RequestBodies.form(bytes("text=%zz")).toMap();
+            fail("Accepted a bad escape");
+        } catch (RequestBodies.MalformedBodyException ex) {
+            // Expected.
+        }
+    }
+
+    /**
+     * Test of limit method, of class RequestBodies.
+     */
+    @org.testng.annotations.Test
+    public void testLimit() throws IOException {
+        System.out.println("limit");
+        assertEquals(IOUtils.toByteArray(RequestBodies.limit(bytes("0123456789"), 10)).length, 10);
+        try {
+            IOUtils.toByteArray(RequestBodies.limit(bytes("0123456789a"), 10));
+            fail("Read past the limit");
+        } catch (RequestBodies.BodyTooLargeException ex) {
+            // Expected.
+        }
+    }
+
+    /**
+     * Streamed evaluation gives the same results as evaluating a map, and a
+     * large document costs far less memory per request than reading it into
+     * strings first.
+     */
+    @org.testng.annotations.Test
+    public void testStreamingEvaluation() throws IOException, URISyntaxException {
+        System.out.println("streaming evaluation - memory per request");
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            throw new SkipException("Per-thread allocation accounting is not supported on this JVM.");
+        }
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) bean;
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 4 * 1024 * 1024) {
+            text.append("shoulders knees toes ");
+        }
+        JsonObject document = new JsonObject();
+        document.put("text", text.append("elbows").toString());
+        document.put("title", "an unexpected journey");
+        byte[] body = document.toJson().getBytes(StandardCharsets.UTF_8);
+        text = null;
+        document = null;
+        try ( LuceneEvaluator instance = new LuceneEvaluator(new File(getClass().getResource("/testcategories.properties").toURI()))) {
+            instance.stop();
+            List<Set<String>> results = new ArrayList<>();
+            long[] streamed = new long[3];
+            long[] materialized = new long[3];
+            long threadId = Thread.currentThread().getId();
+            for (int i = 0; i < streamed.length; i++) {
+                long before = allocations.getThreadAllocatedBytes(threadId);
+                results.add(instance.evaluateMatches(RequestBodies.json(new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8)), false, CategorySelection.ALL).toSet());
+                streamed[i] = allocations.getThreadAllocatedBytes(threadId) - before;
+                before = allocations.getThreadAllocatedBytes(threadId);
+                String whole = IOUtils.toString(new ByteArrayInputStream(body), StandardCharsets.UTF_8);
+                results.add(instance.evaluate(SimpleClassifierService.jsonToMap(Jsoner.deserialize(whole, new JsonObject())), false));
+                materialized[i] = allocations.getThreadAllocatedBytes(threadId) - before;
+            }
+            for (Set<String> result : results) {
+                assertEquals(result, results.get(0));
+            }
+            assertTrue(results.get(0).contains("positiveTest1"), results.get(0).toString());
+            long streamedBytes = streamed[streamed.length - 1];
+            long materializedBytes = materialized[materialized.length - 1];
+            System.out.println("  " + body.length + " byte body: " + streamedBytes + " bytes allocated streaming, "
+                    + materializedBytes + " reading it into strings first");
+            // Reading into strings copies the body, as UTF-16, several times over.
+            assertTrue(streamedBytes + 2L * body.length < materializedBytes, streamedBytes + " vs " + materializedBytes);
+        }
+    }
+
+    private static InputStream bytes(String body) {
+        return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,186 @@
+package com.handshape.classifier.service;
+
+import com.sun.net.httpserver.HttpServer;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import static org.testng.Assert.*;
+
+/**
+ *
+ * @author jturner
+ */
+public class RequestExecutorNGTest {
+
+    public RequestExecutorNGTest() {
+    }
+
+    /**
+     * Tasks beyond the pool and queue capacity must be shed rather than
+     * queued, and not in the calling thread, which is the server's
+     * dispatcher.
+     */
+    @org.testng.annotations.Test
+    public void testQueueSaturation() throws Exception {
+        System.out.println("execute - saturation");
+        RequestExecutor instance = new RequestExecutor(1, 1, 0, 1, false);
+        try {
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch queuedRan = new CountDownLatch(1);
+            AtomicBoolean queuedShed = new AtomicBoolean(true);
+            instance.execute(() -> {
+                started.countDown();
+                awaitQuietly(release);
+            });
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            instance.execute(() -> {
+                queuedShed.set(instance.isShedding());
+                queuedRan.countDown();
+            });
+            AtomicBoolean overflowShed = new AtomicBoolean(false);
+            CountDownLatch overflowRan = new CountDownLatch(1);
+            Thread caller = Thread.currentThread();
+            instance.execute(() -> {
+                overflowShed.set(instance.isShedding() && Thread.currentThread() != caller);
+                overflowRan.countDown();
+            });
+            assertTrue(overflowRan.await(5, TimeUnit.SECONDS));
+            assertTrue(overflowShed.get(), "the overflowing task should be shed off the caller's thread");
+            assertFalse(instance.isShedding());
+            release.countDown();
+            assertTrue(queuedRan.await(5, TimeUnit.SECONDS));
+            assertFalse(queuedShed.get(), "the queued task should run normally");
+        } finally {
+            instance.close();
+        }
+    }
+
+    /**
+     * Tasks that waited in the queue longer than the limit must be shed when
+     * they reach a thread.
+     */
+    @org.testng.annotations.Test
+    public void testMaxQueueWait() throws Exception {
+        System.out.println("execute - max queue wait");
+        RequestExecutor instance = new RequestExecutor(1, 10, 50, 1, false);
+        try {
+            CountDownLatch queuedRan = new CountDownLatch(1);
+            AtomicBoolean queuedShed = new AtomicBoolean(false);
+            instance.execute(() -> sleepQuietly(200));
+            instance.execute(() -> {
+                queuedShed.set(instance.isShedding());
+                queuedRan.countDown();
+            });
+            assertTrue(queuedRan.await(5, TimeUnit.SECONDS));
+            assertTrue(queuedShed.get());
+        } finally {
+            instance.close();
+        }
+    }
+
+    /**
+     * Shed HTTP requests must be answered with a 503 and a Retry-After header.
+     */
+    @org.testng.annotations.Test
+    public void testFilter() throws Exception {
+        System.out.println("filter");
+        RequestExecutor instance = new RequestExecutor(1, 0, 0, 7, false);
+        HttpServer server = HttpServer.create(new InetSocketAddress(8890), 0);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        server.createContext("/", exchange -> {
+            started.countDown();
+            awaitQuietly(release);
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        }).getFilters().add(instance.getFilter());
+        server.setExecutor(instance);
+        server.start();
+        try {
+            Thread slow = new Thread(() -> {
+                try {
+                    ((HttpURLConnection) new URL("http://localhost:8890/").openConnection()).getResponseCode();
+                } catch (Exception ex) {
+                    // The slow request's outcome doesn't matter here.
+                }
+            });
+            slow.start();
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            HttpURLConnection con = (HttpURLConnection) new URL("http://localhost:8890/").openConnection();
+            assertEquals(con.getResponseCode(), 503);
+            assertEquals(con.getHeaderField("Retry-After"), "7");
+            assertEquals(instance.getShedCount(), 1L);
+            release.countDown();
+            slow.join(5000);
+        } finally {
+            release.countDown();
+            server.stop(0);
+            instance.close();
+        }
+    }
+
+    /**
+     * A context without the filter is served by the thread that sheds its
+     * requests, rather than answered with a 503.
+     */
+    @org.testng.annotations.Test
+    public void testUnfilteredContext() throws Exception {
+        System.out.println("unfiltered context");
+        RequestExecutor instance = new RequestExecutor(1, 0, 0, 7, false);
+        HttpServer server = HttpServer.create(new InetSocketAddress(8908), 0);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        server.createContext("/", exchange -> {
+            started.countDown();
+            awaitQuietly(release);
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        }).getFilters().add(instance.getFilter());
+        server.createContext("/probe", exchange -> {
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        server.setExecutor(instance);
+        server.start();
+        try {
+            Thread slow = new Thread(() -> {
+                try {
+                    ((HttpURLConnection) new URL("http://localhost:8908/").openConnection()).getResponseCode();
+                } catch (Exception ex) {
+                    // The slow request's outcome doesn't matter here.
+                }
+            });
+            slow.start();
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            assertEquals(((HttpURLConnection) new URL("http://localhost:8908/").openConnection()).getResponseCode(), 503);
+            assertEquals(((HttpURLConnection) new URL("http://localhost:8908/probe").openConnection()).getResponseCode(), 204);
+            assertEquals(instance.getShedCount(), 1L);
+            release.countDown();
+            slow.join(5000);
+        } finally {
+            release.countDown();
+            server.stop(0);
+            instance.close();
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
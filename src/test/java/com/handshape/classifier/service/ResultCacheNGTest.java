@@ -0,0 +1,166 @@
+package com.handshape.classifier.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.FileUtils;
+import static org.testng.Assert.*;
+
+/**
+ *
+ * @author jturner
+ */
+public class ResultCacheNGTest {
+
+    public ResultCacheNGTest() {
+    }
+
+    /**
+     * Documents with the same fields and values hit the cache regardless of
+     * field order; anything else, or a new generation, misses.
+     */
+    @org.testng.annotations.Test
+    public void testGet() {
+        System.out.println("get");
+        ResultCache cache = new ResultCache(1024 * 1024);
+        AtomicInteger evaluations = new AtomicInteger();
+        Map<String, String> a = new LinkedHashMap<>();
+        a.put("text", "elbows");
+        a.put("title", "knees");
+        Map<String, String> b = new LinkedHashMap<>();
+        b.put("title", "knees");
+        b.put("text", "elbows");
+        Map<String, String> c = new LinkedHashMap<>();
+        c.put("text", "elbows knees");
+        assertEquals(cache.get(0, a, null, d -> evaluate(d, evaluations)).toSet(), Collections.singleton("x"));
+        assertEquals(cache.get(0, b, null, d -> evaluate(d, evaluations)).toSet(), Collections.singleton("x"));
+        assertEquals(evaluations.get(), 1);
+        cache.get(0, c, null, d -> evaluate(d, evaluations));
+        assertEquals(evaluations.get(), 2);
+        cache.invalidate(1);
+        cache.get(1, a, null, d -> evaluate(d, evaluations));
+        assertEquals(evaluations.get(), 3);
+        assertEquals(cache.getHits(), 1L);
+        assertEquals(cache.getMisses(), 3L);
+        assertEquals(cache.size(), 1);
+    }
+
+    /**
+     * Results computed against an older generation aren't cached.
+     */
+    @org.testng.annotations.Test
+    public void testStaleGeneration() {
+        System.out.println("stale generation");
+        ResultCache cache = new ResultCache(1024 * 1024);
+        cache.invalidate(2);
+        cache.get(1, Collections.singletonMap("text", "elbows"), null, d -> new CategoryMatches(CategoryIds.EMPTY, new BitSet()));
+        assertEquals(cache.size(), 0);
+    }
+
+    /**
+     * The least recently used entries are evicted once the size budget is
+     * exceeded.
+     */
+    @org.testng.annotations.Test
+    public void testEviction() {
+        System.out.println("eviction");
+        ResultCache cache = new ResultCache(2000);
+        AtomicInteger evaluations = new AtomicInteger();
+        for (int i = 0; i < 100; i++) {
+            cache.get(0, Collections.singletonMap("text", "document " + i), null, d -> evaluate(d, evaluations));
+            // Keep the first document warm.
+            cache.get(0, Collections.singletonMap("text", "document 0"), null, d -> evaluate(d, evaluations));
+        }
+        assertTrue(cache.getBytes() <= 2000, String.valueOf(cache.getBytes()));
+        assertTrue(cache.getEvictions() > 0);
+        assertEquals(cache.size() + cache.getEvictions(), 100L);
+        int before = evaluations.get();
+        cache.get(0, Collections.singletonMap("text", "document 0"), null, d -> evaluate(d, evaluations));
+        assertEquals(evaluations.get(), before);
+        cache.get(0, Collections.singletonMap("text", "document 1"), null, d -> evaluate(d, evaluations));
+        assertEquals(evaluations.get(), before + 1);
+    }
+
+    /**
+     * Concurrent lookups of the same document evaluate it once.
+     */
+    @org.testng.annotations.Test
+    public void testCoalescing() throws Exception {
+        System.out.println("coalescing");
+        ResultCache cache = new ResultCache(1024 * 1024);
+        AtomicInteger evaluations = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Map<String, String> document = Collections.singletonMap("text", "elbows");
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            Future<CategoryMatches> first = pool.submit(() -> cache.get(0, document, null, d -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    throw new IllegalStateException(ex);
+                }
+                return evaluate(d, evaluations);
+            }));
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            Future<CategoryMatches> second = pool.submit(() -> cache.get(0, document, null, d -> evaluate(d, evaluations)));
+            while (cache.getCoalesced() == 0 && !second.isDone()) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+            assertEquals(first.get(10, TimeUnit.SECONDS).toSet(), Collections.singleton("x"));
+            assertEquals(second.get(10, TimeUnit.SECONDS).toSet(), Collections.singleton("x"));
+            assertEquals(evaluations.get(), 1);
+            assertEquals(cache.getCoalesced(), 1L);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Reloading the categories invalidates the evaluator's cached results.
+     */
+    @org.testng.annotations.Test
+    public void testReloadInvalidates() throws IOException, URISyntaxException {
+        System.out.println("reload invalidates");
+        File tempFile = File.createTempFile("cache", ".properties", new File("."));
+        tempFile.deleteOnExit();
+        FileUtils.write(tempFile, "alpha=elbows\n", "UTF-8");
+        Map<String, String> evaluationData = new TreeMap<>();
+        evaluationData.put("text", "elbows");
+        try ( LuceneEvaluator instance = new LuceneEvaluator(tempFile)) {
+            instance.stop();
+            instance.setResultCacheSize(1024 * 1024);
+            assertEquals(instance.evaluate(evaluationData), Collections.singleton("alpha"));
+            assertEquals(instance.evaluate(evaluationData), Collections.singleton("alpha"));
+            assertEquals(instance.getResultCache().getHits(), 1L);
+            FileUtils.write(tempFile, "beta=elbows\n", "UTF-8");
+            instance.loadCategories();
+            assertEquals(instance.evaluate(evaluationData), Collections.singleton("beta"));
+            assertEquals(instance.evaluate(evaluationData, false), Collections.singleton("beta"));
+            assertEquals(instance.getResultCache().getHits(), 1L);
+            assertEquals(instance.getMetrics().getEvaluations(), 3L);
+        } finally {
+            FileUtils.deleteQuietly(tempFile);
+        }
+    }
+
+    private static CategoryMatches evaluate(Map<String, String> document, AtomicInteger evaluations) {
+        evaluations.incrementAndGet();
+        BitSet matched = new BitSet();
+        matched.set(0);
+        return new CategoryMatches(new CategoryIds(Collections.singleton("x")), matched);
+    }
+}
@@ -0,0 +1,145 @@
+package com.handshape.classifier.service;
+
+import com.github.cliftonlabs.json_simple.JsonObject;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.Query;
+import static org.testng.Assert.*;
+
+/**
+ *
+ * @author jturner
+ */
+public class ReversedTermsNGTest {
+
+    private static final String CATEGORIES = "suffix=*ectomy\n"
+            + "title=title:*ney\n"
+            + "single=?ing\n"
+            + "inner=*ec?omy\n"
+            + "both=*ect*\n"
+            + "escaped=*a\\\\*b\n"
+            + "negated=elbows -*ing\n"
+            + "mixed=knees AND title:*ey^2\n"
+            + "astral=*\\uD835\\uDC9C\n";
+
+    private static final String[] TEXTS = {
+        "appendectomy elbows",
+        "running elbows",
+        "sing",
+        "ectomy",
+        "vasectomy knees",
+        "sectioned",
+        "a*b",
+        "x𝒜 elbows",
+        "𝒜x",
+        ""
+    };
+
+    private static final String[] TITLES = {"an unexpected journey", "money", "journeys", ""};
+
+    public ReversedTermsNGTest() {
+    }
+
+    /**
+     * Leading wildcards become prefix queries, or wildcard queries that start
+     * with a literal, on the reversed field; other queries are left alone.
+     */
+    @org.testng.annotations.Test
+    public void testRewrite() throws ParseException {
+        System.out.println("rewrite");
+        QueryParser parser = new QueryParser(LuceneEvaluator.DEFAULT_FIELD_NAME, new StandardAnalyzer());
+        parser.setAllowLeadingWildcard(true);
+        String text = ReversedTerms.fieldName("text");
+        String title = ReversedTerms.fieldName("title");
+        Object[][] cases = {
+            {"*ectomy", text + ":ymotce*"},
+            {"title:*ney", title + ":yen*"},
+            {"?ing", text + ":gni?"},
+            {"*ec?omy", text + ":ymo?ce*"},
+            {"*a\\*b", text + ":b*a*"},
+            {"elbows -*ing", "text:elbows -" + text + ":gni*"},
+            {"knees AND title:*ey^2", "+text:knees +(" + title + ":ye*)^2.0"},};
+        for (Object[] c : cases) {
+            assertEquals(ReversedTerms.rewrite(parser.parse((String) c[0])).toString(), c[1], (String) c[0]);
+        }
+        for (String unchanged : new String[]{"*ect*", "*", "ectomy", "ect*", "sec?ion", "\"an unexpected journey\""}) {
+            Query query = parser.parse(unchanged);
+            assertSame(ReversedTerms.rewrite(query), query, unchanged);
+        }
+        assertEquals(ReversedTerms.sourceFields(ReversedTerms.rewrite(parser.parse("knees AND title:*ey -*ing"))),
+                new java.util.TreeSet<>(java.util.Arrays.asList("text", "title")));
+    }
+
+    /**
+     * Documents match the same categories whether or not wildcards are
+     * reversed, however they're read.
+     */
+    @org.testng.annotations.Test
+    public void testSameMatches() throws IOException {
+        System.out.println("same matches");
+        File tempFile = File.createTempFile("reversed", ".properties", new File("."));
+        tempFile.deleteOnExit();
+        FileUtils.write(tempFile, CATEGORIES, "UTF-8");
+        try ( LuceneEvaluator forward = new LuceneEvaluator(tempFile);  LuceneEvaluator reversed = new LuceneEvaluator(tempFile)) {
+            forward.stop();
+            reversed.stop();
+            forward.setReverseWildcards(false);
+            assertTrue(reversed.isReverseWildcards());
+            reversed.setTokenCacheSize(1024 * 1024);
+            int matched = 0;
+            for (String text : TEXTS) {
+                for (String title : TITLES) {
+                    Map<String, String> document = new TreeMap<>();
+                    document.put("text", text);
+                    document.put("title", title);
+                    Set<String> expected = forward.evaluate(document, false);
+                    matched += expected.size();
+                    String context = document.toString();
+                    assertEquals(reversed.evaluate(document, false), expected, context);
+                    assertEquals(reversed.evaluateMatches(RequestBodies.json(new StringReader(new JsonObject(document).toJson())), false, CategorySelection.ALL).toSet(),
+                            expected, context);
+                    try ( StreamingClassification stream = reversed.openStream("text", Collections.singletonMap("title", title), 8, 4, CategorySelection.ALL, (c, t) -> {
+                    })) {
+                        stream.append(text);
+                        assertEquals(stream.finish(), expected, context);
+                    }
+                }
+            }
+            assertTrue(matched > 0);
+        } finally {
+            FileUtils.deleteQuietly(tempFile);
+        }
+    }
+
+    /**
+     * A reversed wildcard is pre-filtered by its suffix, so a document
+     * without it isn't searched.
+     */
+    @org.testng.annotations.Test
+    public void testPrefiltered() throws IOException {
+        System.out.println("prefiltered");
+        File tempFile = File.createTempFile("reversed", ".properties", new File("."));
+        tempFile.deleteOnExit();
+        FileUtils.write(tempFile, "suffix=*ectomy\n", "UTF-8");
+        try ( LuceneEvaluator instance = new LuceneEvaluator(tempFile)) {
+            instance.stop();
+            Map<String, String> document = Collections.singletonMap("text", "running elbows");
+            assertTrue(instance.evaluate(document, false).isEmpty());
+            assertEquals(instance.getMetrics().getQueriesSearched(), 0L);
+            instance.setReverseWildcards(false);
+            assertTrue(instance.evaluate(document, false).isEmpty());
+            assertEquals(instance.getMetrics().getQueriesSearched(), 1L);
+        } finally {
+            FileUtils.deleteQuietly(tempFile);
+        }
+    }
+}
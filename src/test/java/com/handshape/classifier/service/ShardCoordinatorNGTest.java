@@ -0,0 +1,223 @@
+package com.handshape.classifier.service;
+
+import com.github.cliftonlabs.json_simple.JsonObject;
+import com.github.cliftonlabs.json_simple.Jsoner;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import static org.testng.Assert.*;
+
+/**
+ *
+ * @author jturner
+ */
+public class ShardCoordinatorNGTest {
+
+    private static final String CHARSET = "UTF-8";
+
+    public ShardCoordinatorNGTest() {
+    }
+
+    /**
+     * Test of shardOf method, of class ShardCoordinator.
+     */
+    @org.testng.annotations.Test
+    public void testShardOf() {
+        System.out.println("shardOf");
+        int[] counts = new int[4];
+        for (int i = 0; i < 1000; i++) {
+            int shard = ShardCoordinator.shardOf("category" + i, counts.length);
+            assertTrue(shard >= 0 && shard < counts.length);
+            counts[shard]++;
+        }
+        for (int count : counts) {
+            assertTrue(count > 200, Arrays.toString(counts));
+        }
+        // The assignment mustn't depend on the JVM.
+        assertEquals(ShardCoordinator.shardOf("positiveTest1", 2), ShardCoordinator.shardOf("positiveTest1", 2));
+        assertEquals(ShardCoordinator.shardOf("elbows", 1), 0);
+    }
+
+    /**
+     * Test of parse method, of class ShardCoordinator.
+     */
+    @org.testng.annotations.Test
+    public void testParse() {
+        System.out.println("parse");
+        List<List<InetSocketAddress>> shards = ShardCoordinator.parse("a:1|b:2,c:3");
+        assertEquals(shards.size(), 2);
+        assertEquals(shards.get(0).size(), 2);
+        assertEquals(shards.get(0).get(1).getHostString(), "b");
+        assertEquals(shards.get(1).get(0).getPort(), 3);
+        assertThrows(IllegalArgumentException.class, () -> ShardCoordinator.parse("a:1,b"));
+    }
+
+    /**
+     * Two shards, the first with two replicas, give the same results as the
+     * whole set; failing replicas are skipped, slow ones hedged, and missing
+     * shards flagged.
+     */
+    @org.testng.annotations.Test
+    public void testEvaluate() throws Exception {
+        System.out.println("Sharded integration test");
+        File categories = new File(getClass().getResource("/testcategories.properties").toURI());
+        List<SimpleClassifierService> services = new ArrayList<>();
+        // Accepts connections, but never answers.
+        try ( ServerSocket silent = new ServerSocket(8900);  LuceneEvaluator whole = new LuceneEvaluator(categories)) {
+            whole.stop();
+            List<Socket> accepted = Collections.synchronizedList(new ArrayList<>());
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        accepted.add(silent.accept());
+                    }
+                } catch (Exception ex) {
+                    // Closed.
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+            int[][] ports = {{8896, 8897}, {8898, 8899}};
+            for (int i = 0; i < 2; i++) {
+                SimpleClassifierService shard = new SimpleClassifierService();
+                shard.setCategoriesFile(categories);
+                shard.setShard(i, 2);
+                shard.setBinaryPort(ports[i][1]);
+                shard.start(ports[i][0]);
+                services.add(shard);
+            }
+            List<Map<String, String>> documents = new ArrayList<>();
+            for (String text : Arrays.asList("elbows", "knees", "elbows knees", "")) {
+                for (String title : Arrays.asList("an unexpected journey", "unexpected", "")) {
+                    Map<String, String> document = new TreeMap<>();
+                    document.put("text", text);
+                    document.put("title", title);
+                    documents.add(document);
+                }
+            }
+
+            System.out.println("  Testing failover");
+            try ( ShardCoordinator coordinator = new ShardCoordinator(ShardCoordinator.parse("localhost:8901|localhost:8897,localhost:8899"))) {
+                for (Map<String, String> document : documents) {
+                    ShardCoordinator.Result result = coordinator.evaluate(document, CategorySelection.ALL, false);
+                    assertFalse(result.isPartial(), document.toString());
+                    assertEquals(result.getCategories(), whole.evaluate(document, false), document.toString());
+                }
+                Map<String, String> elbows = Collections.singletonMap("text", "elbows");
+                assertEquals(coordinator.evaluate(elbows, new CategorySelection(Collections.emptySet(), Collections.emptySet(), 1), false).getCategories().size(), 1);
+                assertEquals(coordinator.evaluate(elbows, CategorySelection.of("negativeTest1", "positiveTest2"), false).getCategories(),
+                        Collections.singleton("negativeTest1"));
+            }
+
+            System.out.println("  Testing hedging");
+            try ( ShardCoordinator coordinator = new ShardCoordinator(ShardCoordinator.parse("localhost:8900|localhost:8897,localhost:8899"))) {
+                coordinator.setHedgeDelayMillis(20);
+                coordinator.setTimeoutMillis(5000);
+                for (Map<String, String> document : documents) {
+                    ShardCoordinator.Result result = coordinator.evaluate(document, CategorySelection.ALL, false);
+                    assertFalse(result.isPartial(), document.toString());
+                    assertEquals(result.getCategories(), whole.evaluate(document, false), document.toString());
+                }
+                StringBuilder metrics = new StringBuilder();
+                coordinator.write(metrics);
+                // The silent replica is asked first for every other document.
+                assertTrue(metrics.toString().contains("classifier_shard_hedged_requests_total " + documents.size() / 2 + "\n"), metrics.toString());
+            }
+
+            System.out.println("  Testing timeouts");
+            try ( ShardCoordinator coordinator = new ShardCoordinator(ShardCoordinator.parse("localhost:8897,localhost:8900"))) {
+                coordinator.setTimeoutMillis(100);
+                Map<String, String> document = documents.get(0);
+                ShardCoordinator.Result result = coordinator.evaluate(document, CategorySelection.ALL, false);
+                assertTrue(result.isPartial());
+                assertEquals(result.getFailedShards(), Collections.singletonList(1));
+                Set<String> expected = new TreeSet<>(whole.evaluate(document, false));
+                expected.removeIf(key -> ShardCoordinator.shardOf(key, 2) != 0);
+                assertEquals(result.getCategories(), expected);
+                StringBuilder metrics = new StringBuilder();
+                coordinator.write(metrics);
+                assertTrue(metrics.toString().contains("classifier_shard_failures_total{shard=\"1\",reason=\"timeout\"} 1\n"), metrics.toString());
+            }
+
+            System.out.println("  Testing coordinator service");
+            SimpleClassifierService coordinatorService = new SimpleClassifierService();
+            coordinatorService.setCategoriesFile(categories);
+            coordinatorService.setShards("localhost:8897,localhost:8899");
+            coordinatorService.start(8902);
+            services.add(coordinatorService);
+            JsonObject response = (JsonObject) Jsoner.deserialize(new InputStreamReader(new URL("http://localhost:8902/?text=elbows").openStream(), CHARSET));
+            assertEquals(new TreeSet<>((List<?>) response.get("categories")), whole.evaluate(Collections.singletonMap("text", "elbows"), false));
+            assertEquals(response.get("partial"), false);
+            services.remove(1).stop();
+            response = (JsonObject) Jsoner.deserialize(new InputStreamReader(new URL("http://localhost:8902/?text=elbows").openStream(), CHARSET));
+            assertEquals(response.get("partial"), true);
+            assertEquals(((List<?>) response.get("failedShards")).size(), 1);
+            for (Socket socket : accepted) {
+                socket.close();
+            }
+        } finally {
+            for (SimpleClassifierService service : services) {
+                service.stop();
+            }
+        }
+    }
+
+    /**
+     * Replicas that can't be reached cost a document no more than the shard
+     * timeout, however many shards there are, and once their connections
+     * have failed, nothing at all while they're reconnected.
+     */
+    @org.testng.annotations.Test
+    public void testUnreachable() throws Exception {
+        System.out.println("Unreachable shards");
+        List<Socket> queued = new ArrayList<>();
+        // Once its backlog is full, connections to the listener hang until they time out.
+        try ( ServerSocket full = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), full.getLocalPort());
+            while (true) {
+                Socket socket = new Socket();
+                queued.add(socket);
+                try {
+                    socket.connect(address, 200);
+                } catch (SocketTimeoutException ex) {
+                    break;
+                }
+            }
+            String replica = "127.0.0.1:" + full.getLocalPort();
+            try ( ShardCoordinator coordinator = new ShardCoordinator(ShardCoordinator.parse(replica + "," + replica + "," + replica))) {
+                coordinator.setTimeoutMillis(1000);
+                Map<String, String> document = Collections.singletonMap("text", "elbows");
+                long start = System.nanoTime();
+                ShardCoordinator.Result result = coordinator.evaluate(document, CategorySelection.ALL, false);
+                long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                assertEquals(result.getFailedShards(), Arrays.asList(0, 1, 2));
+                assertTrue(elapsed < 2000, elapsed + "ms");
+                // Let the connections time out.
+                Thread.sleep(1000);
+                start = System.nanoTime();
+                result = coordinator.evaluate(document, CategorySelection.ALL, false);
+                elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                assertEquals(result.getFailedShards(), Arrays.asList(0, 1, 2));
+                assertTrue(elapsed < 500, elapsed + "ms");
+            }
+        } finally {
+            for (Socket socket : queued) {
+                socket.close();
+            }
+        }
+    }
+}
@@ -12,7 +12,14 @@ import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
+import java.net.Socket;
 import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import static org.testng.Assert.*;
@@ -48,22 +55,308 @@ public class SimpleClassifierServiceNGTest {
             System.out.println("  Testing POST x-www-form-urlencoded");
             assertTrue(postURL("http://localhost:8888/", "text=elbows", "application/x-www-form-urlencoded").getCollection(categoryKey).contains("positiveTest1"), "integration tests");
 
+            // Category selection
+            System.out.println("  Testing category selection");
+            assertEquals(grabURL("http://localhost:8888/?text=elbows&_categories=negativeTest1,positiveTest2").getCollection(categoryKey).size(), 1);
+            assertTrue(postURL("http://localhost:8888/?_prefixes=negative", "{\"text\":\"elbows\"}", "application/json; "+CHARSET).getCollection(categoryKey).contains("negativeTest1"), "integration tests");
+            assertEquals(postURL("http://localhost:8888/?_prefixes=positive&_limit=1", "text=elbows", "application/x-www-form-urlencoded").getCollection(categoryKey).size(), 1);
+
             // Ensure that the form gets yielded.
             System.out.println("  Testing form autogeneration");
             Document doc = Jsoup.parse(new URL("http://localhost:8888/"), 1000);
             System.out.println(doc.toString());
             assertTrue(doc.select("input").size() == 3);
             assertTrue(doc.select("input[name=text]").size() == 1);
+
+            // Metrics
+            System.out.println("  Testing metrics");
+            String metrics = IOUtils.toString(new URL("http://localhost:8888/metrics"), CHARSET);
+            assertTrue(metrics.contains("classifier_requests_total{method=\"GET\",content_type=\"none\"}"), metrics);
+            assertTrue(metrics.contains("classifier_requests_total{method=\"POST\",content_type=\"application/json\"} 2\n"), metrics);
+            assertTrue(metrics.contains("classifier_category_hits_total{category=\"positiveTest1\"} 4\n"), metrics);
+            assertTrue(metrics.contains("classifier_category_hits_total{category=\"negativeTest1\"} 5\n"), metrics);
+            assertTrue(metrics.contains("classifier_evaluations_total 6\n"), metrics);
+        } finally {
+            service.stop();
+        }
+    }
+
+    @org.testng.annotations.Test
+    public void testBatch() throws Exception {
+        System.out.println("Batch integration test");
+
+        SimpleClassifierService service = new SimpleClassifierService();
+        try {
+            service.setCategoriesFile(new File(getClass().getResource("/testcategories.properties").toURI()));
+            service.setMaxBatchInFlight(2);
+            service.start(8889);
+            JsonKey categoryKey = Jsoner.mintJsonKey("categories", null);
+            JsonKey idKey = Jsoner.mintJsonKey("id", null);
+            // JSON array, with and without caller-supplied ids
+            System.out.println("  Testing JSON array");
+            Map<String, JsonObject> results = postBatch("http://localhost:8889/batch",
+                    "[{\"id\":\"a\",\"text\":\"elbows\"},{\"id\":\"b\",\"text\":\"knees\"},{\"text\":\"elbows\"}]");
+            assertEquals(results.size(), 3);
+            assertTrue(results.get("a").getCollection(categoryKey).contains("positiveTest1"));
+            assertFalse(results.get("b").getCollection(categoryKey).contains("positiveTest1"));
+            assertTrue(results.get("2").getCollection(categoryKey).contains("positiveTest1"));
+            // NDJSON, with a malformed record
+            System.out.println("  Testing NDJSON");
+            StringBuilder ndjson = new StringBuilder();
+            for (int i = 0; i < 50; i++) {
+                ndjson.append("{\"id\":").append(i).append(",\"text\":\"elbows\"}\n");
+            }
+            ndjson.append("\"not an object\"\n");
+            results = postBatch("http://localhost:8889/batch", ndjson.toString());
+            assertEquals(results.size(), 51);
+            for (int i = 0; i < 50; i++) {
+                // Numeric ids come back as numbers.
+                assertEquals(results.get(String.valueOf(i)).get("id"), new java.math.BigDecimal(i));
+                assertEquals(results.get(String.valueOf(i)).getString(idKey), String.valueOf(i));
+                assertTrue(results.get(String.valueOf(i)).getCollection(categoryKey).contains("positiveTest1"));
+            }
+            assertTrue(results.get("50").containsKey("error"));
+            // Size limit
+            System.out.println("  Testing batch size limit");
+            service.setMaxBatchSize(10);
+            results = postBatch("http://localhost:8889/batch", ndjson.toString());
+            assertEquals(results.size(), 11);
+            assertTrue(results.get("null").containsKey("error"));
+        } finally {
+            service.stop();
+        }
+    }
+
+    @org.testng.annotations.Test
+    public void testBodyLimits() throws Exception {
+        System.out.println("Body limit integration test");
+
+        SimpleClassifierService service = new SimpleClassifierService();
+        try {
+            service.setCategoriesFile(new File(getClass().getResource("/testcategories.properties").toURI()));
+            service.setMaxBodySize(64);
+            service.start(8891);
+            assertEquals(postStatus("http://localhost:8891/", "{\"text\":\"elbows\"}", "application/json", false), 200);
+            StringBuilder large = new StringBuilder("{\"text\":\"");
+            while (large.length() < 100) {
+                large.append("elbows ");
+            }
+            large.append("\"}");
+            // Rejected up front by its length, or part-way through when chunked.
+            assertEquals(postStatus("http://localhost:8891/", large.toString(), "application/json", false), 413);
+            assertEquals(postStatus("http://localhost:8891/", large.toString(), "application/json", true), 413);
+            assertEquals(postStatus("http://localhost:8891/", "{\"text\":", "application/json", false), 400);
+            assertEquals(postStatus("http://localhost:8891/", "text=%zz", "application/x-www-form-urlencoded", false), 400);
         } finally {
             service.stop();
         }
     }
 
+    @org.testng.annotations.Test
+    public void testWarmUp() throws Exception {
+        System.out.println("Warm-up integration test");
+
+        SimpleClassifierService service = new SimpleClassifierService();
+        try {
+            service.setCategoriesFile(new File(getClass().getResource("/testcategories.properties").toURI()));
+            service.setWarmUpMillis(2000);
+            service.start(8895);
+            // Live, but not ready, while warming up.
+            assertEquals(((HttpURLConnection) new URL("http://localhost:8895/live").openConnection()).getResponseCode(), 200);
+            assertEquals(((HttpURLConnection) new URL("http://localhost:8895/ready").openConnection()).getResponseCode(), 503);
+            long deadline = System.currentTimeMillis() + 30000;
+            while (!service.isReady() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals(((HttpURLConnection) new URL("http://localhost:8895/ready").openConnection()).getResponseCode(), 200);
+            service.stop();
+
+            service.setWarmUpMillis(0);
+            service.start(8895);
+            assertEquals(((HttpURLConnection) new URL("http://localhost:8895/ready").openConnection()).getResponseCode(), 200);
+        } finally {
+            service.stop();
+        }
+    }
+
+    @org.testng.annotations.Test
+    public void testNamedSets() throws Exception {
+        System.out.println("Named category set integration test");
+
+        SimpleClassifierService service = new SimpleClassifierService();
+        File dir = java.nio.file.Files.createTempDirectory("named").toFile();
+        try {
+            FileUtils.write(new File(dir, "body.properties"), "elbows=elbows\n", CHARSET);
+            FileUtils.write(new File(dir, "legs.properties"), "knees=knees\n", CHARSET);
+            service.setCategoriesFile(new File(getClass().getResource("/testcategories.properties").toURI()));
+            service.setCategoryDirectory(dir);
+            service.start(8892);
+            JsonKey categoryKey = Jsoner.mintJsonKey("categories", null);
+            assertTrue(grabURL("http://localhost:8892/c/body/?text=elbows").getCollection(categoryKey).contains("elbows"));
+            assertTrue(grabURL("http://localhost:8892/c/legs?text=elbows").getCollection(categoryKey).isEmpty());
+            assertTrue(postURL("http://localhost:8892/c/legs/", "{\"text\":\"knees\"}", "application/json").getCollection(categoryKey).contains("knees"));
+            assertTrue(grabURL("http://localhost:8892/?text=elbows").getCollection(categoryKey).contains("positiveTest1"));
+            Map<String, JsonObject> results = postBatch("http://localhost:8892/c/body/batch", "{\"id\":\"a\",\"text\":\"elbows\"}\n");
+            assertTrue(results.get("a").getCollection(categoryKey).contains("elbows"));
+            JsonObject costs = grabURL("http://localhost:8892/c/legs/query-costs");
+            assertEquals(((Map<?, ?>) costs.getCollection(categoryKey).iterator().next()).get("name"), "knees");
+            assertEquals(((Map<?, ?>) costs.getCollection(categoryKey).iterator().next()).get("kind"), "TERM");
+            assertFalse(grabURL("http://localhost:8892/query-costs").getCollection(categoryKey).isEmpty());
+            assertEquals(((HttpURLConnection) new URL("http://localhost:8892/c/arms/?text=elbows").openConnection()).getResponseCode(), 404);
+            assertEquals(((HttpURLConnection) new URL("http://localhost:8892/c/body/other?text=elbows").openConnection()).getResponseCode(), 404);
+            String metrics = IOUtils.toString(new URL("http://localhost:8892/metrics"), CHARSET);
+            assertTrue(metrics.contains("classifier_category_sets_loaded 2\n"), metrics);
+        } finally {
+            service.stop();
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    /**
+     * The probes and metrics answer while the request queue is full, and
+     * other requests are shed.
+     */
+    @org.testng.annotations.Test
+    public void testProbesWhenFull() throws Exception {
+        System.out.println("Probes when full integration test");
+
+        SimpleClassifierService service = new SimpleClassifierService();
+        try {
+            service.setCategoriesFile(new File(getClass().getResource("/testcategories.properties").toURI()));
+            service.setRequestThreads(1);
+            service.setRequestQueueDepth(0);
+            service.start(8909);
+            // An open stream holds the only request thread.
+            try ( Socket socket = new Socket("localhost", 8909)) {
+                socket.setSoTimeout(30000);
+                OutputStream out = socket.getOutputStream();
+                out.write(("POST /stream HTTP/1.1\r\nHost: localhost\r\nContent-Type: text/plain\r\n"
+                        + "Transfer-Encoding: chunked\r\n\r\n6\r\nelbows\r\n").getBytes(CHARSET));
+                out.flush();
+                long deadline = System.currentTimeMillis() + 30000;
+                int status;
+                while ((status = ((HttpURLConnection) new URL("http://localhost:8909/?text=elbows").openConnection()).getResponseCode()) != 503
+                        && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(50);
+                }
+                assertEquals(status, 503);
+                assertEquals(((HttpURLConnection) new URL("http://localhost:8909/live").openConnection()).getResponseCode(), 200);
+                assertEquals(((HttpURLConnection) new URL("http://localhost:8909/ready").openConnection()).getResponseCode(), 200);
+                String metrics = IOUtils.toString(new URL("http://localhost:8909/metrics"), CHARSET);
+                assertTrue(metrics.contains("classifier_requests_shed_total"), metrics);
+                out.write("0\r\n\r\n".getBytes(CHARSET));
+                out.flush();
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), CHARSET));
+                assertEquals(in.readLine(), "HTTP/1.1 200 OK");
+            }
+        } finally {
+            service.stop();
+        }
+    }
+
+    /**
+     * Selection parameters on a GET select categories, and aren't evaluated
+     * as part of the document; a GET with nothing else evaluates an empty
+     * document rather than serving the form.
+     */
+    @org.testng.annotations.Test
+    public void testGetSelection() throws Exception {
+        System.out.println("GET selection integration test");
+
+        SimpleClassifierService service = new SimpleClassifierService();
+        File tempFile = File.createTempFile("selection", ".properties", new File("."));
+        tempFile.deleteOnExit();
+        try {
+            FileUtils.write(tempFile, "elbows=elbows\nleaked=_limit:* OR _categories:* OR _prefixes:*\n", CHARSET);
+            service.setCategoriesFile(tempFile);
+            service.start(8910);
+            JsonKey categoryKey = Jsoner.mintJsonKey("categories", null);
+            assertEquals(grabURL("http://localhost:8910/?text=elbows&_limit=5").getCollection(categoryKey), Collections.singletonList("elbows"));
+            assertEquals(grabURL("http://localhost:8910/?text=elbows&_prefixes=e,l&_categories=leaked").getCollection(categoryKey),
+                    Collections.singletonList("elbows"));
+            assertTrue(grabURL("http://localhost:8910/?_limit=1").getCollection(categoryKey).isEmpty());
+            assertEquals(((HttpURLConnection) new URL("http://localhost:8910/?_limit=x").openConnection()).getResponseCode(), 400);
+        } finally {
+            service.stop();
+            FileUtils.deleteQuietly(tempFile);
+        }
+    }
+
+    /**
+     * Every value of a repeated field is indexed, whichever way the document
+     * arrives and whether or not its result is cached.
+     */
+    @org.testng.annotations.Test
+    public void testRepeatedFields() throws Exception {
+        System.out.println("Repeated field integration test");
+
+        SimpleClassifierService service = new SimpleClassifierService();
+        try {
+            service.setCategoriesFile(new File(getClass().getResource("/testcategories.properties").toURI()));
+            service.setResultCacheSize(1024 * 1024);
+            service.start(8907);
+            JsonKey categoryKey = Jsoner.mintJsonKey("categories", null);
+            // Were only the last value kept, "elbows" alone would match negativeTest1.
+            for (boolean useCache : new boolean[]{true, true, false}) {
+                String context = useCache ? "cached" : "uncached";
+                JsonObject json = postURL("http://localhost:8907/", "{\"text\":\"knees\",\"text\":\"elbows\"}", "application/json", useCache);
+                assertTrue(json.getCollection(categoryKey).contains("positiveTest1"), context);
+                assertFalse(json.getCollection(categoryKey).contains("negativeTest1"), context);
+                JsonObject form = postURL("http://localhost:8907/", "text=knees&text=elbows", "application/x-www-form-urlencoded", useCache);
+                assertEquals(new HashSet<>(form.getCollection(categoryKey)), new HashSet<>(json.getCollection(categoryKey)), context);
+            }
+            JsonObject get = grabURL("http://localhost:8907/?text=knees&text=elbows");
+            assertTrue(get.getCollection(categoryKey).contains("positiveTest1"));
+            assertFalse(get.getCollection(categoryKey).contains("negativeTest1"));
+            Map<String, JsonObject> results = postBatch("http://localhost:8907/batch", "{\"id\":\"a\",\"text\":\"knees\",\"text\":\"elbows\"}\n");
+            assertEquals(new HashSet<>(results.get("a").getCollection(categoryKey)), new HashSet<>(get.getCollection(categoryKey)));
+        } finally {
+            service.stop();
+        }
+    }
+
+    private int postStatus(String urlSpec, String body, String contentType, boolean chunked) throws IOException {
+        HttpURLConnection con = (HttpURLConnection) new URL(urlSpec).openConnection();
+        con.setRequestMethod("POST");
+        con.setRequestProperty("Content-Type", contentType);
+        if (chunked) {
+            con.setChunkedStreamingMode(16);
+        }
+        con.setDoOutput(true);
+        try ( OutputStream os = con.getOutputStream()) {
+            os.write(body.getBytes(CHARSET));
+        }
+        return con.getResponseCode();
+    }
+
+    private Map<String, JsonObject> postBatch(String urlSpec, String body) throws IOException, JsonException {
+        HttpURLConnection con = (HttpURLConnection) new URL(urlSpec).openConnection();
+        con.setRequestMethod("POST");
+        con.setRequestProperty("Content-Type", "application/x-ndjson");
+        con.setDoOutput(true);
+        try ( OutputStream os = con.getOutputStream()) {
+            os.write(body.getBytes(CHARSET));
+        }
+        Map<String, JsonObject> results = new HashMap<>();
+        try ( BufferedReader br = new BufferedReader(new InputStreamReader(con.getInputStream(), CHARSET))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                JsonObject result = (JsonObject) Jsoner.deserialize(line);
+                results.put(String.valueOf(result.get("id")), result);
+            }
+        }
+        return results;
+    }
+
     private JsonObject grabURL(String url) throws MalformedURLException, IOException, JsonException {
         return (JsonObject) Jsoner.deserialize(new InputStreamReader(new URL(url).openStream(), CHARSET));
     }
 
     private JsonObject postURL(String urlSpec, String body, String contentType) throws MalformedURLException, ProtocolException, IOException {
+        return postURL(urlSpec, body, contentType, true);
+    }
+
+    private JsonObject postURL(String urlSpec, String body, String contentType, boolean useCache) throws MalformedURLException, ProtocolException, IOException {
         URL url = new URL(urlSpec);
 
         HttpURLConnection con = (HttpURLConnection) url.openConnection();
@@ -71,6 +364,9 @@ public class SimpleClassifierServiceNGTest {
 
         con.setRequestProperty("Content-Type", contentType);
         con.setRequestProperty("Accept", "application/json");
+        if (!useCache) {
+            con.setRequestProperty("Cache-Control", "no-cache");
+        }
 
         con.setDoOutput(true);
 
@@ -0,0 +1,210 @@
+package com.handshape.classifier.service;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import static org.testng.Assert.*;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+
+/**
+ *
+ * @author jturner
+ */
+public class StreamingClassificationNGTest {
+
+    private LuceneEvaluator evaluator;
+
+    public StreamingClassificationNGTest() {
+    }
+
+    @BeforeClass
+    public void setUpClass() throws Exception {
+        evaluator = new LuceneEvaluator(new File(getClass().getResource("/testcategories.properties").toURI()));
+        evaluator.stop();
+    }
+
+    @AfterClass
+    public void tearDownClass() throws Exception {
+        evaluator.close();
+    }
+
+    /**
+     * Queries without prohibited clauses are reported as soon as their terms
+     * arrive; ones with prohibited clauses once a whole window has been seen.
+     */
+    @org.testng.annotations.Test
+    public void testEarlyEmission() throws Exception {
+        System.out.println("earlyEmission");
+        Map<String, Long> seen = new LinkedHashMap<>();
+        try ( StreamingClassification stream = evaluator.openStream("text", Collections.emptyMap(), 8, 4, CategorySelection.ALL, seen::put)) {
+            stream.append("elbows ");
+            assertEquals(seen, Collections.singletonMap("positiveTest1", 1L));
+            stream.append("one two ");
+            assertFalse(seen.containsKey("negativeTest1"));
+            stream.append("three four five six ");
+            // Decided by the first window, of the first four tokens.
+            assertEquals(seen.get("negativeTest1"), Long.valueOf(4));
+            assertEquals(stream.finish(), seen.keySet());
+        }
+    }
+
+    /**
+     * A prohibited term in the same window prevents a match, but one in a
+     * later window doesn't.
+     */
+    @org.testng.annotations.Test
+    public void testNegation() throws Exception {
+        System.out.println("negation");
+        List<String> seen = new ArrayList<>();
+        try ( StreamingClassification stream = evaluator.openStream("text", Collections.emptyMap(), 4, 2, CategorySelection.ALL, (c, t) -> seen.add(c))) {
+            stream.append(new StringReader("elbows knees one two three four five six"));
+            // Within one window, as it would be if the text were evaluated whole.
+            assertEquals(stream.finish(), evaluator.evaluate(Collections.singletonMap("text", "elbows knees")));
+            assertFalse(stream.getMatched().contains("negativeTest1"));
+        }
+        seen.clear();
+        try ( StreamingClassification stream = evaluator.openStream("text", Collections.emptyMap(), 4, 2, CategorySelection.ALL, (c, t) -> seen.add(c))) {
+            stream.append(new StringReader("elbows one two three four five knees"));
+            assertTrue(stream.finish().contains("negativeTest1"));
+        }
+        // A leading window shorter than the rest is decided like any other.
+        try ( StreamingClassification stream = evaluator.openStream("text", Collections.emptyMap(), 4, 2, CategorySelection.ALL, (c, t) -> seen.add(c))) {
+            stream.append(new StringReader("elbows one knees two three four"));
+            assertTrue(stream.finish().contains("negativeTest1"));
+            assertFalse(evaluator.evaluate(Collections.singletonMap("text", "elbows one knees two")).contains("negativeTest1"));
+        }
+        // A stream shorter than its step is decided as a whole when it ends.
+        try ( StreamingClassification stream = evaluator.openStream("text", Collections.emptyMap(), 64, 16, CategorySelection.ALL, (c, t) -> seen.add(c))) {
+            stream.append("elbows ");
+            assertEquals(stream.getMatched(), Collections.singleton("positiveTest1"));
+            assertTrue(stream.finish().contains("negativeTest1"));
+        }
+    }
+
+    /**
+     * Tokens split across appends are analyzed whole.
+     */
+    @org.testng.annotations.Test
+    public void testSplitToken() throws Exception {
+        System.out.println("splitToken");
+        List<String> seen = new ArrayList<>();
+        try ( StreamingClassification stream = evaluator.openStream("text", Collections.emptyMap(), 8, 4, CategorySelection.ALL, (c, t) -> seen.add(c))) {
+            stream.append("elb");
+            stream.append("ows");
+            assertTrue(seen.isEmpty());
+            assertEquals(stream.getTokens(), 0L);
+            assertTrue(stream.finish().contains("positiveTest1"));
+            assertEquals(stream.getTokens(), 1L);
+        }
+    }
+
+    /**
+     * Fixed fields accompany every window, including that of an empty stream.
+     */
+    @org.testng.annotations.Test
+    public void testFixedFields() throws Exception {
+        System.out.println("fixedFields");
+        Map<String, String> fixed = Collections.singletonMap("title", "an unexpected journey");
+        try ( StreamingClassification stream = evaluator.openStream("text", fixed, 8, 4, CategorySelection.ALL, (c, t) -> {
+        })) {
+            assertEquals(stream.finish(), Collections.singleton("positiveTest2"));
+        }
+        List<String> seen = new ArrayList<>();
+        try ( StreamingClassification stream = evaluator.openStream("text", fixed, 8, 4, CategorySelection.ALL, (c, t) -> seen.add(c))) {
+            stream.append("knees ");
+            assertTrue(seen.contains("positiveTest3"));
+            assertTrue(seen.contains("positiveTest4"));
+            assertFalse(stream.finish().contains("negativeTest2"));
+        }
+    }
+
+    /**
+     * The stream is done once the selection's limit is reached.
+     */
+    @org.testng.annotations.Test
+    public void testLimit() throws Exception {
+        System.out.println("limit");
+        Map<String, String> params = new HashMap<>();
+        params.put("_limit", "1");
+        try ( StreamingClassification stream = evaluator.openStream("text", Collections.singletonMap("title", "an unexpected journey"), 8, 4,
+                CategorySelection.extract(params), (c, t) -> {
+        })) {
+            assertFalse(stream.isDone());
+            stream.append("elbows knees ");
+            assertTrue(stream.isDone());
+            assertEquals(stream.finish().size(), 1);
+        }
+        try {
+            evaluator.openStream("text", Collections.emptyMap(), 4, 8, CategorySelection.ALL, (c, t) -> {
+            });
+            fail("A step larger than the window should be rejected.");
+        } catch (IllegalArgumentException ex) {
+            // Expected.
+        }
+    }
+
+    /**
+     * The endpoint reports a category before the rest of the stream has been
+     * sent.
+     */
+    @org.testng.annotations.Test
+    public void testEndpoint() throws Exception {
+        System.out.println("endpoint");
+        SimpleClassifierService service = new SimpleClassifierService();
+        service.setCategoriesFile(new File(getClass().getResource("/testcategories.properties").toURI()));
+        service.start(8906);
+        try {
+            try ( Socket socket = new Socket("localhost", 8906)) {
+                socket.setSoTimeout(30000);
+                OutputStream out = socket.getOutputStream();
+                out.write(("POST /stream?_window=8&_step=4 HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n"
+                        + "Content-Type: text/plain\r\nTransfer-Encoding: chunked\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                writeChunk(out, "elbows ");
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                assertEquals(in.readLine(), "HTTP/1.1 200 OK");
+                String line;
+                while ((line = in.readLine()) != null && !line.contains("positiveTest1")) {
+                    // Headers and chunk sizes.
+                }
+                assertNotNull(line, "The first match should arrive while the stream is open.");
+                writeChunk(out, "knees");
+                out.write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                StringBuilder rest = new StringBuilder();
+                while ((line = in.readLine()) != null) {
+                    rest.append(line).append('\n');
+                }
+                assertTrue(rest.toString().contains("\"tokens\":2"));
+                assertFalse(rest.toString().contains("negativeTest1"));
+            }
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:8906/stream?_window=0").openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.getOutputStream().write("elbows".getBytes(StandardCharsets.UTF_8));
+            assertEquals(connection.getResponseCode(), 400);
+        } finally {
+            service.stop();
+        }
+    }
+
+    private static void writeChunk(OutputStream out, String text) throws Exception {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.write((Integer.toHexString(bytes.length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(bytes);
+        out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+}
@@ -0,0 +1,126 @@
+package com.handshape.classifier.service;
+
+import com.github.cliftonlabs.json_simple.JsonObject;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import static org.testng.Assert.*;
+
+/**
+ *
+ * @author jturner
+ */
+public class TokenCacheNGTest {
+
+    public TokenCacheNGTest() {
+    }
+
+    /**
+     * Replayed tokens are the analyzer's tokens, down to the positions and
+     * offsets reported at the end of the stream.
+     */
+    @org.testng.annotations.Test
+    public void testReplay() throws IOException {
+        System.out.println("replay");
+        Analyzer analyzer = new StandardAnalyzer();
+        for (String value : Arrays.asList("", "  ", "An Unexpected   Journey!", "café, naïve résumé", "elbows-knees 42 x.y")) {
+            TokenCache.Tokens tokens = TokenCache.Tokens.analyze(analyzer, "title", value);
+            assertEquals(describe(new TokenCache.Replay().replay(tokens)), describe(analyzer.tokenStream("title", value)), value);
+        }
+    }
+
+    /**
+     * Test of get method, of class TokenCache.
+     */
+    @org.testng.annotations.Test
+    public void testGet() {
+        System.out.println("get");
+        Analyzer analyzer = new StandardAnalyzer();
+        TokenCache cache = new TokenCache(2000, 10);
+        assertTrue(cache.accepts(10));
+        assertFalse(cache.accepts(11));
+        assertEquals(cache.getSkipped(), 1L);
+        TokenCache.Tokens first = cache.get(analyzer, "country", "CA");
+        assertEquals(first.size(), 1);
+        assertSame(cache.get(analyzer, "country", "CA"), first);
+        assertNotSame(cache.get(analyzer, "source", "CA"), first);
+        assertEquals(cache.getHits(), 1L);
+        assertEquals(cache.getMisses(), 2L);
+        for (int i = 0; i < 100; i++) {
+            cache.get(analyzer, "source", "wire " + i);
+        }
+        assertTrue(cache.getBytes() <= 2000, String.valueOf(cache.getBytes()));
+        assertTrue(cache.getEvictions() > 0);
+        assertEquals(cache.size() + cache.getEvictions(), 102L);
+    }
+
+    /**
+     * Evaluations match with the cache on or off, whether documents arrive
+     * as maps or as streamed bodies, and values longer than the maximum
+     * length bypass the cache.
+     */
+    @org.testng.annotations.Test
+    public void testSameResults() throws IOException, URISyntaxException {
+        System.out.println("same results");
+        List<Map<String, String>> documents = new ArrayList<>();
+        for (String title : Arrays.asList("an unexpected journey", "unexpected", "journey", "An Unexpected Jour", "")) {
+            for (String text : Arrays.asList("elbows", "knees", "elbows and knees", "toes")) {
+                Map<String, String> document = new TreeMap<>();
+                document.put("title", title);
+                document.put("text", text);
+                documents.add(document);
+            }
+        }
+        File categories = new File(getClass().getResource("/testcategories.properties").toURI());
+        try ( LuceneEvaluator plain = new LuceneEvaluator(categories);  LuceneEvaluator cached = new LuceneEvaluator(categories)) {
+            plain.stop();
+            cached.stop();
+            cached.setTokenCacheMaxLength(12);
+            cached.setTokenCacheSize(1024 * 1024);
+            for (int round = 0; round < 2; round++) {
+                for (Map<String, String> document : documents) {
+                    byte[] body = new JsonObject(document).toJson().getBytes(StandardCharsets.UTF_8);
+                    assertEquals(cached.evaluate(document, false), plain.evaluate(document, false), document.toString());
+                    assertEquals(cached.evaluateMatches(RequestBodies.json(new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8)), false, CategorySelection.ALL).toSet(),
+                            plain.evaluate(document, false), document.toString());
+                }
+            }
+            TokenCache cache = cached.getTokenCache();
+            assertTrue(cache.getHits() > 0);
+            // Two titles and one text are longer than the maximum; each document is evaluated twice, two ways.
+            assertEquals(cache.getSkipped(), (2L * 4 + 5) * 2 * 2);
+            assertEquals(cache.size(), 3 + 3);
+            assertTrue(cache.getHitChars() > 0);
+        }
+    }
+
+    private static List<String> describe(TokenStream stream) throws IOException {
+        List<String> tokens = new ArrayList<>();
+        try ( TokenStream s = stream) {
+            CharTermAttribute term = s.addAttribute(CharTermAttribute.class);
+            PositionIncrementAttribute positionIncrement = s.addAttribute(PositionIncrementAttribute.class);
+            OffsetAttribute offset = s.addAttribute(OffsetAttribute.class);
+            s.reset();
+            while (s.incrementToken()) {
+                tokens.add(term + "/" + positionIncrement.getPositionIncrement() + "/" + offset.startOffset() + "-" + offset.endOffset());
+            }
+            s.end();
+            tokens.add("end/" + positionIncrement.getPositionIncrement() + "/" + offset.startOffset() + "-" + offset.endOffset());
+        }
+        return tokens;
+    }
+}
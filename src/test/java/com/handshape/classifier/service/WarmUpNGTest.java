@@ -0,0 +1,79 @@
+package com.handshape.classifier.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import static org.testng.Assert.*;
+
+/**
+ *
+ * @author jturner
+ */
+public class WarmUpNGTest {
+
+    public WarmUpNGTest() {
+    }
+
+    /**
+     * Test of collectTerms method, of class WarmUp.
+     */
+    @org.testng.annotations.Test
+    public void testCollectTerms() throws IOException, URISyntaxException {
+        System.out.println("collectTerms");
+        try ( LuceneEvaluator evaluator = new LuceneEvaluator(new File(getClass().getResource("/testcategories.properties").toURI()))) {
+            evaluator.stop();
+            Map<String, List<String>> terms = WarmUp.collectTerms(evaluator.getQueries().values());
+            assertEquals(terms.keySet(), new TreeSet<>(Arrays.asList("text", "title")));
+            assertEquals(new TreeSet<>(terms.get("text")), new TreeSet<>(Arrays.asList("elbows", "knees")));
+            assertEquals(new TreeSet<>(terms.get("title")), new TreeSet<>(Arrays.asList("an", "jour", "journey", "unexpected")));
+        }
+        assertEquals(WarmUp.collectTerms(Collections.emptyList()).keySet(), Collections.singleton(LuceneEvaluator.DEFAULT_FIELD_NAME));
+    }
+
+    /**
+     * Synthetic documents use the queries' fields, and match some of the
+     * categories.
+     */
+    @org.testng.annotations.Test
+    public void testDocument() throws IOException, URISyntaxException {
+        System.out.println("document");
+        try ( LuceneEvaluator evaluator = new LuceneEvaluator(new File(getClass().getResource("/testcategories.properties").toURI()))) {
+            evaluator.stop();
+            WarmUp warmUp = new WarmUp(evaluator, 42L);
+            Set<String> matched = new TreeSet<>();
+            for (int i = 0; i < 100; i++) {
+                Map<String, String> document = warmUp.document();
+                assertEquals(document.keySet(), new TreeSet<>(Arrays.asList("text", "title")));
+                matched.addAll(evaluator.evaluate(document, false));
+            }
+            assertTrue(matched.contains("positiveTest1"), matched.toString());
+            assertTrue(matched.contains("negativeTest1"), matched.toString());
+        }
+    }
+
+    /**
+     * Test of run method, of class WarmUp.
+     */
+    @org.testng.annotations.Test
+    public void testRun() throws IOException, URISyntaxException {
+        System.out.println("run");
+        try ( LuceneEvaluator evaluator = new LuceneEvaluator(new File(getClass().getResource("/testcategories.properties").toURI()))) {
+            evaluator.stop();
+            evaluator.setResultCacheSize(1024 * 1024);
+            WarmUp warmUp = new WarmUp(evaluator, 42L);
+            assertEquals(warmUp.run(0L, 500L), 500L);
+            assertEquals(evaluator.getMetrics().getEvaluations(), 500L);
+            // Synthetic results aren't cached.
+            assertEquals(evaluator.getResultCache().size(), 0);
+            long start = System.nanoTime();
+            assertTrue(warmUp.run(50L, 0L) > 0);
+            assertTrue(System.nanoTime() - start >= 50000000L);
+        }
+    }
+}